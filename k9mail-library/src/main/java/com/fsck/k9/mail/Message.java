@@ -247,6 +247,14 @@ public abstract class Message implements Part, CompositeBody {
 
     public abstract void setCharset(String charset) throws MessagingException;
 
+    /**
+     * Returns the size of the message with CRLF line endings.
+     *
+     * <p>
+     * This encodes the whole message. Use
+     * {@link com.fsck.k9.mail.internet.SpooledMessage} if the message is sent afterwards.
+     * </p>
+     */
     public long calculateSize() {
         try {
 
@@ -0,0 +1,172 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes Base64 encoded data read from the wrapped stream.
+ *
+ * <p>
+ * The data is decoded a buffer at a time using a lookup table. Like mime4j's
+ * {@code Base64InputStream} characters outside the Base64 alphabet (e.g. line breaks) are
+ * ignored, decoding stops at the first padding character, and an incomplete group at the end of
+ * the data is dropped.
+ * </p>
+ */
+public class Base64DecoderInputStream extends InputStream {
+    private static final byte INVALID = -1;
+    private static final byte PAD = -2;
+
+    private static final byte[] DECODE_TABLE = new byte[256];
+    static {
+        Arrays.fill(DECODE_TABLE, INVALID);
+        for (int i = 0; i < 26; i++) {
+            DECODE_TABLE['A' + i] = (byte) i;
+            DECODE_TABLE['a' + i] = (byte) (26 + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            DECODE_TABLE['0' + i] = (byte) (52 + i);
+        }
+        DECODE_TABLE['+'] = 62;
+        DECODE_TABLE['/'] = 63;
+        DECODE_TABLE['='] = PAD;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream mIn;
+    private final byte[] mInput = new byte[BUFFER_SIZE];
+    private final byte[] mOutput = new byte[BUFFER_SIZE / 4 * 3 + 3];
+    private int mOutputPosition;
+    private int mOutputLength;
+
+    /**
+     * Bits of the characters read of an incomplete group.
+     */
+    private int mBits;
+    private int mCharactersInGroup;
+
+    private boolean mEndOfData;
+
+
+    public Base64DecoderInputStream(InputStream in) {
+        mIn = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutputPosition == mOutputLength && !fill()) {
+            return -1;
+        }
+        return mOutput[mOutputPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        } else if (length == 0) {
+            return 0;
+        }
+
+        if (mOutputPosition == mOutputLength && !fill()) {
+            return -1;
+        }
+
+        int count = Math.min(length, mOutputLength - mOutputPosition);
+        System.arraycopy(mOutput, mOutputPosition, b, offset, count);
+        mOutputPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mOutputLength - mOutputPosition;
+    }
+
+    /**
+     * Closes the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        mEndOfData = true;
+        mOutputPosition = mOutputLength;
+        mIn.close();
+    }
+
+    /**
+     * Decode the next buffer of input.
+     *
+     * @return {@code false} if the end of the data has been reached.
+     */
+    private boolean fill() throws IOException {
+        mOutputPosition = 0;
+        mOutputLength = 0;
+        while (mOutputLength == 0 && !mEndOfData) {
+            int count = mIn.read(mInput, 0, BUFFER_SIZE);
+            if (count == -1) {
+                mEndOfData = true;
+            } else {
+                decode(count);
+            }
+        }
+        return mOutputLength > 0;
+    }
+
+    private void decode(int length) {
+        byte[] table = DECODE_TABLE;
+        byte[] input = mInput;
+        byte[] output = mOutput;
+        int position = 0;
+        int bits = mBits;
+        int characters = mCharactersInGroup;
+
+        int i = 0;
+        while (i < length) {
+            // Fast path for a complete group without line breaks in between
+            if (characters == 0 && i + 4 <= length) {
+                int c0 = table[input[i] & 0xFF];
+                int c1 = table[input[i + 1] & 0xFF];
+                int c2 = table[input[i + 2] & 0xFF];
+                int c3 = table[input[i + 3] & 0xFF];
+                if ((c0 | c1 | c2 | c3) >= 0) {
+                    int group = c0 << 18 | c1 << 12 | c2 << 6 | c3;
+                    output[position] = (byte) (group >> 16);
+                    output[position + 1] = (byte) (group >> 8);
+                    output[position + 2] = (byte) group;
+                    position += 3;
+                    i += 4;
+                    continue;
+                }
+            }
+
+            int value = table[input[i++] & 0xFF];
+            if (value >= 0) {
+                bits = bits << 6 | value;
+                if (++characters == 4) {
+                    output[position] = (byte) (bits >> 16);
+                    output[position + 1] = (byte) (bits >> 8);
+                    output[position + 2] = (byte) bits;
+                    position += 3;
+                    bits = 0;
+                    characters = 0;
+                }
+            } else if (value == PAD) {
+                if (characters == 2) {
+                    output[position++] = (byte) (bits >> 4);
+                } else if (characters == 3) {
+                    output[position] = (byte) (bits >> 10);
+                    output[position + 1] = (byte) (bits >> 2);
+                    position += 2;
+                }
+                mEndOfData = true;
+                break;
+            }
+        }
+
+        mBits = bits;
+        mCharactersInGroup = characters;
+        mOutputLength = position;
+    }
+}
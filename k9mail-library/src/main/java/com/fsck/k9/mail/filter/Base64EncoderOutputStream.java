@@ -0,0 +1,165 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes everything written to it as Base64 with lines of 76 characters, as required for the
+ * Base64 Content-Transfer-Encoding (RFC 2045).
+ *
+ * <p>
+ * The output is the same as that of {@link Base64#encodeBase64Chunked(byte[])}, but the data is
+ * encoded a buffer at a time using a lookup table. {@link #close()} writes the end of the encoded
+ * data but doesn't close the wrapped stream.
+ * </p>
+ */
+public class Base64EncoderOutputStream extends FilterOutputStream {
+    private static final byte[] ENCODE_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+    private static final byte PAD = '=';
+
+    /**
+     * Number of 3-byte groups encoded on one line of 76 characters.
+     */
+    private static final int GROUPS_PER_LINE = 19;
+
+    /**
+     * Room for the four characters of a group and a line break.
+     */
+    private static final int MAX_GROUP_OUTPUT = 6;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferLength;
+
+    /**
+     * Bytes written that don't make up a complete group yet.
+     */
+    private final byte[] mPending = new byte[3];
+    private int mPendingLength;
+
+    private int mGroupsOnLine;
+    private boolean mClosed;
+
+
+    public Base64EncoderOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        mPending[mPendingLength++] = (byte) oneByte;
+        if (mPendingLength == 3) {
+            mPendingLength = 0;
+            encodeGroups(mPending, 0, 3);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int end = offset + length;
+        while (mPendingLength > 0 && offset < end) {
+            write(b[offset++]);
+        }
+
+        int groupsEnd = end - (end - offset) % 3;
+        encodeGroups(b, offset, groupsEnd);
+
+        for (int i = groupsEnd; i < end; i++) {
+            mPending[mPendingLength++] = b[i];
+        }
+    }
+
+    /**
+     * Encode the bytes from {@code offset} to {@code end}. Their number must be a multiple of 3.
+     */
+    private void encodeGroups(byte[] b, int offset, int end) throws IOException {
+        byte[] table = ENCODE_TABLE;
+        byte[] buffer = mBuffer;
+        int position = mBufferLength;
+        int groupsOnLine = mGroupsOnLine;
+        while (offset < end) {
+            if (position > BUFFER_SIZE - MAX_GROUP_OUTPUT) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+
+            int bits = (b[offset] & 0xFF) << 16 | (b[offset + 1] & 0xFF) << 8 |
+                    (b[offset + 2] & 0xFF);
+            offset += 3;
+            buffer[position] = table[bits >>> 18];
+            buffer[position + 1] = table[(bits >>> 12) & 0x3F];
+            buffer[position + 2] = table[(bits >>> 6) & 0x3F];
+            buffer[position + 3] = table[bits & 0x3F];
+            position += 4;
+
+            if (++groupsOnLine == GROUPS_PER_LINE) {
+                buffer[position++] = '\r';
+                buffer[position++] = '\n';
+                groupsOnLine = 0;
+            }
+        }
+        mBufferLength = position;
+        mGroupsOnLine = groupsOnLine;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferLength > 0) {
+            out.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+    }
+
+    /**
+     * Writes the last group with padding and the final line break. The wrapped stream is flushed
+     * but not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mBufferLength > BUFFER_SIZE - MAX_GROUP_OUTPUT) {
+            flushBuffer();
+        }
+
+        byte[] buffer = mBuffer;
+        int position = mBufferLength;
+        if (mPendingLength > 0) {
+            int bits = (mPending[0] & 0xFF) << 16;
+            if (mPendingLength == 2) {
+                bits |= (mPending[1] & 0xFF) << 8;
+            }
+            buffer[position] = ENCODE_TABLE[bits >>> 18];
+            buffer[position + 1] = ENCODE_TABLE[(bits >>> 12) & 0x3F];
+            buffer[position + 2] = (mPendingLength == 2) ? ENCODE_TABLE[(bits >>> 6) & 0x3F] : PAD;
+            buffer[position + 3] = PAD;
+            position += 4;
+            mPendingLength = 0;
+        }
+        buffer[position++] = '\r';
+        buffer[position++] = '\n';
+        mBufferLength = position;
+
+        flush();
+    }
+}
@@ -0,0 +1,75 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Copies streams like {@link IOUtils#copyLarge(InputStream, OutputStream)}, but lets the
+ * {@link FileChannel} do the work when both ends are files.
+ *
+ * <p>
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} moves the data
+ * in the kernel (or through a mapping of the source file) instead of copying it through a small
+ * Java buffer. Streams that aren't backed by a regular file, e.g. a pipe handed out by a
+ * content provider, are copied the usual way.
+ * </p>
+ *
+ * <p>
+ * Only plain {@link FileInputStream}s are copied through their channel. Subclasses may
+ * limit what can be read, e.g. {@code AssetFileDescriptor.AutoCloseInputStream} only returns
+ * a section of the underlying file, which the channel doesn't know about.
+ * </p>
+ */
+public class FileChannelCopier {
+    private FileChannelCopier() {
+    }
+
+    /**
+     * Copies everything from the current position of {@code in} to {@code out}. Neither stream
+     * is closed.
+     *
+     * @return The number of bytes copied.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        long count = 0;
+        if (in.getClass() == FileInputStream.class && out instanceof FileOutputStream) {
+            count = transfer(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel());
+        }
+
+        // Whatever transferTo() didn't take care of, e.g. because the source isn't seekable
+        return count + IOUtils.copyLarge(in, out);
+    }
+
+    private static long transfer(FileChannel source, FileChannel target) throws IOException {
+        long start;
+        long size;
+        try {
+            start = source.position();
+            size = source.size();
+        } catch (IOException e) {
+            // Pipes and sockets can't tell their position
+            return 0;
+        }
+
+        long position = start;
+        while (position < size) {
+            // May transfer fewer bytes than requested
+            long transferred = source.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+
+        // transferTo() doesn't move the position of the source
+        source.position(position);
+        return position - start;
+    }
+}
@@ -0,0 +1,391 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes quoted-printable encoded data (RFC 2045) read from the wrapped stream.
+ *
+ * <p>
+ * The data is decoded a buffer at a time. Runs of characters that stand for themselves are
+ * copied as a whole, everything else is handled by a small state machine driven by a lookup
+ * table. The output is the same as that of mime4j's {@code QuotedPrintableInputStream}:
+ * <ul>
+ * <li>Line breaks ({@code CRLF} or a single {@code LF}) are returned as {@code CRLF}.</li>
+ * <li>Whitespace at the end of a line or at the end of the data is dropped.</li>
+ * <li>{@code =} followed by optional whitespace and a line break is a soft line break.</li>
+ * <li>{@code =} not followed by two hex digits or a line break is returned as is.</li>
+ * </ul>
+ * Malformed data is decoded differently from mime4j in these cases:
+ * <ul>
+ * <li>The characters after an invalid {@code =} are decoded as usual. mime4j copies the next two
+ * characters unchecked, so {@code x==41} is {@code x=A} here and {@code x=41} in mime4j, and
+ * {@code a=1\r\n} ends with {@code \r\n} here and with {@code \r\r\n} in mime4j.</li>
+ * <li>A {@code CR} that is not part of a line break is always returned as is, together with the
+ * whitespace before it. mime4j drops it at the end of the data and moves it in front of that
+ * whitespace otherwise.</li>
+ * <li>{@code =} followed by a {@code CR} that is not part of a line break is returned as is.
+ * mime4j skips everything up to the next line break as a soft line break.</li>
+ * <li>{@code =} at the end of the data is treated as a soft line break.</li>
+ * </ul>
+ * </p>
+ */
+public class QuotedPrintableDecoderInputStream extends InputStream {
+    private static final byte LITERAL = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte EQUALS = 2;
+    private static final byte CR = 3;
+    private static final byte LF = 4;
+
+    private static final byte[] CHARACTER_CLASS = new byte[256];
+    static {
+        CHARACTER_CLASS[' '] = WHITESPACE;
+        CHARACTER_CLASS['\t'] = WHITESPACE;
+        CHARACTER_CLASS['='] = EQUALS;
+        CHARACTER_CLASS['\r'] = CR;
+        CHARACTER_CLASS['\n'] = LF;
+    }
+
+    private static final byte[] HEX_VALUE = new byte[256];
+    static {
+        Arrays.fill(HEX_VALUE, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['A' + i] = (byte) (10 + i);
+            HEX_VALUE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Reading text.
+     */
+    private static final int STATE_TEXT = 0;
+
+    /**
+     * Read whitespace that is dropped if a line break follows.
+     */
+    private static final int STATE_WHITESPACE = 1;
+
+    /**
+     * Read {@code CR}, possibly after whitespace.
+     */
+    private static final int STATE_CR = 2;
+
+    /**
+     * Read {@code =}.
+     */
+    private static final int STATE_EQUALS = 3;
+
+    /**
+     * Read {@code =} and a hex digit.
+     */
+    private static final int STATE_EQUALS_HEX = 4;
+
+    /**
+     * Read {@code =} and whitespace.
+     */
+    private static final int STATE_EQUALS_WHITESPACE = 5;
+
+    /**
+     * Read {@code =}, possibly whitespace, and {@code CR}.
+     */
+    private static final int STATE_EQUALS_CR = 6;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream mIn;
+    private final byte[] mInput = new byte[BUFFER_SIZE];
+    private byte[] mOutput = new byte[BUFFER_SIZE + 16];
+    private int mOutputPosition;
+    private int mOutputLength;
+
+    private int mState = STATE_TEXT;
+    private byte[] mWhitespace = new byte[16];
+    private int mWhitespaceLength;
+    private byte mHexDigit;
+
+    private boolean mEndOfData;
+
+
+    public QuotedPrintableDecoderInputStream(InputStream in) {
+        mIn = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutputPosition == mOutputLength && !fill()) {
+            return -1;
+        }
+        return mOutput[mOutputPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        } else if (length == 0) {
+            return 0;
+        }
+
+        if (mOutputPosition == mOutputLength && !fill()) {
+            return -1;
+        }
+
+        int count = Math.min(length, mOutputLength - mOutputPosition);
+        System.arraycopy(mOutput, mOutputPosition, b, offset, count);
+        mOutputPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mOutputLength - mOutputPosition;
+    }
+
+    /**
+     * Closes the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        mEndOfData = true;
+        mOutputPosition = mOutputLength;
+        mIn.close();
+    }
+
+    /**
+     * Decode the next buffer of input.
+     *
+     * @return {@code false} if the end of the data has been reached.
+     */
+    private boolean fill() throws IOException {
+        mOutputPosition = 0;
+        mOutputLength = 0;
+        while (mOutputLength == 0 && !mEndOfData) {
+            int count = mIn.read(mInput, 0, BUFFER_SIZE);
+            if (count == -1) {
+                mEndOfData = true;
+                finish();
+            } else {
+                decode(count);
+            }
+        }
+        return mOutputLength > 0;
+    }
+
+    private void decode(int length) {
+        byte[] classes = CHARACTER_CLASS;
+        byte[] input = mInput;
+        int i = 0;
+        while (i < length) {
+            byte c = input[i];
+            int characterClass = classes[c & 0xFF];
+            switch (mState) {
+                case STATE_TEXT: {
+                    int start = i;
+                    i = skipLiteralText(input, i, length);
+                    if (i > start) {
+                        append(input, start, i - start);
+                        continue;
+                    }
+
+                    i++;
+                    if (characterClass == WHITESPACE) {
+                        appendWhitespace(c);
+                        mState = STATE_WHITESPACE;
+                    } else if (characterClass == EQUALS) {
+                        mState = STATE_EQUALS;
+                    } else if (characterClass == CR) {
+                        mState = STATE_CR;
+                    } else {
+                        appendLineBreak();
+                    }
+                    break;
+                }
+                case STATE_WHITESPACE: {
+                    if (characterClass == WHITESPACE) {
+                        appendWhitespace(c);
+                        i++;
+                    } else if (characterClass == CR) {
+                        mState = STATE_CR;
+                        i++;
+                    } else if (characterClass == LF) {
+                        mWhitespaceLength = 0;
+                        appendLineBreak();
+                        mState = STATE_TEXT;
+                        i++;
+                    } else {
+                        flushWhitespace();
+                        mState = STATE_TEXT;
+                    }
+                    break;
+                }
+                case STATE_CR: {
+                    if (characterClass == LF) {
+                        mWhitespaceLength = 0;
+                        appendLineBreak();
+                        i++;
+                    } else {
+                        flushWhitespace();
+                        append((byte) '\r');
+                    }
+                    mState = STATE_TEXT;
+                    break;
+                }
+                case STATE_EQUALS: {
+                    if (HEX_VALUE[c & 0xFF] != -1) {
+                        mHexDigit = c;
+                        mState = STATE_EQUALS_HEX;
+                        i++;
+                    } else if (characterClass == WHITESPACE) {
+                        appendWhitespace(c);
+                        mState = STATE_EQUALS_WHITESPACE;
+                        i++;
+                    } else if (characterClass == CR) {
+                        mState = STATE_EQUALS_CR;
+                        i++;
+                    } else if (characterClass == LF) {
+                        // Soft line break
+                        mState = STATE_TEXT;
+                        i++;
+                    } else {
+                        append((byte) '=');
+                        mState = STATE_TEXT;
+                    }
+                    break;
+                }
+                case STATE_EQUALS_HEX: {
+                    int value = HEX_VALUE[c & 0xFF];
+                    if (value != -1) {
+                        append((byte) (HEX_VALUE[mHexDigit & 0xFF] << 4 | value));
+                        i++;
+                    } else {
+                        append((byte) '=');
+                        append(mHexDigit);
+                    }
+                    mState = STATE_TEXT;
+                    break;
+                }
+                case STATE_EQUALS_WHITESPACE: {
+                    if (characterClass == WHITESPACE) {
+                        appendWhitespace(c);
+                        i++;
+                    } else if (characterClass == CR) {
+                        mState = STATE_EQUALS_CR;
+                        i++;
+                    } else if (characterClass == LF) {
+                        // Soft line break with transport padding
+                        mWhitespaceLength = 0;
+                        mState = STATE_TEXT;
+                        i++;
+                    } else {
+                        append((byte) '=');
+                        flushWhitespace();
+                        mState = STATE_TEXT;
+                    }
+                    break;
+                }
+                case STATE_EQUALS_CR: {
+                    if (characterClass == LF) {
+                        mWhitespaceLength = 0;
+                        i++;
+                    } else {
+                        append((byte) '=');
+                        flushWhitespace();
+                        append((byte) '\r');
+                    }
+                    mState = STATE_TEXT;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the end of the run of characters starting at {@code start} that can be copied to
+     * the output as is. Whitespace is only part of the run if it's followed by such a character.
+     */
+    private static int skipLiteralText(byte[] input, int start, int end) {
+        byte[] classes = CHARACTER_CLASS;
+        int i = start;
+        while (i < end) {
+            int characterClass = classes[input[i] & 0xFF];
+            if (characterClass == LITERAL) {
+                i++;
+            } else if (characterClass == WHITESPACE) {
+                int next = i + 1;
+                while (next < end && classes[input[next] & 0xFF] == WHITESPACE) {
+                    next++;
+                }
+                if (next == end || classes[input[next] & 0xFF] != LITERAL) {
+                    break;
+                }
+                i = next + 1;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Handle the end of the data.
+     */
+    private void finish() {
+        switch (mState) {
+            case STATE_CR: {
+                flushWhitespace();
+                append((byte) '\r');
+                break;
+            }
+            case STATE_EQUALS_HEX: {
+                append((byte) '=');
+                append(mHexDigit);
+                break;
+            }
+            default: {
+                // Whitespace at the end and soft line breaks are dropped
+                break;
+            }
+        }
+        mWhitespaceLength = 0;
+        mState = STATE_TEXT;
+    }
+
+    private void appendLineBreak() {
+        ensureOutputCapacity(2);
+        mOutput[mOutputLength++] = '\r';
+        mOutput[mOutputLength++] = '\n';
+    }
+
+    private void append(byte b) {
+        ensureOutputCapacity(1);
+        mOutput[mOutputLength++] = b;
+    }
+
+    private void append(byte[] b, int offset, int length) {
+        ensureOutputCapacity(length);
+        System.arraycopy(b, offset, mOutput, mOutputLength, length);
+        mOutputLength += length;
+    }
+
+    private void appendWhitespace(byte c) {
+        if (mWhitespaceLength == mWhitespace.length) {
+            mWhitespace = Arrays.copyOf(mWhitespace, mWhitespace.length * 2);
+        }
+        mWhitespace[mWhitespaceLength++] = c;
+    }
+
+    private void flushWhitespace() {
+        append(mWhitespace, 0, mWhitespaceLength);
+        mWhitespaceLength = 0;
+    }
+
+    private void ensureOutputCapacity(int length) {
+        if (mOutputLength + length > mOutput.length) {
+            mOutput = Arrays.copyOf(mOutput, Math.max(mOutput.length * 2, mOutputLength + length));
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes text written to it as quoted-printable (RFC 2045).
+ *
+ * <p>
+ * The output is the same as that of mime4j's {@code QuotedPrintableOutputStream} in text mode:
+ * {@code CRLF} is kept as a line break, whitespace before a line break is encoded, and lines
+ * are wrapped with soft line breaks. Unlike mime4j a {@code CR} that is not part of a line break
+ * is never dropped.
+ * </p>
+ *
+ * <p>
+ * Whole buffers are encoded in one loop using a lookup table for the kind of each byte.
+ * {@link #close()} writes pending whitespace but doesn't close the wrapped stream.
+ * </p>
+ */
+public class QuotedPrintableEncoderOutputStream extends FilterOutputStream {
+    private static final byte LITERAL = 0;
+    private static final byte ESCAPED = 1;
+    private static final byte SPACE = 2;
+    private static final byte TAB = 3;
+    private static final byte CR = 4;
+    private static final byte LF = 5;
+
+    private static final byte[] BYTE_CLASS = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            BYTE_CLASS[i] = (i >= 0x21 && i <= 0x7E && i != '=') ? LITERAL : ESCAPED;
+        }
+        BYTE_CLASS[' '] = SPACE;
+        BYTE_CLASS['\t'] = TAB;
+        BYTE_CLASS['\r'] = CR;
+        BYTE_CLASS['\n'] = LF;
+    }
+
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    private static final int MAX_LINE_LENGTH = 76;
+
+    /**
+     * The most a single input byte can add to the buffer: pending whitespace, a soft line break
+     * and an escaped byte.
+     */
+    private static final int MAX_BYTE_OUTPUT = 16;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferLength;
+
+    /**
+     * Counts down the characters left on the current line, the way mime4j does.
+     */
+    private int mNextSoftBreak = MAX_LINE_LENGTH + 1;
+
+    /**
+     * Whitespace that is encoded if it's followed by a line break. 0 if there is none.
+     */
+    private byte mPendingWhitespace;
+    private boolean mPendingCr;
+
+    private final byte[] mSingleByte = new byte[1];
+    private boolean mClosed;
+
+
+    public QuotedPrintableEncoderOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        mSingleByte[0] = (byte) oneByte;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        byte[] classes = BYTE_CLASS;
+        byte[] buffer = mBuffer;
+        int position = mBufferLength;
+        int nextSoftBreak = mNextSoftBreak;
+        byte pendingWhitespace = mPendingWhitespace;
+        boolean pendingCr = mPendingCr;
+        int end = offset + length;
+        for (; offset < end; offset++) {
+            if (position > BUFFER_SIZE - MAX_BYTE_OUTPUT) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+
+            byte c = b[offset];
+            int byteClass = classes[c & 0xFF];
+
+            // Whitespace is only encoded before a line break, so if the next byte isn't CR it
+            // can be written like a literal byte
+            if (pendingWhitespace == 0 && !pendingCr && (byteClass == LITERAL ||
+                    ((byteClass == SPACE || byteClass == TAB) && offset + 1 < end &&
+                            classes[b[offset + 1] & 0xFF] != CR))) {
+                if (--nextSoftBreak <= 1) {
+                    buffer[position] = '=';
+                    buffer[position + 1] = '\r';
+                    buffer[position + 2] = '\n';
+                    position += 3;
+                    nextSoftBreak = MAX_LINE_LENGTH;
+                }
+                buffer[position++] = c;
+                continue;
+            }
+
+            if (byteClass == CR) {
+                if (pendingCr) {
+                    mBufferLength = position;
+                    mNextSoftBreak = nextSoftBreak;
+                    mPendingWhitespace = pendingWhitespace;
+                    mPendingCr = true;
+                    writePending();
+                    position = mBufferLength;
+                    nextSoftBreak = mNextSoftBreak;
+                    pendingWhitespace = 0;
+                }
+                pendingCr = true;
+                continue;
+            }
+
+            if (byteClass == LF && pendingCr) {
+                if (pendingWhitespace != 0) {
+                    if (--nextSoftBreak <= 3) {
+                        buffer[position] = '=';
+                        buffer[position + 1] = '\r';
+                        buffer[position + 2] = '\n';
+                        position += 3;
+                        nextSoftBreak = MAX_LINE_LENGTH;
+                    }
+                    buffer[position] = '=';
+                    buffer[position + 1] = HEX_DIGITS[pendingWhitespace >> 4];
+                    buffer[position + 2] = HEX_DIGITS[pendingWhitespace & 0xF];
+                    position += 3;
+                    pendingWhitespace = 0;
+                }
+                buffer[position] = '\r';
+                buffer[position + 1] = '\n';
+                position += 2;
+                nextSoftBreak = MAX_LINE_LENGTH;
+                pendingCr = false;
+                continue;
+            }
+
+            // No line break follows, so pending whitespace and CR are written as is
+            if (pendingWhitespace != 0) {
+                if (--nextSoftBreak <= 1) {
+                    buffer[position] = '=';
+                    buffer[position + 1] = '\r';
+                    buffer[position + 2] = '\n';
+                    position += 3;
+                    nextSoftBreak = MAX_LINE_LENGTH;
+                }
+                buffer[position++] = pendingWhitespace;
+                pendingWhitespace = 0;
+            }
+            if (pendingCr) {
+                if (--nextSoftBreak <= 1) {
+                    buffer[position] = '=';
+                    buffer[position + 1] = '\r';
+                    buffer[position + 2] = '\n';
+                    position += 3;
+                    nextSoftBreak = MAX_LINE_LENGTH;
+                }
+                buffer[position++] = '\r';
+                pendingCr = false;
+            }
+
+            if (byteClass == SPACE || byteClass == TAB) {
+                pendingWhitespace = c;
+            } else if (byteClass == ESCAPED) {
+                if (--nextSoftBreak <= 3) {
+                    buffer[position] = '=';
+                    buffer[position + 1] = '\r';
+                    buffer[position + 2] = '\n';
+                    position += 3;
+                    nextSoftBreak = MAX_LINE_LENGTH;
+                }
+                buffer[position] = '=';
+                buffer[position + 1] = HEX_DIGITS[(c >> 4) & 0xF];
+                buffer[position + 2] = HEX_DIGITS[c & 0xF];
+                position += 3;
+                nextSoftBreak -= 2;
+            } else {
+                // A literal byte, or LF without CR which is written as is
+                if (--nextSoftBreak <= 1) {
+                    buffer[position] = '=';
+                    buffer[position + 1] = '\r';
+                    buffer[position + 2] = '\n';
+                    position += 3;
+                    nextSoftBreak = MAX_LINE_LENGTH;
+                }
+                buffer[position++] = c;
+            }
+        }
+        mBufferLength = position;
+        mNextSoftBreak = nextSoftBreak;
+        mPendingWhitespace = pendingWhitespace;
+        mPendingCr = pendingCr;
+    }
+
+    /**
+     * Write pending whitespace and {@code CR} as is because no line break follows.
+     */
+    private void writePending() {
+        if (mPendingWhitespace != 0) {
+            writeLiteral(mPendingWhitespace);
+            mPendingWhitespace = 0;
+        }
+        if (mPendingCr) {
+            writeLiteral((byte) '\r');
+            mPendingCr = false;
+        }
+    }
+
+    private void writeLiteral(byte c) {
+        if (--mNextSoftBreak <= 1) {
+            mBuffer[mBufferLength++] = '=';
+            mBuffer[mBufferLength++] = '\r';
+            mBuffer[mBufferLength++] = '\n';
+            mNextSoftBreak = MAX_LINE_LENGTH;
+        }
+        mBuffer[mBufferLength++] = c;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferLength > 0) {
+            out.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+    }
+
+    /**
+     * Writes pending whitespace. The wrapped stream is flushed but not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mBufferLength > BUFFER_SIZE - MAX_BYTE_OUTPUT) {
+            flushBuffer();
+        }
+        writePending();
+        flush();
+    }
+}
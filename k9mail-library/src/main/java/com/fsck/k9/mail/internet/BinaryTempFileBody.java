@@ -2,9 +2,10 @@ package com.fsck.k9.mail.internet;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
-import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.Base64EncoderOutputStream;
+import com.fsck.k9.mail.filter.FileChannelCopier;
+import com.fsck.k9.mail.filter.QuotedPrintableEncoderOutputStream;
 import org.apache.commons.io.IOUtils;
-import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 import java.io.*;
@@ -26,6 +27,10 @@ public class BinaryTempFileBody implements RawDataBody {
         mTempDirectory = tempDirectory;
     }
 
+    public static File getTempDirectory() {
+        return mTempDirectory;
+    }
+
     @Override
     public String getEncoding() {
         return mEncoding;
@@ -43,12 +48,13 @@ public class BinaryTempFileBody implements RawDataBody {
 
         try {
             File newFile = File.createTempFile("body", null, mTempDirectory);
-            OutputStream out = new FileOutputStream(newFile);
+            OutputStream fileOut = new FileOutputStream(newFile);
             try {
+                OutputStream out;
                 if (MimeUtil.ENC_QUOTED_PRINTABLE.equals(encoding)) {
-                    out = new QuotedPrintableOutputStream(out, false);
+                    out = new QuotedPrintableEncoderOutputStream(fileOut);
                 } else if (MimeUtil.ENC_BASE64.equals(encoding)) {
-                    out = new Base64OutputStream(out);
+                    out = new Base64EncoderOutputStream(fileOut);
                 } else {
                     throw new RuntimeException("Target encoding not supported: " + encoding);
                 }
@@ -59,8 +65,10 @@ public class BinaryTempFileBody implements RawDataBody {
                 } finally {
                     in.close();
                 }
-            } finally {
+                // Writes the end of the encoded data, the file is closed below
                 out.close();
+            } finally {
+                fileOut.close();
             }
 
             mFile = newFile;
@@ -93,11 +101,16 @@ public class BinaryTempFileBody implements RawDataBody {
     }
 
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        InputStream in = getInputStream();
+        // Not wrapped in BinaryTempFileBodyInputStream so the copy can use the file's channel
+        FileInputStream in = new FileInputStream(mFile);
         try {
-            IOUtils.copy(in, out);
+            FileChannelCopier.copy(in, out);
         } finally {
-            in.close();
+            try {
+                in.close();
+            } finally {
+                mFile.delete();
+            }
         }
     }
 
@@ -8,9 +8,9 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Multipart;
 import com.fsck.k9.mail.Part;
 
+import com.fsck.k9.mail.filter.Base64DecoderInputStream;
+import com.fsck.k9.mail.filter.QuotedPrintableDecoderInputStream;
 import org.apache.commons.io.IOUtils;
-import org.apache.james.mime4j.codec.Base64InputStream;
-import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 import java.io.IOException;
@@ -1021,25 +1021,13 @@ public class MimeUtility {
         if (body instanceof RawDataBody) {
             RawDataBody rawDataBody = (RawDataBody) body;
             String encoding = rawDataBody.getEncoding();
-            final InputStream rawInputStream = rawDataBody.getInputStream();
+            InputStream rawInputStream = rawDataBody.getInputStream();
             if (MimeUtil.ENC_7BIT.equalsIgnoreCase(encoding) || MimeUtil.ENC_8BIT.equalsIgnoreCase(encoding)) {
                 inputStream = rawInputStream;
             } else if (MimeUtil.ENC_BASE64.equalsIgnoreCase(encoding)) {
-                inputStream = new Base64InputStream(rawInputStream, false) {
-                    @Override
-                    public void close() throws IOException {
-                        super.close();
-                        rawInputStream.close();
-                    }
-                };
+                inputStream = new Base64DecoderInputStream(rawInputStream);
             } else if (MimeUtil.ENC_QUOTED_PRINTABLE.equalsIgnoreCase(encoding)) {
-                inputStream = new QuotedPrintableInputStream(rawInputStream) {
-                    @Override
-                    public void close() throws IOException {
-                        super.close();
-                        rawInputStream.close();
-                    }
-                };
+                inputStream = new QuotedPrintableDecoderInputStream(rawInputStream);
             } else {
                 throw new RuntimeException("Encoding for RawDataBody not supported: " + encoding);
             }
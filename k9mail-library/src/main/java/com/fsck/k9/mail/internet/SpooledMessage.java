@@ -0,0 +1,85 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+
+/**
+ * A message serialized the way it is sent to a server, i.e. with CRLF line endings.
+ *
+ * <p>
+ * Some protocols need the size of a message before the message itself. Instead of encoding the
+ * message twice (once to count the bytes, once to send them) it is written to a spool once.
+ * Small messages are kept in memory, larger ones are written to a temporary file. Call
+ * {@link #close()} when done to delete the file.
+ * </p>
+ */
+public class SpooledMessage {
+    /**
+     * Messages up to this size are kept in memory.
+     */
+    static final int MEMORY_THRESHOLD = 256 * 1024;
+
+    private final DeferredFileOutputStream mSpool;
+
+
+    public static SpooledMessage spool(Message message) throws IOException, MessagingException {
+        DeferredFileOutputStream spool = new DeferredFileOutputStream(MEMORY_THRESHOLD,
+                "message", null, BinaryTempFileBody.getTempDirectory());
+        boolean success = false;
+        try {
+            EOLConvertingOutputStream out = new EOLConvertingOutputStream(spool);
+            message.writeTo(out);
+            out.close();
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeQuietly(spool);
+                deleteFile(spool);
+            }
+        }
+
+        return new SpooledMessage(spool);
+    }
+
+    private static void deleteFile(DeferredFileOutputStream spool) {
+        File file = spool.getFile();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+
+    private SpooledMessage(DeferredFileOutputStream spool) {
+        mSpool = spool;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo(OutputStream)} will write.
+     */
+    public long getSize() {
+        return mSpool.getByteCount();
+    }
+
+    public boolean isInMemory() {
+        return mSpool.isInMemory();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        mSpool.writeTo(out);
+    }
+
+    /**
+     * Delete the temporary file, if there is one.
+     */
+    public void close() {
+        deleteFile(mSpool);
+    }
+}
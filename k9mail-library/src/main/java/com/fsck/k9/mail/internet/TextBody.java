@@ -3,6 +3,7 @@ package com.fsck.k9.mail.internet;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.QuotedPrintableEncoderOutputStream;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -10,7 +11,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
-import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 public class TextBody implements Body {
@@ -40,7 +40,7 @@ public class TextBody implements Body {
             if (MimeUtil.ENC_8BIT.equalsIgnoreCase(mEncoding)) {
                 out.write(bytes);
             } else {
-                QuotedPrintableOutputStream qp = new QuotedPrintableOutputStream(out, false);
+                QuotedPrintableEncoderOutputStream qp = new QuotedPrintableEncoderOutputStream(out);
                 qp.write(bytes);
                 qp.flush();
                 qp.close();
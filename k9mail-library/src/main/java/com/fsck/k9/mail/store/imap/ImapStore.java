@@ -4,6 +4,7 @@ package com.fsck.k9.mail.store.imap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
@@ -54,13 +55,13 @@ import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.Pusher;
 import com.fsck.k9.mail.ServerSettings;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
+import com.fsck.k9.mail.internet.SpooledMessage;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.fsck.k9.mail.store.RemoteStore;
 import com.fsck.k9.mail.store.StoreConfig;
@@ -1859,24 +1860,30 @@ public class ImapStore extends RemoteStore {
             try {
                 Map<String, String> uidMap = new HashMap<String, String>();
                 for (Message message : messages) {
-                    mConnection.sendCommand(
-                        String.format(Locale.US, "APPEND %s (%s) {%d}",
-                                      encodeString(encodeFolderName(getPrefixedName())),
-                                      combineFlags(message.getFlags()),
-                                      message.calculateSize()), false);
-
+                    // Encode the message only once to get its size and send it
+                    SpooledMessage spooledMessage = SpooledMessage.spool(message);
                     ImapResponse response;
-                    do {
-                        response = mConnection.readResponse();
-                        handleUntaggedResponse(response);
-                        if (response.isContinuationRequested()) {
-                            EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(mConnection.getOutputStream());
-                            message.writeTo(eolOut);
-                            eolOut.write('\r');
-                            eolOut.write('\n');
-                            eolOut.flush();
-                        }
-                    } while (response.getTag() == null);
+                    try {
+                        mConnection.sendCommand(
+                            String.format(Locale.US, "APPEND %s (%s) {%d}",
+                                          encodeString(encodeFolderName(getPrefixedName())),
+                                          combineFlags(message.getFlags()),
+                                          spooledMessage.getSize()), false);
+
+                        do {
+                            response = mConnection.readResponse();
+                            handleUntaggedResponse(response);
+                            if (response.isContinuationRequested()) {
+                                OutputStream out = mConnection.getOutputStream();
+                                spooledMessage.writeTo(out);
+                                out.write('\r');
+                                out.write('\n');
+                                out.flush();
+                            }
+                        } while (response.getTag() == null);
+                    } finally {
+                        spooledMessage.close();
+                    }
 
                     if (response.size() > 1) {
                         /*
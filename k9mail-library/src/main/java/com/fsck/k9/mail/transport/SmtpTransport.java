@@ -11,6 +11,7 @@ import com.fsck.k9.mail.filter.LineWrapOutputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import com.fsck.k9.mail.filter.SmtpDataStuffing;
 import com.fsck.k9.mail.internet.CharsetSupport;
+import com.fsck.k9.mail.internet.SpooledMessage;
 import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.fsck.k9.mail.store.StoreConfig;
@@ -502,9 +503,18 @@ public class SmtpTransport extends Transport {
             message.setUsing7bitTransport();
         }
         // If the message has attachments and our server has told us about a limit on
-        // the size of messages, count the message's size before sending it
+        // the size of messages, count the message's size before sending it. The message is
+        // spooled, so it doesn't have to be encoded a second time to send it.
+        SpooledMessage spooledMessage = null;
         if (mLargestAcceptableMessage > 0 && message.hasAttachments()) {
-            if (message.calculateSize() > mLargestAcceptableMessage) {
+            try {
+                spooledMessage = SpooledMessage.spool(message);
+            } catch (IOException e) {
+                throw new MessagingException("Unable to spool message", e);
+            }
+
+            if (spooledMessage.getSize() > mLargestAcceptableMessage) {
+                spooledMessage.close();
                 MessagingException me = new MessagingException("Message too large for server");
                 //TODO this looks rather suspicious... shouldn't it be true?
                 me.setPermanentFailure(possibleSend);
@@ -524,7 +534,11 @@ public class SmtpTransport extends Transport {
             EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
                     new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
 
-            message.writeTo(msgOut);
+            if (spooledMessage != null) {
+                spooledMessage.writeTo(msgOut);
+            } else {
+                message.writeTo(msgOut);
+            }
 
             // We use BufferedOutputStream. So make sure to call flush() !
             msgOut.flush();
@@ -545,6 +559,9 @@ public class SmtpTransport extends Transport {
             me.setPermanentFailure(possibleSend);
             throw me;
         } finally {
+            if (spooledMessage != null) {
+                spooledMessage.close();
+            }
             close();
         }
 
@@ -326,8 +326,6 @@ public class Account implements BaseAccount, StoreConfig {
         mNotificationSetting.setRing(true);
         mNotificationSetting.setRingtone("content://settings/system/notification_sound");
         mNotificationSetting.setLedColor(mChipColor);
-
-        cacheChips();
     }
 
     /*
@@ -497,8 +495,6 @@ public class Account implements BaseAccount, StoreConfig {
         mMarkMessageAsReadOnView = prefs.getBoolean(mUuid + ".markMessageAsReadOnView", true);
         mAlwaysShowCcBcc = prefs.getBoolean(mUuid + ".alwaysShowCcBcc", false);
 
-        cacheChips();
-
         // Use email address as account description if necessary
         if (mDescription == null) {
             mDescription = getEmail();
@@ -845,7 +841,9 @@ public class Account implements BaseAccount, StoreConfig {
 
     public synchronized void setChipColor(int color) {
         mChipColor = color;
-        cacheChips();
+
+        // Created again with the new color by generateColorChip()
+        mReadColorChip = null;
     }
 
     public synchronized void cacheChips() {
@@ -860,8 +858,14 @@ public class Account implements BaseAccount, StoreConfig {
     }
 
 
-    public ColorChip generateColorChip(boolean messageRead, boolean toMe, boolean ccMe,
-            boolean fromMe, boolean messageFlagged) {
+    public synchronized ColorChip generateColorChip(boolean messageRead, boolean toMe,
+            boolean ccMe, boolean fromMe, boolean messageFlagged) {
+        // The chips are only needed when messages are displayed. So don't create them when the
+        // account is loaded.
+        if (mReadColorChip == null) {
+            cacheChips();
+        }
+
         ColorChip chip;
 
         if (messageRead) {
@@ -1704,6 +1708,21 @@ public class Account implements BaseAccount, StoreConfig {
         return StorageManager.getInstance(context).isReady(localStorageProviderId);
     }
 
+    /**
+     * Same as {@link #isEnabled()} {@code &&} {@link #isAvailable(Context)} for an account that
+     * hasn't been loaded. Only reads the two settings involved.
+     */
+    static boolean isEnabledAndAvailable(SharedPreferences prefs, String uuid, Context context) {
+        if (!prefs.getBoolean(uuid + ".enabled", true)) {
+            return false;
+        }
+
+        StorageManager storageManager = StorageManager.getInstance(context);
+        String localStorageProviderId = prefs.getString(uuid + ".localStorageProvider",
+                storageManager.getDefaultProviderId());
+        return storageManager.isReady(localStorageProviderId);
+    }
+
     public synchronized boolean isEnabled() {
         return mEnabled;
     }
@@ -369,9 +369,9 @@ public class K9 extends Application {
      * whether any accounts are configured.
      */
     public static void setServicesEnabled(Context context) {
-        int acctLength = Preferences.getPreferences(context).getAvailableAccounts().size();
+        boolean hasAvailableAccounts = Preferences.getPreferences(context).hasAvailableAccounts();
 
-        setServicesEnabled(context, acctLength > 0, null);
+        setServicesEnabled(context, hasAvailableAccounts, null);
 
     }
 
@@ -2,15 +2,19 @@
 package com.fsck.k9;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.util.Log;
 
 import com.fsck.k9.mail.store.RemoteStore;
@@ -32,8 +36,55 @@ public class Preferences {
 
 
     private Storage mStorage;
+
+    /**
+     * UUIDs of all accounts in display order. {@code null} until {@link #loadAccounts()} is
+     * called.
+     */
+    private List<String> accountUuids = null;
+
+    /**
+     * The accounts that have been instantiated so far.
+     *
+     * <p>
+     * Creating an {@link Account} reads all of its settings. So accounts are only created when
+     * they are asked for, and not all at once when the app starts.
+     * </p>
+     */
     private Map<String, Account> accounts = null;
+
+    /**
+     * All accounts in display order. {@code null} until {@link #getAccounts()} is called.
+     */
     private List<Account> accountsInOrder = null;
+
+    /**
+     * UUIDs of the accounts whose settings changed since the last {@link #loadAccounts()}.
+     *
+     * <p>
+     * An {@link Account} holds its settings in typed fields read once from {@link Storage}.
+     * {@code loadAccounts()} keeps the instances whose settings didn't change instead of parsing
+     * all settings of all accounts again.
+     * </p>
+     */
+    private final Set<String> changedAccounts =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Records which accounts changed. Doesn't lock {@code Preferences}, because it's called
+     * while {@link Storage} commits, which can happen while holding that lock.
+     */
+    private final OnSharedPreferenceChangeListener settingsChangeListener =
+            new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // Account settings start with the account UUID followed by a dot
+            int dot = key.indexOf('.');
+            if (dot > 0) {
+                changedAccounts.add(key.substring(0, dot));
+            }
+        }
+    };
     private Account newAccount;
     private Context mContext;
 
@@ -46,23 +97,35 @@ public class Preferences {
             editor.copy(context.getSharedPreferences("AndroidMail.Main", Context.MODE_PRIVATE));
             editor.commit();
         }
+        mStorage.registerOnSharedPreferenceChangeListener(settingsChangeListener);
     }
 
+    /**
+     * Reload the list of accounts. Accounts whose settings changed since they were loaded are
+     * replaced by new instances the next time they are accessed.
+     */
     public synchronized void loadAccounts() {
+        Map<String, Account> loadedAccounts = accounts;
         accounts = new HashMap<String, Account>();
-        accountsInOrder = new LinkedList<Account>();
-        String accountUuids = getPreferences().getString("accountUuids", null);
-        if ((accountUuids != null) && (accountUuids.length() != 0)) {
-            String[] uuids = accountUuids.split(",");
-            for (String uuid : uuids) {
-                Account newAccount = new Account(this, uuid);
-                accounts.put(uuid, newAccount);
-                accountsInOrder.add(newAccount);
+        accountsInOrder = null;
+        accountUuids = new ArrayList<String>();
+        String uuidList = getPreferences().getString("accountUuids", null);
+        if ((uuidList != null) && (uuidList.length() != 0)) {
+            accountUuids.addAll(Arrays.asList(uuidList.split(",")));
+        }
+
+        for (String uuid : accountUuids) {
+            boolean changed = changedAccounts.remove(uuid);
+            Account account = (loadedAccounts != null) ? loadedAccounts.get(uuid) : null;
+            if (account != null && !changed) {
+                accounts.put(uuid, account);
             }
         }
         if ((newAccount != null) && newAccount.getAccountNumber() != -1) {
             accounts.put(newAccount.getUuid(), newAccount);
-            accountsInOrder.add(newAccount);
+            if (!accountUuids.contains(newAccount.getUuid())) {
+                accountUuids.add(newAccount.getUuid());
+            }
             newAccount = null;
         }
     }
@@ -77,9 +140,42 @@ public class Preferences {
             loadAccounts();
         }
 
+        if (accountsInOrder == null) {
+            accountsInOrder = new LinkedList<Account>();
+            for (String uuid : accountUuids) {
+                accountsInOrder.add(getAccount(uuid));
+            }
+        }
+
         return Collections.unmodifiableList(accountsInOrder);
     }
 
+    /**
+     * Returns {@code true} if {@link #getAvailableAccounts()} would return at least one account.
+     *
+     * <p>
+     * Accounts that haven't been instantiated yet are checked without loading all of their
+     * settings.
+     * </p>
+     */
+    public synchronized boolean hasAvailableAccounts() {
+        if (accounts == null) {
+            loadAccounts();
+        }
+
+        for (String uuid : accountUuids) {
+            Account account = accounts.get(uuid);
+            boolean available = (account != null) ?
+                    account.isEnabled() && account.isAvailable(mContext) :
+                    Account.isEnabledAndAvailable(getPreferences(), uuid, mContext);
+            if (available) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Returns an array of the accounts on the system. If no accounts are
      * registered the method returns an empty array.
@@ -103,13 +199,25 @@ public class Preferences {
         }
         Account account = accounts.get(uuid);
 
+        if (account == null && accountUuids.contains(uuid)) {
+            account = new Account(this, uuid);
+            accounts.put(uuid, account);
+        }
+
         return account;
     }
 
     public synchronized Account newAccount() {
+        if (accounts == null) {
+            loadAccounts();
+        }
+
         newAccount = new Account(mContext);
         accounts.put(newAccount.getUuid(), newAccount);
-        accountsInOrder.add(newAccount);
+        accountUuids.add(newAccount.getUuid());
+        if (accountsInOrder != null) {
+            accountsInOrder.add(newAccount);
+        }
 
         return newAccount;
     }
@@ -118,6 +226,9 @@ public class Preferences {
         if (accounts != null) {
             accounts.remove(account.getUuid());
         }
+        if (accountUuids != null) {
+            accountUuids.remove(account.getUuid());
+        }
         if (accountsInOrder != null) {
             accountsInOrder.remove(account);
         }
@@ -1068,6 +1068,8 @@ public class Accounts extends K9ListActivity implements OnItemClickListener {
                 public void run() {
                     if (mSelectedContextAccount instanceof Account) {
                         Account realAccount = (Account) mSelectedContextAccount;
+                        MessagingController.getInstance(getApplication())
+                        .cancelQueuedCommands(realAccount);
                         try {
                             realAccount.getLocalStore().delete();
                         } catch (Exception e) {
@@ -2037,9 +2039,10 @@ public class Accounts extends K9ListActivity implements OnItemClickListener {
             removeProgressDialog();
 
             String filename = mUri.getLastPathSegment();
-            boolean globalSettings = mImportResults.globalSettings;
-            int imported = mImportResults.importedAccounts.size();
-            if (success && (globalSettings || imported > 0)) {
+            // mImportResults is only set if the import succeeded
+            boolean globalSettings = success && mImportResults.globalSettings;
+            int imported = success ? mImportResults.importedAccounts.size() : 0;
+            if (globalSettings || imported > 0) {
                 if (imported == 0) {
                     activity.showSimpleDialog(R.string.settings_import_success_header,
                                               R.string.settings_import_global_settings_success, filename);
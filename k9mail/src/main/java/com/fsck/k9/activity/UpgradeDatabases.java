@@ -4,7 +4,7 @@ import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.R;
-import com.fsck.k9.mail.Store;
+import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.service.DatabaseUpgradeService;
 
 import android.app.Activity;
@@ -49,8 +49,8 @@ import android.widget.TextView;
  * Currently we make no attempts to stop the background code (e.g. {@link MessagingController}) from
  * opening the accounts' databases. If this happens the upgrade is performed in one of the
  * background threads and not by {@link DatabaseUpgradeService}. But this is not a problem. Due to
- * the locking in {@link Store#getLocalInstance(Account, Context)} the upgrade
- * service will block in the {@link Account#getLocalStore()} call and from the outside (especially
+ * the locking in {@link com.fsck.k9.mailstore.LockableDatabase} the upgrade
+ * service will block in the {@link LocalStore#open()} call and from the outside (especially
  * for this activity) it will appear as if {@link DatabaseUpgradeService} is performing the upgrade.
  * </p>
  */
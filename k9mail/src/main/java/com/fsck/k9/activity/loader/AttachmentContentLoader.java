@@ -11,8 +11,7 @@ import android.util.Log;
 
 import com.fsck.k9.K9;
 import com.fsck.k9.activity.misc.Attachment;
-
-import org.apache.commons.io.IOUtils;
+import com.fsck.k9.mail.filter.FileChannelCopier;
 
 /**
  * Loader to fetch the content of an attachment.
@@ -56,7 +55,7 @@ public class AttachmentContentLoader extends AsyncTaskLoader<Attachment> {
             try {
                 FileOutputStream out = new FileOutputStream(file);
                 try {
-                    IOUtils.copy(in, out);
+                    FileChannelCopier.copy(in, out);
                 } finally {
                     out.close();
                 }
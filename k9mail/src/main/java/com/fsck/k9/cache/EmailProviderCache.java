@@ -1,5 +1,7 @@
 package com.fsck.k9.cache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,17 +12,55 @@ import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.fsck.k9.fragment.MessageListFragment;
+import com.fsck.k9.helper.LongSet;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalMessage;
+import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.provider.EmailProvider;
 
 /**
  * Cache to bridge the time needed to write (user-initiated) changes to the database.
+ *
+ * <p>
+ * The cache is read for every row the message list displays, so reads don't lock. The cached
+ * values are kept in immutable {@link LongArrayMap}s that writers replace while holding
+ * {@link #mWriteLock}.
+ * </p>
+ * <p>
+ * A flag override is stored in the bits of a single {@code long} per message (or thread root).
+ * Each flag in {@link #FLAGS} has a slot that uses three bits: one bit indicating the flag is
+ * overridden, one bit with the overriding value, and one bit indicating the new value still
+ * needs to be written to the database. Pending changes are collected with
+ * {@link #takePendingChanges()}, so many changes made in quick succession can be written with a
+ * few database operations.
+ * </p>
  */
 public class EmailProviderCache {
     public static final String ACTION_CACHE_UPDATED = "EmailProviderCache.ACTION_CACHE_UPDATED";
 
+    /**
+     * The UUID of the account whose cache has changed. Extra of {@link #ACTION_CACHE_UPDATED}.
+     */
+    public static final String EXTRA_ACCOUNT_UUID = "accountUuid";
+
+    /**
+     * The flags that can be overridden, indexed by slot.
+     */
+    private static final Flag[] FLAGS = { Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED };
+
+    private static final int VALUE_SHIFT = 8;
+    private static final int PENDING_SHIFT = 16;
+    private static final long PENDING_MASK = 0xFFL << PENDING_SHIFT;
+
+    private static final String[] COLUMN_NAMES = new String[FLAGS.length];
+    static {
+        for (int slot = 0; slot < FLAGS.length; slot++) {
+            COLUMN_NAMES[slot] = LocalStore.getColumnNameForFlag(FLAGS[slot]);
+        }
+    }
+
     private static Context sContext;
     private static Map<String, EmailProviderCache> sInstances =
             new HashMap<String, EmailProviderCache>();
@@ -40,119 +80,356 @@ public class EmailProviderCache {
         return instance;
     }
 
+    /**
+     * Returns the slot of the flag stored in the column {@code columnName}.
+     *
+     * @return The slot to pass to {@link #getValueForMessage(long, int)} and
+     *         {@link #getValueForThread(long, int)}. {@code -1} if the column can't be overridden.
+     */
+    public static int getColumnSlot(String columnName) {
+        for (int slot = 0; slot < COLUMN_NAMES.length; slot++) {
+            if (COLUMN_NAMES[slot].equals(columnName)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static int getSlot(Flag flag) {
+        for (int slot = 0; slot < FLAGS.length; slot++) {
+            if (FLAGS[slot] == flag) {
+                return slot;
+            }
+        }
+        throw new IllegalArgumentException("Flag " + flag + " can't be cached");
+    }
 
-    private String mAccountUuid;
-    private final Map<Long, Map<String, String>> mMessageCache = new HashMap<Long, Map<String, String>>();
-    private final Map<Long, Map<String, String>> mThreadCache = new HashMap<Long, Map<String, String>>();
-    private final Map<Long, Long> mHiddenMessageCache = new HashMap<Long, Long>();
+
+    private final String mAccountUuid;
+    private final Object mWriteLock = new Object();
+    private volatile LongArrayMap mMessageOverrides = LongArrayMap.EMPTY;
+    private volatile LongArrayMap mThreadOverrides = LongArrayMap.EMPTY;
+    private volatile LongArrayMap mHiddenMessages = LongArrayMap.EMPTY;
+    private boolean mWriteBehindScheduled;
 
 
     private EmailProviderCache(String accountUuid) {
         mAccountUuid = accountUuid;
     }
 
-    public String getValueForMessage(Long messageId, String columnName) {
-        synchronized (mMessageCache) {
-            Map<String, String> map = mMessageCache.get(messageId);
-            return (map == null) ? null : map.get(columnName);
+    /**
+     * Returns {@code true} if the value of at least one flag is overridden.
+     */
+    public boolean hasOverrides() {
+        return !mMessageOverrides.isEmpty() || !mThreadOverrides.isEmpty();
+    }
+
+    /**
+     * Returns the overriding value of a flag of a message.
+     *
+     * @return {@code 1} or {@code 0}. {@code -1} if the flag isn't overridden.
+     */
+    public int getValueForMessage(long messageId, int slot) {
+        return getValue(mMessageOverrides.get(messageId), slot);
+    }
+
+    /**
+     * Returns the overriding value of a flag of a thread.
+     *
+     * @return {@code 1} or {@code 0}. {@code -1} if the flag isn't overridden.
+     */
+    public int getValueForThread(long threadRootId, int slot) {
+        return getValue(mThreadOverrides.get(threadRootId), slot);
+    }
+
+    private static int getValue(long overrides, int slot) {
+        if ((overrides & (1L << slot)) == 0) {
+            return -1;
         }
+        return ((overrides & (1L << (slot + VALUE_SHIFT))) != 0) ? 1 : 0;
     }
 
-    public String getValueForThread(Long threadRootId, String columnName) {
-        synchronized (mThreadCache) {
-            Map<String, String> map = mThreadCache.get(threadRootId);
-            return (map == null) ? null : map.get(columnName);
+    /**
+     * Override a flag of messages until the new value has been written to the database.
+     */
+    public void setFlagForMessages(LongSet messageIds, Flag flag, boolean value) {
+        LongArrayMap.Updater updater = createSetUpdater(getSlot(flag), value);
+        synchronized (mWriteLock) {
+            mMessageOverrides = mMessageOverrides.update(messageIds.toArray(), updater);
         }
+
+        notifyChange();
     }
 
-    public void setValueForMessages(List<Long> messageIds, String columnName, String value) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mMessageCache.put(messageId, map);
-                }
-                map.put(columnName, value);
-            }
+    /**
+     * Override a flag of threads until the new value has been written to the database.
+     */
+    public void setFlagForThreads(LongSet threadRootIds, Flag flag, boolean value) {
+        LongArrayMap.Updater updater = createSetUpdater(getSlot(flag), value);
+        synchronized (mWriteLock) {
+            mThreadOverrides = mThreadOverrides.update(threadRootIds.toArray(), updater);
         }
 
         notifyChange();
     }
 
-    public void setValueForThreads(List<Long> threadRootIds, String columnName, String value) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mThreadCache.put(threadRootId, map);
+    private static LongArrayMap.Updater createSetUpdater(int slot, boolean value) {
+        final long valueBit = 1L << (slot + VALUE_SHIFT);
+        final long setBits = (1L << slot) | (1L << (slot + PENDING_SHIFT)) |
+                ((value) ? valueBit : 0);
+
+        return new LongArrayMap.Updater() {
+            @Override
+            public long apply(long key, long oldValue) {
+                return (oldValue & ~valueBit) | setBits;
+            }
+        };
+    }
+
+    /**
+     * Remove the override of a flag after {@code value} has been written to the database.
+     *
+     * <p>
+     * The override is kept if the flag has been changed again in the meantime.
+     * </p>
+     */
+    public void removeFlagForMessages(LongSet messageIds, Flag flag, boolean value) {
+        LongArrayMap.Updater updater = createRemoveUpdater(getSlot(flag), value);
+        synchronized (mWriteLock) {
+            mMessageOverrides = mMessageOverrides.update(messageIds.toArray(), updater);
+        }
+    }
+
+    /**
+     * Remove the override of a flag of threads after {@code value} has been written to the
+     * database.
+     *
+     * @see #removeFlagForMessages(LongSet, Flag, boolean)
+     */
+    public void removeFlagForThreads(LongSet threadRootIds, Flag flag, boolean value) {
+        LongArrayMap.Updater updater = createRemoveUpdater(getSlot(flag), value);
+        synchronized (mWriteLock) {
+            mThreadOverrides = mThreadOverrides.update(threadRootIds.toArray(), updater);
+        }
+    }
+
+    private static LongArrayMap.Updater createRemoveUpdater(int slot, final boolean value) {
+        final long setBit = 1L << slot;
+        final long valueBit = 1L << (slot + VALUE_SHIFT);
+        final long pendingBit = 1L << (slot + PENDING_SHIFT);
+
+        return new LongArrayMap.Updater() {
+            @Override
+            public long apply(long key, long oldValue) {
+                if ((oldValue & pendingBit) != 0 || ((oldValue & valueBit) != 0) != value) {
+                    return oldValue;
                 }
-                map.put(columnName, value);
+                return oldValue & ~(setBit | valueBit);
+            }
+        };
+    }
+
+    /**
+     * Mark that a task writing the pending changes to the database is about to be started.
+     *
+     * @return {@code false} if such a task is already running. It will pick up all changes made
+     *         before {@link #finishWriteBehind()} returns {@code true}.
+     */
+    public boolean scheduleWriteBehind() {
+        synchronized (mWriteLock) {
+            if (mWriteBehindScheduled) {
+                return false;
             }
+            mWriteBehindScheduled = true;
+            return true;
         }
+    }
 
-        notifyChange();
+    /**
+     * Called by the write-behind task when it is done with the changes returned by
+     * {@link #takePendingChanges()}.
+     *
+     * @return {@code true} if the task may exit. {@code false} if new changes were made in the
+     *         meantime.
+     */
+    public boolean finishWriteBehind() {
+        synchronized (mWriteLock) {
+            if (hasPendingChanges(mMessageOverrides) || hasPendingChanges(mThreadOverrides)) {
+                return false;
+            }
+            mWriteBehindScheduled = false;
+            return true;
+        }
     }
 
-    public void removeValueForMessages(List<Long> messageIds, String columnName) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.isEmpty()) {
-                        mMessageCache.remove(messageId);
-                    }
+    /**
+     * Called by the write-behind task if it couldn't write all the changes returned by
+     * {@link #takePendingChanges()}.
+     *
+     * <p>
+     * The unwritten changes become pending again unless the flag has been changed in the
+     * meantime, so the next write-behind task picks them up.
+     * </p>
+     */
+    public void abortWriteBehind(List<FlagChange> unwrittenChanges) {
+        synchronized (mWriteLock) {
+            for (FlagChange change : unwrittenChanges) {
+                LongArrayMap.Updater updater = createRestoreUpdater(getSlot(change.flag),
+                        change.value);
+                if (change.threads) {
+                    mThreadOverrides = mThreadOverrides.update(change.ids.toArray(), updater);
+                } else {
+                    mMessageOverrides = mMessageOverrides.update(change.ids.toArray(), updater);
                 }
             }
+            mWriteBehindScheduled = false;
         }
     }
 
-    public void removeValueForThreads(List<Long> threadRootIds, String columnName) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.isEmpty()) {
-                        mThreadCache.remove(threadRootId);
+    private static LongArrayMap.Updater createRestoreUpdater(int slot, final boolean value) {
+        final long setBit = 1L << slot;
+        final long valueBit = 1L << (slot + VALUE_SHIFT);
+        final long pendingBit = 1L << (slot + PENDING_SHIFT);
+
+        return new LongArrayMap.Updater() {
+            @Override
+            public long apply(long key, long oldValue) {
+                if ((oldValue & setBit) == 0 || ((oldValue & valueBit) != 0) != value) {
+                    return oldValue;
+                }
+                return oldValue | pendingBit;
+            }
+        };
+    }
+
+    /**
+     * Returns the flag changes that haven't been written to the database yet, grouped by flag
+     * and value. The changes are no longer pending afterwards.
+     */
+    public List<FlagChange> takePendingChanges() {
+        List<FlagChange> changes = new ArrayList<FlagChange>();
+        synchronized (mWriteLock) {
+            mMessageOverrides = takePendingChanges(mMessageOverrides, false, changes);
+            mThreadOverrides = takePendingChanges(mThreadOverrides, true, changes);
+        }
+        return changes;
+    }
+
+    private static LongArrayMap takePendingChanges(LongArrayMap overrides, boolean threads,
+            List<FlagChange> changes) {
+
+        List<LongSet.Builder> idsBySlotAndValue =
+                new ArrayList<LongSet.Builder>(FLAGS.length * 2);
+        for (int i = 0; i < FLAGS.length * 2; i++) {
+            idsBySlotAndValue.add(null);
+        }
+
+        long[] pendingKeys = new long[overrides.size()];
+        int pendingCount = 0;
+        for (int i = 0, size = overrides.size(); i < size; i++) {
+            long overridesValue = overrides.valueAt(i);
+            if ((overridesValue & PENDING_MASK) == 0) {
+                continue;
+            }
+
+            long key = overrides.keyAt(i);
+            pendingKeys[pendingCount++] = key;
+            for (int slot = 0; slot < FLAGS.length; slot++) {
+                if ((overridesValue & (1L << (slot + PENDING_SHIFT))) != 0) {
+                    int index = slot * 2 + getValue(overridesValue, slot);
+                    LongSet.Builder ids = idsBySlotAndValue.get(index);
+                    if (ids == null) {
+                        ids = new LongSet.Builder();
+                        idsBySlotAndValue.set(index, ids);
                     }
+                    ids.add(key);
                 }
             }
         }
+
+        if (pendingCount == 0) {
+            return overrides;
+        }
+
+        for (int index = 0; index < idsBySlotAndValue.size(); index++) {
+            LongSet.Builder ids = idsBySlotAndValue.get(index);
+            if (ids != null) {
+                changes.add(new FlagChange(threads, FLAGS[index / 2], (index % 2) == 1,
+                        ids.build()));
+            }
+        }
+
+        return overrides.update(Arrays.copyOf(pendingKeys, pendingCount),
+                new LongArrayMap.Updater() {
+                    @Override
+                    public long apply(long key, long oldValue) {
+                        return oldValue & ~PENDING_MASK;
+                    }
+                });
+    }
+
+    private static boolean hasPendingChanges(LongArrayMap overrides) {
+        for (int i = 0, size = overrides.size(); i < size; i++) {
+            if ((overrides.valueAt(i) & PENDING_MASK) != 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void hideMessages(List<LocalMessage> messages) {
-        synchronized (mHiddenMessageCache) {
-            for (LocalMessage message : messages) {
-                long messageId = message.getId();
-                mHiddenMessageCache.put(messageId, message.getFolder().getId());
-            }
+        long[] messageIds = new long[messages.size()];
+        long[] folderIds = new long[messages.size()];
+        int i = 0;
+        for (LocalMessage message : messages) {
+            messageIds[i] = message.getId();
+            folderIds[i] = message.getFolder().getId();
+            i++;
+        }
+
+        final LongArrayMap hidden = LongArrayMap.of(messageIds, folderIds);
+        synchronized (mWriteLock) {
+            mHiddenMessages = mHiddenMessages.update(messageIds, new LongArrayMap.Updater() {
+                @Override
+                public long apply(long key, long oldValue) {
+                    return hidden.get(key);
+                }
+            });
         }
 
         notifyChange();
     }
 
-    public boolean isMessageHidden(Long messageId, long folderId) {
-        synchronized (mHiddenMessageCache) {
-            Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-            return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
-        }
+    /**
+     * Returns {@code true} if at least one message is hidden.
+     */
+    public boolean hasHiddenMessages() {
+        return !mHiddenMessages.isEmpty();
+    }
+
+    public boolean isMessageHidden(long messageId, long folderId) {
+        return (mHiddenMessages.get(messageId) == folderId);
     }
 
     public void unhideMessages(List<? extends Message> messages) {
-        synchronized (mHiddenMessageCache) {
-            for (Message message : messages) {
-                LocalMessage localMessage = (LocalMessage) message;
-                long messageId = localMessage.getId();
-                long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-
-                if (hiddenInFolder != null && hiddenInFolder.longValue() == folderId) {
-                    mHiddenMessageCache.remove(messageId);
+        long[] messageIds = new long[messages.size()];
+        long[] folderIds = new long[messages.size()];
+        int i = 0;
+        for (Message message : messages) {
+            LocalMessage localMessage = (LocalMessage) message;
+            messageIds[i] = localMessage.getId();
+            folderIds[i] = ((LocalFolder) localMessage.getFolder()).getId();
+            i++;
+        }
+
+        final LongArrayMap unhidden = LongArrayMap.of(messageIds, folderIds);
+        synchronized (mWriteLock) {
+            mHiddenMessages = mHiddenMessages.update(messageIds, new LongArrayMap.Updater() {
+                @Override
+                public long apply(long key, long oldValue) {
+                    return (oldValue == unhidden.get(key)) ? 0 : oldValue;
                 }
-            }
+            });
         }
     }
 
@@ -164,14 +441,38 @@ public class EmailProviderCache {
      * {@link MessageListFragment} to reload the cursor. But especially with flag changes this will
      * block because of the DB write operation to update the flags. So additionally we use
      * {@link LocalBroadcastManager} to send a {@link #ACTION_CACHE_UPDATED} broadcast. This way
-     * {@code MessageListFragment} can update the view without reloading the cursor.
+     * {@code MessageListFragment} can update the view without reloading the cursor. The broadcast
+     * contains the account UUID, so message lists not displaying the account can ignore it.
      * </p>
      */
     private void notifyChange() {
-        LocalBroadcastManager.getInstance(sContext).sendBroadcast(new Intent(ACTION_CACHE_UPDATED));
+        Intent intent = new Intent(ACTION_CACHE_UPDATED);
+        intent.putExtra(EXTRA_ACCOUNT_UUID, mAccountUuid);
+        LocalBroadcastManager.getInstance(sContext).sendBroadcast(intent);
 
         Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + mAccountUuid +
                 "/messages");
         sContext.getContentResolver().notifyChange(uri, null);
     }
+
+
+    /**
+     * Flag changes that need to be written to the database.
+     */
+    public static class FlagChange {
+        /**
+         * {@code true} if {@link #ids} are thread root IDs, {@code false} if they are message IDs.
+         */
+        public final boolean threads;
+        public final Flag flag;
+        public final boolean value;
+        public final LongSet ids;
+
+        FlagChange(boolean threads, Flag flag, boolean value, LongSet ids) {
+            this.threads = threads;
+            this.flag = flag;
+            this.value = value;
+            this.ids = ids;
+        }
+    }
 }
@@ -20,6 +20,12 @@ public class EmailProviderCacheCursor extends CursorWrapper {
     private int mFolderIdColumn;
     private int mThreadRootColumn;
 
+    /**
+     * The {@link EmailProviderCache} slot of each column. {@code -1} for columns that can't be
+     * overridden.
+     */
+    private int[] mColumnSlots;
+
     /**
      * The cursor's current position.
      *
@@ -43,34 +49,37 @@ public class EmailProviderCacheCursor extends CursorWrapper {
                     ", " + ThreadColumns.ROOT);
         }
 
-        while (cursor.moveToNext()) {
-            long messageId = cursor.getLong(mMessageIdColumn);
-            long folderId = cursor.getLong(mFolderIdColumn);
-            if (mCache.isMessageHidden(messageId, folderId)) {
-                mHiddenRows.add(cursor.getPosition());
-            }
+        mColumnSlots = new int[cursor.getColumnCount()];
+        for (int i = 0; i < mColumnSlots.length; i++) {
+            mColumnSlots[i] = EmailProviderCache.getColumnSlot(cursor.getColumnName(i));
         }
 
-        // Reset the cursor position
-        cursor.moveToFirst();
-        cursor.moveToPrevious();
+        if (mCache.hasHiddenMessages()) {
+            while (cursor.moveToNext()) {
+                long messageId = cursor.getLong(mMessageIdColumn);
+                long folderId = cursor.getLong(mFolderIdColumn);
+                if (mCache.isMessageHidden(messageId, folderId)) {
+                    mHiddenRows.add(cursor.getPosition());
+                }
+            }
+
+            // Reset the cursor position
+            cursor.moveToFirst();
+            cursor.moveToPrevious();
+        }
     }
 
     @Override
     public int getInt(int columnIndex) {
-        long messageId = getLong(mMessageIdColumn);
-        long threadRootId = getLong(mThreadRootColumn);
-
-        String columnName = getColumnName(columnIndex);
-        String value = mCache.getValueForMessage(messageId, columnName);
-
-        if (value != null) {
-            return Integer.parseInt(value);
-        }
-
-        value = mCache.getValueForThread(threadRootId, columnName);
-        if (value != null) {
-            return Integer.parseInt(value);
+        int slot = mColumnSlots[columnIndex];
+        if (slot != -1 && mCache.hasOverrides()) {
+            int value = mCache.getValueForMessage(getLong(mMessageIdColumn), slot);
+            if (value == -1) {
+                value = mCache.getValueForThread(getLong(mThreadRootColumn), slot);
+            }
+            if (value != -1) {
+                return value;
+            }
         }
 
         return super.getInt(columnIndex);
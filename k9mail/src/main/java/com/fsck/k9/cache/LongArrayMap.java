@@ -0,0 +1,204 @@
+package com.fsck.k9.cache;
+
+import java.util.Arrays;
+
+
+/**
+ * An immutable map from {@code long} keys to {@code long} values backed by two sorted arrays.
+ *
+ * <p>
+ * Lookups use a binary search and don't allocate. Updates create a new map, so a map can be
+ * shared between threads without locking. A value of {@code 0} means "not present"; updating
+ * an entry to {@code 0} removes it.
+ * </p>
+ */
+final class LongArrayMap {
+    static final LongArrayMap EMPTY = new LongArrayMap(new long[0], new long[0]);
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+
+    /**
+     * Computes the new value of an entry.
+     */
+    interface Updater {
+        /**
+         * @param oldValue
+         *         The current value of the entry, {@code 0} if there is none.
+         *
+         * @return The new value. {@code 0} to remove the entry.
+         */
+        long apply(long key, long oldValue);
+    }
+
+
+    private final long[] mKeys;
+    private final long[] mValues;
+
+
+    private LongArrayMap(long[] keys, long[] values) {
+        mKeys = keys;
+        mValues = values;
+    }
+
+    boolean isEmpty() {
+        return mKeys.length == 0;
+    }
+
+    int size() {
+        return mKeys.length;
+    }
+
+    long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    long valueAt(int index) {
+        return mValues[index];
+    }
+
+    long get(long key) {
+        int index = Arrays.binarySearch(mKeys, key);
+        return (index >= 0) ? mValues[index] : 0;
+    }
+
+    /**
+     * Returns a map in which the entries of {@code keys} have been updated by {@code updater}.
+     * The updater is called once per distinct key.
+     */
+    LongArrayMap update(long[] keys, Updater updater) {
+        if (keys.length == 0) {
+            return this;
+        }
+
+        long[] sortedKeys = keys.clone();
+        Arrays.sort(sortedKeys);
+
+        int length = mKeys.length + sortedKeys.length;
+        long[] newKeys = new long[length];
+        long[] newValues = new long[length];
+        int count = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < mKeys.length || j < sortedKeys.length) {
+            long key;
+            long value;
+            if (j == sortedKeys.length || (i < mKeys.length && mKeys[i] < sortedKeys[j])) {
+                key = mKeys[i];
+                value = mValues[i];
+                i++;
+            } else {
+                key = sortedKeys[j];
+                long oldValue = 0;
+                if (i < mKeys.length && mKeys[i] == key) {
+                    oldValue = mValues[i];
+                    i++;
+                }
+                value = updater.apply(key, oldValue);
+
+                do {
+                    j++;
+                } while (j < sortedKeys.length && sortedKeys[j] == key);
+            }
+
+            if (value != 0) {
+                newKeys[count] = key;
+                newValues[count] = value;
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        return new LongArrayMap(Arrays.copyOf(newKeys, count), Arrays.copyOf(newValues, count));
+    }
+
+    /**
+     * Create a map from two parallel arrays. If a key occurs more than once the last value wins.
+     */
+    static LongArrayMap of(long[] keys, long[] values) {
+        long[] sortedKeys = keys.clone();
+        long[] sortedValues = values.clone();
+        sort(sortedKeys, sortedValues, 0, sortedKeys.length, new long[sortedKeys.length],
+                new long[sortedKeys.length]);
+
+        int count = 0;
+        for (int i = 0; i < sortedKeys.length; i++) {
+            if (count > 0 && sortedKeys[count - 1] == sortedKeys[i]) {
+                count--;
+            }
+            sortedKeys[count] = sortedKeys[i];
+            sortedValues[count] = sortedValues[i];
+            count++;
+        }
+
+        // Drop the entries with a value of 0, like update() does
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (sortedValues[i] != 0) {
+                sortedKeys[size] = sortedKeys[i];
+                sortedValues[size] = sortedValues[i];
+                size++;
+            }
+        }
+
+        if (size == 0) {
+            return EMPTY;
+        }
+
+        return new LongArrayMap(Arrays.copyOf(sortedKeys, size), Arrays.copyOf(sortedValues, size));
+    }
+
+    /**
+     * Sort {@code keys[from..to)} and move the values along with their keys.
+     *
+     * <p>
+     * The sort is stable, so the last of equal keys stays last. Short ranges use an insertion
+     * sort, longer ones are merged through the two scratch arrays.
+     * </p>
+     */
+    private static void sort(long[] keys, long[] values, int from, int to, long[] keyBuffer,
+            long[] valueBuffer) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                long key = keys[i];
+                long value = values[i];
+                int j = i - 1;
+                while (j >= from && keys[j] > key) {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        sort(keys, values, from, middle, keyBuffer, valueBuffer);
+        sort(keys, values, middle, to, keyBuffer, valueBuffer);
+        if (keys[middle - 1] <= keys[middle]) {
+            return;
+        }
+
+        System.arraycopy(keys, from, keyBuffer, from, to - from);
+        System.arraycopy(values, from, valueBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < middle && keyBuffer[left] <= keyBuffer[right])) {
+                keys[i] = keyBuffer[left];
+                values[i] = valueBuffer[left];
+                left++;
+            } else {
+                keys[i] = keyBuffer[right];
+                values[i] = valueBuffer[right];
+                right++;
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Decides which {@link MessagingController} command runs next on which worker thread.
+ *
+ * <p>
+ * Every account has its own lane. Commands that aren't tied to an account go into the global
+ * lane. The rules are:
+ * <ul>
+ * <li>A lane runs one command at a time. Within a lane foreground commands run before
+ * background commands, otherwise commands run in the order they were added.</li>
+ * <li>Commands of different account lanes run in parallel, one per worker thread. Lanes take
+ * turns, so a long synchronization of one account doesn't hold up the others.</li>
+ * <li>A global command runs alone. It waits for the commands that were added before it (in the
+ * order above) and the commands added after it wait for it. So global commands see the same
+ * order as with a single queue.</li>
+ * <li>A command with a key is dropped if a command with the same key and listener is already
+ * waiting in its lane.</li>
+ * </ul>
+ * </p>
+ */
+public class CommandScheduler {
+    private static final AtomicInteger sequencing = new AtomicInteger(0);
+
+    static class Command implements Comparable<Command> {
+        public Runnable runnable;
+
+        public MessagingListener listener;
+
+        public String description;
+
+        boolean isForeground;
+
+        /**
+         * UUID of the account whose lane the command runs in. {@code null} for the global lane.
+         */
+        String lane;
+
+        /**
+         * Identifies commands that do the same work. {@code null} if the command is never
+         * dropped.
+         */
+        String key;
+
+        long enqueueTime;
+
+        int sequence = sequencing.getAndIncrement();
+
+        @Override
+        public int compareTo(Command other) {
+            if (other.isForeground && !isForeground) {
+                return 1;
+            } else if (!other.isForeground && isForeground) {
+                return -1;
+            } else {
+                return (sequence - other.sequence);
+            }
+        }
+    }
+
+    /**
+     * Queue depth and latency of a lane.
+     */
+    public static class LaneStats {
+        /**
+         * UUID of the account. {@code null} for the global lane.
+         */
+        public final String lane;
+        public final int queueDepth;
+        public final boolean running;
+        public final long completedCount;
+        public final long droppedCount;
+        public final long averageWaitTime;
+        public final long maxWaitTime;
+        public final long averageRunTime;
+
+        LaneStats(Lane lane) {
+            this.lane = lane.name;
+            queueDepth = lane.queue.size();
+            running = (lane.running != null);
+            completedCount = lane.completedCount;
+            droppedCount = lane.droppedCount;
+            averageWaitTime = (lane.startedCount == 0) ? 0 : lane.totalWaitTime / lane.startedCount;
+            maxWaitTime = lane.maxWaitTime;
+            averageRunTime = (completedCount == 0) ? 0 : lane.totalRunTime / completedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "LaneStats{lane=" + lane +
+                    ", queueDepth=" + queueDepth +
+                    ", running=" + running +
+                    ", completedCount=" + completedCount +
+                    ", droppedCount=" + droppedCount +
+                    ", averageWaitTime=" + averageWaitTime +
+                    ", maxWaitTime=" + maxWaitTime +
+                    ", averageRunTime=" + averageRunTime + "}";
+        }
+    }
+
+    private static class Lane {
+        final String name;
+        final PriorityQueue<Command> queue = new PriorityQueue<Command>();
+        Command running;
+        long runningSince;
+
+        long startedCount;
+        long completedCount;
+        long droppedCount;
+        long totalWaitTime;
+        long maxWaitTime;
+        long totalRunTime;
+
+        Lane(String name) {
+            this.name = name;
+        }
+    }
+
+
+    private final Lane mGlobalLane = new Lane(null);
+    private final Map<String, Lane> mAccountLanes = new LinkedHashMap<String, Lane>();
+
+    /**
+     * Account lane to look at first the next time, so the lanes take turns.
+     */
+    private int mNextLane;
+
+    private int mRunningCount;
+
+
+    /**
+     * Add a command.
+     *
+     * @return {@code false} if the command was dropped because an identical command is already
+     *         waiting.
+     */
+    synchronized boolean put(Command command) {
+        Lane lane = getLane(command.lane);
+        if (command.key != null) {
+            for (Command queued : lane.queue) {
+                if (command.key.equals(queued.key) && command.listener == queued.listener) {
+                    lane.droppedCount++;
+                    return false;
+                }
+            }
+        }
+
+        command.enqueueTime = System.currentTimeMillis();
+        lane.queue.add(command);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait until a command can run and return it. The caller has to pass it to
+     * {@link #complete(Command)} once it has run.
+     */
+    synchronized Command take() throws InterruptedException {
+        while (true) {
+            Lane lane = nextLane();
+            if (lane != null) {
+                Command command = lane.queue.poll();
+                long now = System.currentTimeMillis();
+                long waitTime = now - command.enqueueTime;
+
+                lane.running = command;
+                lane.runningSince = now;
+                lane.startedCount++;
+                lane.totalWaitTime += waitTime;
+                lane.maxWaitTime = Math.max(lane.maxWaitTime, waitTime);
+                mRunningCount++;
+
+                return command;
+            }
+
+            wait();
+        }
+    }
+
+    synchronized void complete(Command command) {
+        Lane lane = getLane(command.lane);
+        lane.running = null;
+        lane.completedCount++;
+        lane.totalRunTime += System.currentTimeMillis() - lane.runningSince;
+        mRunningCount--;
+
+        notifyAll();
+    }
+
+    /**
+     * Drop the commands waiting in an account's lane.
+     *
+     * @return The commands that were dropped.
+     */
+    synchronized List<Command> cancel(String accountUuid) {
+        Lane lane = mAccountLanes.get(accountUuid);
+        if (lane == null) {
+            return Collections.emptyList();
+        }
+
+        List<Command> commands = new ArrayList<Command>(lane.queue);
+        lane.queue.clear();
+        if (lane.running == null) {
+            mAccountLanes.remove(accountUuid);
+        }
+
+        // A global command might have been waiting for one of them
+        notifyAll();
+        return commands;
+    }
+
+    synchronized boolean isBusy() {
+        return mRunningCount > 0;
+    }
+
+    synchronized boolean hasQueuedCommands() {
+        if (!mGlobalLane.queue.isEmpty()) {
+            return true;
+        }
+        for (Lane lane : mAccountLanes.values()) {
+            if (!lane.queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized List<LaneStats> getLaneStats() {
+        List<LaneStats> stats = new ArrayList<LaneStats>(mAccountLanes.size() + 1);
+        stats.add(new LaneStats(mGlobalLane));
+        for (Lane lane : mAccountLanes.values()) {
+            stats.add(new LaneStats(lane));
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    private Lane getLane(String name) {
+        if (name == null) {
+            return mGlobalLane;
+        }
+
+        Lane lane = mAccountLanes.get(name);
+        if (lane == null) {
+            lane = new Lane(name);
+            mAccountLanes.put(name, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the lane whose next command may run now, or {@code null} if there is none.
+     */
+    private Lane nextLane() {
+        if (mGlobalLane.running != null) {
+            return null;
+        }
+
+        Command global = mGlobalLane.queue.peek();
+        if (global != null && mRunningCount == 0 && !hasAccountCommandBefore(global)) {
+            return mGlobalLane;
+        }
+
+        // Lanes with foreground commands first, then the rest. Start after the lane that was
+        // picked last time.
+        List<Lane> lanes = new ArrayList<Lane>(mAccountLanes.values());
+        int laneCount = lanes.size();
+        for (int pass = 0; pass < 2; pass++) {
+            boolean foregroundOnly = (pass == 0);
+            for (int i = 0; i < laneCount; i++) {
+                int index = (mNextLane + i) % laneCount;
+                Lane lane = lanes.get(index);
+                Command command = lane.queue.peek();
+                if (lane.running == null && command != null &&
+                        (!foregroundOnly || command.isForeground) &&
+                        (global == null || command.compareTo(global) < 0)) {
+                    mNextLane = index + 1;
+                    return lane;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private boolean hasAccountCommandBefore(Command global) {
+        for (Lane lane : mAccountLanes.values()) {
+            Command command = lane.queue.peek();
+            if (command != null && command.compareTo(global) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
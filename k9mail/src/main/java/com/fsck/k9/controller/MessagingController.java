@@ -21,6 +21,7 @@ import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.KeyguardManager;
 import android.app.NotificationManager;
@@ -60,6 +61,7 @@ import com.fsck.k9.activity.setup.AccountSetupIncoming;
 import com.fsck.k9.activity.setup.AccountSetupOutgoing;
 import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.helper.Contacts;
+import com.fsck.k9.helper.LongSet;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.mail.power.TracingPowerManager;
 import com.fsck.k9.mail.power.TracingPowerManager.TracingWakeLock;
@@ -85,6 +87,8 @@ import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.internet.TextBody;
 import com.fsck.k9.mailstore.MessageRemovalListener;
 import com.fsck.k9.mail.MessageRetrievalListener;
+import com.fsck.k9.controller.CommandScheduler.Command;
+import com.fsck.k9.mailstore.FolderSyncStats;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.LocalStore;
@@ -140,15 +144,15 @@ public class MessagingController implements Runnable {
      * So 25k gives good performance and a reasonable data footprint. Sounds good to me.
      */
 
-    private static final String PENDING_COMMAND_MOVE_OR_COPY = "com.fsck.k9.MessagingController.moveOrCopy";
-    private static final String PENDING_COMMAND_MOVE_OR_COPY_BULK = "com.fsck.k9.MessagingController.moveOrCopyBulk";
-    private static final String PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW = "com.fsck.k9.MessagingController.moveOrCopyBulkNew";
-    private static final String PENDING_COMMAND_EMPTY_TRASH = "com.fsck.k9.MessagingController.emptyTrash";
-    private static final String PENDING_COMMAND_SET_FLAG_BULK = "com.fsck.k9.MessagingController.setFlagBulk";
-    private static final String PENDING_COMMAND_SET_FLAG = "com.fsck.k9.MessagingController.setFlag";
-    private static final String PENDING_COMMAND_APPEND = "com.fsck.k9.MessagingController.append";
-    private static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
-    private static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
+    static final String PENDING_COMMAND_MOVE_OR_COPY = "com.fsck.k9.MessagingController.moveOrCopy";
+    static final String PENDING_COMMAND_MOVE_OR_COPY_BULK = "com.fsck.k9.MessagingController.moveOrCopyBulk";
+    static final String PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW = "com.fsck.k9.MessagingController.moveOrCopyBulkNew";
+    static final String PENDING_COMMAND_EMPTY_TRASH = "com.fsck.k9.MessagingController.emptyTrash";
+    static final String PENDING_COMMAND_SET_FLAG_BULK = "com.fsck.k9.MessagingController.setFlagBulk";
+    static final String PENDING_COMMAND_SET_FLAG = "com.fsck.k9.MessagingController.setFlag";
+    static final String PENDING_COMMAND_APPEND = "com.fsck.k9.MessagingController.append";
+    static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
+    static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
 
     public static class UidReverseComparator implements Comparator<Message> {
         @Override
@@ -178,9 +182,18 @@ public class MessagingController implements Runnable {
     private static final int UNSYNC_CHUNK_SIZE = 5;
 
     private static MessagingController inst = null;
-    private BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
+    /**
+     * Number of threads running commands. Commands of different accounts can run in parallel,
+     * see {@link CommandScheduler}.
+     */
+    private static final int COMMAND_WORKER_COUNT = 3;
 
-    private Thread mThread;
+    private final CommandScheduler mScheduler = new CommandScheduler();
+
+    /**
+     * Merges requests to synchronize a folder that is already waiting to be synchronized.
+     */
+    private final RequestCoalescer mSyncRequests = new RequestCoalescer();
     private Set<MessagingListener> mListeners = new CopyOnWriteArraySet<MessagingListener>();
 
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<String, AtomicInteger>();
@@ -193,8 +206,6 @@ public class MessagingController implements Runnable {
 
     private MemorizingListener memorizingListener = new MemorizingListener();
 
-    private boolean mBusy;
-
     private Context context;
 
     /**
@@ -330,46 +341,28 @@ public class MessagingController implements Runnable {
         return cache.isMessageHidden(messageId, folderId);
     }
 
-    private void setFlagInCache(final Account account, final List<Long> messageIds,
+    private void removeFlagFromCache(final Account account, final LongSet messageIds,
             final Flag flag, final boolean newState) {
 
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(), context);
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        String value = Integer.toString((newState) ? 1 : 0);
-        cache.setValueForMessages(messageIds, columnName, value);
-    }
-
-    private void removeFlagFromCache(final Account account, final List<Long> messageIds,
-            final Flag flag) {
-
-        EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(), context);
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        cache.removeValueForMessages(messageIds, columnName);
+        cache.removeFlagForMessages(messageIds, flag, newState);
     }
 
-    private void setFlagForThreadsInCache(final Account account, final List<Long> threadRootIds,
+    private void removeFlagForThreadsFromCache(final Account account, final LongSet threadRootIds,
             final Flag flag, final boolean newState) {
 
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(), context);
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        String value = Integer.toString((newState) ? 1 : 0);
-        cache.setValueForThreads(threadRootIds, columnName, value);
-    }
-
-    private void removeFlagForThreadsFromCache(final Account account, final List<Long> messageIds,
-            final Flag flag) {
-
-        EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(), context);
-        String columnName = LocalStore.getColumnNameForFlag(flag);
-        cache.removeValueForThreads(messageIds, columnName);
+        cache.removeFlagForThreads(threadRootIds, flag, newState);
     }
 
 
     private MessagingController(Context context) {
         this.context = context;
-        mThread = new Thread(this);
-        mThread.setName("MessagingController");
-        mThread.start();
+        for (int i = 0; i < COMMAND_WORKER_COUNT; i++) {
+            Thread thread = new Thread(this);
+            thread.setName("MessagingController " + i);
+            thread.start();
+        }
         if (memorizingListener != null) {
             addListener(memorizingListener);
         }
@@ -383,7 +376,32 @@ public class MessagingController implements Runnable {
     }
 
     public boolean isBusy() {
-        return mBusy;
+        return mScheduler.isBusy();
+    }
+
+    /**
+     * Returns the queue depth and latency of the command lanes, one lane per account and one
+     * for commands that aren't tied to an account.
+     */
+    public List<CommandScheduler.LaneStats> getCommandLaneStats() {
+        return mScheduler.getLaneStats();
+    }
+
+    /**
+     * Drop the commands of an account that haven't started yet, e.g. because the account is
+     * about to be deleted.
+     */
+    public void cancelQueuedCommands(Account account) {
+        List<Command> commands = mScheduler.cancel(account.getUuid());
+        for (Command command : commands) {
+            // The command won't call finished(), so forget the request
+            if (command.listener instanceof RequestCoalescer.Request) {
+                mSyncRequests.cancelled((RequestCoalescer.Request) command.listener);
+            }
+        }
+
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Canceled " + commands.size() + " commands of account " + account.getDescription());
     }
 
     @Override
@@ -392,78 +410,84 @@ public class MessagingController implements Runnable {
         while (true) {
             String commandDescription = null;
             try {
-                final Command command = mCommands.take();
-
-                if (command != null) {
-                    commandDescription = command.description;
+                final Command command = mScheduler.take();
+                commandDescription = command.description;
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
 
-                    mBusy = true;
-                    try {
-                        command.runnable.run();
-                    } catch (UnavailableAccountException e) {
-                        // retry later
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    sleep(30 * 1000);
-                                    mCommands.put(command);
-                                } catch (InterruptedException e) {
-                                    Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
-                                          + " an unavailable account back into the queue."
-                                          + " THIS SHOULD NEVER HAPPEN.");
-                                }
+                try {
+                    command.runnable.run();
+                } catch (UnavailableAccountException e) {
+                    // retry later
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                sleep(30 * 1000);
+                                mScheduler.put(command);
+                            } catch (InterruptedException e) {
+                                Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
+                                      + " an unavailable account back into the queue."
+                                      + " THIS SHOULD NEVER HAPPEN.");
                             }
-                        } .start();
-                    }
+                        }
+                    } .start();
+                } finally {
+                    mScheduler.complete(command);
+                }
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
-                              " Command '" + command.description + "' completed");
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
+                          " Command '" + command.description + "' completed");
 
-                    for (MessagingListener l : getListeners(command.listener)) {
-                        l.controllerCommandCompleted(!mCommands.isEmpty());
-                    }
+                for (MessagingListener l : getListeners(command.listener)) {
+                    l.controllerCommandCompleted(mScheduler.hasQueuedCommands());
                 }
             } catch (Exception e) {
                 Log.e(K9.LOG_TAG, "Error running command '" + commandDescription + "'", e);
             }
-            mBusy = false;
         }
     }
 
     private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, true);
+        putCommand(null, null, description, listener, runnable, true);
+    }
+
+    private void put(Account account, String description, MessagingListener listener,
+            Runnable runnable) {
+        putCommand(account, null, description, listener, runnable, true);
     }
 
     private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, false);
+        putCommand(null, null, description, listener, runnable, false);
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForeground = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ne) {
-                }
-                e = ie;
-            }
-        }
-        throw new Error(e);
+    private void putBackground(Account account, String description, MessagingListener listener,
+            Runnable runnable) {
+        putCommand(account, null, description, listener, runnable, false);
+    }
+
+    /**
+     * @param account
+     *         The account the command works on. Commands of different accounts can run in
+     *         parallel. {@code null} if the command has to run on its own.
+     * @param key
+     *         If not {@code null} the command is dropped when a command with the same key and
+     *         listener is already waiting to run for the same account.
+     */
+    private void putCommand(Account account, String key, String description,
+            MessagingListener listener, Runnable runnable, boolean isForeground) {
+        Command command = new Command();
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        command.isForeground = isForeground;
+        command.lane = (account == null) ? null : account.getUuid();
+        command.key = key;
+
+        if (!mScheduler.put(command) && K9.DEBUG)
+            Log.d(K9.LOG_TAG, "Dropped command '" + description + "', already queued");
     }
 
 
@@ -493,7 +517,12 @@ public class MessagingController implements Runnable {
         }
 
         Set<MessagingListener> listeners = new HashSet<MessagingListener>(mListeners);
-        listeners.add(listener);
+        if (listener instanceof RequestCoalescer.Request) {
+            // The listeners of all requests that were merged
+            listeners.addAll(((RequestCoalescer.Request) listener).getListeners());
+        } else {
+            listeners.add(listener);
+        }
         return listeners;
 
     }
@@ -574,7 +603,7 @@ public class MessagingController implements Runnable {
     }
 
     private void doRefreshRemote(final Account account, final MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        put(account, "doRefreshRemote", listener, new Runnable() {
             @Override
             public void run() {
                 List <? extends Folder > localFolders = null;
@@ -896,14 +925,31 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener, final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        final RequestCoalescer.Request request =
+                mSyncRequests.request(getSyncRequestKey(account, folder), listener, true);
+        if (request == null) {
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "Synchronization of folder " + folder + " is already queued");
+            return;
+        }
+
+        putBackground(account, "synchronizeMailbox", request, new Runnable() {
             @Override
             public void run() {
-                synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder);
+                mSyncRequests.started(request);
+                try {
+                    synchronizeMailboxSynchronous(account, folder, request, providedRemoteFolder);
+                } finally {
+                    mSyncRequests.finished(request);
+                }
             }
         });
     }
 
+    private static String getSyncRequestKey(Account account, String folder) {
+        return account.getUuid() + ":" + folder + ":synchronizeMailbox";
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is generally only called
      * by synchronizeMailbox.
@@ -934,6 +980,7 @@ public class MessagingController implements Runnable {
             return;
         }
 
+        long syncStart = System.currentTimeMillis();
         Exception commandException = null;
         try {
             if (K9.DEBUG)
@@ -1082,6 +1129,7 @@ public class MessagingController implements Runnable {
             /*
              * Remove any messages that are in the local store but no longer on the remote store or are too old
              */
+            int removedMessages = 0;
             if (account.syncRemoteDeletions()) {
                 List<Message> destroyMessages = new ArrayList<Message>();
                 for (Message localMessage : localMessages) {
@@ -1092,6 +1140,7 @@ public class MessagingController implements Runnable {
 
 
                 localFolder.destroyMessages(destroyMessages);
+                removedMessages = destroyMessages.size();
 
                 for (Message destroyMessage : destroyMessages) {
                     for (MessagingListener l : getListeners(listener)) {
@@ -1104,7 +1153,9 @@ public class MessagingController implements Runnable {
             /*
              * Now we download the actual content of messages.
              */
-            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false);
+            AtomicLong downloadedBytes = new AtomicLong(0);
+            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages,
+                    false, downloadedBytes);
 
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
@@ -1113,6 +1164,8 @@ public class MessagingController implements Runnable {
 
             /* Notify listeners that we're finally done. */
 
+            localFolder.recordSync(System.currentTimeMillis() - syncStart, downloadedBytes.get(),
+                    newMessages, downloadedBytes.get() > 0 || newMessages > 0 || removedMessages > 0);
             localFolder.setLastChecked(System.currentTimeMillis());
             localFolder.setStatus(null);
 
@@ -1218,6 +1271,9 @@ public class MessagingController implements Runnable {
      *            A list of messages objects that store the UIDs of which messages to download.
      * @param flagSyncOnly
      *            Only flags will be fetched from the remote store if this is {@code true}.
+     * @param downloadedBytes
+     *            The size of the messages fetched from the remote store is added to this. May be
+     *            {@code null}.
      *
      * @return The number of downloaded messages that are not flagged as {@link Flag#SEEN}.
      *
@@ -1225,7 +1281,7 @@ public class MessagingController implements Runnable {
      */
     private int downloadMessages(final Account account, final Folder remoteFolder,
                                  final LocalFolder localFolder, List<Message> inputMessages,
-                                 boolean flagSyncOnly) throws MessagingException {
+                                 boolean flagSyncOnly, AtomicLong downloadedBytes) throws MessagingException {
 
         final Date earliestDate = account.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -1317,6 +1373,15 @@ public class MessagingController implements Runnable {
 
         unsyncedMessages.clear();
 
+        if (downloadedBytes != null) {
+            for (Message message : smallMessages) {
+                downloadedBytes.addAndGet(message.getSize());
+            }
+            for (Message message : largeMessages) {
+                downloadedBytes.addAndGet(message.getSize());
+            }
+        }
+
         /*
          * Grab the content of the small messages first. This is going to
          * be very fast and at very worst will be a single up of a few bytes and a single
@@ -1575,6 +1640,16 @@ public class MessagingController implements Runnable {
         return true;
     }
 
+    /**
+     * Maximum number of downloaded small messages waiting to be stored.
+     */
+    private static final int SYNC_PIPELINE_CAPACITY = 32;
+
+    /**
+     * Maximum number of small messages stored in one transaction.
+     */
+    private static final int SYNC_PIPELINE_BATCH_SIZE = 16;
+
     private <T extends Message> void downloadSmallMessages(final Account account, final Folder<T> remoteFolder,
                                        final LocalFolder localFolder,
                                        List<T> smallMessages,
@@ -1590,69 +1665,123 @@ public class MessagingController implements Runnable {
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Fetching small messages for folder " + folder);
 
-        remoteFolder.fetch(smallMessages,
-        fp, new MessageRetrievalListener<T>() {
+        // Store the messages on another thread while the next ones are downloaded
+        final SyncPipeline<T> pipeline = new SyncPipeline<T>("SyncWriter " + folder,
+                SYNC_PIPELINE_CAPACITY, SYNC_PIPELINE_BATCH_SIZE, new SyncPipeline.Writer<T>() {
             @Override
-            public void messageFinished(final T message, int number, int ofTotal) {
-                try {
+            public void write(List<T> batch) {
+                storeSmallMessages(account, localFolder, batch, progress, unreadBeforeStart,
+                        newMessages, todo);
+            }
+        });
 
+        pipeline.start();
+        boolean fetched = false;
+        try {
+            remoteFolder.fetch(smallMessages,
+            fp, new MessageRetrievalListener<T>() {
+                @Override
+                public void messageFinished(final T message, int number, int ofTotal) {
                     if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
                         progress.incrementAndGet();
 
                         return;
                     }
 
-                    // Store the updated message locally
-                    final LocalMessage localMessage = localFolder.storeSmallMessage(message, new Runnable() {
-                        @Override
-                        public void run() {
-                            progress.incrementAndGet();
-                        }
-                    });
-
-                    // Increment the number of "new messages" if the newly downloaded message is
-                    // not marked as read.
-                    if (!localMessage.isSet(Flag.SEEN)) {
-                        newMessages.incrementAndGet();
+                    if (!pipeline.put(message)) {
+                        Log.w(K9.LOG_TAG, "SYNC: interrupted, not storing message " +
+                                message.getUid());
                     }
+                }
 
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
-                              + account + ":" + folder + ":" + message.getUid());
+                @Override
+                public void messageStarted(String uid, int number, int ofTotal) {}
 
-                    // Update the listener with what we've found
-                    for (MessagingListener l : getListeners()) {
-                        l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
-                        if (!localMessage.isSet(Flag.SEEN)) {
-                            l.synchronizeMailboxNewMessage(account, folder, localMessage);
-                        }
-                    }
-                    // Send a notification of this message
+                @Override
+                public void messagesFinished(int total) {}
+            });
+            fetched = true;
+        } finally {
+            RuntimeException failure = pipeline.finish();
+            if (failure != null) {
+                if (fetched) {
+                    throw failure;
+                }
+                // Don't hide the exception thrown by fetch()
+                Log.e(K9.LOG_TAG, "SYNC: failed to store small messages", failure);
+            }
+        }
 
-                    if (shouldNotifyForMessage(account, localFolder, message)) {
-                        // Notify with the localMessage so that we don't have to recalculate the content preview.
-                        notifyAccount(context, account, localMessage, unreadBeforeStart);
-                    }
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "SYNC: Done fetching small messages for folder " + folder);
+    }
 
-                } catch (MessagingException me) {
-                    addErrorMessage(account, null, me);
-                    Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
-                }
+
+
+    /**
+     * Store a batch of downloaded small messages in one transaction, then notify the listeners
+     * and update the new mail notification once for the whole batch.
+     */
+    private <T extends Message> void storeSmallMessages(final Account account,
+            final LocalFolder localFolder, List<T> messages, final AtomicInteger progress,
+            final int unreadBeforeStart, final AtomicInteger newMessages, final int todo) {
+        final String folder = localFolder.getName();
+
+        List<LocalMessage> localMessages;
+        try {
+            localMessages = localFolder.storeSmallMessages(messages);
+        } catch (MessagingException me) {
+            if (messages.size() == 1) {
+                addErrorMessage(account, null, me);
+                Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
+                return;
             }
 
-            @Override
-            public void messageStarted(String uid, int number, int ofTotal) {}
+            // Don't lose the whole batch because of one bad message
+            for (T message : messages) {
+                storeSmallMessages(account, localFolder, Collections.singletonList(message),
+                        progress, unreadBeforeStart, newMessages, todo);
+            }
+            return;
+        }
+        progress.addAndGet(localMessages.size());
 
-            @Override
-            public void messagesFinished(int total) {}
-        });
+        List<LocalMessage> notifyMessages = new ArrayList<LocalMessage>();
+        for (int i = 0, end = localMessages.size(); i < end; i++) {
+            LocalMessage localMessage = localMessages.get(i);
+
+            // Increment the number of "new messages" if the newly downloaded message is
+            // not marked as read.
+            if (!localMessage.isSet(Flag.SEEN)) {
+                newMessages.incrementAndGet();
+            }
+
+            if (shouldNotifyForMessage(account, localFolder, messages.get(i))) {
+                notifyMessages.add(localMessage);
+            }
+        }
 
         if (K9.DEBUG)
-            Log.d(K9.LOG_TAG, "SYNC: Done fetching small messages for folder " + folder);
-    }
+            Log.v(K9.LOG_TAG, "About to notify listeners that we got " + localMessages.size() +
+                  " new small messages " + account + ":" + folder);
 
+        // Update the listener with what we've found
+        for (MessagingListener l : getListeners()) {
+            for (LocalMessage localMessage : localMessages) {
+                l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                if (!localMessage.isSet(Flag.SEEN)) {
+                    l.synchronizeMailboxNewMessage(account, folder, localMessage);
+                }
+            }
+            l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+        }
 
+        // Send a notification of these messages
+        if (!notifyMessages.isEmpty()) {
+            // Notify with the localMessages so that we don't have to recalculate the content preview.
+            notifyAccount(context, account, notifyMessages, unreadBeforeStart);
+        }
+    }
 
     private <T extends Message> void downloadLargeMessages(final Account account, final Folder<T> remoteFolder,
                                        final LocalFolder localFolder,
@@ -1894,7 +2023,7 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        putCommand(account, "processPendingCommands", "processPendingCommands", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -1913,12 +2042,13 @@ public class MessagingController implements Runnable {
                      */
                 }
             }
-        });
+        }, false);
     }
 
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
-        List<PendingCommand> commands = localStore.getPendingCommands();
+        List<PendingCommand> commands = optimizePendingCommands(localStore,
+                localStore.getPendingCommands());
 
         int progress = 0;
         int todo = commands.size();
@@ -1999,6 +2129,34 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Coalesce the pending commands before they are replayed against the server.
+     *
+     * <p>
+     * The rewritten queue is persisted first, so an interrupted run resumes with the optimized
+     * commands.
+     * </p>
+     *
+     * @see PendingCommandOptimizer
+     */
+    private List<PendingCommand> optimizePendingCommands(LocalStore localStore,
+            List<PendingCommand> commands) throws MessagingException {
+
+        PendingCommandOptimizer optimizer = new PendingCommandOptimizer();
+        List<PendingCommand> optimizedCommands = optimizer.optimize(commands);
+
+        if (optimizer.hasChanges()) {
+            localStore.updatePendingCommands(optimizer.getUpdatedCommands(),
+                    optimizer.getObsoleteCommands());
+
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Coalesced " + commands.size() + " pending commands into " +
+                        optimizedCommands.size());
+        }
+
+        return optimizedCommands;
+    }
+
     /**
      * Process a pending append message command. This command uploads a local message to the
      * server, first checking to be sure that the server message is not newer than
@@ -2335,7 +2493,7 @@ public class MessagingController implements Runnable {
     }
 
     private void queueSetFlag(final Account account, final String folderName, final String newState, final String flag, final String[] uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground(account, "queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2437,7 +2595,7 @@ public class MessagingController implements Runnable {
         }
     }
     private void queueExpunge(final Account account, final String folderName) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground(account, "queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2734,33 +2892,63 @@ public class MessagingController implements Runnable {
         processPendingCommands(account);
     }
 
-    public void setFlag(final Account account, final List<Long> messageIds, final Flag flag,
+    public void setFlag(final Account account, final LongSet messageIds, final Flag flag,
             final boolean newState) {
 
-        setFlagInCache(account, messageIds, flag, newState);
-
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                setFlagSynchronous(account, messageIds, flag, newState, false);
-            }
-        });
+        EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(), context);
+        cache.setFlagForMessages(messageIds, flag, newState);
+        writeFlagsBehind(account, cache);
     }
 
-    public void setFlagForThreads(final Account account, final List<Long> threadRootIds,
+    public void setFlagForThreads(final Account account, final LongSet threadRootIds,
             final Flag flag, final boolean newState) {
 
-        setFlagForThreadsInCache(account, threadRootIds, flag, newState);
+        EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(), context);
+        cache.setFlagForThreads(threadRootIds, flag, newState);
+        writeFlagsBehind(account, cache);
+    }
+
+    /**
+     * Write the flag changes stored in the cache to the database.
+     *
+     * <p>
+     * At most one task per account does this. Changes made while it is writing are picked up by
+     * the same task, so a burst of flag changes results in a few batched database updates
+     * rather than one update per change.
+     * </p>
+     */
+    private void writeFlagsBehind(final Account account, final EmailProviderCache cache) {
+        if (!cache.scheduleWriteBehind()) {
+            return;
+        }
 
         threadPool.execute(new Runnable() {
             @Override
             public void run() {
-                setFlagSynchronous(account, threadRootIds, flag, newState, true);
+                List<EmailProviderCache.FlagChange> changes = Collections.emptyList();
+                int written = 0;
+                boolean finished = false;
+                try {
+                    do {
+                        changes = cache.takePendingChanges();
+                        for (written = 0; written < changes.size(); written++) {
+                            EmailProviderCache.FlagChange change = changes.get(written);
+                            setFlagSynchronous(account, change.ids, change.flag, change.value,
+                                    change.threads);
+                        }
+                    } while (!cache.finishWriteBehind());
+                    finished = true;
+                } finally {
+                    if (!finished) {
+                        // Let the next flag change schedule a task that retries the rest
+                        cache.abortWriteBehind(changes.subList(written, changes.size()));
+                    }
+                }
             }
         });
     }
 
-    private void setFlagSynchronous(final Account account, final List<Long> ids,
+    private void setFlagSynchronous(final Account account, final LongSet ids,
             final Flag flag, final boolean newState, final boolean threadedList) {
 
         LocalStore localStore;
@@ -2776,10 +2964,10 @@ public class MessagingController implements Runnable {
         try {
             if (threadedList) {
                 localStore.setFlagForThreads(ids, flag, newState);
-                removeFlagForThreadsFromCache(account, ids, flag);
+                removeFlagForThreadsFromCache(account, ids, flag, newState);
             } else {
                 localStore.setFlag(ids, flag, newState);
-                removeFlagFromCache(account, ids, flag);
+                removeFlagFromCache(account, ids, flag, newState);
             }
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Couldn't set flags in local database", e);
@@ -2942,7 +3130,7 @@ public class MessagingController implements Runnable {
 
     public void loadMessageForViewRemote(final Account account, final String folder,
                                          final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        put(account, "loadMessageForViewRemote", listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageForViewRemoteSynchronous(account, folder, uid, listener, false, false);
@@ -3130,8 +3318,7 @@ public class MessagingController implements Runnable {
             throws MessagingException {
 
         if (account.isMarkMessageAsReadOnView() && !message.isSet(Flag.SEEN)) {
-            List<Long> messageIds = Collections.singletonList(message.getId());
-            setFlag(account, messageIds, Flag.SEEN, true);
+            setFlag(account, LongSet.of(message.getId()), Flag.SEEN, true);
 
             ((LocalMessage) message).setFlagInternal(Flag.SEEN, true);
         }
@@ -3172,7 +3359,7 @@ public class MessagingController implements Runnable {
             l.loadAttachmentStarted(account, message, part, tag, true);
         }
 
-        put("loadAttachment", listener, new Runnable() {
+        put(account, "loadAttachment", listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -3263,7 +3450,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account,
                                     MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putBackground(account, "sendPendingMessages", listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(context)) {
@@ -3724,7 +3911,7 @@ public class MessagingController implements Runnable {
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
+        put(account, "getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
     }
 
 
@@ -3763,7 +3950,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessages", null, new Runnable() {
+        putBackground(account, "moveMessages", null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, false,
@@ -3777,7 +3964,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessagesInThread", null, new Runnable() {
+        putBackground(account, "moveMessagesInThread", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3801,7 +3988,7 @@ public class MessagingController implements Runnable {
             final List<? extends Message> messages, final String destFolder,
             final MessagingListener listener) {
 
-        putBackground("copyMessages", null, new Runnable() {
+        putBackground(account, "copyMessages", null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, true,
@@ -3813,7 +4000,7 @@ public class MessagingController implements Runnable {
     public void copyMessagesInThread(final Account account, final String srcFolder,
             final List<? extends Message> messages, final String destFolder) {
 
-        putBackground("copyMessagesInThread", null, new Runnable() {
+        putBackground(account, "copyMessagesInThread", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3929,7 +4116,7 @@ public class MessagingController implements Runnable {
     }
 
     public void expunge(final Account account, final String folder, final MessagingListener listener) {
-        putBackground("expunge", null, new Runnable() {
+        putBackground(account, "expunge", null, new Runnable() {
             @Override
             public void run() {
                 queueExpunge(account, folder);
@@ -3966,7 +4153,7 @@ public class MessagingController implements Runnable {
 
                 suppressMessages(account, messages);
 
-                putBackground("deleteThreads", null, new Runnable() {
+                putBackground(account, "deleteThreads", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteThreadsSynchronous(account, folder.getName(), accountMessages);
@@ -4016,7 +4203,7 @@ public class MessagingController implements Runnable {
             final List<Message> accountMessages) {
                 suppressMessages(account, messages);
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putBackground(account, "deleteMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteMessagesSynchronous(account, folder.getName(),
@@ -4150,7 +4337,7 @@ public class MessagingController implements Runnable {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putBackground(account, "emptyTrash", listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -4406,7 +4593,7 @@ public class MessagingController implements Runnable {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+            putBackground(account, "clear notification flag for " + account.getDescription(), null, new Runnable() {
                 @Override
                 public void run() {
                     if (K9.DEBUG)
@@ -4429,6 +4616,36 @@ public class MessagingController implements Runnable {
     }
 
 
+    /**
+     * Returns how long to wait between two polls of a folder.
+     *
+     * <p>
+     * The inbox is always polled with the account's interval. Other folders are polled less often
+     * while they don't change, see {@link FolderSyncStats#getPollInterval(long)}.
+     * </p>
+     */
+    private long getPollInterval(Account account, Folder folder, long accountInterval) {
+        if (!(folder instanceof LocalFolder) ||
+                folder.getName().equals(account.getInboxFolderName())) {
+            return accountInterval;
+        }
+
+        FolderSyncStats stats;
+        try {
+            stats = ((LocalFolder) folder).getSyncStats();
+        } catch (MessagingException e) {
+            Log.e(K9.LOG_TAG, "Unable to get sync statistics of folder " + folder.getName(), e);
+            return accountInterval;
+        }
+
+        long pollInterval = stats.getPollInterval(accountInterval);
+        if (K9.DEBUG && pollInterval != accountInterval)
+            Log.v(K9.LOG_TAG, "Folder " + folder.getName() + " is polled every " +
+                  (pollInterval / 60000) + " minutes, " + stats);
+
+        return pollInterval;
+    }
+
     private void synchronizeFolder(
         final Account account,
         final Folder folder,
@@ -4442,17 +4659,27 @@ public class MessagingController implements Runnable {
                   new Date(folder.getLastChecked()));
 
         if (!ignoreLastCheckedTime && folder.getLastChecked() >
-                (System.currentTimeMillis() - accountInterval)) {
+                (System.currentTimeMillis() - getPollInterval(account, folder, accountInterval))) {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName()
                       + ", previously synced @ " + new Date(folder.getLastChecked())
-                      + " which would be too recent for the account period");
+                      + " which would be too recent for the folder's poll interval");
+
+            return;
+        }
 
+        final RequestCoalescer.Request request = mSyncRequests.request(
+                getSyncRequestKey(account, folder.getName()), listener, ignoreLastCheckedTime);
+        if (request == null) {
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "Synchronization of folder " + folder.getName() + " is already queued");
             return;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
+
+        putBackground(account, "sync" + folder.getName(), request, new Runnable() {
             @Override
             public void run() {
+                mSyncRequests.started(request);
                 LocalFolder tLocalFolder = null;
                 try {
                     // In case multiple Commands get enqueued, don't run more than
@@ -4461,8 +4688,9 @@ public class MessagingController implements Runnable {
                     tLocalFolder = localStore.getFolder(folder.getName());
                     tLocalFolder.open(Folder.OPEN_MODE_RW);
 
-                    if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
-                    (System.currentTimeMillis() - accountInterval)) {
+                    // Unless someone asked for this folder in the meantime
+                    if (!request.isForced() && tLocalFolder.getLastChecked() >
+                    (System.currentTimeMillis() - getPollInterval(account, tLocalFolder, accountInterval))) {
                         if (K9.DEBUG)
                             Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
                                   + ", previously synced @ " + new Date(folder.getLastChecked())
@@ -4471,7 +4699,7 @@ public class MessagingController implements Runnable {
                     }
                     notifyFetchingMail(account, folder);
                     try {
-                        synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
+                        synchronizeMailboxSynchronous(account, folder.getName(), request, null);
                     } finally {
                         notifyFetchingMailCancel(account);
                     }
@@ -4482,10 +4710,10 @@ public class MessagingController implements Runnable {
                     addErrorMessage(account, null, e);
                 } finally {
                     closeFolder(tLocalFolder);
+                    mSyncRequests.finished(request);
                 }
             }
-        }
-                     );
+        });
 
 
     }
@@ -4493,7 +4721,7 @@ public class MessagingController implements Runnable {
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "compact:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4515,7 +4743,7 @@ public class MessagingController implements Runnable {
     }
 
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "clear:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4543,7 +4771,7 @@ public class MessagingController implements Runnable {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "recreate:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4785,6 +5013,21 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Add several messages to the new mail notification, but only update it once.
+     */
+    private void notifyAccount(Context context, Account account,
+            List<LocalMessage> messages, int previousUnreadMessageCount) {
+        final NotificationData data = getNotificationData(account, previousUnreadMessageCount);
+        synchronized (data) {
+            int last = messages.size() - 1;
+            for (int i = 0; i < last; i++) {
+                data.addMessage(messages.get(i));
+            }
+            notifyAccountWithDataLocked(context, account, messages.get(last), data);
+        }
+    }
+
     // Maximum number of senders to display in a lock screen notification.
     private static final int NUM_SENDERS_IN_LOCK_SCREEN_NOTIFICATION = 5;
 
@@ -5219,30 +5462,6 @@ public class MessagingController implements Runnable {
         }
     }
 
-    static AtomicInteger sequencing = new AtomicInteger(0);
-    static class Command implements Comparable<Command> {
-        public Runnable runnable;
-
-        public MessagingListener listener;
-
-        public String description;
-
-        boolean isForeground;
-
-        int sequence = sequencing.getAndIncrement();
-
-        @Override
-        public int compareTo(Command other) {
-            if (other.isForeground && !isForeground) {
-                return 1;
-            } else if (!other.isForeground && isForeground) {
-                return -1;
-            } else {
-                return (sequence - other.sequence);
-            }
-        }
-    }
-
     public MessagingListener getCheckMailListener() {
         return checkMailListener;
     }
@@ -5380,7 +5599,7 @@ public class MessagingController implements Runnable {
                   + ", folder " + remoteFolder.getName());
 
         final CountDownLatch latch = new CountDownLatch(1);
-        putBackground("Push messageArrived of account " + account.getDescription()
+        putBackground(account, "Push messageArrived of account " + account.getDescription()
         + ", folder " + remoteFolder.getName(), null, new Runnable() {
             @Override
             public void run() {
@@ -5391,7 +5610,8 @@ public class MessagingController implements Runnable {
                     localFolder.open(Folder.OPEN_MODE_RW);
 
                     account.setRingNotified(false);
-                    int newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly);
+                    int newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly,
+                            null);
 
                     int unreadMessageCount = localFolder.getUnreadMessageCount();
 
@@ -0,0 +1,416 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mailstore.LocalStore.PendingCommand;
+
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_EXPUNGE;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_MARK_ALL_AS_READ;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW;
+import static com.fsck.k9.controller.MessagingController.PENDING_COMMAND_SET_FLAG_BULK;
+
+
+/**
+ * Coalesces the pending command queue of an account before it is replayed against the server.
+ *
+ * <p>
+ * Every user action appends a {@link PendingCommand}. When the queue grows while the device is
+ * offline, many of these commands cancel each other out or could be sent as one. This class
+ * rewrites the queue so that:
+ * <ul>
+ * <li>adjacent flag changes are merged per folder and flag, only the last state of each message
+ * survives, and messages with the same target state are sent in one command,</li>
+ * <li>flag changes for messages that are deleted later in the same run are dropped,</li>
+ * <li>flag changes superseded by a "mark all as read" of the same folder are dropped,</li>
+ * <li>adjacent moves/copies with the same source and destination are batched, and</li>
+ * <li>an expunge is deferred to an identical expunge later in the queue if only flag changes
+ * that don't undelete messages in that folder are between them.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Surviving commands keep their position in the queue. Commands that were rewritten are returned
+ * by {@link #getUpdatedCommands()}, commands that were merged into others are returned by
+ * {@link #getObsoleteCommands()}. Both lists need to be persisted before the optimized queue is
+ * processed.
+ * </p>
+ */
+class PendingCommandOptimizer {
+    private static final String DELETED = Flag.DELETED.name();
+    private static final String SEEN = Flag.SEEN.name();
+
+    private final List<PendingCommand> mUpdatedCommands = new ArrayList<PendingCommand>();
+    private final List<PendingCommand> mObsoleteCommands = new ArrayList<PendingCommand>();
+
+
+    /**
+     * Optimize the supplied pending command queue.
+     *
+     * @param commands
+     *         The pending commands in the order they would be processed. Commands may be modified
+     *         in place.
+     *
+     * @return The commands that still need to be processed, in order.
+     */
+    public List<PendingCommand> optimize(List<PendingCommand> commands) {
+        List<PendingCommand> result = deferExpunges(commands);
+        result = coalesceFlagChanges(result);
+        result = coalesceMoves(result);
+        return result;
+    }
+
+    /**
+     * @return {@code true} if {@link #optimize(List)} changed the queue.
+     */
+    public boolean hasChanges() {
+        return !mUpdatedCommands.isEmpty() || !mObsoleteCommands.isEmpty();
+    }
+
+    /**
+     * @return The commands whose arguments have been rewritten.
+     */
+    public List<PendingCommand> getUpdatedCommands() {
+        return mUpdatedCommands;
+    }
+
+    /**
+     * @return The commands that have been merged into others and can be removed.
+     */
+    public List<PendingCommand> getObsoleteCommands() {
+        return mObsoleteCommands;
+    }
+
+    private List<PendingCommand> deferExpunges(List<PendingCommand> commands) {
+        List<PendingCommand> result = new ArrayList<PendingCommand>(commands.size());
+
+        int size = commands.size();
+        for (int i = 0; i < size; i++) {
+            PendingCommand command = commands.get(i);
+            if (PENDING_COMMAND_EXPUNGE.equals(command.command) &&
+                    hasEquivalentExpungeLater(commands, i)) {
+                markObsolete(command);
+            } else {
+                result.add(command);
+            }
+        }
+
+        return result;
+    }
+
+    private boolean hasEquivalentExpungeLater(List<PendingCommand> commands, int index) {
+        String folder = commands.get(index).arguments[0];
+
+        for (int i = index + 1, size = commands.size(); i < size; i++) {
+            PendingCommand command = commands.get(i);
+            if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
+                if (folder.equals(command.arguments[0])) {
+                    return true;
+                }
+            } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+                boolean undelete = folder.equals(command.arguments[0]) &&
+                        DELETED.equals(command.arguments[2]) &&
+                        !Boolean.parseBoolean(command.arguments[1]);
+                if (undelete) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private List<PendingCommand> coalesceFlagChanges(List<PendingCommand> commands) {
+        List<PendingCommand> result = new ArrayList<PendingCommand>(commands.size());
+        List<PendingCommand> run = new ArrayList<PendingCommand>();
+
+        for (PendingCommand command : commands) {
+            if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+                run.add(command);
+                continue;
+            }
+
+            Set<String> markedAsRead = null;
+            if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
+                markedAsRead = new HashSet<String>();
+                markedAsRead.add(command.arguments[0]);
+            }
+
+            flushFlagRun(run, markedAsRead, result);
+            result.add(command);
+        }
+
+        flushFlagRun(run, null, result);
+
+        return result;
+    }
+
+    private void flushFlagRun(List<PendingCommand> run, Set<String> markedAsRead,
+            List<PendingCommand> result) {
+        if (run.isEmpty()) {
+            return;
+        }
+
+        // Last state per message, indexed by "folder" and "flag" (in order of first appearance)
+        Map<FlagKey, Map<String, Boolean>> states = new LinkedHashMap<FlagKey, Map<String, Boolean>>();
+        // Output groups, indexed by "folder", "flag" and "state" (in order of first appearance)
+        Map<FlagKey, List<String>> groups = new LinkedHashMap<FlagKey, List<String>>();
+
+        for (PendingCommand command : run) {
+            String folder = command.arguments[0];
+            boolean newState = Boolean.parseBoolean(command.arguments[1]);
+            String flag = command.arguments[2];
+
+            FlagKey key = new FlagKey(folder, flag, null);
+            Map<String, Boolean> uidStates = states.get(key);
+            if (uidStates == null) {
+                uidStates = new LinkedHashMap<String, Boolean>();
+                states.put(key, uidStates);
+            }
+
+            for (int i = 3; i < command.arguments.length; i++) {
+                String uid = command.arguments[i];
+                // Messages with local UIDs don't exist on the server yet
+                if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
+                    uidStates.put(uid, newState);
+                }
+            }
+
+            FlagKey groupKey = new FlagKey(folder, flag, newState);
+            if (!groups.containsKey(groupKey)) {
+                groups.put(groupKey, new ArrayList<String>());
+            }
+        }
+
+        Map<String, Set<String>> deletedUids = new HashMap<String, Set<String>>();
+        for (Map.Entry<FlagKey, Map<String, Boolean>> entry : states.entrySet()) {
+            FlagKey key = entry.getKey();
+            if (!DELETED.equals(key.flag)) {
+                continue;
+            }
+
+            Set<String> uids = new HashSet<String>();
+            for (Map.Entry<String, Boolean> uidState : entry.getValue().entrySet()) {
+                if (uidState.getValue()) {
+                    uids.add(uidState.getKey());
+                }
+            }
+            deletedUids.put(key.folder, uids);
+        }
+
+        for (Map.Entry<FlagKey, Map<String, Boolean>> entry : states.entrySet()) {
+            FlagKey key = entry.getKey();
+            if (markedAsRead != null && SEEN.equals(key.flag) && markedAsRead.contains(key.folder)) {
+                continue;
+            }
+
+            Set<String> deleted = DELETED.equals(key.flag) ? null : deletedUids.get(key.folder);
+            for (Map.Entry<String, Boolean> uidState : entry.getValue().entrySet()) {
+                String uid = uidState.getKey();
+                if (deleted == null || !deleted.contains(uid)) {
+                    groups.get(new FlagKey(key.folder, key.flag, uidState.getValue())).add(uid);
+                }
+            }
+        }
+
+        // Reuse the commands of the run (in order) for the groups that still contain messages
+        int index = 0;
+        for (Map.Entry<FlagKey, List<String>> group : groups.entrySet()) {
+            List<String> uids = group.getValue();
+            if (uids.isEmpty()) {
+                continue;
+            }
+
+            FlagKey key = group.getKey();
+            String[] arguments = new String[3 + uids.size()];
+            arguments[0] = key.folder;
+            arguments[1] = Boolean.toString(key.state);
+            arguments[2] = key.flag;
+            for (int i = 0, len = uids.size(); i < len; i++) {
+                arguments[3 + i] = uids.get(i);
+            }
+
+            PendingCommand command = run.get(index++);
+            setArguments(command, arguments);
+            result.add(command);
+        }
+
+        for (int i = index, size = run.size(); i < size; i++) {
+            markObsolete(run.get(i));
+        }
+
+        run.clear();
+    }
+
+    private List<PendingCommand> coalesceMoves(List<PendingCommand> commands) {
+        List<PendingCommand> result = new ArrayList<PendingCommand>(commands.size());
+
+        PendingCommand previousCommand = null;
+        MoveCommand previousMove = null;
+        for (PendingCommand command : commands) {
+            MoveCommand move = MoveCommand.parse(command);
+
+            if (move != null && previousMove != null) {
+                MoveCommand merged = previousMove.batch(move);
+                if (merged != null) {
+                    setArguments(previousCommand, merged.toArguments());
+                    markObsolete(command);
+                    previousMove = merged;
+                    continue;
+                }
+            }
+
+            result.add(command);
+            previousCommand = command;
+            previousMove = move;
+        }
+
+        return result;
+    }
+
+    private void setArguments(PendingCommand command, String[] arguments) {
+        if (Arrays.equals(command.arguments, arguments)) {
+            return;
+        }
+
+        command.arguments = arguments;
+        if (!mUpdatedCommands.contains(command)) {
+            mUpdatedCommands.add(command);
+        }
+    }
+
+    private void markObsolete(PendingCommand command) {
+        mUpdatedCommands.remove(command);
+        mObsoleteCommands.add(command);
+    }
+
+
+    private static class FlagKey {
+        final String folder;
+        final String flag;
+        final Boolean state;
+
+        FlagKey(String folder, String flag, Boolean state) {
+            this.folder = folder;
+            this.flag = flag;
+            this.state = state;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlagKey)) {
+                return false;
+            }
+            FlagKey other = (FlagKey) o;
+            return folder.equals(other.folder) && flag.equals(other.flag) &&
+                    (state == null ? other.state == null : state.equals(other.state));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = folder.hashCode();
+            result = 31 * result + flag.hashCode();
+            result = 31 * result + (state == null ? 0 : state.hashCode());
+            return result;
+        }
+    }
+
+    /**
+     * Parsed form of a {@link MessagingController#PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW} command.
+     *
+     * <p>
+     * Arguments: source folder, destination folder, is copy, has new UIDs, the source UIDs and,
+     * if "has new UIDs" is {@code true}, the local UIDs of the messages in the destination folder.
+     * </p>
+     */
+    static class MoveCommand {
+        final String srcFolder;
+        final String destFolder;
+        final boolean isCopy;
+        final List<String> uids;
+        final List<String> newUids;
+
+        MoveCommand(String srcFolder, String destFolder, boolean isCopy, List<String> uids,
+                List<String> newUids) {
+            this.srcFolder = srcFolder;
+            this.destFolder = destFolder;
+            this.isCopy = isCopy;
+            this.uids = uids;
+            this.newUids = newUids;
+        }
+
+        static MoveCommand parse(PendingCommand command) {
+            if (!PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command) ||
+                    command.arguments.length < 4) {
+                return null;
+            }
+
+            String[] arguments = command.arguments;
+            boolean hasNewUids = Boolean.parseBoolean(arguments[3]);
+            int count = arguments.length - 4;
+            if (hasNewUids && count % 2 != 0) {
+                return null;
+            }
+
+            int uidCount = (hasNewUids) ? count / 2 : count;
+            List<String> uids = new ArrayList<String>(Arrays.asList(arguments).subList(4, 4 + uidCount));
+            List<String> newUids = null;
+            if (hasNewUids) {
+                newUids = new ArrayList<String>(Arrays.asList(arguments).subList(4 + uidCount, arguments.length));
+            }
+
+            return new MoveCommand(arguments[0], arguments[1], Boolean.parseBoolean(arguments[2]),
+                    uids, newUids);
+        }
+
+        /**
+         * Combine two moves/copies between the same folders into one.
+         */
+        MoveCommand batch(MoveCommand next) {
+            if (!srcFolder.equals(next.srcFolder) || !destFolder.equals(next.destFolder) ||
+                    isCopy != next.isCopy || (newUids == null) != (next.newUids == null)) {
+                return null;
+            }
+
+            List<String> mergedUids = new ArrayList<String>(uids);
+            mergedUids.addAll(next.uids);
+
+            List<String> mergedNewUids = null;
+            if (newUids != null) {
+                mergedNewUids = new ArrayList<String>(newUids);
+                mergedNewUids.addAll(next.newUids);
+            }
+
+            return new MoveCommand(srcFolder, destFolder, isCopy, mergedUids, mergedNewUids);
+        }
+
+        String[] toArguments() {
+            int uidCount = uids.size();
+            int newUidCount = (newUids == null) ? 0 : newUids.size();
+
+            String[] arguments = new String[4 + uidCount + newUidCount];
+            arguments[0] = srcFolder;
+            arguments[1] = destFolder;
+            arguments[2] = Boolean.toString(isCopy);
+            arguments[3] = Boolean.toString(newUids != null);
+            for (int i = 0; i < uidCount; i++) {
+                arguments[4 + i] = uids.get(i);
+            }
+            for (int i = 0; i < newUidCount; i++) {
+                arguments[4 + uidCount + i] = newUids.get(i);
+            }
+
+            return arguments;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.fsck.k9.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+
+/**
+ * Merges requests for the same operation, e.g. synchronizing the same folder of an account.
+ *
+ * <p>
+ * Pushes, polls and the user can ask for a folder to be synchronized at the same time. Running
+ * the synchronization once for all of them is enough:
+ * <ul>
+ * <li>A request that comes in while the same request is waiting to run is merged into it. Its
+ * listener will receive the callbacks of that run.</li>
+ * <li>A request that comes in while the same request is running starts exactly one follow-up
+ * run, because the running one might have missed the change that triggered it. Further requests
+ * are merged into the follow-up.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * The {@link Request} returned by {@link #request(String, MessagingListener, boolean)} has to
+ * be passed to {@link #started(Request)} and {@link #finished(Request)} by the command running
+ * it, or to {@link #cancelled(Request)} if the command is dropped before it runs. The command
+ * should hand the request to
+ * {@link MessagingController#getListeners(MessagingListener)} to reach all listeners.
+ * </p>
+ */
+class RequestCoalescer {
+    /**
+     * A request and the listeners of the requests merged into it.
+     */
+    static class Request extends MessagingListener {
+        final String key;
+        final Set<MessagingListener> listeners = new CopyOnWriteArraySet<MessagingListener>();
+        // Read by the running command without holding the lock of the RequestCoalescer
+        volatile boolean forced;
+        boolean running;
+        Request followUp;
+
+        Request(String key) {
+            this.key = key;
+        }
+
+        Set<MessagingListener> getListeners() {
+            return listeners;
+        }
+
+        /**
+         * Returns {@code true} if one of the merged requests has to run even if the command
+         * would skip it otherwise, e.g. because the folder has been synchronized recently.
+         */
+        boolean isForced() {
+            return forced;
+        }
+
+        private void add(MessagingListener listener, boolean force) {
+            if (listener != null) {
+                listeners.add(listener);
+            }
+            forced |= force;
+        }
+    }
+
+
+    private final Map<String, Request> mRequests = new HashMap<String, Request>();
+
+
+    /**
+     * Ask for an operation to be run.
+     *
+     * @param key
+     *         Identifies the operation, e.g. account, folder and kind of operation.
+     * @param listener
+     *         Listener for this request. May be {@code null}.
+     * @param force
+     *         See {@link Request#isForced()}.
+     *
+     * @return The request to schedule a command for. {@code null} if the request was merged into
+     *         one that is already scheduled.
+     */
+    synchronized Request request(String key, MessagingListener listener, boolean force) {
+        Request request = mRequests.get(key);
+        if (request == null) {
+            request = new Request(key);
+            request.add(listener, force);
+            mRequests.put(key, request);
+            return request;
+        }
+
+        if (!request.running) {
+            request.add(listener, force);
+            return null;
+        }
+
+        if (request.followUp == null) {
+            request.followUp = new Request(key);
+            request.followUp.add(listener, force);
+            return request.followUp;
+        }
+
+        request.followUp.add(listener, force);
+        return null;
+    }
+
+    /**
+     * Called when the command of a request starts. Requests that come in afterwards are no longer
+     * merged into it.
+     */
+    synchronized void started(Request request) {
+        request.running = true;
+    }
+
+    synchronized void finished(Request request) {
+        request.running = false;
+        if (mRequests.get(request.key) != request) {
+            return;
+        }
+
+        if (request.followUp != null) {
+            mRequests.put(request.key, request.followUp);
+        } else {
+            mRequests.remove(request.key);
+        }
+    }
+
+    /**
+     * Called when the command of a request has been removed from the queue without running.
+     * Later requests with the same key are scheduled again instead of being merged into it.
+     */
+    synchronized void cancelled(Request request) {
+        Request current = mRequests.get(request.key);
+        if (current == request) {
+            mRequests.remove(request.key);
+        } else if (current != null && current.followUp == request) {
+            current.followUp = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Overlaps downloading messages with storing them in the database.
+ *
+ * <p>
+ * The thread downloading the messages hands them to {@link #put(Object)}. A writer thread takes
+ * the messages from a bounded queue and passes them to the {@link Writer} in batches of up to
+ * {@code maxBatchSize}, so the messages of a batch can be stored in one transaction. When the
+ * queue is full {@link #put(Object)} blocks until the writer has caught up. This keeps the
+ * number of messages held in memory bounded.
+ * </p>
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ * pipeline.start();
+ * try {
+ *     // call pipeline.put() for every downloaded message
+ * } finally {
+ *     RuntimeException failure = pipeline.finish();
+ * }
+ * </pre>
+ * </p>
+ *
+ * <p>
+ * If the downloading thread is interrupted in {@link #put(Object)} the pipeline is aborted and
+ * doesn't accept further messages. {@link #finish()} still waits for the messages that were
+ * queued before, so the writer thread never outlives the synchronization.
+ * </p>
+ */
+class SyncPipeline<T> {
+    interface Writer<T> {
+        /**
+         * Called on the writer thread for every batch of messages, in the order in which they
+         * were added. The list is reused after the call returns.
+         */
+        void write(List<T> batch);
+    }
+
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> mQueue;
+    private final int mMaxBatchSize;
+    private final Writer<T> mWriter;
+    private final Thread mThread;
+    private volatile RuntimeException mFailure;
+    private boolean mAborted;
+
+
+    SyncPipeline(String name, int capacity, int maxBatchSize, Writer<T> writer) {
+        mQueue = new ArrayBlockingQueue<Object>(capacity);
+        mMaxBatchSize = maxBatchSize;
+        mWriter = writer;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, name);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Hand a message to the writer thread. Blocks while the queue is full.
+     *
+     * @return {@code false} if the message wasn't added because the thread was interrupted, now
+     *         or in an earlier call. The interrupt status of the thread is set in that case.
+     */
+    boolean put(T item) {
+        if (mAborted) {
+            return false;
+        }
+
+        try {
+            mQueue.put(item);
+            return true;
+        } catch (InterruptedException e) {
+            mAborted = true;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait until the writer thread has written all messages added so far and stop it.
+     *
+     * <p>
+     * This doesn't return early if the thread is interrupted. The interrupt status is restored
+     * before returning.
+     * </p>
+     *
+     * @return The first exception thrown by the {@link Writer}, or {@code null}.
+     */
+    RuntimeException finish() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mFailure;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeBatches() {
+        List<Object> items = new ArrayList<Object>(mMaxBatchSize);
+        List<T> batch = new ArrayList<T>(mMaxBatchSize);
+        boolean finished = false;
+        while (!finished) {
+            try {
+                items.add(mQueue.take());
+            } catch (InterruptedException e) {
+                // Don't leave the downloading thread blocked in put()
+                continue;
+            }
+            mQueue.drainTo(items, mMaxBatchSize - 1);
+
+            for (Object item : items) {
+                if (item == END) {
+                    finished = true;
+                    break;
+                }
+                batch.add((T) item);
+            }
+            items.clear();
+
+            if (!batch.isEmpty() && mFailure == null) {
+                try {
+                    mWriter.write(batch);
+                } catch (RuntimeException e) {
+                    // Keep taking messages so put() doesn't block forever
+                    mFailure = e;
+                }
+            }
+            batch.clear();
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
 import android.app.Activity;
@@ -20,6 +21,7 @@ import android.app.Fragment;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
@@ -80,9 +82,11 @@ import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.fragment.ConfirmationDialogFragment.ConfirmationDialogFragmentListener;
 import com.fsck.k9.helper.ContactPicture;
+import com.fsck.k9.helper.LongSet;
 import com.fsck.k9.helper.MergeCursorWithUniqueId;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.helper.Utility;
+import com.fsck.k9.helper.WindowedCursor;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
@@ -336,6 +340,13 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private static final int ACTIVITY_CHOOSE_FOLDER_MOVE = 1;
     private static final int ACTIVITY_CHOOSE_FOLDER_COPY = 2;
 
+    /**
+     * Number of rows loaded per page when the message list is sorted by date.
+     *
+     * @see #isPagedList()
+     */
+    private static final int PAGE_SIZE = 100;
+
     private static final String ARG_SEARCH = "searchObject";
     private static final String ARG_THREADED_LIST = "threadedList";
     private static final String ARG_IS_THREAD_DISPLAY = "isThreadedDisplay";
@@ -1000,7 +1011,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         mCacheBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mAdapter.notifyDataSetChanged();
+                String accountUuid = intent.getStringExtra(EmailProviderCache.EXTRA_ACCOUNT_UUID);
+                if (accountUuid == null || mAccountUuids == null ||
+                        Utility.arrayContains(mAccountUuids, accountUuid)) {
+                    mAdapter.notifyDataSetChanged();
+                }
             }
         };
 
@@ -1906,6 +1921,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
+            if (cursor instanceof WindowedCursor) {
+                ((WindowedCursor) cursor).prefetch(cursor.getPosition());
+            }
+
             Account account = getAccountFromCursor(cursor);
 
             String fromList = cursor.getString(SENDER_LIST_COLUMN);
@@ -2202,6 +2221,22 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
                 return;
             }
 
+            Cursor adapterCursor = mAdapter.getCursor();
+            if (adapterCursor instanceof WindowedCursor &&
+                    !((WindowedCursor) adapterCursor).isComplete()) {
+                // Select all messages once the rest of the list has been loaded in the background
+                final WindowedCursor windowedCursor = (WindowedCursor) adapterCursor;
+                windowedCursor.loadRemainingPages(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mAdapter.getCursor() == windowedCursor) {
+                            setSelectionState(true);
+                        }
+                    }
+                });
+                return;
+            }
+
             mSelectedCount = 0;
             for (int i = 0, end = mAdapter.getCount(); i < end; i++) {
                 Cursor cursor = (Cursor) mAdapter.getItem(i);
@@ -2343,12 +2378,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         if (mThreadedList && cursor.getInt(THREAD_COUNT_COLUMN) > 1) {
             long threadRootId = cursor.getLong(THREAD_ROOT_COLUMN);
-            mController.setFlagForThreads(account,
-                    Collections.singletonList(Long.valueOf(threadRootId)), flag, newState);
+            mController.setFlagForThreads(account, LongSet.of(threadRootId), flag, newState);
         } else {
             long id = cursor.getLong(ID_COLUMN);
-            mController.setFlag(account, Collections.singletonList(Long.valueOf(id)), flag,
-                    newState);
+            mController.setFlag(account, LongSet.of(id), flag, newState);
         }
 
         computeBatchDirection();
@@ -2359,8 +2392,8 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             return;
         }
 
-        Map<Account, List<Long>> messageMap = new HashMap<Account, List<Long>>();
-        Map<Account, List<Long>> threadMap = new HashMap<Account, List<Long>>();
+        Map<Account, LongSet.Builder> messageMap = new HashMap<Account, LongSet.Builder>();
+        Map<Account, LongSet.Builder> threadMap = new HashMap<Account, LongSet.Builder>();
         Set<Account> accounts = new HashSet<Account>();
 
         for (int position = 0, end = mAdapter.getCount(); position < end; position++) {
@@ -2373,17 +2406,17 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
                 accounts.add(account);
 
                 if (mThreadedList && cursor.getInt(THREAD_COUNT_COLUMN) > 1) {
-                    List<Long> threadRootIdList = threadMap.get(account);
+                    LongSet.Builder threadRootIdList = threadMap.get(account);
                     if (threadRootIdList == null) {
-                        threadRootIdList = new ArrayList<Long>();
+                        threadRootIdList = new LongSet.Builder();
                         threadMap.put(account, threadRootIdList);
                     }
 
                     threadRootIdList.add(cursor.getLong(THREAD_ROOT_COLUMN));
                 } else {
-                    List<Long> messageIdList = messageMap.get(account);
+                    LongSet.Builder messageIdList = messageMap.get(account);
                     if (messageIdList == null) {
-                        messageIdList = new ArrayList<Long>();
+                        messageIdList = new LongSet.Builder();
                         messageMap.put(account, messageIdList);
                     }
 
@@ -2393,15 +2426,15 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         }
 
         for (Account account : accounts) {
-            List<Long> messageIds = messageMap.get(account);
-            List<Long> threadRootIds = threadMap.get(account);
+            LongSet.Builder messageIds = messageMap.get(account);
+            LongSet.Builder threadRootIds = threadMap.get(account);
 
             if (messageIds != null) {
-                mController.setFlag(account, messageIds, flag, newState);
+                mController.setFlag(account, messageIds.build(), flag, newState);
             }
 
             if (threadRootIds != null) {
-                mController.setFlagForThreads(account, threadRootIds, flag, newState);
+                mController.setFlagForThreads(account, threadRootIds.build(), flag, newState);
             }
         }
 
@@ -3353,10 +3386,71 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         String sortOrder = buildSortOrder();
 
+        if (needConditions && isPagedList()) {
+            uri = EmailProvider.getPageUri(uri, PAGE_SIZE, mSortAscending);
+        }
+
         return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
                 sortOrder);
     }
 
+    /**
+     * Only load the message list page by page if the rows are ordered by date and ID, and there
+     * is no need to merge the results of multiple accounts.
+     */
+    private boolean isPagedList() {
+        return mAccountUuids.length == 1 && mSortType == SortType.SORT_DATE;
+    }
+
+    /**
+     * Loads the pages following the first page returned by a {@link CursorLoader}.
+     *
+     * <p>
+     * When the window grows the URI of the loader is updated so a reload triggered by a content
+     * change returns the whole window in one query and the list doesn't shrink back to the first
+     * page.
+     * </p>
+     */
+    private static class MessageListPageLoader implements WindowedCursor.PageLoader {
+        private final ContentResolver mContentResolver;
+        private final CursorLoader mLoader;
+        private final Uri mUri;
+        private final boolean mDateAscending;
+
+        MessageListPageLoader(ContentResolver contentResolver, CursorLoader loader) {
+            Uri pageUri = loader.getUri();
+
+            mContentResolver = contentResolver;
+            mLoader = loader;
+            mUri = pageUri.buildUpon().clearQuery().build();
+            mDateAscending = Boolean.parseBoolean(
+                    pageUri.getQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_DATE_ASCENDING));
+        }
+
+        @Override
+        public Callable<Cursor> createNextPageQuery(Cursor lastRow) {
+            final Uri uri = EmailProvider.getNextPageUri(mUri, PAGE_SIZE, mDateAscending,
+                    lastRow.getLong(DATE_COLUMN), lastRow.getLong(ID_COLUMN));
+            final String[] projection = mLoader.getProjection();
+            final String selection = mLoader.getSelection();
+            final String[] selectionArgs = mLoader.getSelectionArgs();
+            final String sortOrder = mLoader.getSortOrder();
+
+            return new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    return mContentResolver.query(uri, projection, selection, selectionArgs,
+                            sortOrder);
+                }
+            };
+        }
+
+        @Override
+        public void onWindowChanged(int count) {
+            mLoader.setUri(EmailProvider.getPageUri(mUri, count, mDateAscending));
+        }
+    }
+
     private String getThreadId(LocalSearch search) {
         for (ConditionsTreeNode node : search.getLeafSet()) {
             SearchCondition condition = node.mCondition;
@@ -3435,6 +3529,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         if (mCursors.length > 1) {
             cursor = new MergeCursorWithUniqueId(mCursors, getComparator());
             mUniqueIdColumn = cursor.getColumnIndex("_id");
+        } else if (((CursorLoader) loader).getUri().getQueryParameter(
+                EmailProvider.QUERY_PARAMETER_PAGE_SIZE) != null) {
+            cursor = new WindowedCursor(data, PAGE_SIZE, new MessageListPageLoader(
+                    getActivity().getContentResolver(), (CursorLoader) loader));
+            mUniqueIdColumn = ID_COLUMN;
         } else {
             cursor = data;
             mUniqueIdColumn = ID_COLUMN;
@@ -3458,7 +3557,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         cleanupSelected(cursor);
         updateContextMenu(cursor);
 
-        mAdapter.swapCursor(cursor);
+        closeWindowedCursor(mAdapter.swapCursor(cursor));
 
         resetActionMode();
         computeBatchDirection();
@@ -3572,7 +3671,16 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         mSelected.clear();
-        mAdapter.swapCursor(null);
+        closeWindowedCursor(mAdapter.swapCursor(null));
+    }
+
+    /**
+     * Close the pages loaded by a {@link WindowedCursor}. The first page is owned by the loader.
+     */
+    private static void closeWindowedCursor(Cursor cursor) {
+        if (cursor instanceof WindowedCursor) {
+            cursor.close();
+        }
     }
 
     private Account getAccountFromCursor(Cursor cursor) {
@@ -9,6 +9,7 @@ import java.util.Locale;
 import android.util.Log;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.mail.filter.FileChannelCopier;
 
 
 public class FileHelper {
@@ -90,11 +91,7 @@ public class FileHelper {
             try {
                 FileOutputStream out = new FileOutputStream(to);
                 try {
-                    byte[] buffer = new byte[1024];
-                    int count = -1;
-                    while ((count = in.read(buffer)) > 0) {
-                        out.write(buffer, 0, count);
-                    }
+                    FileChannelCopier.copy(in, out);
                 } finally {
                     out.close();
                 }
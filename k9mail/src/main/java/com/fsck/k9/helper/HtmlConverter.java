@@ -2,17 +2,10 @@ package com.fsck.k9.helper;
 
 import android.text.*;
 import android.text.Html.TagHandler;
-import android.util.Log;
 import com.fsck.k9.K9;
 
 import org.xml.sax.XMLReader;
 
-import java.io.IOException;
-import java.io.StringReader;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Locale;
-import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,14 +53,14 @@ public class HtmlConverter {
         + "|(?:xn\\-\\-0zwm56d|xn\\-\\-11b5bs3a9aj6g|xn\\-\\-80akhbyknj4f|xn\\-\\-9t4b11yi5a|xn\\-\\-deba0ad|xn\\-\\-fiqs8s|xn\\-\\-fiqz9s|xn\\-\\-fzc2c9e2c|xn\\-\\-g6w251d|xn\\-\\-hgbk6aj7f53bba|xn\\-\\-hlcj6aya9esc7a|xn\\-\\-j6w193g|xn\\-\\-jxalpdlp|xn\\-\\-kgbechtv|xn\\-\\-kprw13d|xn\\-\\-kpry57d|xn\\-\\-mgbaam7a8h|xn\\-\\-mgbayh7gpa|xn\\-\\-mgberp4a5d4ar|xn\\-\\-o3cw4h|xn\\-\\-p1ai|xn\\-\\-pgbs0dh|xn\\-\\-wgbh1c|xn\\-\\-wgbl6a|xn\\-\\-xkc2al3hye2a|xn\\-\\-ygbi2ammx|xn\\-\\-zckzah)"
         + "|y[et]"
         + "|z[amw]))";
-    private static final String BITCOIN_URI_PATTERN =
+    static final String BITCOIN_URI_PATTERN =
             "bitcoin:[1-9a-km-zA-HJ-NP-Z]{27,34}(\\?[a-zA-Z0-9$\\-_.+!*'(),%:@&=]*)?";
     /**
      *  Regular expression pattern to match most part of RFC 3987
      *  Internationalized URLs, aka IRIs.  Commonly used Unicode characters are
      *  added.
      */
-    private static final Pattern WEB_URL_PATTERN = Pattern.compile(
+    static final Pattern WEB_URL_PATTERN = Pattern.compile(
                 "((?:(http|https|Http|Https|rtsp|Rtsp):\\/\\/(?:(?:[a-zA-Z0-9\\$\\-\\_\\.\\+\\!\\*\\'\\(\\)"
                 + "\\,\\;\\?\\&\\=]|(?:\\%[a-fA-F0-9]{2})){1,64}(?:\\:(?:[a-zA-Z0-9\\$\\-\\_"
                 + "\\.\\+\\!\\*\\'\\(\\)\\,\\;\\?\\&\\=]|(?:\\%[a-fA-F0-9]{2})){1,25})?\\@)?)?"
@@ -83,21 +76,6 @@ public class HtmlConverter {
                 + "\\-\\.\\+\\!\\*\\'\\(\\)\\,\\_])|(?:\\%[a-fA-F0-9]{2}))*)?"
                 + "(?:\\b|$)"); // and finally, a word boundary or end of
 
-    /**
-     * When generating previews, Spannable objects that can't be converted into a String are
-     * represented as 0xfffc. When displayed, these show up as undisplayed squares. These constants
-     * define the object character and the replacement character.
-     */
-    private static final char PREVIEW_OBJECT_CHARACTER = (char)0xfffc;
-    private static final char PREVIEW_OBJECT_REPLACEMENT = (char)0x20;  // space
-
-    /**
-     * toHtml() converts non-breaking spaces into the UTF-8 non-breaking space, which doesn't get
-     * rendered properly in some clients. Replace it with a simple space.
-     */
-    private static final char NBSP_CHARACTER = (char)0x00a0;    // utf-8 non-breaking space
-    private static final char NBSP_REPLACEMENT = (char)0x20;    // space
-
     // Number of extra bytes to allocate in a string buffer for htmlification.
     private static final int TEXT_TO_HTML_EXTRA_BUFFER_LENGTH = 512;
 
@@ -105,308 +83,50 @@ public class HtmlConverter {
      * Convert an HTML string to a plain text string.
      * @param html HTML string to convert.
      * @return Plain text result.
+     * @see HtmlToTextConverter
      */
     public static String htmlToText(final String html) {
-        return Html.fromHtml(html, null, new HtmlToTextTagHandler()).toString()
-               .replace(PREVIEW_OBJECT_CHARACTER, PREVIEW_OBJECT_REPLACEMENT)
-               .replace(NBSP_CHARACTER, NBSP_REPLACEMENT);
-    }
-
-    /**
-     * Custom tag handler to use when converting HTML messages to text. It currently handles text
-     * representations of HTML tags that Android's built-in parser doesn't understand and hides code
-     * contained in STYLE and SCRIPT blocks.
-     */
-    private static class HtmlToTextTagHandler implements Html.TagHandler {
-        // List of tags whose content should be ignored.
-        private static final Set<String> TAGS_WITH_IGNORED_CONTENT;
-        static {
-            Set<String> set = new HashSet<String>();
-            set.add("style");
-            set.add("script");
-            set.add("title");
-            set.add("!");   // comments
-            TAGS_WITH_IGNORED_CONTENT = Collections.unmodifiableSet(set);
-        }
-
-        @Override
-        public void handleTag(boolean opening, String tag, Editable output, XMLReader xmlReader) {
-            tag = tag.toLowerCase(Locale.US);
-            if (tag.equals("hr") && opening) {
-                // In the case of an <hr>, replace it with a bunch of underscores. This is roughly
-                // the behaviour of Outlook in Rich Text mode.
-                output.append("_____________________________________________\r\n");
-            } else if (TAGS_WITH_IGNORED_CONTENT.contains(tag)) {
-                handleIgnoredTag(opening, output);
-            }
-        }
-
-        private static final String IGNORED_ANNOTATION_KEY = "K9_ANNOTATION";
-        private static final String IGNORED_ANNOTATION_VALUE = "hiddenSpan";
-
-        /**
-         * When we come upon an ignored tag, we mark it with an Annotation object with a specific key
-         * and value as above. We don't really need to be checking these values since Html.fromHtml()
-         * doesn't use Annotation spans, but we should do it now to be safe in case they do start using
-         * it in the future.
-         * @param opening If this is an opening tag or not.
-         * @param output Spannable string that we're working with.
-         */
-        private void handleIgnoredTag(boolean opening, Editable output) {
-            int len = output.length();
-            if (opening) {
-                output.setSpan(new Annotation(IGNORED_ANNOTATION_KEY, IGNORED_ANNOTATION_VALUE), len,
-                               len, Spannable.SPAN_MARK_MARK);
-            } else {
-                Object start = getOpeningAnnotation(output);
-                if (start != null) {
-                    int where = output.getSpanStart(start);
-                    // Remove the temporary Annotation span.
-                    output.removeSpan(start);
-                    // Delete everything between the start of the Annotation and the end of the string
-                    // (what we've generated so far).
-                    output.delete(where, len);
-                }
-            }
-        }
-
-        /**
-         * Fetch the matching opening Annotation object and verify that it's the one added by K9.
-         * @param output Spannable string we're working with.
-         * @return Starting Annotation object.
-         */
-        private Object getOpeningAnnotation(Editable output) {
-            Object[] objs = output.getSpans(0, output.length(), Annotation.class);
-            for (int i = objs.length - 1; i >= 0; i--) {
-                Annotation span = (Annotation) objs[i];
-                if (output.getSpanFlags(objs[i]) == Spannable.SPAN_MARK_MARK
-                        && span.getKey().equals(IGNORED_ANNOTATION_KEY)
-                        && span.getValue().equals(IGNORED_ANNOTATION_VALUE)) {
-                    return objs[i];
-                }
-            }
-            return null;
-        }
+        return HtmlToTextConverter.convert(html);
     }
 
-    private static final int MAX_SMART_HTMLIFY_MESSAGE_LENGTH = 1024 * 256 ;
-
     /**
-     * Naively convert a text string into an HTML document.
+     * Convert a text string into an HTML document.
      *
      * <p>
-     * This method avoids using regular expressions on the entire message body to save memory.
+     * Quoted lines are put in blockquotes, lines of -, = or _ are replaced with horizontal rules
+     * and links are created. See {@link TextToHtmlConverter}.
      * </p>
      * <p>
      * No HTML headers or footers are added to the result.  Headers and footers
      * are added at display time in
      * {@link com.fsck.k9.view#MessageWebView.setText(String) MessageWebView.setText()}
      * </p>
+     * <p>
+     * To convert to a fragment, use {@link #textToHtmlFragment(String)} .
+     * </p>
      *
      * @param text
      *         Plain text string.
      * @return HTML string.
      */
-    private static String simpleTextToHtml(String text) {
-        // Encode HTML entities to make sure we don't display something evil.
-        text = TextUtils.htmlEncode(text);
-
-        StringReader reader = new StringReader(text);
-        StringBuilder buff = new StringBuilder(text.length() + TEXT_TO_HTML_EXTRA_BUFFER_LENGTH);
-
-        buff.append(htmlifyMessageHeader());
-
-        int c;
-        try {
-            while ((c = reader.read()) != -1) {
-                switch (c) {
-                case '\n':
-                    // pine treats <br> as two newlines, but <br/> as one newline.  Use <br/> so our messages aren't
-                    // doublespaced.
-                    buff.append("<br />");
-                    break;
-                case '\r':
-                    break;
-                default:
-                    buff.append((char)c);
-                }//switch
-            }
-        } catch (IOException e) {
-            //Should never happen
-            Log.e(K9.LOG_TAG, "Could not read string to convert text to HTML:", e);
-        }
-
-        buff.append(htmlifyMessageFooter());
-
-        return buff.toString();
+    public static String textToHtml(String text) {
+        return TextToHtmlConverter.convert(text, false);
     }
 
-    private static final String HTML_BLOCKQUOTE_COLOR_TOKEN = "$$COLOR$$";
-    private static final String HTML_BLOCKQUOTE_START = "<blockquote class=\"gmail_quote\" " +
-            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid $$COLOR$$; padding-left: 1ex;\">";
-    private static final String HTML_BLOCKQUOTE_END = "</blockquote>";
-    private static final String HTML_NEWLINE = "<br />";
-
     /**
-     * Convert a text string into an HTML document.
+     * Convert a text string into an HTML document for display.
      *
      * <p>
-     * Attempts to do smart replacement for large documents to prevent OOM
-     * errors.
-     * <p>
-     * No HTML headers or footers are added to the result.  Headers and footers
-     * are added at display time in
-     * {@link com.fsck.k9.view#MessageWebView.setText(String) MessageWebView.setText()}
-     * </p>
-     * <p>
-     * To convert to a fragment, use {@link #textToHtmlFragment(String)} .
+     * Same as {@code convertEmoji2Img(textToHtml(text))}, but in a single pass. Don't use this
+     * for messages that are sent, the emoji images only exist in the app.
      * </p>
      *
      * @param text
      *         Plain text string.
      * @return HTML string.
      */
-    public static String textToHtml(String text) {
-        // Our HTMLification code is somewhat memory intensive
-        // and was causing lots of OOM errors on the market
-        // if the message is big and plain text, just do
-        // a trivial htmlification
-        if (text.length() > MAX_SMART_HTMLIFY_MESSAGE_LENGTH) {
-            return simpleTextToHtml(text);
-        }
-        StringReader reader = new StringReader(text);
-        StringBuilder buff = new StringBuilder(text.length() + TEXT_TO_HTML_EXTRA_BUFFER_LENGTH);
-        boolean isStartOfLine = true;  // Are we currently at the start of a line?
-        int spaces = 0;
-        int quoteDepth = 0; // Number of DIVs deep we are.
-        int quotesThisLine = 0; // How deep we should be quoting for this line.
-        try {
-            int c;
-            while ((c = reader.read()) != -1) {
-                if (isStartOfLine) {
-                    switch (c) {
-                    case ' ':
-                        spaces++;
-                        break;
-                    case '>':
-                        quotesThisLine++;
-                        spaces = 0;
-                        break;
-                    case '\n':
-                        appendbq(buff, quotesThisLine, quoteDepth);
-                        quoteDepth = quotesThisLine;
-
-                        appendsp(buff, spaces);
-                        spaces = 0;
-
-                        appendchar(buff, c);
-                        isStartOfLine = true;
-                        quotesThisLine = 0;
-                        break;
-                    default:
-                        isStartOfLine = false;
-
-                        appendbq(buff, quotesThisLine, quoteDepth);
-                        quoteDepth = quotesThisLine;
-
-                        appendsp(buff, spaces);
-                        spaces = 0;
-
-                        appendchar(buff, c);
-                        isStartOfLine = false;
-                        break;
-                    }
-                }
-                else {
-                    appendchar(buff, c);
-                    if (c == '\n') {
-                        isStartOfLine = true;
-                        quotesThisLine = 0;
-                    }
-                }
-            }
-        } catch (IOException e) {
-            //Should never happen
-            Log.e(K9.LOG_TAG, "Could not read string to convert text to HTML:", e);
-        }
-        // Close off any quotes we may have opened.
-        if (quoteDepth > 0) {
-            for (int i = quoteDepth; i > 0; i--) {
-                buff.append(HTML_BLOCKQUOTE_END);
-            }
-        }
-        text = buff.toString();
-
-        // Make newlines at the end of blockquotes nicer by putting newlines beyond the first one outside of the
-        // blockquote.
-        text = text.replaceAll(
-                   "\\Q" + HTML_NEWLINE + "\\E((\\Q" + HTML_NEWLINE + "\\E)+?)\\Q" + HTML_BLOCKQUOTE_END + "\\E",
-                   HTML_BLOCKQUOTE_END + "$1"
-               );
-
-        // Replace lines of -,= or _ with horizontal rules
-        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", "<hr />");
-
-        StringBuffer sb = new StringBuffer(text.length() + TEXT_TO_HTML_EXTRA_BUFFER_LENGTH);
-
-        sb.append(htmlifyMessageHeader());
-        linkifyText(text, sb);
-        sb.append(htmlifyMessageFooter());
-
-        text = sb.toString();
-
-        // Above we replaced > with <gt>, now make it &gt;
-        text = text.replaceAll("<gt>", "&gt;");
-
-        return text;
-    }
-
-    private static void appendchar(StringBuilder buff, int c) {
-        switch (c) {
-        case '&':
-            buff.append("&amp;");
-            break;
-        case '<':
-            buff.append("&lt;");
-            break;
-        case '>':
-            // We use a token here which can't occur in htmlified text because &gt; is valid
-            // within links (where > is not), and linkifying links will include it if we
-            // do it here. We'll make another pass and change this back to &gt; after
-            // the linkification is done.
-            buff.append("<gt>");
-            break;
-        case '\r':
-            break;
-        case '\n':
-            // pine treats <br> as two newlines, but <br/> as one newline.  Use <br/> so our messages aren't
-            // doublespaced.
-            buff.append(HTML_NEWLINE);
-            break;
-        default:
-            buff.append((char)c);
-            break;
-        }
-    }
-
-    private static void appendsp(StringBuilder buff, int spaces) {
-        while (spaces > 0) {
-            buff.append(' ');
-            spaces--;
-        }
-    }
-
-    private static void appendbq(StringBuilder buff, int quotesThisLine, int quoteDepth) {
-        // Add/remove blockquotes by comparing this line's quotes to the previous line's quotes.
-        if (quotesThisLine > quoteDepth) {
-            for (int i = quoteDepth; i < quotesThisLine; i++) {
-                buff.append(HTML_BLOCKQUOTE_START.replace(HTML_BLOCKQUOTE_COLOR_TOKEN, getQuoteColor(i + 1)));
-            }
-        } else if (quotesThisLine < quoteDepth) {
-            for (int i = quoteDepth; i > quotesThisLine; i--) {
-                buff.append(HTML_BLOCKQUOTE_END);
-            }
-        }
+    public static String textToHtmlForDisplay(String text) {
+        return TextToHtmlConverter.convert(text, true);
     }
 
     protected static final String QUOTE_COLOR_DEFAULT = "#ccc";
@@ -415,7 +135,7 @@ public class HtmlConverter {
     protected static final String QUOTE_COLOR_LEVEL_3 = "#8ae234";
     protected static final String QUOTE_COLOR_LEVEL_4 = "#fcaf3e";
     protected static final String QUOTE_COLOR_LEVEL_5 = "#e9b96e";
-    private static final String K9MAIL_CSS_CLASS = "k9mail";
+    static final String K9MAIL_CSS_CLASS = "k9mail";
 
     /**
      * Return an HTML hex color string for a given quote level.
@@ -497,7 +217,7 @@ public class HtmlConverter {
         return buff.toString();
     }
 
-    private static String getEmojiForCodePoint(int codePoint) {
+    static String getEmojiForCodePoint(int codePoint) {
         // Derived from http://code.google.com/p/emoji4unicode/source/browse/trunk/data/emoji4unicode.xml
         // XXX: This doesn't cover all the characters.  More emoticons are wanted.
         switch (codePoint) {
@@ -1330,14 +1050,6 @@ public class HtmlConverter {
         }
     }
 
-    private static String htmlifyMessageHeader() {
-        return "<pre class=\"" + K9MAIL_CSS_CLASS + "\">";
-    }
-
-    private static String htmlifyMessageFooter() {
-        return "</pre>";
-    }
-
     /**
      * Dynamically generate a CSS style for {@code <pre>} elements.
      *
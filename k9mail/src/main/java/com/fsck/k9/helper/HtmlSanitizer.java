@@ -9,6 +9,12 @@ import org.htmlcleaner.TagNode;
 
 
 public class HtmlSanitizer {
+    /**
+     * Identifies the rules applied by {@link #sanitize(String)}. Increase it whenever they change,
+     * so HTML that was sanitized and stored with an older version is sanitized again.
+     */
+    public static final int VERSION = 1;
+
     private static final HtmlCleaner HTML_CLEANER;
     private static final HtmlSerializer HTML_SERIALIZER;
 
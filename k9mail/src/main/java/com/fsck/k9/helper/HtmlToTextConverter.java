@@ -0,0 +1,388 @@
+package com.fsck.k9.helper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+ * Converts HTML to plain text in a single pass over the input.
+ *
+ * <p>
+ * Unlike {@link android.text.Html#fromHtml(String)} this doesn't build a document or a
+ * {@link android.text.Spanned} first. Tags are handled as they are read and text is appended to
+ * the output right away.
+ * </p>
+ *
+ * <p>
+ * The output follows what {@link HtmlConverter#htmlToText(String)} used to produce:
+ * <ul>
+ * <li>Whitespace is collapsed, except inside {@code PRE} elements.</li>
+ * <li>Block elements are separated by an empty line, {@code BR} starts a new line.</li>
+ * <li>{@code HR} is replaced by a line of underscores.</li>
+ * <li>The contents of {@code STYLE}, {@code SCRIPT} and {@code TITLE} elements and comments
+ * are dropped.</li>
+ * <li>Images are replaced by a space, non-breaking spaces by a regular space.</li>
+ * <li>The named entities of HTML 4 (see {@link HtmlEntities}) and numeric character references
+ * are decoded.</li>
+ * </ul>
+ * </p>
+ */
+public class HtmlToTextConverter {
+    private static final String HORIZONTAL_RULE = "_____________________________________________";
+
+    private static final Set<String> BLOCK_TAGS = createSet("address", "article", "blockquote",
+            "center", "div", "dl", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6",
+            "header", "ol", "p", "pre", "section", "table", "ul");
+
+    private static final Set<String> LINE_TAGS = createSet("dd", "dt", "li", "tr");
+
+    private static final Set<String> CELL_TAGS = createSet("td", "th");
+
+    /**
+     * Elements whose content is not displayed. Their content is skipped up to the end tag.
+     */
+    private static final Set<String> TAGS_WITH_IGNORED_CONTENT = createSet("script", "style",
+            "title");
+
+    private static final char NBSP = '\u00A0';
+
+    private static final int MAX_ENTITY_LENGTH = 10;
+    private static final int BUFFER_SIZE = 4096;
+    private static final int EOF = -1;
+
+
+    /**
+     * Convert an HTML string to plain text.
+     */
+    public static String convert(String html) {
+        HtmlToTextConverter converter = new HtmlToTextConverter(new StringReader(html));
+        try {
+            converter.run();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return converter.mOutput.toString();
+    }
+
+    private static Set<String> createSet(String... values) {
+        return Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(values)));
+    }
+
+
+    private final Reader mInput;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+
+    private final StringBuilder mOutput = new StringBuilder();
+
+    /**
+     * Whitespace has been read that is to be written before the next text, if any.
+     */
+    private boolean mPendingSpace;
+
+    /**
+     * Number of line breaks to write before the next text, if any.
+     */
+    private int mPendingNewlines;
+
+    private int mPreDepth;
+
+
+    private HtmlToTextConverter(Reader input) {
+        mInput = input;
+    }
+
+    private void run() throws IOException {
+        int c;
+        while ((c = read()) != EOF) {
+            if (c == '<') {
+                readMarkup();
+            } else if (c == '&') {
+                appendText(readEntity());
+            } else {
+                appendText((char) c);
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit) {
+            mLimit = mInput.read(mBuffer, 0, BUFFER_SIZE);
+            mPosition = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return EOF;
+            }
+        }
+        return mBuffer[mPosition++];
+    }
+
+    /**
+     * Returns the next character without consuming it.
+     */
+    private int peek() throws IOException {
+        int c = read();
+        if (c != EOF) {
+            mPosition--;
+        }
+        return c;
+    }
+
+    /**
+     * Handle everything starting with '{@code <}'.
+     */
+    private void readMarkup() throws IOException {
+        int c = peek();
+        if (c == '!') {
+            read();
+            if (peek() == '-') {
+                skipComment();
+            } else {
+                skipPast('>');
+            }
+        } else if (c == '?') {
+            skipPast('>');
+        } else if (c == '/') {
+            read();
+            String name = readTagName();
+            skipPast('>');
+            if (name.length() > 0) {
+                handleEndTag(name);
+            }
+        } else if (isTagNameStart(c)) {
+            String name = readTagName();
+            skipPast('>');
+            handleStartTag(name);
+        } else {
+            // Not a tag, e.g. "a < b"
+            appendText('<');
+        }
+    }
+
+    private void handleStartTag(String name) throws IOException {
+        if (TAGS_WITH_IGNORED_CONTENT.contains(name)) {
+            skipContent(name);
+        } else if (name.equals("br")) {
+            mPendingNewlines++;
+        } else if (name.equals("hr")) {
+            lineBreak(1);
+            appendRaw(HORIZONTAL_RULE);
+            lineBreak(1);
+        } else if (name.equals("img")) {
+            appendRaw(" ");
+        } else if (BLOCK_TAGS.contains(name)) {
+            lineBreak(2);
+            if (name.equals("pre")) {
+                mPreDepth++;
+            }
+        } else if (LINE_TAGS.contains(name)) {
+            lineBreak(1);
+        } else if (CELL_TAGS.contains(name)) {
+            mPendingSpace = true;
+        }
+    }
+
+    private void handleEndTag(String name) {
+        if (BLOCK_TAGS.contains(name)) {
+            lineBreak(2);
+            if (name.equals("pre") && mPreDepth > 0) {
+                mPreDepth--;
+            }
+        } else if (LINE_TAGS.contains(name)) {
+            lineBreak(1);
+        } else if (CELL_TAGS.contains(name)) {
+            mPendingSpace = true;
+        }
+    }
+
+    private void lineBreak(int newlines) {
+        mPendingNewlines = Math.max(mPendingNewlines, newlines);
+    }
+
+    private static boolean isTagNameStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isTagNameChar(int c) {
+        return isTagNameStart(c) || (c >= '0' && c <= '9') || c == '-' || c == ':';
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private String readTagName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c;
+        while ((c = peek()) != EOF && isTagNameChar(c)) {
+            name.append((char) read());
+        }
+        return name.toString().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Skip the rest of a tag. Quoted attribute values may contain '{@code >}'.
+     */
+    private void skipPast(char end) throws IOException {
+        int quote = 0;
+        int previous = 0;
+        int c;
+        while ((c = read()) != EOF) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if ((c == '"' || c == '\'') && previous == '=') {
+                quote = c;
+            } else if (c == end) {
+                return;
+            }
+
+            if (!isWhitespace(c)) {
+                previous = c;
+            }
+        }
+    }
+
+    private void skipComment() throws IOException {
+        // We've read "<!" and the next character is '-'
+        int dashes = 0;
+        int c;
+        while ((c = read()) != EOF) {
+            if (c == '-') {
+                dashes++;
+            } else if (c == '>' && dashes >= 2) {
+                return;
+            } else {
+                dashes = 0;
+            }
+        }
+    }
+
+    /**
+     * Skip everything up to and including the end tag {@code name}. The content of elements like
+     * {@code SCRIPT} isn't HTML, so tags aren't parsed in there.
+     */
+    private void skipContent(String name) throws IOException {
+        int c;
+        while ((c = read()) != EOF) {
+            if (c == '<' && peek() == '/') {
+                read();
+                if (readTagName().equals(name)) {
+                    skipPast('>');
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read an entity after '{@code &}'.
+     *
+     * @return The text the entity stands for, or the text as read if it isn't a known entity.
+     */
+    private String readEntity() throws IOException {
+        StringBuilder entity = new StringBuilder();
+        int c;
+        while (entity.length() < MAX_ENTITY_LENGTH && (c = peek()) != EOF &&
+                (isTagNameChar(c) || c == '#')) {
+            entity.append((char) read());
+        }
+
+        if (peek() == ';') {
+            String value = decodeEntity(entity.toString());
+            if (value != null) {
+                read();
+                return value;
+            }
+        }
+
+        return "&" + entity;
+    }
+
+    private static String decodeEntity(String entity) {
+        if (entity.startsWith("#")) {
+            try {
+                int codePoint;
+                if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                    codePoint = Integer.parseInt(entity.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(entity.substring(1));
+                }
+                return new String(Character.toChars(codePoint));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        Character value = HtmlEntities.get(entity);
+        return (value == null) ? null : value.toString();
+    }
+
+    private void appendText(String text) {
+        for (int i = 0, end = text.length(); i < end; i++) {
+            appendText(text.charAt(i));
+        }
+    }
+
+    /**
+     * Append a character of text, collapsing whitespace outside of {@code PRE} elements.
+     */
+    private void appendText(char c) {
+        if (mPreDepth > 0) {
+            if (c == '\r') {
+                return;
+            }
+            if (c == '\n') {
+                flushPending();
+                mPendingNewlines++;
+                return;
+            }
+        } else if (isWhitespace(c)) {
+            mPendingSpace = true;
+            return;
+        }
+
+        if (c == NBSP) {
+            c = ' ';
+        }
+
+        flushPending();
+        append(c);
+    }
+
+    /**
+     * Append text as is, e.g. the line of underscores for {@code HR}.
+     */
+    private void appendRaw(String text) {
+        flushPending();
+        for (int i = 0, end = text.length(); i < end; i++) {
+            append(text.charAt(i));
+        }
+    }
+
+    private void flushPending() {
+        if (mOutput.length() > 0) {
+            if (mPendingNewlines > 0) {
+                for (int i = 0; i < mPendingNewlines; i++) {
+                    append('\n');
+                }
+            } else if (mPendingSpace && mOutput.charAt(mOutput.length() - 1) != '\n') {
+                append(' ');
+            }
+        }
+        mPendingNewlines = 0;
+        mPendingSpace = false;
+    }
+
+    private void append(char c) {
+        mOutput.append(c);
+    }
+}
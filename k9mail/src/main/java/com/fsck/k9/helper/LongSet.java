@@ -0,0 +1,131 @@
+package com.fsck.k9.helper;
+
+import java.util.Arrays;
+
+
+/**
+ * An immutable set of {@code long} values (usually database IDs) stored in a sorted array.
+ *
+ * <p>
+ * Use this instead of {@code List<Long>} to pass around large selections, e.g. all messages of
+ * a folder. It doesn't allocate an object per ID.
+ * </p>
+ */
+public final class LongSet {
+    public static final LongSet EMPTY = new LongSet(new long[0]);
+
+
+    public static LongSet of(long value) {
+        return new LongSet(new long[] { value });
+    }
+
+    /**
+     * Create a set from an array of values. Duplicates are removed.
+     */
+    public static LongSet of(long[] values) {
+        return new Builder(values.length).addAll(values).build();
+    }
+
+
+    private final long[] mValues;
+
+
+    private LongSet(long[] values) {
+        mValues = values;
+    }
+
+    public int size() {
+        return mValues.length;
+    }
+
+    public boolean isEmpty() {
+        return mValues.length == 0;
+    }
+
+    /**
+     * Returns the value at {@code index}. Values are sorted in ascending order.
+     */
+    public long get(int index) {
+        return mValues[index];
+    }
+
+    public boolean contains(long value) {
+        return Arrays.binarySearch(mValues, value) >= 0;
+    }
+
+    /**
+     * Returns a copy of the values in ascending order.
+     */
+    public long[] toArray() {
+        return mValues.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof LongSet) && Arrays.equals(mValues, ((LongSet) o).mValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mValues);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(mValues);
+    }
+
+
+    /**
+     * Collects values for a {@link LongSet}. Values can be added in any order.
+     */
+    public static class Builder {
+        private long[] mValues;
+        private int mSize;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int initialCapacity) {
+            mValues = new long[Math.max(initialCapacity, 1)];
+        }
+
+        public Builder add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+            return this;
+        }
+
+        public Builder addAll(long[] values) {
+            for (long value : values) {
+                add(value);
+            }
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        public LongSet build() {
+            if (mSize == 0) {
+                return EMPTY;
+            }
+
+            long[] values = Arrays.copyOf(mValues, mSize);
+            Arrays.sort(values);
+
+            int count = 1;
+            for (int i = 1; i < values.length; i++) {
+                if (values[i] != values[count - 1]) {
+                    values[count++] = values[i];
+                }
+            }
+
+            return new LongSet((count == values.length) ? values : Arrays.copyOf(values, count));
+        }
+    }
+}
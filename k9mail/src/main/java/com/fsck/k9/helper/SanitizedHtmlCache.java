@@ -0,0 +1,104 @@
+package com.fsck.k9.helper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps the sanitized HTML of recently displayed messages.
+ *
+ * <p>
+ * {@link HtmlSanitizer#sanitize(String)} parses and serializes the whole document, which is
+ * slow for large messages. Rotating the device or going back to a message displays the same
+ * HTML again, so the result is kept by message ID. An entry is only used if the HTML is still
+ * the same, e.g. it doesn't return stale HTML after the theme has changed or inline images have
+ * been downloaded.
+ * </p>
+ *
+ * <p>
+ * The cache is bounded by the total number of characters it holds. Least recently used entries
+ * are evicted first.
+ * </p>
+ */
+public class SanitizedHtmlCache {
+    private static final int DEFAULT_MAX_CHARS = 2 * 1024 * 1024;
+
+    private static final SanitizedHtmlCache sInstance = new SanitizedHtmlCache(DEFAULT_MAX_CHARS);
+
+    public static SanitizedHtmlCache getInstance() {
+        return sInstance;
+    }
+
+
+    private static class Entry {
+        final String html;
+        final String sanitizedHtml;
+
+        Entry(String html, String sanitizedHtml) {
+            this.html = html;
+            this.sanitizedHtml = sanitizedHtml;
+        }
+
+        int size() {
+            return html.length() + sanitizedHtml.length();
+        }
+    }
+
+
+    private final int mMaxChars;
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private int mChars;
+
+
+    SanitizedHtmlCache(int maxChars) {
+        mMaxChars = maxChars;
+    }
+
+    /**
+     * Returns the sanitized version of {@code html}, sanitizing it if it isn't cached.
+     */
+    public String sanitize(long messageId, String html) {
+        String sanitizedHtml = get(messageId, html);
+        if (sanitizedHtml == null) {
+            sanitizedHtml = HtmlSanitizer.sanitize(html);
+            put(messageId, html, sanitizedHtml);
+        }
+        return sanitizedHtml;
+    }
+
+    /**
+     * @return The cached sanitized version of {@code html}, {@code null} if there is none.
+     */
+    synchronized String get(long messageId, String html) {
+        Entry entry = mEntries.get(messageId);
+        if (entry == null || !entry.html.equals(html)) {
+            return null;
+        }
+        return entry.sanitizedHtml;
+    }
+
+    synchronized void put(long messageId, String html, String sanitizedHtml) {
+        Entry entry = new Entry(html, sanitizedHtml);
+        Entry oldEntry = mEntries.remove(messageId);
+        if (oldEntry != null) {
+            mChars -= oldEntry.size();
+        }
+        if (entry.size() > mMaxChars) {
+            return;
+        }
+
+        mEntries.put(messageId, entry);
+        mChars += entry.size();
+
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mChars > mMaxChars && iterator.hasNext()) {
+            mChars -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,393 @@
+package com.fsck.k9.helper;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Converts plain text to HTML in a single pass over the text.
+ *
+ * <p>
+ * Used by {@link HtmlConverter#textToHtml(String)}. The text is escaped, quoted lines are put in
+ * {@code BLOCKQUOTE} elements, lines of {@code -}, {@code =} or {@code _} are replaced by
+ * {@code HR} elements and links are created while the text is read. Optionally emoji are
+ * replaced with images as {@link HtmlConverter#convertEmoji2Img(String)} does.
+ * </p>
+ *
+ * <p>
+ * Regular expressions are only used to find links, and only on runs of characters that can be
+ * part of a link and contain a dot (or a colon for {@code bitcoin:} URIs). Runs longer than
+ * {@link #MAX_LINK_CANDIDATE_LENGTH} or with more than {@link #MAX_LINK_CANDIDATE_DOTS} dots
+ * aren't linkified. This keeps the time spent matching bounded for every character of the
+ * input, no matter how large or unusual the text is.
+ * </p>
+ */
+class TextToHtmlConverter {
+    private static final String HTML_BLOCKQUOTE_START = "<blockquote class=\"gmail_quote\" " +
+            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid ";
+    private static final String HTML_BLOCKQUOTE_START_END = "; padding-left: 1ex;\">";
+    private static final String HTML_BLOCKQUOTE_END = "</blockquote>";
+    private static final String HTML_NEWLINE = "<br />";
+    private static final String HTML_HORIZONTAL_RULE = "<hr />";
+
+    /**
+     * Minimum number of {@code -}, {@code =} or {@code _} characters replaced by a horizontal
+     * rule.
+     */
+    private static final int MIN_HORIZONTAL_RULE_LENGTH = 30;
+
+    static final int MAX_LINK_CANDIDATE_LENGTH = 2048;
+    static final int MAX_LINK_CANDIDATE_DOTS = 64;
+
+    /**
+     * Characters other than letters and digits that can be part of a link.
+     */
+    private static final String LINK_CHARACTERS = "$-_.+!*'(),;?&=%:@/#~";
+
+    /**
+     * Follows the text of a segment while looking for links, so {@code $} in the URL pattern
+     * doesn't match at the end of the segment. {@link #mEndOfText} allows it at the end of
+     * the text.
+     */
+    private static final char SEGMENT_END = '<';
+
+    private static final int EXTRA_BUFFER_LENGTH = 512;
+
+    private static final Pattern BITCOIN_URI = Pattern.compile(HtmlConverter.BITCOIN_URI_PATTERN);
+
+
+    static String convert(String text, boolean convertEmoji) {
+        TextToHtmlConverter converter = new TextToHtmlConverter(text.length(), convertEmoji);
+        converter.run(text);
+        return converter.mOutput.toString();
+    }
+
+
+    private final StringBuilder mOutput;
+    private final boolean mConvertEmoji;
+
+    /**
+     * Escaped text that hasn't been checked for horizontal rules and links yet. It's written to
+     * the output before the next markup.
+     */
+    private final StringBuilder mSegment = new StringBuilder();
+
+    /**
+     * Number of line breaks at the end of the output. See {@link #closeQuotes(int)}.
+     */
+    private int mTrailingNewlines;
+
+    /**
+     * {@code true} while the last segment of the text is written. A link may only end with
+     * {@code $} in the URL pattern there, everywhere else markup follows.
+     */
+    private boolean mEndOfText;
+
+    private final Matcher mWebUrlMatcher = HtmlConverter.WEB_URL_PATTERN.matcher("");
+    private final Matcher mBitcoinMatcher = BITCOIN_URI.matcher("");
+
+
+    private TextToHtmlConverter(int textLength, boolean convertEmoji) {
+        mOutput = new StringBuilder(textLength + EXTRA_BUFFER_LENGTH);
+        mConvertEmoji = convertEmoji;
+    }
+
+    private void run(String text) {
+        mOutput.append("<pre class=\"").append(HtmlConverter.K9MAIL_CSS_CLASS).append("\">");
+
+        boolean isStartOfLine = true;
+        int spaces = 0;
+        int quoteDepth = 0;
+        int quotesThisLine = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (isStartOfLine) {
+                if (c == ' ') {
+                    spaces++;
+                } else if (c == '>') {
+                    quotesThisLine++;
+                    spaces = 0;
+                } else {
+                    if (quotesThisLine > quoteDepth) {
+                        openQuotes(quoteDepth, quotesThisLine);
+                    } else if (quotesThisLine < quoteDepth) {
+                        closeQuotes(quoteDepth - quotesThisLine);
+                    }
+                    quoteDepth = quotesThisLine;
+
+                    for (; spaces > 0; spaces--) {
+                        mSegment.append(' ');
+                    }
+
+                    if (c == '\n') {
+                        appendNewline();
+                        quotesThisLine = 0;
+                    } else {
+                        isStartOfLine = false;
+                        i = appendCharacter(text, i);
+                    }
+                }
+            } else if (c == '\n') {
+                appendNewline();
+                isStartOfLine = true;
+                quotesThisLine = 0;
+            } else {
+                i = appendCharacter(text, i);
+            }
+        }
+
+        if (quoteDepth > 0) {
+            closeQuotes(quoteDepth);
+        } else {
+            mEndOfText = true;
+            flushSegment();
+        }
+
+        mOutput.append("</pre>");
+    }
+
+    /**
+     * Append the character at {@code index}.
+     *
+     * @return The index of the last character used, i.e. {@code index + 1} for an emoji made of
+     *         a surrogate pair.
+     */
+    private int appendCharacter(String text, int index) {
+        char c = text.charAt(index);
+        switch (c) {
+            case '&': {
+                mSegment.append("&amp;");
+                break;
+            }
+            case '<': {
+                mSegment.append("&lt;");
+                break;
+            }
+            case '>': {
+                // "&gt;" would be valid within links, but '>' isn't
+                appendMarkup("&gt;");
+                break;
+            }
+            case '\r': {
+                break;
+            }
+            default: {
+                if (mConvertEmoji && Character.isHighSurrogate(c) && index + 1 < text.length()) {
+                    String emoji = HtmlConverter.getEmojiForCodePoint(
+                            Character.toCodePoint(c, text.charAt(index + 1)));
+                    if (emoji != null) {
+                        appendMarkup("<img src=\"file:///android_asset/emoticons/" + emoji +
+                                ".gif\" alt=\"" + emoji + "\" />");
+                        return index + 1;
+                    }
+                }
+                mSegment.append(c);
+                break;
+            }
+        }
+        return index;
+    }
+
+    private void appendMarkup(String markup) {
+        flushSegment();
+        mOutput.append(markup);
+        mTrailingNewlines = 0;
+    }
+
+    private void appendNewline() {
+        flushSegment();
+        // pine treats <br> as two newlines, but <br/> as one newline. Use <br/> so our messages
+        // aren't doublespaced.
+        mOutput.append(HTML_NEWLINE);
+        mTrailingNewlines++;
+    }
+
+    private void openQuotes(int fromDepth, int toDepth) {
+        for (int i = fromDepth; i < toDepth; i++) {
+            appendMarkup(HTML_BLOCKQUOTE_START + HtmlConverter.getQuoteColor(i + 1) +
+                    HTML_BLOCKQUOTE_START_END);
+        }
+    }
+
+    /**
+     * Close {@code count} blockquotes.
+     *
+     * <p>
+     * Make newlines at the end of blockquotes nicer: if a blockquote ends with more than one
+     * newline, one is dropped and the others are moved outside of the blockquote.
+     * </p>
+     */
+    private void closeQuotes(int count) {
+        flushSegment();
+        for (int i = 0; i < count; i++) {
+            int newlines = mTrailingNewlines;
+            if (newlines >= 2) {
+                mOutput.setLength(mOutput.length() - newlines * HTML_NEWLINE.length());
+                mOutput.append(HTML_BLOCKQUOTE_END);
+                for (int j = 1; j < newlines; j++) {
+                    mOutput.append(HTML_NEWLINE);
+                }
+            } else {
+                mOutput.append(HTML_BLOCKQUOTE_END);
+            }
+            mTrailingNewlines = 0;
+        }
+    }
+
+    /**
+     * Write the pending text to the output, replacing lines of {@code -}, {@code =} or
+     * {@code _} (and the whitespace around them) with horizontal rules and creating links.
+     */
+    private void flushSegment() {
+        StringBuilder segment = mSegment;
+        int length = segment.length();
+        if (length == 0) {
+            return;
+        }
+        segment.append(SEGMENT_END);
+        mWebUrlMatcher.reset(segment);
+        mBitcoinMatcher.reset(segment);
+
+        int written = 0;
+        int i = 0;
+        while (i < length) {
+            if (!isHorizontalRuleCharacter(segment.charAt(i))) {
+                i++;
+                continue;
+            }
+
+            int ruleEnd = i + 1;
+            while (ruleEnd < length && isHorizontalRuleCharacter(segment.charAt(ruleEnd))) {
+                ruleEnd++;
+            }
+
+            if (ruleEnd - i >= MIN_HORIZONTAL_RULE_LENGTH) {
+                int start = i;
+                while (start > written && isWhitespace(segment.charAt(start - 1))) {
+                    start--;
+                }
+                int end = ruleEnd;
+                while (end < length && isWhitespace(segment.charAt(end))) {
+                    end++;
+                }
+
+                appendLinkified(segment, written, start);
+                mOutput.append(HTML_HORIZONTAL_RULE);
+                written = end;
+                ruleEnd = end;
+            }
+            i = ruleEnd;
+        }
+        appendLinkified(segment, written, length);
+
+        segment.setLength(0);
+        mTrailingNewlines = 0;
+    }
+
+    private static boolean isHorizontalRuleCharacter(char c) {
+        return c == '-' || c == '=' || c == '_';
+    }
+
+    /**
+     * Same as {@code \s} in a regular expression.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Returns {@code true} if {@code c} may be part of a link matched by
+     * {@link HtmlConverter#WEB_URL_PATTERN} or {@link HtmlConverter#BITCOIN_URI_PATTERN}.
+     */
+    private static boolean isLinkCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                (c >= '\u00A0' && c <= '\uD7FF') || (c >= '\uF900' && c <= '\uFDCF') ||
+                (c >= '\uFDF0' && c <= '\uFFEF') || LINK_CHARACTERS.indexOf(c) != -1;
+    }
+
+    private void appendLinkified(StringBuilder segment, int start, int end) {
+        int written = start;
+        int i = start;
+        while (i < end) {
+            if (!isLinkCharacter(segment.charAt(i))) {
+                i++;
+                continue;
+            }
+
+            int runStart = i;
+            int dots = 0;
+            boolean hasColon = false;
+            for (char c; i < end && isLinkCharacter(c = segment.charAt(i)); i++) {
+                if (c == '.') {
+                    dots++;
+                } else if (c == ':') {
+                    hasColon = true;
+                }
+            }
+
+            if ((dots > 0 || hasColon) && dots <= MAX_LINK_CANDIDATE_DOTS &&
+                    i - runStart <= MAX_LINK_CANDIDATE_LENGTH) {
+                mOutput.append(segment, written, runStart);
+                linkifyRun(segment, runStart, i, hasColon, dots > 0);
+                written = i;
+            }
+        }
+        mOutput.append(segment, written, end);
+    }
+
+    private void linkifyRun(StringBuilder segment, int start, int end, boolean hasColon,
+            boolean hasDot) {
+        int written = start;
+        if (hasColon) {
+            Matcher matcher = mBitcoinMatcher;
+            matcher.region(start, end);
+            while (matcher.find()) {
+                linkifyWebUrls(segment, written, matcher.start(), hasDot);
+                appendLink(segment, matcher.start(), matcher.end(), false);
+                written = matcher.end();
+            }
+        }
+        linkifyWebUrls(segment, written, end, hasDot);
+    }
+
+    private void linkifyWebUrls(StringBuilder segment, int start, int end, boolean hasDot) {
+        if (start == end) {
+            return;
+        }
+        if (!hasDot) {
+            mOutput.append(segment, start, end);
+            return;
+        }
+
+        // The characters around a candidate can't be part of a link. To the pattern they look
+        // like the markup around the segment, or the end of the text.
+        Matcher matcher = mWebUrlMatcher;
+        matcher.region(start, end);
+        matcher.useAnchoringBounds(mEndOfText && end == segment.length() - 1);
+
+        int written = start;
+        while (matcher.find()) {
+            int urlStart = matcher.start();
+            int urlEnd = matcher.end();
+            mOutput.append(segment, written, urlStart);
+            if (urlStart == 0 || segment.charAt(urlStart - 1) != '@') {
+                // With no URI-schema we may get "http:/" links with the second / missing
+                boolean hasScheme = segment.substring(urlStart, urlEnd).indexOf(':') > 0;
+                appendLink(segment, urlStart, urlEnd, !hasScheme);
+            } else {
+                mOutput.append(segment, urlStart, urlEnd);
+            }
+            written = urlEnd;
+        }
+        mOutput.append(segment, written, end);
+    }
+
+    private void appendLink(StringBuilder segment, int start, int end, boolean addScheme) {
+        mOutput.append("<a href=\"");
+        if (addScheme) {
+            mOutput.append("http://");
+        }
+        mOutput.append(segment, start, end).append("\">").append(segment, start, end)
+                .append("</a>");
+    }
+}
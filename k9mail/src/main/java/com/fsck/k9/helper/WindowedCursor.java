@@ -0,0 +1,457 @@
+package com.fsck.k9.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+
+/**
+ * A {@link Cursor} that presents a result set that is loaded page by page.
+ *
+ * <p>
+ * The cursor starts out with the first page and only exposes the rows loaded so far. Use
+ * {@link #prefetch(int)} when a row is displayed to load the next page in the background once
+ * the row is close to the end of the loaded window. Registered {@link DataSetObserver}s are
+ * notified when a page was appended.
+ * </p>
+ * <p>
+ * All methods have to be called from the main thread.
+ * </p>
+ */
+public class WindowedCursor implements Cursor {
+    /**
+     * Creates the queries for the pages following the loaded window.
+     */
+    public interface PageLoader {
+        /**
+         * Create the query for the page following the current row of {@code lastRow}.
+         *
+         * <p>
+         * This is called on the main thread. The returned {@link Callable} may be called on a
+         * background thread.
+         * </p>
+         *
+         * @param lastRow
+         *         The window positioned on its last row.
+         */
+        Callable<Cursor> createNextPageQuery(Cursor lastRow);
+
+        /**
+         * Called on the main thread after a page was appended to the window.
+         *
+         * @param count
+         *         The number of rows in the window.
+         */
+        void onWindowChanged(int count);
+    }
+
+
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+    private final List<Integer> mPageOffsets = new ArrayList<Integer>();
+    private final DataSetObservable mDataSetObservable = new DataSetObservable();
+    private final int mPageSize;
+    private final PageLoader mPageLoader;
+
+    private Cursor mActiveCursor;
+    private int mPosition = -1;
+    private int mCount;
+    private boolean mComplete;
+    private boolean mLoading;
+    private boolean mClosed;
+    private Runnable mRemainingPagesListener;
+
+
+    /**
+     * Constructor
+     *
+     * @param firstPage
+     *         The first page of the result set. It remains owned by the caller, {@link #close()}
+     *         only closes the pages loaded by this cursor.
+     * @param pageSize
+     *         The number of rows requested for each page. A page with fewer rows marks the end of
+     *         the result set.
+     * @param pageLoader
+     *         Creates the queries for the following pages.
+     */
+    public WindowedCursor(Cursor firstPage, int pageSize, PageLoader pageLoader) {
+        mPageSize = pageSize;
+        mPageLoader = pageLoader;
+
+        mPages.add(firstPage);
+        mPageOffsets.add(0);
+        mActiveCursor = firstPage;
+        mCount = firstPage.getCount();
+        mComplete = (mCount < pageSize);
+    }
+
+    /**
+     * Start loading the next page if {@code position} is within half a page of the end of the
+     * loaded window.
+     */
+    public void prefetch(int position) {
+        if (mComplete || mLoading || mClosed || position < mCount - mPageSize / 2) {
+            return;
+        }
+
+        loadNextPage();
+    }
+
+    /**
+     * Load all remaining pages of the result set in the background, one after another.
+     *
+     * @param listener
+     *         Run on the main thread once the window contains the whole result set, or loading a
+     *         page failed. It's not run if the cursor is closed before.
+     */
+    public void loadRemainingPages(Runnable listener) {
+        if (mClosed) {
+            return;
+        }
+        if (mComplete) {
+            listener.run();
+            return;
+        }
+
+        mRemainingPagesListener = listener;
+        if (!mLoading) {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the window contains the whole result set.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    private void loadNextPage() {
+        mLoading = true;
+        new PageTask(createNextPageQuery()).execute();
+    }
+
+    private Callable<Cursor> createNextPageQuery() {
+        int position = mPosition;
+        moveToPosition(mCount - 1);
+        Callable<Cursor> query = mPageLoader.createNextPageQuery(this);
+        moveToPosition(position);
+
+        return query;
+    }
+
+    private void appendPage(Cursor page) {
+        int pageCount = page.getCount();
+        if (pageCount < mPageSize) {
+            mComplete = true;
+        }
+
+        if (pageCount == 0) {
+            page.close();
+            return;
+        }
+
+        mPages.add(page);
+        mPageOffsets.add(mCount);
+        mCount += pageCount;
+
+        mPageLoader.onWindowChanged(mCount);
+        mDataSetObservable.notifyChanged();
+    }
+
+    private class PageTask extends AsyncTask<Void, Void, Cursor> {
+        private final Callable<Cursor> mQuery;
+
+        PageTask(Callable<Cursor> query) {
+            mQuery = query;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            try {
+                Cursor page = mQuery.call();
+                if (page != null) {
+                    // Fill the cursor window while we're still on the background thread
+                    page.getCount();
+                }
+
+                return page;
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Error while loading page", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            mLoading = false;
+
+            if (page == null) {
+                mComplete = true;
+            } else if (mClosed) {
+                page.close();
+                return;
+            } else {
+                appendPage(page);
+            }
+
+            if (mRemainingPagesListener != null) {
+                if (mComplete) {
+                    Runnable listener = mRemainingPagesListener;
+                    mRemainingPagesListener = null;
+                    listener.run();
+                } else {
+                    loadNextPage();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        for (int i = 1, len = mPages.size(); i < len; i++) {
+            mPages.get(i).close();
+        }
+
+        mDataSetObservable.notifyInvalidated();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor page : mPages) {
+            page.deactivate();
+        }
+
+        mDataSetObservable.notifyInvalidated();
+    }
+
+    @Deprecated
+    @Override
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position >= mCount) {
+            mPosition = mCount;
+            return false;
+        }
+
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+
+        int page = mPages.size() - 1;
+        while (mPageOffsets.get(page) > position) {
+            page--;
+        }
+
+        mActiveCursor = mPages.get(page);
+        mActiveCursor.moveToPosition(position - mPageOffsets.get(page));
+        mPosition = position;
+
+        return true;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(mCount - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return (mCount != 0 && mPosition == 0);
+    }
+
+    @Override
+    public boolean isLast() {
+        return (mCount != 0 && mPosition == mCount - 1);
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return (mCount == 0 || mPosition == -1);
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return (mCount == 0 || mPosition == mCount);
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return mActiveCursor.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) throws IllegalArgumentException {
+        return mActiveCursor.getColumnIndexOrThrow(columnName);
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return mActiveCursor.getColumnName(columnIndex);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mActiveCursor.getColumnNames();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mActiveCursor.getColumnCount();
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return mActiveCursor.getBlob(columnIndex);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        return mActiveCursor.getString(columnIndex);
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        mActiveCursor.copyStringToBuffer(columnIndex, buffer);
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return mActiveCursor.getShort(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return mActiveCursor.getInt(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        return mActiveCursor.getLong(columnIndex);
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return mActiveCursor.getFloat(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        return mActiveCursor.getDouble(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return mActiveCursor.getType(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return mActiveCursor.isNull(columnIndex);
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    /**
+     * All pages share the notification URI of the first page. So content observers are only
+     * registered with the first page to not get notified once per page.
+     */
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mPages.get(0).registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        mPages.get(0).unregisterContentObserver(observer);
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mDataSetObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mDataSetObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver cr, Uri uri) {
+        mPages.get(0).setNotificationUri(cr, uri);
+    }
+
+    /**
+     * Only called on API 19+, where every page has this method.
+     */
+    @Override
+    public Uri getNotificationUri() {
+        return mPages.get(0).getNotificationUri();
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return mPages.get(0).getExtras();
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return mPages.get(0).respond(extras);
+    }
+}
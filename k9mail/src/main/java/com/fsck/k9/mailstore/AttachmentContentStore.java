@@ -0,0 +1,232 @@
+package com.fsck.k9.mailstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.filter.Hex;
+
+
+/**
+ * Stores the content of downloaded attachments in files named after the SHA-256 hash of the
+ * decoded content, so an attachment that is part of several messages is only stored once.
+ *
+ * <p>
+ * {@code attachments.content_hash} references the content of an attachment. The triggers
+ * created by {@link StoreSchemaDefinition} count the references of each hash in the
+ * {@code attachment_content} table. That includes the attachments deleted by the
+ * {@code delete_message} trigger. Content that is no longer referenced is removed by
+ * {@link #deleteUnreferencedContent(LockableDatabase, SQLiteDatabase, File)}.
+ * </p>
+ * <p>
+ * Attachments saved before database version 55 have no hash. Their content is stored in a file
+ * named after the attachment ID.
+ * </p>
+ */
+public class AttachmentContentStore {
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String CONTENT_FILE_PREFIX = "sha256-";
+
+    /**
+     * Prefix of the temporary files {@link LocalFolder} writes attachments to before they are
+     * moved into the store.
+     */
+    static final String TEMP_FILE_PREFIX = "att";
+
+
+    /**
+     * Returns the file containing the content of an attachment.
+     *
+     * @param contentHash
+     *         The value of {@code attachments.content_hash}. May be {@code null}.
+     */
+    public static File getFile(File attachmentDirectory, String attachmentId, String contentHash) {
+        if (contentHash == null) {
+            return new File(attachmentDirectory, attachmentId);
+        }
+
+        return getContentFile(attachmentDirectory, contentHash);
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(HASH_ALGORITHM + " not supported", e);
+        }
+    }
+
+    static String getContentHash(MessageDigest digest) {
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    /**
+     * Move a temporary file into the store unless the store already contains the same content.
+     *
+     * <p>
+     * The content has to be referenced in the database before, otherwise
+     * {@link #deleteUnreferencedContent(LockableDatabase, SQLiteDatabase, File)} might delete it
+     * again.
+     * </p>
+     */
+    static void store(File attachmentDirectory, File tempFile, String contentHash)
+            throws IOException {
+        File file = getContentFile(attachmentDirectory, contentHash);
+        if (file.exists()) {
+            if (!tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        } else if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to move " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code file} is a content file of the store rather than an
+     * attachment saved before content hashes were introduced.
+     */
+    static boolean isContentFile(File file) {
+        return file.getName().startsWith(CONTENT_FILE_PREFIX);
+    }
+
+    /**
+     * Returns {@code true} if the store contains the content with the given hash.
+     */
+    static boolean contains(File attachmentDirectory, String contentHash) {
+        return getContentFile(attachmentDirectory, contentHash).exists();
+    }
+
+    /**
+     * Delete the {@code attachment_content} rows and files of content that is no longer
+     * referenced by any attachment.
+     *
+     * <p>
+     * The rows are deleted in the current transaction of {@code database}, the files only once
+     * it has been committed. If it's rolled back, the attachments referencing the content come
+     * back and still need the files.
+     * </p>
+     */
+    static void deleteUnreferencedContent(LockableDatabase database, final SQLiteDatabase db,
+            final File attachmentDirectory) {
+        final List<String> contentHashes = deleteUnreferencedContent(db);
+        if (contentHashes.isEmpty()) {
+            return;
+        }
+
+        database.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                deleteContentFiles(db, attachmentDirectory, contentHashes);
+            }
+        });
+    }
+
+    /**
+     * Delete the {@code attachment_content} rows of content that is no longer referenced by any
+     * attachment.
+     *
+     * @return The hashes of the deleted content. Their files are still there.
+     */
+    static List<String> deleteUnreferencedContent(SQLiteDatabase db) {
+        List<String> contentHashes = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT hash FROM attachment_content WHERE ref_count <= 0",
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                contentHashes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!contentHashes.isEmpty()) {
+            db.execSQL("DELETE FROM attachment_content WHERE ref_count <= 0");
+        }
+        return contentHashes;
+    }
+
+    /**
+     * Delete the files of content removed by {@link #deleteUnreferencedContent(SQLiteDatabase)}.
+     * Content that has been referenced again in the meantime is kept.
+     */
+    static void deleteContentFiles(SQLiteDatabase db, File attachmentDirectory,
+            List<String> contentHashes) {
+        for (String contentHash : contentHashes) {
+            if (exists(db, "SELECT 1 FROM attachment_content WHERE hash = ?", contentHash)) {
+                continue;
+            }
+
+            File file = getContentFile(attachmentDirectory, contentHash);
+            if (file.exists() && !file.delete()) {
+                Log.w(K9.LOG_TAG, "Unable to delete attachment content " + file);
+            }
+        }
+    }
+
+    /**
+     * Delete files in the attachment directory that no attachment refers to.
+     *
+     * <p>
+     * These are left behind when the app is killed while an attachment is saved, or when the
+     * database and the attachment directory got out of sync. Temporary files younger than
+     * {@code minTempFileAge} milliseconds are kept because they might still be written to.
+     * </p>
+     *
+     * @return The number of deleted files.
+     */
+    static int deleteOrphanedFiles(SQLiteDatabase db, File attachmentDirectory,
+            long minTempFileAge) {
+
+        File[] files = attachmentDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        long maxTempFileTime = System.currentTimeMillis() - minTempFileAge;
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            boolean orphaned;
+            if (isContentFile(file)) {
+                orphaned = !exists(db, "SELECT 1 FROM attachment_content WHERE hash = ?",
+                        name.substring(CONTENT_FILE_PREFIX.length()));
+            } else if (name.startsWith(TEMP_FILE_PREFIX)) {
+                orphaned = file.lastModified() < maxTempFileTime;
+            } else {
+                orphaned = !exists(db, "SELECT 1 FROM attachments WHERE id = ? AND " +
+                        "content_hash IS NULL", name);
+            }
+
+            if (orphaned) {
+                if (file.delete()) {
+                    deleted++;
+                } else {
+                    Log.w(K9.LOG_TAG, "Unable to delete orphaned attachment file " + file);
+                }
+            }
+        }
+
+        return deleted;
+    }
+
+    private static boolean exists(SQLiteDatabase db, String sql, String arg) {
+        Cursor cursor = db.rawQuery(sql, new String[] { arg });
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static File getContentFile(File attachmentDirectory, String contentHash) {
+        return new File(attachmentDirectory, CONTENT_FILE_PREFIX + contentHash);
+    }
+}
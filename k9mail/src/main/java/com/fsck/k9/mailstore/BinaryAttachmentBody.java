@@ -4,13 +4,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
-import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.Base64EncoderOutputStream;
+import com.fsck.k9.mail.filter.FileChannelCopier;
+import com.fsck.k9.mail.filter.QuotedPrintableEncoderOutputStream;
 
 /**
  * Superclass for attachments that contain binary data.
@@ -28,15 +28,16 @@ abstract class BinaryAttachmentBody implements Body {
         try {
             boolean closeStream = false;
             if (MimeUtil.isBase64Encoding(mEncoding)) {
-                out = new Base64OutputStream(out);
+                out = new Base64EncoderOutputStream(out);
                 closeStream = true;
             } else if (MimeUtil.isQuotedPrintableEncoded(mEncoding)){
-                out = new QuotedPrintableOutputStream(out, false);
+                out = new QuotedPrintableEncoderOutputStream(out);
                 closeStream = true;
             }
 
             try {
-                IOUtils.copy(in, out);
+                // Unencoded attachments written to a file are copied by the file channels
+                FileChannelCopier.copy(in, out);
             } finally {
                 if (closeStream) {
                     out.close();
@@ -0,0 +1,74 @@
+package com.fsck.k9.mailstore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A small cache of the HTML created from plain text messages for display.
+ *
+ * <p>
+ * Plain text messages are stored without an HTML version (see
+ * {@link ViewableContainer#html}). The HTML is created when the message is displayed. The same
+ * message is often loaded several times in a row (message view, reply, forward), so the most
+ * recently used conversions are kept. Entries are keyed by the text itself, so a changed message
+ * never gets stale HTML.
+ * </p>
+ *
+ * <p>
+ * The cache is bounded by the total number of characters of text and HTML it holds. Least
+ * recently used entries are evicted first.
+ * </p>
+ */
+class DisplayHtmlCache {
+    static final int DEFAULT_MAX_CHARS = 512 * 1024;
+
+    private static final DisplayHtmlCache sInstance = new DisplayHtmlCache(DEFAULT_MAX_CHARS);
+
+    static DisplayHtmlCache getInstance() {
+        return sInstance;
+    }
+
+
+    private final int mMaxChars;
+    private final LinkedHashMap<String, String> mEntries =
+            new LinkedHashMap<String, String>(16, 0.75f, true);
+    private int mChars;
+
+
+    DisplayHtmlCache(int maxChars) {
+        mMaxChars = maxChars;
+    }
+
+    /**
+     * @return The cached HTML for {@code text}, {@code null} if there is none.
+     */
+    synchronized String get(String text) {
+        return mEntries.get(text);
+    }
+
+    synchronized void put(String text, String html) {
+        int size = text.length() + html.length();
+        if (size > mMaxChars) {
+            return;
+        }
+
+        String oldHtml = mEntries.put(text, html);
+        if (oldHtml != null) {
+            mChars -= text.length() + oldHtml.length();
+        }
+        mChars += size;
+
+        Iterator<Map.Entry<String, String>> iterator = mEntries.entrySet().iterator();
+        while (mChars > mMaxChars && iterator.hasNext()) {
+            Map.Entry<String, String> eldest = iterator.next();
+            mChars -= eldest.getKey().length() + eldest.getValue().length();
+            iterator.remove();
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+}
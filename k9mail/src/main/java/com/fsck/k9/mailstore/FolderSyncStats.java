@@ -0,0 +1,162 @@
+package com.fsck.k9.mailstore;
+
+
+/**
+ * What synchronizing a folder has cost so far and how often the folder changes.
+ *
+ * <p>
+ * The statistics are stored with the folder and updated after every successful poll by
+ * {@link LocalFolder#recordSync(long, long, int, boolean)}. They are used to poll folders
+ * that rarely change less often, see {@link #getPollInterval(long)}.
+ * </p>
+ */
+public final class FolderSyncStats {
+    public static final FolderSyncStats EMPTY = new FolderSyncStats(0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * Number of polls in a row without changes before the poll interval is increased.
+     */
+    static final int QUIET_SYNCS_BEFORE_BACKOFF = 3;
+
+    /**
+     * The poll interval of a quiet folder is at most {@code 2^MAX_BACKOFF_SHIFT} times the
+     * account's poll interval.
+     */
+    static final int MAX_BACKOFF_SHIFT = 4;
+
+    /**
+     * Weight of the latest poll in the running averages.
+     */
+    private static final double AVERAGE_WEIGHT = 0.25;
+
+    private static final double MILLIS_PER_HOUR = 60 * 60 * 1000.0;
+
+
+    private final int mSyncCount;
+    private final long mLastSyncDuration;
+    private final long mAverageSyncDuration;
+    private final long mLastSyncBytes;
+    private final double mNewMessageRate;
+    private final long mLastChange;
+    private final int mQuietSyncs;
+
+
+    FolderSyncStats(int syncCount, long lastSyncDuration, long averageSyncDuration,
+            long lastSyncBytes, double newMessageRate, long lastChange, int quietSyncs) {
+        mSyncCount = syncCount;
+        mLastSyncDuration = lastSyncDuration;
+        mAverageSyncDuration = averageSyncDuration;
+        mLastSyncBytes = lastSyncBytes;
+        mNewMessageRate = newMessageRate;
+        mLastChange = lastChange;
+        mQuietSyncs = quietSyncs;
+    }
+
+    /**
+     * Returns the statistics including one more poll.
+     *
+     * @param previousSync
+     *         Time of the previous poll. {@code 0} if the folder has never been polled.
+     * @param now
+     *         Time the poll finished.
+     * @param duration
+     *         How long the poll took, in milliseconds.
+     * @param bytes
+     *         Size of the messages downloaded during the poll.
+     * @param newMessages
+     *         Number of new messages.
+     * @param changed
+     *         {@code true} if messages were added to or removed from the folder.
+     */
+    public FolderSyncStats update(long previousSync, long now, long duration, long bytes,
+            int newMessages, boolean changed) {
+        long averageSyncDuration = (mSyncCount == 0) ? duration :
+                Math.round(mAverageSyncDuration + AVERAGE_WEIGHT * (duration - mAverageSyncDuration));
+
+        double newMessageRate = mNewMessageRate;
+        if (previousSync > 0 && now > previousSync) {
+            double rate = newMessages / ((now - previousSync) / MILLIS_PER_HOUR);
+            newMessageRate = (mSyncCount == 0) ? rate :
+                    mNewMessageRate + AVERAGE_WEIGHT * (rate - mNewMessageRate);
+        }
+
+        return new FolderSyncStats(mSyncCount + 1, duration, averageSyncDuration, bytes,
+                newMessageRate, changed ? now : mLastChange, changed ? 0 : mQuietSyncs + 1);
+    }
+
+    /**
+     * Returns how long to wait between two polls of the folder.
+     *
+     * <p>
+     * A folder is polled every {@code accountInterval} as long as it changes. Once it hasn't
+     * changed for {@link #QUIET_SYNCS_BEFORE_BACKOFF} polls the interval is doubled with every
+     * further poll without changes, up to {@code 2^MAX_BACKOFF_SHIFT} times the account interval.
+     * The first change resets the interval.
+     * </p>
+     */
+    public long getPollInterval(long accountInterval) {
+        if (mQuietSyncs < QUIET_SYNCS_BEFORE_BACKOFF) {
+            return accountInterval;
+        }
+
+        int shift = Math.min(mQuietSyncs - QUIET_SYNCS_BEFORE_BACKOFF + 1, MAX_BACKOFF_SHIFT);
+        return accountInterval << shift;
+    }
+
+    public int getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * Duration of the last poll, in milliseconds.
+     */
+    public long getLastSyncDuration() {
+        return mLastSyncDuration;
+    }
+
+    /**
+     * Running average of the poll duration, in milliseconds.
+     */
+    public long getAverageSyncDuration() {
+        return mAverageSyncDuration;
+    }
+
+    /**
+     * Size of the messages downloaded during the last poll.
+     */
+    public long getLastSyncBytes() {
+        return mLastSyncBytes;
+    }
+
+    /**
+     * Running average of the number of new messages per hour.
+     */
+    public double getNewMessageRate() {
+        return mNewMessageRate;
+    }
+
+    /**
+     * Time of the last poll that found changes. {@code 0} if none did.
+     */
+    public long getLastChange() {
+        return mLastChange;
+    }
+
+    /**
+     * Number of polls in a row that didn't find any changes.
+     */
+    public int getQuietSyncs() {
+        return mQuietSyncs;
+    }
+
+    @Override
+    public String toString() {
+        return "FolderSyncStats{syncCount=" + mSyncCount +
+                ", lastSyncDuration=" + mLastSyncDuration +
+                ", averageSyncDuration=" + mAverageSyncDuration +
+                ", lastSyncBytes=" + mLastSyncBytes +
+                ", newMessageRate=" + mNewMessageRate +
+                ", lastChange=" + mLastChange +
+                ", quietSyncs=" + mQuietSyncs + "}";
+    }
+}
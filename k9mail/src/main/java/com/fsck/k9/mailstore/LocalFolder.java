@@ -4,7 +4,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -35,6 +38,7 @@ import com.fsck.k9.Account.MessageFormat;
 import com.fsck.k9.activity.Search;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.helper.HtmlConverter;
+import com.fsck.k9.helper.HtmlSanitizer;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Body;
@@ -60,7 +64,12 @@ import com.fsck.k9.provider.AttachmentProvider;
 public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
     private static final long serialVersionUID = -1973296520918624767L;
-    
+
+    private static final String VISIBLE_IN_FOLDER =
+            "(empty IS NULL OR empty != 1) AND deleted = 0 AND folder_id = ?";
+    private static final String DELETED_IN_FOLDER =
+            "(empty IS NULL OR empty != 1) AND deleted = 1 AND folder_id = ?";
+
     private final LocalStore localStore;
 
     private String mName = null;
@@ -74,6 +83,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
     private boolean mInTopGroup = false;
     private String mPushState = null;
     private boolean mIntegrate = false;
+    private FolderSyncStats mSyncStats = FolderSyncStats.EMPTY;
     // mLastUid is used during syncs. It holds the highest UID within the local folder so we
     // know whether or not an unread message added to the local folder is actually "new" or not.
     private Integer mLastUid = null;
@@ -186,6 +196,14 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         mPushClass = Folder.FolderClass.valueOf((pushClass == null) ? noClass : pushClass);
         String syncClass = cursor.getString(LocalStore.FOLDER_SYNC_CLASS_INDEX);
         mSyncClass = Folder.FolderClass.valueOf((syncClass == null) ? noClass : syncClass);
+        mSyncStats = new FolderSyncStats(
+                cursor.getInt(LocalStore.FOLDER_SYNC_COUNT_INDEX),
+                cursor.getLong(LocalStore.FOLDER_LAST_SYNC_DURATION_INDEX),
+                cursor.getLong(LocalStore.FOLDER_AVERAGE_SYNC_DURATION_INDEX),
+                cursor.getLong(LocalStore.FOLDER_LAST_SYNC_BYTES_INDEX),
+                cursor.getDouble(LocalStore.FOLDER_NEW_MESSAGE_RATE_INDEX),
+                cursor.getLong(LocalStore.FOLDER_LAST_CHANGE_INDEX),
+                cursor.getInt(LocalStore.FOLDER_QUIET_SYNCS_INDEX));
     }
 
     @Override
@@ -260,66 +278,28 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
     @Override
     public int getMessageCount() throws MessagingException {
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    try {
-                        open(OPEN_MODE_RW);
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
-                    }
-                    Cursor cursor = null;
-                    try {
-                        cursor = db.rawQuery("SELECT COUNT(id) FROM messages WHERE (empty IS NULL OR empty != 1) AND deleted = 0 and folder_id = ?",
-                                             new String[] {
-                                                 Long.toString(mFolderId)
-                                             });
-                        cursor.moveToFirst();
-                        return cursor.getInt(0);   //messagecount
-                    } finally {
-                        Utility.closeQuietly(cursor);
-                    }
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return getFolderCount("message_count");
     }
 
     @Override
     public int getUnreadMessageCount() throws MessagingException {
-        if (mFolderId == -1) {
-            open(OPEN_MODE_RW);
-        }
-
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int unreadMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND read=0",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
-
-                    try {
-                        if (cursor.moveToFirst()) {
-                            unreadMessageCount = cursor.getInt(0);
-                        }
-                    } finally {
-                        cursor.close();
-                    }
-
-                    return unreadMessageCount;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return getFolderCount("unread_count");
     }
 
     @Override
     public int getFlaggedMessageCount() throws MessagingException {
+        return getFolderCount("flagged_count");
+    }
+
+    /**
+     * Read one of the message counters of this folder.
+     *
+     * <p>
+     * The counters are maintained by triggers on the {@code messages} table (see
+     * {@link StoreSchemaDefinition}), so this doesn't need to count the messages.
+     * </p>
+     */
+    private int getFolderCount(final String column) throws MessagingException {
         if (mFolderId == -1) {
             open(OPEN_MODE_RW);
         }
@@ -328,20 +308,19 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             return this.localStore.database.execute(false, new DbCallback<Integer>() {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int flaggedMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND flagged = 1",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
+                    int count = 0;
+                    Cursor cursor = db.query("folders", new String[] { "IFNULL(" + column + ", 0)" },
+                            "id = ?", new String[] { Long.toString(mFolderId) }, null, null, null);
 
                     try {
                         if (cursor.moveToFirst()) {
-                            flaggedMessageCount = cursor.getInt(0);
+                            count = cursor.getInt(0);
                         }
                     } finally {
                         cursor.close();
                     }
 
-                    return flaggedMessageCount;
+                    return count;
                 }
             });
         } catch (WrappedException e) {
@@ -371,6 +350,44 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         updateFolderColumn("last_pushed", lastChecked);
     }
 
+    public FolderSyncStats getSyncStats() throws MessagingException {
+        open(OPEN_MODE_RW);
+        return mSyncStats;
+    }
+
+    /**
+     * Add a successful poll to the folder's {@link FolderSyncStats}.
+     *
+     * <p>
+     * Must be called before {@link #setLastChecked(long)} is updated for the poll, because the
+     * time since the previous poll is used to compute the new message rate.
+     * </p>
+     */
+    public void recordSync(final long duration, final long bytes, final int newMessages,
+            final boolean changed) throws MessagingException {
+        open(OPEN_MODE_RW);
+        final FolderSyncStats stats = mSyncStats.update(getLastChecked(),
+                System.currentTimeMillis(), duration, bytes, newMessages, changed);
+        try {
+            this.localStore.database.execute(false, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                    db.execSQL("UPDATE folders SET sync_count = ?, last_sync_duration = ?, " +
+                            "average_sync_duration = ?, last_sync_bytes = ?, new_message_rate = ?, " +
+                            "last_change = ?, quiet_syncs = ? WHERE id = ?", new Object[] {
+                                stats.getSyncCount(), stats.getLastSyncDuration(),
+                                stats.getAverageSyncDuration(), stats.getLastSyncBytes(),
+                                stats.getNewMessageRate(), stats.getLastChange(),
+                                stats.getQuietSyncs(), mFolderId });
+                    return null;
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+        mSyncStats = stats;
+    }
+
     public int getVisibleLimit() throws MessagingException {
         open(OPEN_MODE_RW);
         return mVisibleLimit;
@@ -625,17 +642,31 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                 MimeMultipart mp = new MimeMultipart();
                                 mp.setSubType("mixed");
                                 try {
-                                    cursor = db.rawQuery("SELECT html_content, text_content, mime_type FROM messages "
+                                    cursor = db.rawQuery("SELECT html_content, text_content, mime_type, "
+                                                         + "html_sanitizer_version, html_sanitized FROM messages "
                                                          + "WHERE id = ?",
                                                          new String[] { Long.toString(localMessage.getId()) });
                                     cursor.moveToNext();
                                     String htmlContent = cursor.getString(0);
                                     String textContent = cursor.getString(1);
                                     String mimeType = cursor.getString(2);
+                                    String sanitizedHtml = (cursor.getInt(3) == HtmlSanitizer.VERSION) ?
+                                            cursor.getString(4) : null;
+                                    localMessage.setSanitizedHtml(htmlContent, sanitizedHtml);
                                     if (mimeType != null && mimeType.toLowerCase(Locale.US).startsWith("multipart/")) {
                                         // If this is a multipart message, preserve both text
                                         // and html parts, as well as the subtype.
                                         mp.setSubType(mimeType.toLowerCase(Locale.US).replaceFirst("^multipart/", ""));
+                                        if (textContent != null && htmlContent == null &&
+                                                getAccount().getMessageFormat() != MessageFormat.TEXT) {
+                                            // Plain text messages are stored without an HTML
+                                            // version (see ViewableContainer#html). Create it so
+                                            // the message gets the same text/html alternative
+                                            // it had when both versions were stored. Otherwise
+                                            // replies would switch to quoting plain text.
+                                            htmlContent = LocalTextBody.textToDisplayHtml(textContent);
+                                        }
+
                                         if (textContent != null) {
                                             LocalTextBody body = new LocalTextBody(textContent, htmlContent);
                                             MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
@@ -955,15 +986,15 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 public List<LocalMessage> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
                         open(OPEN_MODE_RW);
+                        // Deleted messages are read after the others, so both can be read in
+                        // date order from the index
+                        String[] selections = (includeDeleted) ?
+                                new String[] { VISIBLE_IN_FOLDER, DELETED_IN_FOLDER } :
+                                new String[] { VISIBLE_IN_FOLDER };
                         return LocalFolder.this.localStore.getMessages(
                                    listener,
                                    LocalFolder.this,
-                                   "SELECT " + LocalStore.GET_MESSAGES_COLS +
-                                   "FROM messages " +
-                                   "LEFT JOIN threads ON (threads.message_id = messages.id) " +
-                                   "WHERE (empty IS NULL OR empty != 1) AND " +
-                                   (includeDeleted ? "" : "deleted = 0 AND ") +
-                                   "folder_id = ? ORDER BY date DESC",
+                                   selections,
                                    new String[] { Long.toString(mFolderId) }
                                );
                     } catch (MessagingException e) {
@@ -1017,6 +1048,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
                         lDestFolder.open(OPEN_MODE_RW);
+                        ThreadLookup threadLookup = lDestFolder.createThreadLookup(db, msgs);
                         for (Message message : msgs) {
                             LocalMessage lMessage = (LocalMessage)message;
 
@@ -1033,7 +1065,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                             uidMap.put(oldUID, newUid);
 
                             // Message threading in the target folder
-                            ThreadInfo threadInfo = lDestFolder.doMessageThreading(db, message);
+                            ThreadInfo threadInfo =
+                                    lDestFolder.doMessageThreading(db, threadLookup, message);
 
                             /*
                              * "Move" the message into the new folder
@@ -1110,6 +1143,9 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                             cv.put("message_id", newId);
                             db.update("threads", cv, "id = ?",
                                     new String[] { Long.toString(lMessage.getThreadId()) });
+
+                            // The message and its thread entry are now part of the target folder
+                            threadLookup.invalidate(messageId);
                         }
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
@@ -1128,24 +1164,25 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
     }
 
     /**
-     * Convenience transaction wrapper for storing a message and set it as fully downloaded. Implemented mainly to speed up DB transaction commit.
+     * Store messages and mark them as fully downloaded, all in one transaction.
      *
-     * @param message Message to store. Never <code>null</code>.
-     * @param runnable What to do before setting {@link Flag#X_DOWNLOADED_FULL}. Never <code>null</code>.
-     * @return The local version of the message. Never <code>null</code>.
+     * @param messages Messages to store. Never <code>null</code>.
+     * @return The local versions of the messages, in the same order. Never <code>null</code>.
      * @throws MessagingException
      */
-    public LocalMessage storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
-        return this.localStore.database.execute(true, new DbCallback<LocalMessage>() {
+    public List<LocalMessage> storeSmallMessages(final List<? extends Message> messages) throws MessagingException {
+        return this.localStore.database.execute(true, new DbCallback<List<LocalMessage>>() {
             @Override
-            public LocalMessage doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+            public List<LocalMessage> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                 try {
-                    appendMessages(Collections.singletonList(message));
-                    final String uid = message.getUid();
-                    final LocalMessage result = getMessage(uid);
-                    runnable.run();
-                    // Set a flag indicating this message has now be fully downloaded
-                    result.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                    appendMessages(messages);
+                    List<LocalMessage> result = new ArrayList<LocalMessage>(messages.size());
+                    for (Message message : messages) {
+                        LocalMessage localMessage = getMessage(message.getUid());
+                        // Set a flag indicating this message has now be fully downloaded
+                        localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                        result.add(localMessage);
+                    }
                     return result;
                 } catch (MessagingException e) {
                     throw new WrappedException(e);
@@ -1190,35 +1227,6 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
-    private ThreadInfo getThreadInfo(SQLiteDatabase db, String messageId, boolean onlyEmpty) {
-        String sql = "SELECT t.id, t.message_id, t.root, t.parent " +
-                "FROM messages m " +
-                "LEFT JOIN threads t ON (t.message_id = m.id) " +
-                "WHERE m.folder_id = ? AND m.message_id = ? " +
-                ((onlyEmpty) ? "AND m.empty = 1 " : "") +
-                "ORDER BY m.id LIMIT 1";
-        String[] selectionArgs = { Long.toString(mFolderId), messageId };
-        Cursor cursor = db.rawQuery(sql, selectionArgs);
-
-        if (cursor != null) {
-            try {
-                if (cursor.getCount() > 0) {
-                    cursor.moveToFirst();
-                    long threadId = cursor.getLong(0);
-                    long msgId = cursor.getLong(1);
-                    long rootId = (cursor.isNull(2)) ? -1 : cursor.getLong(2);
-                    long parentId = (cursor.isNull(3)) ? -1 : cursor.getLong(3);
-
-                    return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
-                }
-            } finally {
-                cursor.close();
-            }
-        }
-
-        return null;
-    }
-
     /**
      * The method differs slightly from the contract; If an incoming message already has a uid
      * assigned and it matches the uid of an existing message then this message will replace
@@ -1241,6 +1249,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
+                        ThreadLookup threadLookup = createThreadLookup(db, messages);
                         for (Message message : messages) {
                             long oldMessageId = -1;
                             String uid = message.getUid();
@@ -1279,7 +1288,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
                             if (oldMessageId == -1) {
                                 // This is a new message. Do the message threading.
-                                ThreadInfo threadInfo = doMessageThreading(db, message);
+                                ThreadInfo threadInfo = doMessageThreading(db, threadLookup, message);
                                 oldMessageId = threadInfo.msgId;
                                 rootId = threadInfo.rootId;
                                 parentId = threadInfo.parentId;
@@ -1290,6 +1299,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                             List<Part> attachments;
                             String text;
                             String html;
+                            String sanitizedHtml = null;
                             if (isDraft) {
                                 // Don't modify the text/plain or text/html part of our own
                                 // draft messages because this will cause the values stored in
@@ -1306,7 +1316,9 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
                                 attachments = container.attachments;
                                 text = container.text;
-                                html = HtmlConverter.convertEmoji2Img(container.html);
+                                html = (container.html == null) ?
+                                        null : HtmlConverter.convertEmoji2Img(container.html);
+                                sanitizedHtml = sanitizeHtml(html);
                             }
 
                             String preview = Message.calculateContentPreview(text);
@@ -1328,8 +1340,10 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                 cv.put("to_list", Address.pack(message.getRecipients(RecipientType.TO)));
                                 cv.put("cc_list", Address.pack(message.getRecipients(RecipientType.CC)));
                                 cv.put("bcc_list", Address.pack(message.getRecipients(RecipientType.BCC)));
-                                cv.put("html_content", html.length() > 0 ? html : null);
+                                cv.put("html_content", html != null && html.length() > 0 ? html : null);
                                 cv.put("text_content", text.length() > 0 ? text : null);
+                                cv.put("html_sanitized", sanitizedHtml);
+                                cv.put("html_sanitizer_version", (sanitizedHtml != null) ? HtmlSanitizer.VERSION : 0);
                                 cv.put("preview", preview.length() > 0 ? preview : null);
                                 cv.put("reply_to_list", Address.pack(message.getReplyTo()));
                                 cv.put("attachment_count", attachments.size());
@@ -1359,10 +1373,15 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                         cv.put("parent", parentId);
                                     }
 
-                                    db.insert("threads", null, cv);
+                                    long threadId = db.insert("threads", null, cv);
+                                    threadLookup.addMessage(messageId, threadId, msgId,
+                                            (rootId != -1) ? rootId : threadId, parentId, false);
                                 } else {
                                     db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
                                     msgId = oldMessageId;
+
+                                    // This might have replaced an empty placeholder message
+                                    threadLookup.invalidate(messageId);
                                 }
 
                                 for (Part attachment : attachments) {
@@ -1388,6 +1407,26 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
+    /**
+     * Create the sanitized copy of the HTML version of a received message.
+     *
+     * <p>
+     * The HTML is sanitized here once, instead of every time the message is displayed. The copy
+     * is stored in {@code html_sanitized} next to the original HTML, which is still used for
+     * replies and forwards. The {@code html_sanitizer_version} column records the
+     * {@link HtmlSanitizer#VERSION} used, so a newer sanitizer starts over from the original.
+     * </p>
+     *
+     * @return The sanitized HTML, or {@code null} if there is none.
+     */
+    private static String sanitizeHtml(String html) {
+        if (html == null || html.length() == 0) {
+            return null;
+        }
+
+        return HtmlSanitizer.sanitize(html);
+    }
+
     /**
      * Update the given message in the LocalStore without first deleting the existing
      * message (contrast with appendMessages). This method is used to store changes
@@ -1407,12 +1446,31 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     try {
                         message.buildMimeRepresentation();
 
-                        ViewableContainer container =
-                                LocalMessageExtractor.extractTextAndAttachments(LocalFolder.this.localStore.context, message);
-
-                        List<Part> attachments = container.attachments;
-                        String text = container.text;
-                        String html = HtmlConverter.convertEmoji2Img(container.html);
+                        boolean isDraft = (message.getHeader(K9.IDENTITY_HEADER) != null);
+
+                        List<Part> attachments;
+                        String text;
+                        String html;
+                        String sanitizedHtml = null;
+                        if (isDraft) {
+                            // Don't modify the text/plain or text/html part of our own draft
+                            // messages, see appendMessages()
+                            ViewableContainer container =
+                                    LocalMessageExtractor.extractPartsFromDraft(message);
+
+                            text = container.text;
+                            html = container.html;
+                            attachments = container.attachments;
+                        } else {
+                            ViewableContainer container =
+                                    LocalMessageExtractor.extractTextAndAttachments(LocalFolder.this.localStore.context, message);
+
+                            attachments = container.attachments;
+                            text = container.text;
+                            html = (container.html == null) ?
+                                    null : HtmlConverter.convertEmoji2Img(container.html);
+                            sanitizedHtml = sanitizeHtml(html);
+                        }
 
                         String preview = Message.calculateContentPreview(text);
 
@@ -1421,7 +1479,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                        + "uid = ?, subject = ?, sender_list = ?, date = ?, flags = ?, "
                                        + "folder_id = ?, to_list = ?, cc_list = ?, bcc_list = ?, "
                                        + "html_content = ?, text_content = ?, preview = ?, reply_to_list = ?, "
-                                       + "attachment_count = ?, read = ?, flagged = ?, answered = ?, forwarded = ? "
+                                       + "attachment_count = ?, read = ?, flagged = ?, answered = ?, forwarded = ?, "
+                                       + "html_sanitizer_version = ?, html_sanitized = ? "
                                        + "WHERE id = ?",
                                        new Object[] {
                                            message.getUid(),
@@ -1438,7 +1497,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                                         .getRecipients(RecipientType.CC)),
                                            Address.pack(message
                                                         .getRecipients(RecipientType.BCC)),
-                                           html.length() > 0 ? html : null,
+                                           html != null && html.length() > 0 ? html : null,
                                            text.length() > 0 ? text : null,
                                            preview.length() > 0 ? preview : null,
                                            Address.pack(message.getReplyTo()),
@@ -1447,6 +1506,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                            message.isSet(Flag.FLAGGED) ? 1 : 0,
                                            message.isSet(Flag.ANSWERED) ? 1 : 0,
                                            message.isSet(Flag.FORWARDED) ? 1 : 0,
+                                           (sanitizedHtml != null) ? HtmlSanitizer.VERSION : 0,
+                                           sanitizedHtml,
                                            message.getId()
                                        });
 
@@ -1539,28 +1600,55 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                         Uri contentUri = null;
                         int size = -1;
                         File tempAttachmentFile = null;
+                        String contentHash = null;
 
                         if ((!saveAsNew) && (attachment instanceof LocalAttachmentBodyPart)) {
                             attachmentId = ((LocalAttachmentBodyPart) attachment).getAttachmentId();
                         }
+                        final boolean existingAttachment = (attachmentId != -1);
 
                         final File attachmentDirectory = StorageManager.getInstance(LocalFolder.this.localStore.context).getAttachmentDirectory(LocalFolder.this.localStore.uUid, LocalFolder.this.localStore.database.getStorageProviderId());
                         if (attachment.getBody() != null) {
                             Body body = attachment.getBody();
                             if (body instanceof LocalAttachmentBody) {
                                 contentUri = ((LocalAttachmentBody) body).getContentUri();
+
+                                if (saveAsNew && attachment instanceof LocalAttachmentBodyPart) {
+                                    // Share the stored content of the attachment we copy
+                                    long sourceAttachmentId =
+                                            ((LocalAttachmentBodyPart) attachment).getAttachmentId();
+                                    Cursor cursor = db.query("attachments",
+                                            new String[] { "content_hash", "size" }, "id = ?",
+                                            new String[] { Long.toString(sourceAttachmentId) },
+                                            null, null, null);
+                                    try {
+                                        if (cursor.moveToFirst() && !cursor.isNull(0) &&
+                                                AttachmentContentStore.contains(attachmentDirectory,
+                                                        cursor.getString(0))) {
+                                            contentHash = cursor.getString(0);
+                                            size = cursor.getInt(1);
+                                        }
+                                    } finally {
+                                        cursor.close();
+                                    }
+                                }
                             } else if (body instanceof Message) {
                                 // It's a message, so use Message.writeTo() to output the
                                 // message including all children.
                                 Message message = (Message) body;
-                                tempAttachmentFile = File.createTempFile("att", null, attachmentDirectory);
-                                FileOutputStream out = new FileOutputStream(tempAttachmentFile);
+                                tempAttachmentFile = File.createTempFile(
+                                        AttachmentContentStore.TEMP_FILE_PREFIX, null,
+                                        attachmentDirectory);
+                                MessageDigest digest = AttachmentContentStore.createDigest();
+                                OutputStream out = new DigestOutputStream(
+                                        new FileOutputStream(tempAttachmentFile), digest);
                                 try {
                                     message.writeTo(out);
                                 } finally {
                                     out.close();
                                 }
                                 size = (int) (tempAttachmentFile.length() & 0x7FFFFFFFL);
+                                contentHash = AttachmentContentStore.getContentHash(digest);
                             } else {
                                 /*
                                  * If the attachment has a body we're expected to save it into the local store
@@ -1568,13 +1656,18 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                  */
                                 InputStream in = MimeUtility.decodeBody(attachment.getBody());
                                 try {
-                                    tempAttachmentFile = File.createTempFile("att", null, attachmentDirectory);
-                                    FileOutputStream out = new FileOutputStream(tempAttachmentFile);
+                                    tempAttachmentFile = File.createTempFile(
+                                            AttachmentContentStore.TEMP_FILE_PREFIX, null,
+                                            attachmentDirectory);
+                                    MessageDigest digest = AttachmentContentStore.createDigest();
+                                    OutputStream out = new DigestOutputStream(
+                                            new FileOutputStream(tempAttachmentFile), digest);
                                     try {
                                         size = IOUtils.copy(in, out);
                                     } finally {
                                         out.close();
                                     }
+                                    contentHash = AttachmentContentStore.getContentHash(digest);
                                 } finally {
                                     try { in.close(); } catch (Throwable ignore) {}
                                 }
@@ -1641,43 +1734,78 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                       { Long.toString(attachmentId) });
                         }
 
-                        if (attachmentId != -1 && tempAttachmentFile != null) {
-                            File attachmentFile = new File(attachmentDirectory, Long.toString(attachmentId));
-                            tempAttachmentFile.renameTo(attachmentFile);
+                        if (attachmentId != -1 && contentHash != null) {
                             contentUri = AttachmentProvider.getAttachmentUri(
                                              getAccount(),
                                              attachmentId);
-                            if (MimeUtil.isMessage(attachment.getMimeType())) {
-                                LocalAttachmentMessageBody body = new LocalAttachmentMessageBody(
-                                        contentUri, LocalFolder.this.localStore.context);
-                                MimeMessageHelper.setBody(attachment, body);
-                            } else {
-                                LocalAttachmentBody body = new LocalAttachmentBody(
-                                        contentUri, LocalFolder.this.localStore.context);
-                                MimeMessageHelper.setBody(attachment, body);
-                            }
+
+                            // Reference the content before storing it so it can't be deleted
+                            // as unreferenced in between
                             ContentValues cv = new ContentValues();
-                            cv.put("content_uri", contentUri != null ? contentUri.toString() : null);
+                            cv.put("content_uri", contentUri.toString());
+                            cv.put("content_hash", contentHash);
                             db.update("attachments", cv, "id = ?", new String[]
                                       { Long.toString(attachmentId) });
+
+                            if (tempAttachmentFile != null) {
+                                AttachmentContentStore.store(attachmentDirectory,
+                                        tempAttachmentFile, contentHash);
+
+                                if (MimeUtil.isMessage(attachment.getMimeType())) {
+                                    LocalAttachmentMessageBody body = new LocalAttachmentMessageBody(
+                                            contentUri, LocalFolder.this.localStore.context);
+                                    MimeMessageHelper.setBody(attachment, body);
+                                } else {
+                                    LocalAttachmentBody body = new LocalAttachmentBody(
+                                            contentUri, LocalFolder.this.localStore.context);
+                                    MimeMessageHelper.setBody(attachment, body);
+                                }
+                            }
+
+                            if (existingAttachment) {
+                                // The attachment might have been stored before, either under
+                                // its ID or with different content
+                                File oldAttachmentFile = new File(attachmentDirectory,
+                                        Long.toString(attachmentId));
+                                if (oldAttachmentFile.exists()) {
+                                    oldAttachmentFile.delete();
+                                }
+                                AttachmentContentStore.deleteUnreferencedContent(
+                                        LocalFolder.this.localStore.database, db,
+                                        attachmentDirectory);
+                            }
                         }
 
                         /* The message has attachment with Content-ID */
                         if (contentId != null && contentUri != null) {
                             Cursor cursor = db.query("messages", new String[]
-                                                     { "html_content" }, "id = ?", new String[]
+                                                     { "html_content", "html_sanitized" }, "id = ?", new String[]
                                                      { Long.toString(messageId) }, null, null, null);
                             try {
                                 if (cursor.moveToNext()) {
                                     String htmlContent = cursor.getString(0);
+                                    String sanitizedHtml = cursor.getString(1);
 
                                     if (htmlContent != null) {
+                                        String contentIdUrl = "cid:" + contentId;
                                         String newHtmlContent = htmlContent.replaceAll(
-                                                                    Pattern.quote("cid:" + contentId),
+                                                                    Pattern.quote(contentIdUrl),
                                                                     contentUri.toString());
 
                                         ContentValues cv = new ContentValues();
                                         cv.put("html_content", newHtmlContent);
+                                        if (sanitizedHtml != null) {
+                                            if (sanitizedHtml.contains(contentIdUrl)) {
+                                                cv.put("html_sanitized", sanitizedHtml.replaceAll(
+                                                        Pattern.quote(contentIdUrl),
+                                                        contentUri.toString()));
+                                            } else if (!newHtmlContent.equals(htmlContent)) {
+                                                // The sanitizer changed the URL. Sanitize the
+                                                // new HTML when the message is displayed.
+                                                cv.putNull("html_sanitized");
+                                                cv.put("html_sanitizer_version", 0);
+                                            }
+                                        }
                                         db.update("messages", cv, "id = ?", new String[]
                                                   { Long.toString(messageId) });
                                     }
@@ -1779,11 +1907,10 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         List<? extends Message> messages  = this.localStore.getMessages(
                                   null,
                                   this,
-                                  "SELECT " + LocalStore.GET_MESSAGES_COLS +
-                                  "FROM messages " +
-                                  "LEFT JOIN threads ON (threads.message_id = messages.id) " +
-                                  "WHERE (empty IS NULL OR empty != 1) AND " +
-                                  "(folder_id = ? and date < ?)",
+                                  new String[] {
+                                          VISIBLE_IN_FOLDER + " AND date < ?",
+                                          DELETED_IN_FOLDER + " AND date < ?"
+                                  },
                                   new String[] {
                                           Long.toString(mFolderId), Long.toString(cutoff)
                                   });
@@ -1916,6 +2043,9 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
                     // Delete attachment metadata from the database
                     db.delete("attachments", "message_id = ?", whereArgs);
+
+                    AttachmentContentStore.deleteUnreferencedContent(
+                            LocalFolder.this.localStore.database, db, attachmentDirectory);
                 } finally {
                     Utility.closeQuietly(attachmentsCursor);
                 }
@@ -2030,38 +2160,38 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         });
     }
 
-    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message)
+    /**
+     * Create a {@link ThreadLookup} for this folder that already knows the Message-IDs needed
+     * to thread {@code messages}.
+     */
+    private ThreadLookup createThreadLookup(SQLiteDatabase db, List<? extends Message> messages)
             throws MessagingException {
+        Set<String> messageIds = new HashSet<String>();
+        for (Message message : messages) {
+            messageIds.add(message.getMessageId());
+
+            List<String> references = getReferencedMessageIds(message);
+            if (references != null) {
+                messageIds.addAll(references);
+            }
+        }
+
+        ThreadLookup threadLookup = new ThreadLookup(db, mFolderId);
+        threadLookup.prefetch(messageIds);
+        return threadLookup;
+    }
+
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, ThreadLookup threadLookup,
+            Message message) throws MessagingException {
         long rootId = -1;
         long parentId = -1;
 
         String messageId = message.getMessageId();
 
         // If there's already an empty message in the database, update that
-        ThreadInfo msgThreadInfo = getThreadInfo(db, messageId, true);
-
-        // Get the message IDs from the "References" header line
-        String[] referencesArray = message.getHeader("References");
-        List<String> messageIds = null;
-        if (referencesArray != null && referencesArray.length > 0) {
-            messageIds = Utility.extractMessageIds(referencesArray[0]);
-        }
-
-        // Append the first message ID from the "In-Reply-To" header line
-        String[] inReplyToArray = message.getHeader("In-Reply-To");
-        String inReplyTo;
-        if (inReplyToArray != null && inReplyToArray.length > 0) {
-            inReplyTo = Utility.extractMessageId(inReplyToArray[0]);
-            if (inReplyTo != null) {
-                if (messageIds == null) {
-                    messageIds = new ArrayList<String>(1);
-                    messageIds.add(inReplyTo);
-                } else if (!messageIds.contains(inReplyTo)) {
-                    messageIds.add(inReplyTo);
-                }
-            }
-        }
+        ThreadInfo msgThreadInfo = threadLookup.get(messageId, true);
 
+        List<String> messageIds = getReferencedMessageIds(message);
         if (messageIds == null) {
             // This is not a reply, nothing to do for us.
             return (msgThreadInfo != null) ?
@@ -2069,7 +2199,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
 
         for (String reference : messageIds) {
-            ThreadInfo threadInfo = getThreadInfo(db, reference, false);
+            ThreadInfo threadInfo = threadLookup.get(reference, false);
 
             if (threadInfo == null) {
                 // Create placeholder message in 'messages' table
@@ -2090,10 +2220,12 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     cv.put("parent", parentId);
                 }
 
-                parentId = db.insert("threads", null, cv);
+                long threadId = db.insert("threads", null, cv);
                 if (rootId == -1) {
-                    rootId = parentId;
+                    rootId = threadId;
                 }
+                threadLookup.addMessage(reference, threadId, newMsgId, rootId, parentId, true);
+                parentId = threadId;
             } else {
                 if (rootId != -1 && threadInfo.rootId == -1 && rootId != threadInfo.threadId) {
                     // We found an existing root container that is not
@@ -2110,6 +2242,9 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     cv.put("parent", parentId);
                     db.update("threads", cv, "id = ?",
                             new String[] { Long.toString(threadInfo.threadId) });
+
+                    // The roots of the known thread entries might have changed
+                    threadLookup.clear();
                 } else {
                     rootId = (threadInfo.rootId == -1) ?
                             threadInfo.threadId : threadInfo.rootId;
@@ -2133,6 +2268,37 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
     }
 
+    /**
+     * Returns the Message-IDs from the "References" header followed by the one from the
+     * "In-Reply-To" header, or {@code null} if the message isn't a reply.
+     */
+    private static List<String> getReferencedMessageIds(Message message)
+            throws MessagingException {
+        // Get the message IDs from the "References" header line
+        String[] referencesArray = message.getHeader("References");
+        List<String> messageIds = null;
+        if (referencesArray != null && referencesArray.length > 0) {
+            messageIds = Utility.extractMessageIds(referencesArray[0]);
+        }
+
+        // Append the first message ID from the "In-Reply-To" header line
+        String[] inReplyToArray = message.getHeader("In-Reply-To");
+        String inReplyTo;
+        if (inReplyToArray != null && inReplyToArray.length > 0) {
+            inReplyTo = Utility.extractMessageId(inReplyToArray[0]);
+            if (inReplyTo != null) {
+                if (messageIds == null) {
+                    messageIds = new ArrayList<String>(1);
+                    messageIds.add(inReplyTo);
+                } else if (!messageIds.contains(inReplyTo)) {
+                    messageIds.add(inReplyTo);
+                }
+            }
+        }
+
+        return messageIds;
+    }
+
     public List<Message> extractNewMessages(final List<Message> messages)
             throws MessagingException {
 
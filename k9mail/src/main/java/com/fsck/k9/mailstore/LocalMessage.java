@@ -42,6 +42,9 @@ public class LocalMessage extends MimeMessage {
     private long mThreadId;
     private long mRootId;
 
+    private String mHtmlContent;
+    private String mSanitizedHtml;
+
     private LocalMessage(LocalStore localStore) {
         this.localStore = localStore;
     }
@@ -136,6 +139,25 @@ public class LocalMessage extends MimeMessage {
     }
 
 
+    /**
+     * Returns the sanitized copy of the stored HTML if {@code text}, as returned by
+     * {@link #getTextForDisplay()}, is that HTML and the copy has been made with the current
+     * {@link com.fsck.k9.helper.HtmlSanitizer}. Only valid after the body has been fetched.
+     *
+     * @return The sanitized HTML, or {@code null} if {@code text} has to be sanitized.
+     */
+    public String getSanitizedHtml(String text) {
+        if (mSanitizedHtml == null || text == null || !text.equals(mHtmlContent)) {
+            return null;
+        }
+        return mSanitizedHtml;
+    }
+
+    void setSanitizedHtml(String htmlContent, String sanitizedHtml) {
+        mHtmlContent = htmlContent;
+        mSanitizedHtml = sanitizedHtml;
+    }
+
     /* Custom version of writeTo that updates the MIME message based on localMessage
      * changes.
      */
@@ -384,7 +406,10 @@ public class LocalMessage extends MimeMessage {
                             cv.put("message_id", getMessageId());
                             cv.put("empty", 1);
 
-                            db.replace("messages", null, cv);
+                            // Don't use REPLACE here. It doesn't fire the delete triggers that
+                            // maintain the folder counts.
+                            db.delete("messages", "id = ?", new String[] { Long.toString(mId) });
+                            db.insert("messages", null, cv);
 
                             // Nothing else to do
                             return null;
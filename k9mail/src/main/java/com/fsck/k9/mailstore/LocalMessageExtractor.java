@@ -39,6 +39,11 @@ class LocalMessageExtractor {
      * Extract the viewable textual parts of a message and return the rest as attachments.
      *
      * @param context A {@link android.content.Context} instance that will be used to get localized strings.
+     * <p>
+     * If the message consists of a single plain text part the HTML version isn't created, see
+     * {@link ViewableContainer#html}.
+     * </p>
+     *
      * @return A {@link ViewableContainer} instance containing the textual parts of the message as
      *         plain text and HTML, and a list of message parts considered attachments.
      *
@@ -52,6 +57,12 @@ class LocalMessageExtractor {
             // Collect all viewable parts
             List<Viewable> viewables = MessageExtractor.getViewables(message, attachments);
 
+            Text plainText = getSinglePlainText(viewables);
+            if (plainText != null) {
+                String text = buildText(plainText, false).toString();
+                return new ViewableContainer(text, null, attachments);
+            }
+
             /*
              * Convert the tree of viewable parts into text and HTML
              */
@@ -118,6 +129,29 @@ class LocalMessageExtractor {
         }
     }
 
+    /**
+     * Returns the only viewable part of a message if it's a plain text part.
+     *
+     * @return The plain text part, or {@code null} if there are other viewable parts or the text
+     *         is HTML.
+     */
+    private static Text getSinglePlainText(List<Viewable> viewables) {
+        if (viewables.size() != 1) {
+            return null;
+        }
+
+        Viewable viewable = viewables.get(0);
+        if (viewable instanceof Alternative) {
+            Alternative alternative = (Alternative) viewable;
+            if (!alternative.getHtml().isEmpty() || alternative.getText().size() != 1) {
+                return null;
+            }
+            viewable = alternative.getText().get(0);
+        }
+
+        return (viewable instanceof Text) ? (Text) viewable : null;
+    }
+
     public static ViewableContainer extractPartsFromDraft(Message message)
             throws MessagingException {
 
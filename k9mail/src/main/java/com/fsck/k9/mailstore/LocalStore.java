@@ -8,12 +8,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.Account;
 import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
+import com.fsck.k9.helper.LongSet;
 import com.fsck.k9.helper.UrlEncodingHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Flag;
@@ -78,9 +80,14 @@ public class LocalStore extends Store implements Serializable {
         "folder_id, preview, threads.id, threads.root, deleted, read, flagged, answered, " +
         "forwarded ";
 
+    static final int GET_MESSAGES_DATE_INDEX = 2;
+    static final int GET_MESSAGES_ID_INDEX = 5;
+
     static final String GET_FOLDER_COLS =
         "folders.id, name, visible_limit, last_updated, status, push_state, last_pushed, " +
-        "integrate, top_group, poll_class, push_class, display_class, notify_class";
+        "integrate, top_group, poll_class, push_class, display_class, notify_class, " +
+        "sync_count, last_sync_duration, average_sync_duration, last_sync_bytes, " +
+        "new_message_rate, last_change, quiet_syncs";
 
     static final int FOLDER_ID_INDEX = 0;
     static final int FOLDER_NAME_INDEX = 1;
@@ -95,6 +102,13 @@ public class LocalStore extends Store implements Serializable {
     static final int FOLDER_PUSH_CLASS_INDEX = 10;
     static final int FOLDER_DISPLAY_CLASS_INDEX = 11;
     static final int FOLDER_NOTIFY_CLASS_INDEX = 12;
+    static final int FOLDER_SYNC_COUNT_INDEX = 13;
+    static final int FOLDER_LAST_SYNC_DURATION_INDEX = 14;
+    static final int FOLDER_AVERAGE_SYNC_DURATION_INDEX = 15;
+    static final int FOLDER_LAST_SYNC_BYTES_INDEX = 16;
+    static final int FOLDER_NEW_MESSAGE_RATE_INDEX = 17;
+    static final int FOLDER_LAST_CHANGE_INDEX = 18;
+    static final int FOLDER_QUIET_SYNCS_INDEX = 19;
 
     static final String[] UID_CHECK_PROJECTION = { "uid" };
 
@@ -106,20 +120,23 @@ public class LocalStore extends Store implements Serializable {
     static final int UID_CHECK_BATCH_SIZE = 500;
 
     /**
-     * Maximum number of messages to perform flag updates on at once.
+     * Maximum number of IDs to include in an SQL statement as {@code IN} list. Larger sets of
+     * IDs are written to the temporary table {@link #SELECTED_IDS_TABLE}.
      *
-     * @see #setFlag(List, Flag, boolean)
+     * @see #doIdSetSelection(LongSet, IdSetSelection)
      */
-    private static final int FLAG_UPDATE_BATCH_SIZE = 500;
+    private static final int ID_LIST_MAX_SIZE = 500;
+
+    private static final String SELECTED_IDS_TABLE = "temp.selected_ids";
 
     /**
-     * Maximum number of threads to perform flag updates on at once.
+     * Minimum age of a temporary attachment file before it is considered orphaned.
      *
-     * @see #setFlagForThreads(List, Flag, boolean)
+     * @see #purgeOrphanedAttachments()
      */
-    private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
+    private static final long ORPHANED_TEMP_FILE_AGE = 60 * 60 * 1000;
 
-    public static final int DB_VERSION = 50;
+    public static final int DB_VERSION = 58;
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -168,7 +185,7 @@ public class LocalStore extends Store implements Serializable {
         database.setStorageProviderId(account.getLocalStorageProviderId());
         uUid = account.getUuid();
 
-        database.open();
+        // The database is opened when it is accessed for the first time. See open().
     }
 
     /**
@@ -194,8 +211,8 @@ public class LocalStore extends Store implements Serializable {
             LocalStore store = sLocalStores.get(accountUuid);
 
             if (store == null) {
-                // Creating a LocalStore instance will create or upgrade the database if
-                // necessary. This could take some time.
+                // Creating a LocalStore instance is cheap. The database is created or upgraded
+                // on first access.
                 store = new LocalStore(account, context);
 
                 sLocalStores.put(accountUuid, store);
@@ -222,6 +239,14 @@ public class LocalStore extends Store implements Serializable {
         database.switchProvider(newStorageProviderId);
     }
 
+    /**
+     * Open the database now instead of on first access, creating or upgrading it if necessary.
+     * This can take some time.
+     */
+    public void open() throws UnavailableStorageException {
+        database.open();
+    }
+
     protected Account getAccount() {
         return mAccount;
     }
@@ -260,15 +285,117 @@ public class LocalStore extends Store implements Serializable {
         if (K9.DEBUG)
             Log.i(K9.LOG_TAG, "Before compaction size = " + getSize());
 
+        // A full VACUUM also switches the database to incremental vacuum mode
+        enableIncrementalVacuum();
+
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "After compaction size = " + getSize());
+    }
+
+    public boolean isIncrementalVacuumEnabled() throws MessagingException {
+        return database.execute(false, new DbCallback<Boolean>() {
+            @Override
+            public Boolean doDbWork(final SQLiteDatabase db) throws WrappedException {
+                return StoreMaintenance.isIncrementalVacuumEnabled(db);
+            }
+        });
+    }
+
+    /**
+     * Rebuild the database with {@code auto_vacuum=INCREMENTAL}, so free pages can later be
+     * reclaimed in small steps with {@link #reclaimFreePages(int)}.
+     *
+     * <p>
+     * This runs a full {@code VACUUM}, which can take a long time.
+     * </p>
+     */
+    public void enableIncrementalVacuum() throws MessagingException {
         database.execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
-                db.execSQL("VACUUM");
+                StoreMaintenance.enableIncrementalVacuum(db);
                 return null;
             }
         });
-        if (K9.DEBUG)
-            Log.i(K9.LOG_TAG, "After compaction size = " + getSize());
+    }
+
+    /**
+     * Return up to {@code maxPages} unused database pages to the file system.
+     *
+     * @return The number of unused pages left in the database file.
+     */
+    public int reclaimFreePages(final int maxPages) throws MessagingException {
+        return database.execute(false, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
+                return StoreMaintenance.reclaimFreePages(db, maxPages);
+            }
+        });
+    }
+
+    /**
+     * Update the statistics used by the query planner.
+     */
+    public void analyze() throws MessagingException {
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                StoreMaintenance.analyze(db);
+                return null;
+            }
+        });
+    }
+
+    public List<String> getIndexNames() throws MessagingException {
+        return database.execute(false, new DbCallback<List<String>>() {
+            @Override
+            public List<String> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                return StoreMaintenance.getIndexNames(db);
+            }
+        });
+    }
+
+    /**
+     * Rebuild the index with the given name.
+     *
+     * @see #getIndexNames()
+     */
+    public void reindex(final String indexName) throws MessagingException {
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                StoreMaintenance.reindex(db, indexName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Delete attachment files that are no longer referenced by the database.
+     *
+     * <p>
+     * This runs in a transaction, so {@link LocalFolder} can't reference content again between
+     * finding it unreferenced and deleting its row. The files of unreferenced content are
+     * deleted once the transaction has been committed, so they are looked for as orphans before.
+     * </p>
+     */
+    public void purgeOrphanedAttachments() throws MessagingException {
+        final StorageManager storageManager = StorageManager.getInstance(context);
+        final File attachmentDirectory = storageManager.getAttachmentDirectory(uUid,
+                database.getStorageProviderId());
+
+        int deleted = database.execute(true, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
+                int deleted = AttachmentContentStore.deleteOrphanedFiles(db, attachmentDirectory,
+                        ORPHANED_TEMP_FILE_AGE);
+                AttachmentContentStore.deleteUnreferencedContent(database, db, attachmentDirectory);
+                return deleted;
+            }
+        });
+
+        if (K9.DEBUG && deleted > 0)
+            Log.i(K9.LOG_TAG, "Deleted " + deleted + " orphaned attachment files");
     }
 
 
@@ -419,12 +546,18 @@ public class LocalStore extends Store implements Serializable {
                 if (force) {
                     ContentValues cv = new ContentValues();
                     cv.putNull("content_uri");
+                    cv.putNull("content_hash");
                     db.update("attachments", cv, null, null);
                 }
                 final StorageManager storageManager = StorageManager.getInstance(context);
-                File[] files = storageManager.getAttachmentDirectory(uUid, database.getStorageProviderId()).listFiles();
+                File attachmentDirectory = storageManager.getAttachmentDirectory(uUid, database.getStorageProviderId());
+                File[] files = attachmentDirectory.listFiles();
                 for (File file : files) {
                     if (file.exists()) {
+                        if (!force && AttachmentContentStore.isContentFile(file)) {
+                            // Shared content is deleted once it is no longer referenced
+                            continue;
+                        }
                         if (!force) {
                             Cursor cursor = null;
                             try {
@@ -468,6 +601,7 @@ public class LocalStore extends Store implements Serializable {
                         }
                     }
                 }
+                AttachmentContentStore.deleteUnreferencedContent(database, db, attachmentDirectory);
                 return null;
             }
         });
@@ -544,6 +678,41 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
+    /**
+     * Rewrite the arguments of some pending commands and remove others in a single transaction.
+     *
+     * @param updatedCommands
+     *         Commands (as returned by {@link #getPendingCommands()}) whose arguments have been
+     *         changed.
+     * @param obsoleteCommands
+     *         Commands that should be removed from the queue.
+     *
+     * @throws MessagingException
+     */
+    public void updatePendingCommands(final List<PendingCommand> updatedCommands,
+            final List<PendingCommand> obsoleteCommands) throws MessagingException {
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (PendingCommand command : updatedCommands) {
+                    String[] arguments = new String[command.arguments.length];
+                    for (int i = 0; i < arguments.length; i++) {
+                        arguments[i] = UrlEncodingHelper.encodeUtf8(command.arguments[i]);
+                    }
+                    ContentValues cv = new ContentValues();
+                    cv.put("arguments", Utility.combine(arguments, ','));
+                    db.update("pending_commands", cv, "id = ?",
+                            new String[] { Long.toString(command.mId) });
+                }
+                for (PendingCommand command : obsoleteCommands) {
+                    db.delete("pending_commands", "id = ?",
+                            new String[] { Long.toString(command.mId) });
+                }
+                return null;
+            }
+        });
+    }
+
     public void removePendingCommands() throws MessagingException {
         database.execute(false, new DbCallback<Void>() {
             @Override
@@ -596,67 +765,74 @@ public class LocalStore extends Store implements Serializable {
 
         String[] selectionArgs = queryArgs.toArray(EMPTY_STRING_ARRAY);
 
-        String sqlQuery = "SELECT " + GET_MESSAGES_COLS + "FROM messages " +
-                "LEFT JOIN threads ON (threads.message_id = messages.id) " +
-                "LEFT JOIN folders ON (folders.id = messages.folder_id) WHERE " +
-                "((empty IS NULL OR empty != 1) AND deleted = 0)" +
-                ((!TextUtils.isEmpty(where)) ? " AND (" + where + ")" : "") +
-                " ORDER BY date DESC";
+        String selection = "((empty IS NULL OR empty != 1) AND deleted = 0)" +
+                ((!TextUtils.isEmpty(where)) ? " AND (" + where + ")" : "");
 
         if (K9.DEBUG) {
-            Log.d(K9.LOG_TAG, "Query = " + sqlQuery);
+            Log.d(K9.LOG_TAG, "Query = " + selection);
         }
 
-        return getMessages(retrievalListener, null, sqlQuery, selectionArgs);
+        return getMessages(retrievalListener, null, selection, selectionArgs);
     }
 
     /*
-     * Given a query string, actually do the query for the messages and
-     * call the MessageRetrievalListener for each one
+     * Given a selection, actually do the query for the messages and
+     * call the MessageRetrievalListener for each one.
      */
     List<LocalMessage> getMessages(
         final MessageRetrievalListener listener,
         final LocalFolder folder,
-        final String queryString, final String[] placeHolders
+        final String selection, final String[] selectionArgs
+    ) throws MessagingException {
+        return getMessages(listener, folder, new String[] { selection }, selectionArgs);
+    }
+
+    /*
+     * Read the messages matching each of the selections, one selection after the other.
+     *
+     * The messages of a selection are read newest first in pages, see MessagePager. To let
+     * SQLite read the pages from the msg_folder_list index, a selection should fix folder_id
+     * and deleted.
+     */
+    List<LocalMessage> getMessages(
+        final MessageRetrievalListener listener,
+        final LocalFolder folder,
+        final String[] selections, final String[] selectionArgs
     ) throws MessagingException {
         final List<LocalMessage> messages = new ArrayList<LocalMessage>();
         final int j = database.execute(false, new DbCallback<Integer>() {
             @Override
             public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                Cursor cursor = null;
-                int i = 0;
-                try {
-                    cursor = db.rawQuery(queryString + " LIMIT 10", placeHolders);
-
-                    while (cursor.moveToNext()) {
+                MessagePager pager = new MessagePager(GET_MESSAGES_DATE_INDEX, GET_MESSAGES_ID_INDEX);
+                MessagePager.RowCallback callback = new MessagePager.RowCallback() {
+                    @Override
+                    public void onRow(Cursor cursor) {
                         LocalMessage message = new LocalMessage(LocalStore.this, null, folder);
-                        message.populateFromGetMessageCursor(cursor);
+                        try {
+                            message.populateFromGetMessageCursor(cursor);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
 
                         messages.add(message);
                         if (listener != null) {
-                            listener.messageFinished(message, i, -1);
+                            listener.messageFinished(message, messages.size() - 1, -1);
                         }
-                        i++;
                     }
-                    cursor.close();
-                    cursor = db.rawQuery(queryString + " LIMIT -1 OFFSET 10", placeHolders);
+                };
 
-                    while (cursor.moveToNext()) {
-                        LocalMessage message = new LocalMessage(LocalStore.this, null, folder);
-                        message.populateFromGetMessageCursor(cursor);
-
-                        messages.add(message);
-                        if (listener != null) {
-                            listener.messageFinished(message, i, -1);
-                        }
-                        i++;
+                try {
+                    for (String selection : selections) {
+                        String query = "SELECT " + GET_MESSAGES_COLS + "FROM messages " +
+                                "LEFT JOIN threads ON (threads.message_id = messages.id) " +
+                                "LEFT JOIN folders ON (folders.id = messages.folder_id) " +
+                                "WHERE (" + selection + ")";
+                        pager.read(db, query, selectionArgs, callback);
                     }
                 } catch (Exception e) {
                     Log.d(K9.LOG_TAG, "Got an exception", e);
-                } finally {
-                    Utility.closeQuietly(cursor);
                 }
-                return i;
+                return messages.size();
             }
         });
         if (listener != null) {
@@ -687,7 +863,7 @@ public class LocalStore extends Store implements Serializable {
                 try {
                     cursor = db.query(
                                  "attachments",
-                                 new String[] { "name", "size", "mime_type" },
+                                 new String[] { "name", "size", "mime_type", "content_hash" },
                                  "id = ?",
                                  new String[] { attachmentId },
                                  null,
@@ -703,6 +879,7 @@ public class LocalStore extends Store implements Serializable {
                     attachmentInfo.name = name;
                     attachmentInfo.size = size;
                     attachmentInfo.type = type;
+                    attachmentInfo.contentHash = cursor.getString(3);
                     return attachmentInfo;
                 } finally {
                     Utility.closeQuietly(cursor);
@@ -715,6 +892,7 @@ public class LocalStore extends Store implements Serializable {
         public String name;
         public int size;
         public String type;
+        public String contentHash;
     }
 
     public void createFolders(final List<LocalFolder> foldersToCreate, final int visibleLimit) throws MessagingException {
@@ -797,113 +975,6 @@ public class LocalStore extends Store implements Serializable {
         mContentResolver.notifyChange(uri, null);
     }
 
-    /**
-     * Split database operations with a large set of arguments into multiple SQL statements.
-     *
-     * <p>
-     * At the time of this writing (2012-12-06) SQLite only supports around 1000 arguments. That's
-     * why we have to split SQL statements with a large set of arguments into multiple SQL
-     * statements each working on a subset of the arguments.
-     * </p>
-     *
-     * @param selectionCallback
-     *         Supplies the argument set and the code to query/update the database.
-     * @param batchSize
-     *         The maximum size of the selection set in each SQL statement.
-     *
-     * @throws MessagingException
-     */
-    public void doBatchSetSelection(final BatchSetSelection selectionCallback, final int batchSize)
-            throws MessagingException {
-
-        final List<String> selectionArgs = new ArrayList<String>();
-        int start = 0;
-
-        while (start < selectionCallback.getListSize()) {
-            final StringBuilder selection = new StringBuilder();
-
-            selection.append(" IN (");
-
-            int count = Math.min(selectionCallback.getListSize() - start, batchSize);
-
-            for (int i = start, end = start + count; i < end; i++) {
-                if (i > start) {
-                    selection.append(",?");
-                } else {
-                    selection.append("?");
-                }
-
-                selectionArgs.add(selectionCallback.getListItem(i));
-            }
-
-            selection.append(")");
-
-            try {
-                database.execute(true, new DbCallback<Void>() {
-                    @Override
-                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
-                            UnavailableStorageException {
-
-                        selectionCallback.doDbWork(db, selection.toString(),
-                                selectionArgs.toArray(EMPTY_STRING_ARRAY));
-
-                        return null;
-                    }
-                });
-
-                selectionCallback.postDbWork();
-
-            } catch (WrappedException e) {
-                throw(MessagingException) e.getCause();
-            }
-
-            selectionArgs.clear();
-            start += count;
-        }
-    }
-
-    /**
-     * Defines the behavior of {@link LocalStore#doBatchSetSelection(BatchSetSelection, int)}.
-     */
-    public interface BatchSetSelection {
-        /**
-         * @return The size of the argument list.
-         */
-        int getListSize();
-
-        /**
-         * Get a specific item of the argument list.
-         *
-         * @param index
-         *         The index of the item.
-         *
-         * @return Item at position {@code i} of the argument list.
-         */
-        String getListItem(int index);
-
-        /**
-         * Execute the SQL statement.
-         *
-         * @param db
-         *         Use this {@link SQLiteDatabase} instance for your SQL statement.
-         * @param selectionSet
-         *         A partial selection string containing place holders for the argument list, e.g.
-         *         {@code " IN (?,?,?)"} (starts with a space).
-         * @param selectionArgs
-         *         The current subset of the argument list.
-         * @throws UnavailableStorageException
-         */
-        void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs)
-                throws UnavailableStorageException;
-
-        /**
-         * This will be executed after each invocation of
-         * {@link #doDbWork(SQLiteDatabase, String, String[])} (after the transaction has been
-         * committed).
-         */
-        void postDbWork();
-    }
-
     /**
      * Change the state of a flag for a list of messages.
      *
@@ -912,7 +983,7 @@ public class LocalStore extends Store implements Serializable {
      * statements as possible.
      *
      * @param messageIds
-     *         A list of primary keys in the "messages" table.
+     *         A set of primary keys in the "messages" table.
      * @param flag
      *         The flag to change. This must be a flag with a separate column in the database.
      * @param newState
@@ -920,37 +991,21 @@ public class LocalStore extends Store implements Serializable {
      *
      * @throws MessagingException
      */
-    public void setFlag(final List<Long> messageIds, final Flag flag, final boolean newState)
+    public void setFlag(final LongSet messageIds, final Flag flag, final boolean newState)
             throws MessagingException {
 
         final ContentValues cv = new ContentValues();
         cv.put(getColumnNameForFlag(flag), newState);
 
-        doBatchSetSelection(new BatchSetSelection() {
-
-            @Override
-            public int getListSize() {
-                return messageIds.size();
-            }
-
+        doIdSetSelection(messageIds, new IdSetSelection() {
             @Override
-            public String getListItem(int index) {
-                return Long.toString(messageIds.get(index));
-            }
-
-            @Override
-            public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs)
-                    throws UnavailableStorageException {
-
+            public void doDbWork(SQLiteDatabase db, String selectionSet) {
                 db.update("messages", cv, "(empty IS NULL OR empty != 1) AND id" + selectionSet,
-                        selectionArgs);
+                        null);
             }
+        });
 
-            @Override
-            public void postDbWork() {
-                notifyChange();
-            }
-        }, FLAG_UPDATE_BATCH_SIZE);
+        notifyChange();
     }
 
     /**
@@ -961,7 +1016,7 @@ public class LocalStore extends Store implements Serializable {
      * statements as possible.
      *
      * @param threadRootIds
-     *         A list of root thread IDs.
+     *         A set of root thread IDs.
      * @param flag
      *         The flag to change. This must be a flag with a separate column in the database.
      * @param newState
@@ -969,41 +1024,24 @@ public class LocalStore extends Store implements Serializable {
      *
      * @throws MessagingException
      */
-    public void setFlagForThreads(final List<Long> threadRootIds, Flag flag, final boolean newState)
+    public void setFlagForThreads(final LongSet threadRootIds, Flag flag, final boolean newState)
             throws MessagingException {
 
         final String flagColumn = getColumnNameForFlag(flag);
 
-        doBatchSetSelection(new BatchSetSelection() {
-
-            @Override
-            public int getListSize() {
-                return threadRootIds.size();
-            }
-
-            @Override
-            public String getListItem(int index) {
-                return Long.toString(threadRootIds.get(index));
-            }
-
+        doIdSetSelection(threadRootIds, new IdSetSelection() {
             @Override
-            public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs)
-                    throws UnavailableStorageException {
-
+            public void doDbWork(SQLiteDatabase db, String selectionSet) {
                 db.execSQL("UPDATE messages SET " + flagColumn + " = " + ((newState) ? "1" : "0") +
                         " WHERE id IN (" +
                         "SELECT m.id FROM threads t " +
                         "LEFT JOIN messages m ON (t.message_id = m.id) " +
                         "WHERE (m.empty IS NULL OR m.empty != 1) AND m.deleted = 0 " +
-                        "AND t.root" + selectionSet + ")",
-                        selectionArgs);
+                        "AND t.root" + selectionSet + ")");
             }
+        });
 
-            @Override
-            public void postDbWork() {
-                notifyChange();
-            }
-        }, THREAD_FLAG_UPDATE_BATCH_SIZE);
+        notifyChange();
     }
 
     /**
@@ -1021,27 +1059,14 @@ public class LocalStore extends Store implements Serializable {
      *
      * @throws MessagingException
      */
-    public Map<String, List<String>> getFoldersAndUids(final List<Long> messageIds,
+    public Map<String, List<String>> getFoldersAndUids(final LongSet messageIds,
             final boolean threadedList) throws MessagingException {
 
         final Map<String, List<String>> folderMap = new HashMap<String, List<String>>();
 
-        doBatchSetSelection(new BatchSetSelection() {
-
-            @Override
-            public int getListSize() {
-                return messageIds.size();
-            }
-
-            @Override
-            public String getListItem(int index) {
-                return Long.toString(messageIds.get(index));
-            }
-
+        doIdSetSelection(messageIds, new IdSetSelection() {
             @Override
-            public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs)
-                    throws UnavailableStorageException {
-
+            public void doDbWork(SQLiteDatabase db, String selectionSet) {
                 if (threadedList) {
                     String sql = "SELECT m.uid, f.name " +
                             "FROM threads t " +
@@ -1050,7 +1075,7 @@ public class LocalStore extends Store implements Serializable {
                             "WHERE (m.empty IS NULL OR m.empty != 1) AND m.deleted = 0 " +
                             "AND t.root" + selectionSet;
 
-                    getDataFromCursor(db.rawQuery(sql, selectionArgs));
+                    getDataFromCursor(db.rawQuery(sql, null));
 
                 } else {
                     String sql =
@@ -1059,7 +1084,7 @@ public class LocalStore extends Store implements Serializable {
                             "LEFT JOIN folders f ON (m.folder_id = f.id) " +
                             "WHERE (m.empty IS NULL OR m.empty != 1) AND m.id" + selectionSet;
 
-                    getDataFromCursor(db.rawQuery(sql, selectionArgs));
+                    getDataFromCursor(db.rawQuery(sql, null));
                 }
             }
 
@@ -1081,14 +1106,88 @@ public class LocalStore extends Store implements Serializable {
                     cursor.close();
                 }
             }
+        });
 
-            @Override
-            public void postDbWork() {
-                notifyChange();
+        return folderMap;
+    }
+
+    /**
+     * Execute SQL statements restricted to a set of IDs in a single transaction.
+     *
+     * <p>
+     * Small sets are passed as {@code IN} list of literals. Larger sets are inserted into the
+     * temporary table {@link #SELECTED_IDS_TABLE} that the statements select from. Either way
+     * no string is created per ID and a single statement covers the whole set.
+     * </p>
+     */
+    private void doIdSetSelection(final LongSet ids, final IdSetSelection selectionCallback)
+            throws MessagingException {
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        try {
+            database.execute(true, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                    if (ids.size() <= ID_LIST_MAX_SIZE) {
+                        selectionCallback.doDbWork(db, getIdListSelection(ids));
+                        return null;
+                    }
+
+                    db.execSQL("CREATE TEMP TABLE IF NOT EXISTS selected_ids " +
+                            "(id INTEGER PRIMARY KEY)");
+                    SQLiteStatement insert = db.compileStatement(
+                            "INSERT OR IGNORE INTO " + SELECTED_IDS_TABLE + " (id) VALUES (?)");
+                    try {
+                        for (int i = 0, size = ids.size(); i < size; i++) {
+                            insert.bindLong(1, ids.get(i));
+                            insert.executeInsert();
+                        }
+                    } finally {
+                        insert.close();
+                    }
 
+                    try {
+                        selectionCallback.doDbWork(db,
+                                " IN (SELECT id FROM " + SELECTED_IDS_TABLE + ")");
+                    } finally {
+                        db.execSQL("DELETE FROM " + SELECTED_IDS_TABLE);
+                    }
+                    return null;
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+    }
+
+    private static String getIdListSelection(LongSet ids) {
+        StringBuilder selection = new StringBuilder(" IN (");
+        for (int i = 0, size = ids.size(); i < size; i++) {
+            if (i > 0) {
+                selection.append(',');
             }
-        }, UID_CHECK_BATCH_SIZE);
+            selection.append(ids.get(i));
+        }
+        selection.append(')');
+        return selection.toString();
+    }
 
-        return folderMap;
+    /**
+     * Defines the behavior of {@link LocalStore#doIdSetSelection(LongSet, IdSetSelection)}.
+     */
+    private interface IdSetSelection {
+        /**
+         * Execute the SQL statement.
+         *
+         * @param db
+         *         Use this {@link SQLiteDatabase} instance for your SQL statement.
+         * @param selectionSet
+         *         A partial selection string selecting the IDs, e.g. {@code " IN (1,2,3)"}
+         *         (starts with a space).
+         */
+        void doDbWork(SQLiteDatabase db, String selectionSet);
     }
 }
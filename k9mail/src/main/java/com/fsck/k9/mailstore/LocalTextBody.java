@@ -1,20 +1,41 @@
 package com.fsck.k9.mailstore;
 
+import com.fsck.k9.helper.HtmlConverter;
 import com.fsck.k9.mail.internet.TextBody;
 
 class LocalTextBody extends TextBody {
     /**
      * This is an HTML-ified version of the message for display purposes.
      */
-    private final String mBodyForDisplay;
+    private String mBodyForDisplay;
 
     public LocalTextBody(String body, String bodyForDisplay) {
         super(body);
         this.mBodyForDisplay = bodyForDisplay;
     }
 
+    /**
+     * Returns the HTML version of the message. Plain text messages are stored without one, so
+     * it's created from the text the first time it's needed.
+     */
     public String getBodyForDisplay() {
+        if (mBodyForDisplay == null) {
+            String text = getText();
+            if (text != null) {
+                mBodyForDisplay = textToDisplayHtml(text);
+            }
+        }
         return mBodyForDisplay;
     }
 
+    static String textToDisplayHtml(String text) {
+        DisplayHtmlCache cache = DisplayHtmlCache.getInstance();
+        String html = cache.get(text);
+        if (html == null) {
+            html = HtmlConverter.textToHtmlForDisplay(text);
+            cache.put(text, html);
+        }
+        return html;
+    }
+
 }//LocalTextBody
@@ -1,8 +1,9 @@
 package com.fsck.k9.mailstore;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.annotation.TargetApi;
@@ -79,7 +80,9 @@ public class LockableDatabase {
             try {
                 lockWrite();
                 try {
-                    mDb.close();
+                    if (mDb != null) {
+                        mDb.close();
+                    }
                 } finally {
                     unlockWrite();
                 }
@@ -90,7 +93,8 @@ public class LockableDatabase {
 
         @Override
         public void onMount(final String providerId) {
-            if (!providerId.equals(mStorageProviderId)) {
+            // A database that hasn't been opened yet is opened on first access
+            if (!providerId.equals(mStorageProviderId) || !mOpen) {
                 return;
             }
 
@@ -109,6 +113,12 @@ public class LockableDatabase {
     private String mStorageProviderId;
 
     private SQLiteDatabase mDb;
+
+    /**
+     * {@code true} once {@link #mDb} has been opened and upgraded. Until then {@link #open()} is
+     * called on first access.
+     */
+    private volatile boolean mOpen = false;
     /**
      * Reentrant read lock
      */
@@ -118,11 +128,12 @@ public class LockableDatabase {
      * unlock it 2x to release it)
      */
     private final Lock mWriteLock;
+    private final ReentrantReadWriteLock mLock;
 
     {
-        final ReadWriteLock lock = new ReentrantReadWriteLock(true);
-        mReadLock = lock.readLock();
-        mWriteLock = lock.writeLock();
+        mLock = new ReentrantReadWriteLock(true);
+        mReadLock = mLock.readLock();
+        mWriteLock = mLock.writeLock();
     }
 
     private final StorageListener mStorageListener = new StorageListener();
@@ -137,6 +148,13 @@ public class LockableDatabase {
      */
     private ThreadLocal<Boolean> inTransaction = new ThreadLocal<Boolean>();
 
+    /**
+     * Actions to run once the transaction of the current {@link Thread} has been committed.
+     *
+     * @see #runAfterCommit(Runnable)
+     */
+    private ThreadLocal<List<Runnable>> commitActions = new ThreadLocal<List<Runnable>>();
+
     private SchemaDefinition mSchemaDefinition;
 
     private String uUid;
@@ -153,6 +171,9 @@ public class LockableDatabase {
         this.context = context;
         this.uUid = uUid;
         this.mSchemaDefinition = schemaDefinition;
+
+        // Close the database on unmount even if it's not opened until after the unmount
+        getStorageManager().addListener(mStorageListener);
     }
 
     public void setStorageProviderId(String mStorageProviderId) {
@@ -271,6 +292,11 @@ public class LockableDatabase {
      * @throws UnavailableStorageException
      */
     public <T> T execute(final boolean transactional, final DbCallback<T> callback) throws MessagingException {
+        // The thread holding the write lock is opening the database, e.g. running the upgrade
+        if (!mOpen && !mLock.isWriteLockedByCurrentThread()) {
+            open();
+        }
+
         lockRead();
         final boolean doTransaction = transactional && inTransaction.get() == null;
         try {
@@ -279,12 +305,12 @@ public class LockableDatabase {
                 inTransaction.set(Boolean.TRUE);
                 mDb.beginTransaction();
             }
+            final T result;
             try {
-                final T result = callback.doDbWork(mDb);
+                result = callback.doDbWork(mDb);
                 if (doTransaction) {
                     mDb.setTransactionSuccessful();
                 }
-                return result;
             } finally {
                 if (doTransaction) {
                     final long begin;
@@ -300,14 +326,57 @@ public class LockableDatabase {
                     }
                 }
             }
+
+            if (doTransaction) {
+                runCommitActions();
+            }
+            return result;
         } finally {
             if (doTransaction) {
                 inTransaction.set(null);
+                // Dropped if the transaction has been rolled back
+                commitActions.remove();
             }
             unlockRead();
         }
     }
 
+    /**
+     * Run {@code action} once the transaction of the current thread has been committed, e.g. to
+     * delete files the database no longer refers to. If the transaction is rolled back the action
+     * is dropped. Outside of a transaction the action is run right away.
+     *
+     * <p>
+     * Must be called from within {@link #execute(boolean, DbCallback)}. The action runs while
+     * the database is still locked for reading.
+     * </p>
+     */
+    public void runAfterCommit(Runnable action) {
+        if (inTransaction.get() == null) {
+            action.run();
+            return;
+        }
+
+        List<Runnable> actions = commitActions.get();
+        if (actions == null) {
+            actions = new ArrayList<Runnable>();
+            commitActions.set(actions);
+        }
+        actions.add(action);
+    }
+
+    private void runCommitActions() {
+        List<Runnable> actions = commitActions.get();
+        if (actions == null) {
+            return;
+        }
+
+        commitActions.remove();
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
     /**
      * @param newProviderId
      *            Never <code>null</code>.
@@ -325,7 +394,9 @@ public class LockableDatabase {
             lockWrite(newProviderId);
             try {
                 try {
-                    mDb.close();
+                    if (mDb != null) {
+                        mDb.close();
+                    }
                 } catch (Exception e) {
                     Log.i(K9.LOG_TAG, "Unable to close DB on local store migration", e);
                 }
@@ -356,14 +427,24 @@ public class LockableDatabase {
         }
     }
 
+    /**
+     * Open the database, creating or upgrading it if necessary.
+     *
+     * <p>
+     * There's no need to call this before {@link #execute(boolean, DbCallback)}. It opens the
+     * database on first access. Call this to control when the (possibly lengthy) upgrade happens.
+     * </p>
+     */
     public void open() throws UnavailableStorageException {
         lockWrite();
         try {
+            if (mOpen) {
+                return;
+            }
             openOrCreateDataspace();
         } finally {
             unlockWrite();
         }
-        StorageManager.getInstance(context).addListener(mStorageListener);
     }
 
     /**
@@ -383,9 +464,19 @@ public class LockableDatabase {
                 databaseFile.delete();
                 doOpenOrCreateDb(databaseFile);
             }
+
             if (mDb.getVersion() != mSchemaDefinition.getVersion()) {
-                mSchemaDefinition.doDbUpgrade(mDb);
+                try {
+                    mSchemaDefinition.doDbUpgrade(mDb);
+                } catch (RuntimeException e) {
+                    // Try again on the next access
+                    mOpen = false;
+                    mDb.close();
+                    throw e;
+                }
             }
+
+            mOpen = true;
         } finally {
             unlockWrite();
         }
@@ -459,7 +550,9 @@ public class LockableDatabase {
         lockWrite();
         try {
             try {
-                mDb.close();
+                if (mDb != null) {
+                    mDb.close();
+                }
             } catch (Exception e) {
                 if (K9.DEBUG)
                     Log.d(K9.LOG_TAG, "Exception caught in DB close: " + e.getMessage());
@@ -0,0 +1,122 @@
+package com.fsck.k9.mailstore;
+
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Reads the result of a message query newest first in keyset pages.
+ *
+ * <p>
+ * Each page continues after the (date, id) of the last row of the previous page. Unlike OFFSET
+ * this doesn't make SQLite step over all the rows of the previous pages again, and every page
+ * comfortably fits into a single cursor window. The first page is kept small so the caller sees
+ * the newest messages as early as possible.
+ * </p>
+ *
+ * <p>
+ * The pages are compared and ordered on the plain {@code date} column, so a query that fixes
+ * {@code folder_id} and {@code deleted} is read from the {@code msg_folder_list} index in order
+ * and every page only visits its own rows. Locally deleted messages have no date and would never
+ * match the page condition. They are read with one separate query after all other messages.
+ * </p>
+ */
+class MessagePager {
+    static final int FIRST_PAGE_SIZE = 10;
+    static final int PAGE_SIZE = 100;
+
+    private static final String PAGE_ORDER = " ORDER BY date DESC, messages.id DESC";
+
+
+    interface RowCallback {
+        void onRow(Cursor cursor);
+    }
+
+
+    private final int mDateIndex;
+    private final int mIdIndex;
+
+
+    /**
+     * @param dateIndex
+     *         The column of the queries that contains {@code messages.date}.
+     * @param idIndex
+     *         The column of the queries that contains {@code messages.id}.
+     */
+    MessagePager(int dateIndex, int idIndex) {
+        mDateIndex = dateIndex;
+        mIdIndex = idIndex;
+    }
+
+    static String getFirstPageQuery(String query) {
+        return query + " AND date IS NOT NULL" + PAGE_ORDER + " LIMIT " + FIRST_PAGE_SIZE;
+    }
+
+    /**
+     * The range condition on {@code date} limits the index search to the rows of the page. The
+     * second condition skips the rows of the previous page that have the same date.
+     */
+    static String getNextPageQuery(String query) {
+        return query + " AND date <= ? AND (date < ? OR messages.id < ?)" + PAGE_ORDER +
+                " LIMIT " + PAGE_SIZE;
+    }
+
+    static String getUndatedQuery(String query) {
+        return query + " AND date IS NULL ORDER BY messages.id DESC";
+    }
+
+    /**
+     * Run {@code query} page by page and pass every row to {@code callback}.
+     *
+     * @param query
+     *         A query on {@code messages} that ends with a {@code WHERE} clause.
+     *
+     * @return The number of rows read.
+     */
+    int read(SQLiteDatabase db, String query, String[] selectionArgs, RowCallback callback) {
+        String nextPageQuery = getNextPageQuery(query);
+        String[] nextPageArgs = new String[selectionArgs.length + 3];
+        System.arraycopy(selectionArgs, 0, nextPageArgs, 0, selectionArgs.length);
+
+        int count = 0;
+        Cursor cursor = db.rawQuery(getFirstPageQuery(query), selectionArgs);
+        try {
+            int pageSize = FIRST_PAGE_SIZE;
+            while (true) {
+                int rows = 0;
+                long lastDate = 0;
+                long lastId = 0;
+                while (cursor.moveToNext()) {
+                    callback.onRow(cursor);
+                    count++;
+                    rows++;
+                    lastDate = cursor.getLong(mDateIndex);
+                    lastId = cursor.getLong(mIdIndex);
+                }
+                cursor.close();
+
+                if (rows < pageSize) {
+                    break;
+                }
+
+                String lastDateString = Long.toString(lastDate);
+                nextPageArgs[selectionArgs.length] = lastDateString;
+                nextPageArgs[selectionArgs.length + 1] = lastDateString;
+                nextPageArgs[selectionArgs.length + 2] = Long.toString(lastId);
+                cursor = db.rawQuery(nextPageQuery, nextPageArgs);
+                pageSize = PAGE_SIZE;
+            }
+
+            cursor = db.rawQuery(getUndatedQuery(query), selectionArgs);
+            while (cursor.moveToNext()) {
+                callback.onRow(cursor);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return count;
+    }
+}
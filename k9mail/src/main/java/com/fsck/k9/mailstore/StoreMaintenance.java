@@ -0,0 +1,108 @@
+package com.fsck.k9.mailstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * The database maintenance steps that {@link LocalStore} offers to
+ * {@link com.fsck.k9.service.MaintenanceService}.
+ *
+ * <p>
+ * Except for {@link #enableIncrementalVacuum(SQLiteDatabase)}, which is needed once per
+ * database, every step is short. So synchronization can access the database between the steps.
+ * </p>
+ */
+class StoreMaintenance {
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+
+    static boolean isIncrementalVacuumEnabled(SQLiteDatabase db) {
+        return getPragma(db, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Switch the database to {@code auto_vacuum=INCREMENTAL}.
+     *
+     * <p>
+     * An existing database has to be rebuilt with {@code VACUUM} for this to take effect. This
+     * must not be called inside a transaction.
+     * </p>
+     */
+    static void enableIncrementalVacuum(SQLiteDatabase db) {
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+    }
+
+    static int getFreePageCount(SQLiteDatabase db) {
+        return getPragma(db, "freelist_count");
+    }
+
+    /**
+     * Return up to {@code maxPages} free pages to the file system.
+     *
+     * @return The number of free pages left.
+     */
+    static int reclaimFreePages(SQLiteDatabase db, int maxPages) {
+        // The statement frees one page per step. execSQL() only steps once, so read the cursor
+        // to the end.
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                // Keep stepping
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return getFreePageCount(db);
+    }
+
+    /**
+     * Update the statistics the query planner uses to pick indexes.
+     */
+    static void analyze(SQLiteDatabase db) {
+        db.execSQL("ANALYZE");
+    }
+
+    /**
+     * Returns the names of the indexes created by {@link StoreSchemaDefinition}.
+     *
+     * <p>
+     * Indexes that SQLite creates for {@code PRIMARY KEY} and {@code UNIQUE} constraints are not
+     * included.
+     * </p>
+     */
+    static List<String> getIndexNames(SQLiteDatabase db) {
+        List<String> indexNames = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master " +
+                "WHERE type = 'index' AND sql IS NOT NULL ORDER BY name", null);
+        try {
+            while (cursor.moveToNext()) {
+                indexNames.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return indexNames;
+    }
+
+    /**
+     * Rebuild an index, so its pages are filled and stored close to each other again.
+     */
+    static void reindex(SQLiteDatabase db, String indexName) {
+        db.execSQL("REINDEX \"" + indexName.replace("\"", "\"\"") + "\"");
+    }
+
+    private static int getPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -21,6 +21,32 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.provider.AttachmentProvider;
 
 class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
+    /**
+     * Selects the messages that are included in the message counts of a folder.
+     */
+    private static final String COUNTED_MESSAGE_CONDITION =
+            "(empty IS NULL OR empty != 1) AND deleted = 0";
+
+    /**
+     * The {@code folders} columns that hold the {@link FolderSyncStats}.
+     */
+    private static final String SYNC_STATS_COLUMNS =
+            "sync_count INTEGER default 0, last_sync_duration INTEGER default 0, " +
+            "average_sync_duration INTEGER default 0, last_sync_bytes INTEGER default 0, " +
+            "new_message_rate REAL default 0, last_change INTEGER default 0, " +
+            "quiet_syncs INTEGER default 0";
+
+    /**
+     * Aggregates the messages of threads for the {@code thread_summary} table. Needs to be
+     * followed by additional conditions (starting with "AND") and a "GROUP BY t.root" clause.
+     */
+    private static final String THREAD_SUMMARY_SELECT =
+            "SELECT t.root, MAX(m.folder_id), MAX(m.date), MAX(m.internal_date), " +
+            "SUM(m.attachment_count), MIN(m.read), MAX(m.flagged), MIN(m.answered), " +
+            "MIN(m.forwarded), COUNT(t.root) " +
+            "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+            "WHERE (m.empty IS NULL OR m.empty != 1) AND m.deleted = 0 AND t.root IS NOT NULL ";
+
     /**
      * 
      */
@@ -60,106 +86,7 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
             // schema version 29 was when we moved to incremental updates
             // in the case of a new db or a < v29 db, we blow away and start from scratch
             if (db.getVersion() < 29) {
-
-                db.execSQL("DROP TABLE IF EXISTS folders");
-                db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
-                           + "last_updated INTEGER, unread_count INTEGER, visible_limit INTEGER, status TEXT, "
-                           + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
-                           + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, notify_class TEXT"
-                           + ")");
-
-                db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
-                db.execSQL("DROP TABLE IF EXISTS messages");
-                db.execSQL("CREATE TABLE messages (" +
-                        "id INTEGER PRIMARY KEY, " +
-                        "deleted INTEGER default 0, " +
-                        "folder_id INTEGER, " +
-                        "uid TEXT, " +
-                        "subject TEXT, " +
-                        "date INTEGER, " +
-                        "flags TEXT, " +
-                        "sender_list TEXT, " +
-                        "to_list TEXT, " +
-                        "cc_list TEXT, " +
-                        "bcc_list TEXT, " +
-                        "reply_to_list TEXT, " +
-                        "html_content TEXT, " +
-                        "text_content TEXT, " +
-                        "attachment_count INTEGER, " +
-                        "internal_date INTEGER, " +
-                        "message_id TEXT, " +
-                        "preview TEXT, " +
-                        "mime_type TEXT, "+
-                        "normalized_subject_hash INTEGER, " +
-                        "empty INTEGER, " +
-                        "read INTEGER default 0, " +
-                        "flagged INTEGER default 0, " +
-                        "answered INTEGER default 0, " +
-                        "forwarded INTEGER default 0" +
-                        ")");
-
-                db.execSQL("DROP TABLE IF EXISTS headers");
-                db.execSQL("CREATE TABLE headers (id INTEGER PRIMARY KEY, message_id INTEGER, name TEXT, value TEXT)");
-                db.execSQL("CREATE INDEX IF NOT EXISTS header_folder ON headers (message_id)");
-
-                db.execSQL("CREATE INDEX IF NOT EXISTS msg_uid ON messages (uid, folder_id)");
-                db.execSQL("DROP INDEX IF EXISTS msg_folder_id");
-                db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date");
-                db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_date ON messages (folder_id,deleted,internal_date)");
-
-                db.execSQL("DROP INDEX IF EXISTS msg_empty");
-                db.execSQL("CREATE INDEX IF NOT EXISTS msg_empty ON messages (empty)");
-
-                db.execSQL("DROP INDEX IF EXISTS msg_read");
-                db.execSQL("CREATE INDEX IF NOT EXISTS msg_read ON messages (read)");
-
-                db.execSQL("DROP INDEX IF EXISTS msg_flagged");
-                db.execSQL("CREATE INDEX IF NOT EXISTS msg_flagged ON messages (flagged)");
-
-                db.execSQL("DROP INDEX IF EXISTS msg_composite");
-                db.execSQL("CREATE INDEX IF NOT EXISTS msg_composite ON messages (deleted, empty,folder_id,flagged,read)");
-
-
-
-                db.execSQL("DROP TABLE IF EXISTS threads");
-                db.execSQL("CREATE TABLE threads (" +
-                        "id INTEGER PRIMARY KEY, " +
-                        "message_id INTEGER, " +
-                        "root INTEGER, " +
-                        "parent INTEGER" +
-                        ")");
-
-                db.execSQL("DROP INDEX IF EXISTS threads_message_id");
-                db.execSQL("CREATE INDEX IF NOT EXISTS threads_message_id ON threads (message_id)");
-
-                db.execSQL("DROP INDEX IF EXISTS threads_root");
-                db.execSQL("CREATE INDEX IF NOT EXISTS threads_root ON threads (root)");
-
-                db.execSQL("DROP INDEX IF EXISTS threads_parent");
-                db.execSQL("CREATE INDEX IF NOT EXISTS threads_parent ON threads (parent)");
-
-                db.execSQL("DROP TRIGGER IF EXISTS set_thread_root");
-                db.execSQL("CREATE TRIGGER set_thread_root " +
-                        "AFTER INSERT ON threads " +
-                        "BEGIN " +
-                        "UPDATE threads SET root=id WHERE root IS NULL AND ROWID = NEW.ROWID; " +
-                        "END");
-
-                db.execSQL("DROP TABLE IF EXISTS attachments");
-                db.execSQL("CREATE TABLE attachments (id INTEGER PRIMARY KEY, message_id INTEGER,"
-                           + "store_data TEXT, content_uri TEXT, size INTEGER, name TEXT,"
-                           + "mime_type TEXT, content_id TEXT, content_disposition TEXT)");
-
-                db.execSQL("DROP TABLE IF EXISTS pending_commands");
-                db.execSQL("CREATE TABLE pending_commands " +
-                           "(id INTEGER PRIMARY KEY, command TEXT, arguments TEXT)");
-
-                db.execSQL("DROP TRIGGER IF EXISTS delete_folder");
-                db.execSQL("CREATE TRIGGER delete_folder BEFORE DELETE ON folders BEGIN DELETE FROM messages WHERE old.id = folder_id; END;");
-
-                db.execSQL("DROP TRIGGER IF EXISTS delete_message");
-                db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
-                           + "DELETE FROM headers where old.id = message_id; END;");
+                createDatabase(db);
             } else {
                 // in the case that we're starting out at 29 or newer, run all the needed updates
 
@@ -541,6 +468,82 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                     db.update("folders", cv, "name = ?",
                             new String[] { this.localStore.getAccount().getInboxFolderName() });
                 }
+                if (db.getVersion() < 51) {
+                    try {
+                        db.execSQL("ALTER TABLE folders ADD message_count INTEGER default 0");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+
+                    createFolderCountTriggers(db);
+
+                    // unread_count and flagged_count were never maintained before
+                    db.execSQL("UPDATE folders SET " +
+                            "message_count = (SELECT COUNT(id) FROM messages WHERE " +
+                            "folder_id = folders.id AND " + COUNTED_MESSAGE_CONDITION + "), " +
+                            "unread_count = (SELECT COUNT(id) FROM messages WHERE " +
+                            "folder_id = folders.id AND " + COUNTED_MESSAGE_CONDITION + " AND read = 0), " +
+                            "flagged_count = (SELECT COUNT(id) FROM messages WHERE " +
+                            "folder_id = folders.id AND " + COUNTED_MESSAGE_CONDITION + " AND flagged = 1)");
+                }
+                if (db.getVersion() < 52) {
+                    db.execSQL("DROP TABLE IF EXISTS thread_summary");
+                    createThreadSummary(db);
+                }
+                if (db.getVersion() < 53) {
+                    createMessageListIndexes(db);
+                }
+                if (db.getVersion() < 54) {
+                    // Used to look up the messages referenced by a new message when threading
+                    db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_message_id ON messages (folder_id, message_id)");
+                }
+                if (db.getVersion() < 55) {
+                    try {
+                        db.execSQL("ALTER TABLE attachments ADD content_hash TEXT");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+
+                    // Existing attachment files keep their names, see AttachmentContentStore
+                    db.execSQL("DROP TABLE IF EXISTS attachment_content");
+                    createAttachmentContent(db);
+                }
+                if (db.getVersion() < 56) {
+                    for (String column : SYNC_STATS_COLUMNS.split(", ")) {
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD " + column);
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                }
+                if (db.getVersion() < 57) {
+                    // Existing messages are sanitized when they are displayed, as before
+                    try {
+                        db.execSQL("ALTER TABLE messages ADD html_sanitizer_version INTEGER default 0");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+                }
+                if (db.getVersion() < 58) {
+                    // The sanitized HTML is kept next to the original instead of replacing it
+                    try {
+                        db.execSQL("ALTER TABLE messages ADD html_sanitized TEXT");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+                    db.execSQL("UPDATE messages SET html_sanitizer_version = 0");
+                }
             }
 
             db.setVersion(LocalStore.DB_VERSION);
@@ -555,6 +558,305 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
         }
     }
 
+    /**
+     * Create the current schema from scratch, dropping the tables of an old database first.
+     */
+    static void createDatabase(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS folders");
+        db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
+                   + "last_updated INTEGER, unread_count INTEGER default 0, visible_limit INTEGER, status TEXT, "
+                   + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
+                   + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, notify_class TEXT, "
+                   + "message_count INTEGER default 0, "
+                   + SYNC_STATS_COLUMNS
+                   + ")");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
+        db.execSQL("DROP TABLE IF EXISTS messages");
+        db.execSQL("CREATE TABLE messages (" +
+                "id INTEGER PRIMARY KEY, " +
+                "deleted INTEGER default 0, " +
+                "folder_id INTEGER, " +
+                "uid TEXT, " +
+                "subject TEXT, " +
+                "date INTEGER, " +
+                "flags TEXT, " +
+                "sender_list TEXT, " +
+                "to_list TEXT, " +
+                "cc_list TEXT, " +
+                "bcc_list TEXT, " +
+                "reply_to_list TEXT, " +
+                "html_content TEXT, " +
+                "text_content TEXT, " +
+                "attachment_count INTEGER, " +
+                "internal_date INTEGER, " +
+                "message_id TEXT, " +
+                "preview TEXT, " +
+                "mime_type TEXT, "+
+                "normalized_subject_hash INTEGER, " +
+                "empty INTEGER, " +
+                "read INTEGER default 0, " +
+                "flagged INTEGER default 0, " +
+                "answered INTEGER default 0, " +
+                "forwarded INTEGER default 0, " +
+                "html_sanitizer_version INTEGER default 0, " +
+                "html_sanitized TEXT" +
+                ")");
+
+        db.execSQL("DROP TABLE IF EXISTS headers");
+        db.execSQL("CREATE TABLE headers (id INTEGER PRIMARY KEY, message_id INTEGER, name TEXT, value TEXT)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS header_folder ON headers (message_id)");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_uid ON messages (uid, folder_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_message_id ON messages (folder_id, message_id)");
+        db.execSQL("DROP INDEX IF EXISTS msg_folder_id");
+        db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_date ON messages (folder_id,deleted,internal_date)");
+
+        db.execSQL("DROP INDEX IF EXISTS msg_empty");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_empty ON messages (empty)");
+
+        createMessageListIndexes(db);
+
+
+
+        db.execSQL("DROP TABLE IF EXISTS threads");
+        db.execSQL("CREATE TABLE threads (" +
+                "id INTEGER PRIMARY KEY, " +
+                "message_id INTEGER, " +
+                "root INTEGER, " +
+                "parent INTEGER" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS threads_message_id");
+        db.execSQL("CREATE INDEX IF NOT EXISTS threads_message_id ON threads (message_id)");
+
+        db.execSQL("DROP INDEX IF EXISTS threads_root");
+        db.execSQL("CREATE INDEX IF NOT EXISTS threads_root ON threads (root)");
+
+        db.execSQL("DROP INDEX IF EXISTS threads_parent");
+        db.execSQL("CREATE INDEX IF NOT EXISTS threads_parent ON threads (parent)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS set_thread_root");
+        db.execSQL("CREATE TRIGGER set_thread_root " +
+                "AFTER INSERT ON threads " +
+                "BEGIN " +
+                "UPDATE threads SET root=id WHERE root IS NULL AND ROWID = NEW.ROWID; " +
+                "END");
+
+        db.execSQL("DROP TABLE IF EXISTS attachments");
+        db.execSQL("CREATE TABLE attachments (id INTEGER PRIMARY KEY, message_id INTEGER,"
+                   + "store_data TEXT, content_uri TEXT, size INTEGER, name TEXT,"
+                   + "mime_type TEXT, content_id TEXT, content_disposition TEXT, content_hash TEXT)");
+
+        db.execSQL("DROP TABLE IF EXISTS pending_commands");
+        db.execSQL("CREATE TABLE pending_commands " +
+                   "(id INTEGER PRIMARY KEY, command TEXT, arguments TEXT)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS delete_folder");
+        db.execSQL("CREATE TRIGGER delete_folder BEFORE DELETE ON folders BEGIN DELETE FROM messages WHERE old.id = folder_id; END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS delete_message");
+        db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
+                   + "DELETE FROM headers where old.id = message_id; END;");
+
+        createFolderCountTriggers(db);
+
+        db.execSQL("DROP TABLE IF EXISTS thread_summary");
+        createThreadSummary(db);
+
+        db.execSQL("DROP TABLE IF EXISTS attachment_content");
+        createAttachmentContent(db);
+    }
+
+    /**
+     * Create the triggers that keep {@code folders.message_count}, {@code folders.unread_count}
+     * and {@code folders.flagged_count} in sync with the {@code messages} table.
+     *
+     * <p>
+     * A message is counted if it is neither deleted nor an empty placeholder, i.e. exactly the
+     * messages matched by {@link #COUNTED_MESSAGE_CONDITION}. {@code unread_count} has no default
+     * value in databases created before version 51, so the counters are treated as 0 if
+     * {@code NULL}.
+     * </p>
+     */
+    private static void createFolderCountTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS folder_count_insert_message");
+        db.execSQL("CREATE TRIGGER folder_count_insert_message AFTER INSERT ON messages BEGIN " +
+                getFolderCountUpdate("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_count_delete_message");
+        db.execSQL("CREATE TRIGGER folder_count_delete_message AFTER DELETE ON messages BEGIN " +
+                getFolderCountUpdate("OLD", "-") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_count_update_message");
+        db.execSQL("CREATE TRIGGER folder_count_update_message " +
+                "AFTER UPDATE OF folder_id, deleted, empty, read, flagged ON messages BEGIN " +
+                getFolderCountUpdate("OLD", "-") +
+                getFolderCountUpdate("NEW", "+") +
+                "END");
+    }
+
+    /**
+     * Create the indexes used by the message list and the unread/flagged counts of
+     * {@link com.fsck.k9.provider.EmailProvider}, replacing the single column indexes on
+     * {@code read} and {@code flagged} and the old {@code msg_composite} index.
+     *
+     * <p>
+     * {@code msg_folder_list} returns the messages of a folder in {@code date} order, with ties
+     * broken by the implicit {@code id} column, so the first page of the message list and every
+     * following keyset page can be read without sorting the folder. The {@code *_counts}
+     * indexes contain all columns the count queries look at, so counting doesn't have to read
+     * the message rows. {@code folder_integrate} lets the Unified Inbox start with its folders
+     * instead of scanning all messages.
+     * </p>
+     */
+    private static void createMessageListIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS msg_read");
+        db.execSQL("DROP INDEX IF EXISTS msg_flagged");
+        db.execSQL("DROP INDEX IF EXISTS msg_composite");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_list ON messages (folder_id, deleted, date)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_counts ON messages (folder_id, deleted, empty, read, flagged)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_read_counts ON messages (read, deleted, empty, flagged, folder_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_flagged_counts ON messages (flagged, deleted, empty, read, folder_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS folder_integrate ON folders (integrate)");
+    }
+
+    private static String getFolderCountUpdate(String row, String operator) {
+        String counted = "(" + row + ".empty IS NULL OR " + row + ".empty != 1) AND " +
+                row + ".deleted = 0";
+
+        return "UPDATE folders SET " +
+                "message_count = IFNULL(message_count, 0) " + operator +
+                " (CASE WHEN " + counted + " THEN 1 ELSE 0 END), " +
+                "unread_count = IFNULL(unread_count, 0) " + operator +
+                " (CASE WHEN " + counted + " AND " + row + ".read = 0 THEN 1 ELSE 0 END), " +
+                "flagged_count = IFNULL(flagged_count, 0) " + operator +
+                " (CASE WHEN " + counted + " AND " + row + ".flagged = 1 THEN 1 ELSE 0 END) " +
+                "WHERE id = " + row + ".folder_id; ";
+    }
+
+    /**
+     * Create the {@code attachment_content} table and the triggers that count how many
+     * attachments reference each {@code content_hash}.
+     *
+     * @see AttachmentContentStore
+     */
+    private static void createAttachmentContent(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE attachment_content (" +
+                "hash TEXT PRIMARY KEY, " +
+                "ref_count INTEGER NOT NULL DEFAULT 0" +
+                ")");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS attachment_content_ref_count ON attachment_content (ref_count)");
+
+        String addReference = "INSERT OR IGNORE INTO attachment_content (hash) VALUES (NEW.content_hash); " +
+                "UPDATE attachment_content SET ref_count = ref_count + 1 WHERE hash = NEW.content_hash; ";
+        String removeReference =
+                "UPDATE attachment_content SET ref_count = ref_count - 1 WHERE hash = OLD.content_hash; ";
+
+        db.execSQL("DROP TRIGGER IF EXISTS attachment_content_insert");
+        db.execSQL("CREATE TRIGGER attachment_content_insert AFTER INSERT ON attachments " +
+                "WHEN NEW.content_hash IS NOT NULL BEGIN " +
+                addReference +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS attachment_content_delete");
+        db.execSQL("CREATE TRIGGER attachment_content_delete AFTER DELETE ON attachments " +
+                "WHEN OLD.content_hash IS NOT NULL BEGIN " +
+                removeReference +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS attachment_content_update_add");
+        db.execSQL("CREATE TRIGGER attachment_content_update_add AFTER UPDATE OF content_hash ON attachments " +
+                "WHEN NEW.content_hash IS NOT NULL BEGIN " +
+                addReference +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS attachment_content_update_remove");
+        db.execSQL("CREATE TRIGGER attachment_content_update_remove AFTER UPDATE OF content_hash ON attachments " +
+                "WHEN OLD.content_hash IS NOT NULL BEGIN " +
+                removeReference +
+                "END");
+    }
+
+    /**
+     * Create the {@code thread_summary} table, the triggers that maintain it, and populate it.
+     *
+     * <p>
+     * The table contains one row per thread root with the values the threaded message list
+     * needs: the aggregates of all messages in the thread that are neither deleted nor empty
+     * placeholders. Whenever a message or an entry in the {@code threads} table changes, the row
+     * of the affected thread is recomputed. That only touches the messages of that thread, so
+     * the threaded message list doesn't have to aggregate the whole thread graph on every query.
+     * </p>
+     */
+    private static void createThreadSummary(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE thread_summary (" +
+                "root INTEGER PRIMARY KEY, " +
+                "folder_id INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "attachment_count INTEGER, " +
+                "read INTEGER, " +
+                "flagged INTEGER, " +
+                "answered INTEGER, " +
+                "forwarded INTEGER, " +
+                "thread_count INTEGER" +
+                ")");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_id_date ON thread_summary (folder_id, date)");
+
+        String rootsOfNewMessage = "IN (SELECT root FROM threads WHERE message_id = NEW.id)";
+        String rootsOfOldMessage = "IN (SELECT root FROM threads WHERE message_id = OLD.id)";
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_insert_message");
+        db.execSQL("CREATE TRIGGER thread_summary_insert_message AFTER INSERT ON messages BEGIN " +
+                getThreadSummaryRefresh(rootsOfNewMessage) +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_message");
+        db.execSQL("CREATE TRIGGER thread_summary_update_message " +
+                "AFTER UPDATE OF folder_id, deleted, empty, date, internal_date, attachment_count, " +
+                "read, flagged, answered, forwarded ON messages BEGIN " +
+                getThreadSummaryRefresh(rootsOfNewMessage) +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_message");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_message AFTER DELETE ON messages BEGIN " +
+                getThreadSummaryRefresh(rootsOfOldMessage) +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_insert_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_insert_thread AFTER INSERT ON threads " +
+                "WHEN NEW.root IS NOT NULL BEGIN " +
+                getThreadSummaryRefresh("= NEW.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_update_thread " +
+                "AFTER UPDATE OF root, message_id ON threads BEGIN " +
+                getThreadSummaryRefresh("= OLD.root") +
+                getThreadSummaryRefresh("= NEW.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_thread AFTER DELETE ON threads BEGIN " +
+                getThreadSummaryRefresh("= OLD.root") +
+                "END");
+
+        db.execSQL("INSERT INTO thread_summary " + THREAD_SUMMARY_SELECT + "GROUP BY t.root");
+    }
+
+    private static String getThreadSummaryRefresh(String rootCondition) {
+        return "DELETE FROM thread_summary WHERE root " + rootCondition + "; " +
+                "INSERT INTO thread_summary " + THREAD_SUMMARY_SELECT +
+                "AND t.root " + rootCondition + " GROUP BY t.root; ";
+    }
+
     private void update41Metadata(final SQLiteDatabase  db, SharedPreferences prefs, int id, String name) {
 
 
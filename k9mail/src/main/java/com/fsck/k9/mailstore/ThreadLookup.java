@@ -0,0 +1,178 @@
+package com.fsck.k9.mailstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Maps Message-IDs to the messages and thread entries of a folder while a batch of messages is
+ * threaded.
+ *
+ * <p>
+ * {@link #prefetch(Collection)} resolves the Message-IDs of a whole batch with a few queries
+ * using the {@code msg_folder_id_message_id} index. Changes made while threading the batch have
+ * to be reported with {@link #addMessage(String, long, long, long, long, boolean)} and
+ * {@link #invalidate(String)} so that the following lookups see them. Message-IDs that weren't
+ * prefetched or have been invalidated are looked up in the database.
+ * </p>
+ */
+class ThreadLookup {
+    /**
+     * SQLite supports at most 999 parameters per statement.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String THREAD_INFO_COLS =
+            "SELECT m.message_id, m.empty, t.id, t.message_id, t.root, t.parent " +
+            "FROM messages m " +
+            "LEFT JOIN threads t ON (t.message_id = m.id) ";
+
+
+    /**
+     * The first message (and the first empty placeholder message) with a given Message-ID in
+     * the folder. Both are {@code null} if the folder doesn't contain such a message.
+     */
+    private static class Entry {
+        ThreadInfo first;
+        ThreadInfo firstEmpty;
+    }
+
+
+    private final SQLiteDatabase mDb;
+    private final long mFolderId;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+
+    ThreadLookup(SQLiteDatabase db, long folderId) {
+        mDb = db;
+        mFolderId = folderId;
+    }
+
+    /**
+     * Look up all {@code messageIds} that haven't been looked up yet.
+     */
+    void prefetch(Collection<String> messageIds) {
+        List<String> missing = new ArrayList<String>();
+        for (String messageId : messageIds) {
+            if (messageId != null && !mEntries.containsKey(messageId)) {
+                mEntries.put(messageId, new Entry());
+                missing.add(messageId);
+            }
+        }
+
+        for (int start = 0, size = missing.size(); start < size; start += MAX_IDS_PER_QUERY) {
+            List<String> chunk = missing.subList(start, Math.min(size, start + MAX_IDS_PER_QUERY));
+            load(chunk);
+        }
+    }
+
+    /**
+     * Returns the thread information of the first message with the given Message-ID in the
+     * folder, or {@code null} if there is no such message.
+     *
+     * @param onlyEmpty
+     *         Only consider empty placeholder messages.
+     */
+    ThreadInfo get(String messageId, boolean onlyEmpty) {
+        if (messageId == null) {
+            return null;
+        }
+
+        Entry entry = mEntries.get(messageId);
+        if (entry == null) {
+            mEntries.put(messageId, new Entry());
+            List<String> messageIds = new ArrayList<String>(1);
+            messageIds.add(messageId);
+            load(messageIds);
+            entry = mEntries.get(messageId);
+        }
+
+        return (onlyEmpty) ? entry.firstEmpty : entry.first;
+    }
+
+    /**
+     * Record a message that was inserted into the folder.
+     */
+    void addMessage(String messageId, long threadId, long msgId, long rootId, long parentId,
+            boolean empty) {
+        if (messageId == null) {
+            return;
+        }
+
+        Entry entry = mEntries.get(messageId);
+        if (entry == null) {
+            // Not looked up yet. The database will return the right message if it's needed.
+            return;
+        }
+
+        // The new message has the highest id, so it only matters if there's no other message.
+        ThreadInfo threadInfo = new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
+        if (entry.first == null) {
+            entry.first = threadInfo;
+        }
+        if (empty && entry.firstEmpty == null) {
+            entry.firstEmpty = threadInfo;
+        }
+    }
+
+    /**
+     * Forget what is known about the messages with the given Message-ID, e.g. because an empty
+     * placeholder message was replaced or a message was moved into the folder.
+     */
+    void invalidate(String messageId) {
+        mEntries.remove(messageId);
+    }
+
+    /**
+     * Forget everything, e.g. because threads were merged and the roots have changed.
+     */
+    void clear() {
+        mEntries.clear();
+    }
+
+    private void load(List<String> messageIds) {
+        StringBuilder sql = new StringBuilder(THREAD_INFO_COLS);
+        sql.append("WHERE m.folder_id = ? AND m.message_id IN (");
+        String[] selectionArgs = new String[messageIds.size() + 1];
+        selectionArgs[0] = Long.toString(mFolderId);
+        for (int i = 0, len = messageIds.size(); i < len; i++) {
+            sql.append((i == 0) ? "?" : ",?");
+            selectionArgs[i + 1] = messageIds.get(i);
+        }
+        sql.append(") ORDER BY m.id");
+
+        Cursor cursor = mDb.rawQuery(sql.toString(), selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                String messageId = cursor.getString(0);
+                boolean empty = (cursor.getInt(1) == 1);
+                long threadId = cursor.getLong(2);
+                long msgId = cursor.getLong(3);
+                long rootId = (cursor.isNull(4)) ? -1 : cursor.getLong(4);
+                long parentId = (cursor.isNull(5)) ? -1 : cursor.getLong(5);
+
+                Entry entry = mEntries.get(messageId);
+                if (entry == null) {
+                    continue;
+                }
+
+                ThreadInfo threadInfo = new ThreadInfo(threadId, msgId, messageId, rootId,
+                        parentId);
+                if (entry.first == null) {
+                    entry.first = threadInfo;
+                }
+                if (empty && entry.firstEmpty == null) {
+                    entry.firstEmpty = threadInfo;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
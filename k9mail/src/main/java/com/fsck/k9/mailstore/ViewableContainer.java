@@ -18,6 +18,12 @@ class ViewableContainer {
 
     /**
      * The viewable text of the message in HTML.
+     *
+     * <p>
+     * {@code null} if the message is plain text. The HTML is then created from {@link #text}
+     * when it's displayed (see {@link LocalTextBody#getBodyForDisplay()}) instead of being
+     * stored as well.
+     * </p>
      */
     public final String html;
 
@@ -3,9 +3,8 @@ package com.fsck.k9.preferences;
 import android.util.Log;
 import com.fsck.k9.K9;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -13,15 +12,12 @@ import java.util.Set;
 public class Editor implements android.content.SharedPreferences.Editor {
     private Storage storage;
     private Map<String, String> changes = new HashMap<String, String>();
-    private List<String> removals = new ArrayList<String>();
+    private Set<String> removals = new HashSet<String>();
     private boolean removeAll = false;
 
-    Map<String, String> snapshot = new HashMap<String, String>();
-
 
     protected Editor(Storage storage) {
         this.storage = storage;
-        snapshot.putAll(storage.getAll());
     }
 
     public void copy(android.content.SharedPreferences input) {
@@ -71,27 +67,8 @@ public class Editor implements android.content.SharedPreferences.Editor {
     public void commitChanges() {
         long startTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Committing preference changes");
-        Runnable committer = new Runnable() {
-            public void run() {
-                if (removeAll) {
-                    storage.removeAll();
-                }
-                for (String removeKey : removals) {
-                    storage.remove(removeKey);
-                }
-                Map<String, String> insertables = new HashMap<String, String>();
-                for (Entry<String, String> entry : changes.entrySet()) {
-                    String key = entry.getKey();
-                    String newValue = entry.getValue();
-                    String oldValue = snapshot.get(key);
-                    if (removeAll || removals.contains(key) || !newValue.equals(oldValue)) {
-                        insertables.put(key, newValue);
-                    }
-                }
-                storage.put(insertables);
-            }
-        };
-        storage.doInTransaction(committer);
+        // All changes are written in one transaction. Unchanged values are skipped.
+        storage.commit(removeAll, removals, changes);
         long endTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Preferences commit took " + (endTime - startTime) + "ms");
 
@@ -10,6 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
@@ -142,7 +143,9 @@ public class SettingsExporter {
                 exportAccounts = accountUuids;
             }
 
-            Map<String, Object> prefs = new TreeMap<String, Object>(storage.getAll());
+            // Sorting the keys puts all settings of an account next to each other. So every
+            // account can be written from its own slice of the map.
+            SortedMap<String, Object> prefs = new TreeMap<String, Object>(storage.getAll());
 
             if (includeGlobals) {
                 serializer.startTag(null, GLOBAL_ELEMENT);
@@ -153,7 +156,10 @@ public class SettingsExporter {
             serializer.startTag(null, ACCOUNTS_ELEMENT);
             for (String accountUuid : exportAccounts) {
                 Account account = preferences.getAccount(accountUuid);
-                writeAccount(serializer, account, prefs);
+                writeAccount(serializer, account, getAccountPrefs(prefs, accountUuid));
+
+                // Write the account to the output stream instead of buffering the whole file
+                serializer.flush();
             }
             serializer.endTag(null, ACCOUNTS_ELEMENT);
 
@@ -166,6 +172,16 @@ public class SettingsExporter {
         }
     }
 
+    /**
+     * Returns the view of {@code prefs} that contains the keys starting with
+     * {@code accountUuid + "."}.
+     */
+    private static SortedMap<String, Object> getAccountPrefs(SortedMap<String, Object> prefs,
+            String accountUuid) {
+        // '/' is the character following '.'
+        return prefs.subMap(accountUuid + ".", accountUuid + "/");
+    }
+
     private static void writeSettings(XmlSerializer serializer,
             Map<String, Object> prefs) throws IOException {
 
@@ -204,6 +220,11 @@ public class SettingsExporter {
         }
     }
 
+    /**
+     * @param prefs
+     *         The settings of {@code account}, see
+     *         {@link #getAccountPrefs(SortedMap, String)}.
+     */
     private static void writeAccount(XmlSerializer serializer, Account account,
             Map<String, Object> prefs) throws IOException {
 
@@ -6,8 +6,10 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -123,7 +125,7 @@ public class SettingsImporter {
 
         try {
             // Parse the import stream but don't save individual settings (overview=true)
-            Imported imported = parseSettings(inputStream, false, null, true);
+            Imported imported = parseSettings(inputStream, false, null, true, null);
 
             // If the stream contains global settings the "globalSettings" member will not be null
             boolean globalSettings = (imported.globalSettings != null);
@@ -167,141 +169,91 @@ public class SettingsImporter {
      *         changing the account type from IMAP to POP3. So don't use this for now!
      *
      * @return An {@link ImportResults} instance containing information about errors and
-     *         successfully imported accounts.
+     *         successfully imported accounts. If the file can't be read to the end, this contains
+     *         the settings that have already been committed.
      *
      * @throws SettingsImportExportException
-     *          In case of an error.
+     *          In case of an error before any settings have been committed.
      */
     public static ImportResults importSettings(Context context, InputStream inputStream,
             boolean globalSettings, List<String> accountUuids, boolean overwrite)
     throws SettingsImportExportException {
 
+        if (accountUuids == null) {
+            throw new IllegalArgumentException("Argument 'accountUuids' must not be null.");
+        }
+
+        Preferences preferences = Preferences.getPreferences(context);
         try
         {
-            boolean globalSettingsImported = false;
-            List<AccountDescriptionPair> importedAccounts = new ArrayList<AccountDescriptionPair>();
-            List<AccountDescription> errorneousAccounts = new ArrayList<AccountDescription>();
-
-            Imported imported = parseSettings(inputStream, globalSettings, accountUuids, false);
-
-            Preferences preferences = Preferences.getPreferences(context);
             SharedPreferences storage = preferences.getPreferences();
 
-            if (globalSettings) {
-                try {
-                    SharedPreferences.Editor editor = storage.edit();
-                    if (imported.globalSettings != null) {
-                        importGlobalSettings(storage, editor, imported.contentVersion,
-                                imported.globalSettings);
-                    } else {
-                        Log.w(K9.LOG_TAG, "Was asked to import global settings but none found.");
-                    }
-                    if (editor.commit()) {
-                        if (K9.DEBUG) {
-                            Log.v(K9.LOG_TAG, "Committed global settings to the preference " +
-                                    "storage.");
-                        }
-                        globalSettingsImported = true;
-                    } else {
-                        if (K9.DEBUG) {
-                            Log.v(K9.LOG_TAG, "Failed to commit global settings to the " +
-                                    "preference storage");
-                        }
-                    }
-                } catch (Exception e) {
-                    Log.e(K9.LOG_TAG, "Exception while importing global settings", e);
+            // Global settings and accounts are written to the preference storage while the file
+            // is being parsed. So only one account has to be kept in memory at a time.
+            StorageImporter importer = new StorageImporter(context, preferences, overwrite);
+            Set<String> selectedAccounts = new HashSet<String>(accountUuids);
+            Imported imported = null;
+            try {
+                imported = parseSettings(inputStream, globalSettings, selectedAccounts, false,
+                        importer);
+            } catch (SettingsImportExportException e) {
+                if (!importer.globalSettingsImported && importer.importedAccounts.isEmpty()) {
+                    throw e;
                 }
+
+                // Settings committed before the error can't be taken back. Report them, so the
+                // user knows what has been imported.
+                Log.e(K9.LOG_TAG, "Error while reading the settings file. Keeping the settings " +
+                        "imported so far.", e);
             }
 
-            if (accountUuids != null && accountUuids.size() > 0) {
-                if (imported.accounts != null) {
-                    for (String accountUuid : accountUuids) {
-                        if (imported.accounts.containsKey(accountUuid)) {
-                            ImportedAccount account = imported.accounts.get(accountUuid);
-                            try {
-                                SharedPreferences.Editor editor = storage.edit();
-
-                                AccountDescriptionPair importResult = importAccount(context,
-                                        editor, imported.contentVersion, account, overwrite);
-
-                                if (editor.commit()) {
-                                    if (K9.DEBUG) {
-                                        Log.v(K9.LOG_TAG, "Committed settings for account \"" +
-                                                importResult.imported.name +
-                                                "\" to the settings database.");
-                                    }
-
-                                    // Add UUID of the account we just imported to the list of
-                                    // account UUIDs
-                                    if (!importResult.overwritten) {
-                                        editor = storage.edit();
-
-                                        String newUuid = importResult.imported.uuid;
-                                        String oldAccountUuids = storage.getString("accountUuids", "");
-                                        String newAccountUuids = (oldAccountUuids.length() > 0) ?
-                                                oldAccountUuids + "," + newUuid : newUuid;
-
-                                        putString(editor, "accountUuids", newAccountUuids);
-
-                                        if (!editor.commit()) {
-                                            throw new SettingsImportExportException("Failed to set account UUID list");
-                                        }
-                                    }
-
-                                    // Reload accounts
-                                    preferences.loadAccounts();
-
-                                    importedAccounts.add(importResult);
-                                } else {
-                                    if (K9.DEBUG) {
-                                        Log.w(K9.LOG_TAG, "Error while committing settings for " +
-                                                "account \"" + importResult.original.name +
-                                                "\" to the settings database.");
-                                    }
-                                    errorneousAccounts.add(importResult.original);
-                                }
-                            } catch (InvalidSettingValueException e) {
-                                if (K9.DEBUG) {
-                                    Log.e(K9.LOG_TAG, "Encountered invalid setting while " +
-                                            "importing account \"" + account.name + "\"", e);
-                                }
-                                errorneousAccounts.add(new AccountDescription(account.name, account.uuid));
-                            } catch (Exception e) {
-                                Log.e(K9.LOG_TAG, "Exception while importing account \"" +
-                                        account.name + "\"", e);
-                                errorneousAccounts.add(new AccountDescription(account.name, account.uuid));
+            if (imported != null) {
+                if (globalSettings && imported.globalSettings == null) {
+                    Log.w(K9.LOG_TAG, "Was asked to import global settings but none found.");
+                    importer.globalSettingsImported = true;
+                }
+
+                if (accountUuids.size() > 0) {
+                    if (imported.accounts != null) {
+                        for (String accountUuid : accountUuids) {
+                            if (!importer.parsedAccounts.contains(accountUuid)) {
+                                Log.w(K9.LOG_TAG, "Was asked to import account with UUID " +
+                                        accountUuid + ". But this account wasn't found.");
                             }
-                        } else {
-                            Log.w(K9.LOG_TAG, "Was asked to import account with UUID " +
-                                    accountUuid + ". But this account wasn't found.");
                         }
+                    } else {
+                        Log.w(K9.LOG_TAG, "Was asked to import at least one account but none " +
+                                "found.");
                     }
+                }
+            }
 
-                    SharedPreferences.Editor editor = storage.edit();
+            if (!importer.importedAccounts.isEmpty()) {
+                SharedPreferences.Editor editor = storage.edit();
 
-                    String defaultAccountUuid = storage.getString("defaultAccountUuid", null);
-                    if (defaultAccountUuid == null) {
-                        putString(editor, "defaultAccountUuid", accountUuids.get(0));
-                    }
+                String defaultAccountUuid = storage.getString("defaultAccountUuid", null);
+                if (defaultAccountUuid == null) {
+                    putString(editor, "defaultAccountUuid",
+                            importer.importedAccounts.get(0).imported.uuid);
+                }
 
-                    if (!editor.commit()) {
-                        throw new SettingsImportExportException("Failed to set default account");
-                    }
-                } else {
-                    Log.w(K9.LOG_TAG, "Was asked to import at least one account but none found.");
+                if (!editor.commit()) {
+                    throw new SettingsImportExportException("Failed to set default account");
                 }
             }
 
-            preferences.loadAccounts();
-            K9.loadPrefs(preferences);
-            K9.setServicesEnabled(context);
-
-            return new ImportResults(globalSettingsImported, importedAccounts, errorneousAccounts);
+            return new ImportResults(importer.globalSettingsImported, importer.importedAccounts,
+                    importer.errorneousAccounts);
 
         } catch (SettingsImportExportException e) {
             throw e;
         } catch (Exception e) {
             throw new SettingsImportExportException(e);
+        } finally {
+            // Pick up whatever has been committed to the preference storage, even after an error
+            preferences.loadAccounts();
+            K9.loadPrefs(preferences);
+            K9.setServicesEnabled(context);
         }
     }
 
@@ -333,14 +285,24 @@ public class SettingsImporter {
         }
     }
 
+    /**
+     * Write the settings of an imported account to {@code editor}.
+     *
+     * <p>
+     * {@code accountNames} and {@code accountNumbers} contain the names and numbers of the
+     * existing accounts and of the accounts imported before this one. They are used instead of
+     * {@link Preferences#getAccounts()}, so the accounts don't have to be reloaded after every
+     * imported account. The name and number assigned to this account are added to them.
+     * </p>
+     */
     private static AccountDescriptionPair importAccount(Context context,
             SharedPreferences.Editor editor, int contentVersion, ImportedAccount account,
-            boolean overwrite) throws InvalidSettingValueException {
+            boolean overwrite, Set<String> accountNames, List<Integer> accountNumbers)
+            throws InvalidSettingValueException {
 
         AccountDescription original = new AccountDescription(account.name, account.uuid);
 
         Preferences prefs = Preferences.getPreferences(context);
-        List<Account> accounts = prefs.getAccounts();
 
         String uuid = account.uuid;
         Account existingAccount = prefs.getAccount(uuid);
@@ -354,15 +316,10 @@ public class SettingsImporter {
 
         // Make sure the account name is unique
         String accountName = account.name;
-        if (isAccountNameUsed(accountName, accounts)) {
-            // Account name is already in use. So generate a new one by appending " (x)", where x
-            // is the first number >= 1 that results in an unused account name.
-            for (int i = 1; i <= accounts.size(); i++) {
-                accountName = account.name + " (" + i + ")";
-                if (!isAccountNameUsed(accountName, accounts)) {
-                    break;
-                }
-            }
+        // If the account name is already in use generate a new one by appending " (x)", where x
+        // is the first number >= 1 that results in an unused account name.
+        for (int i = 1; accountNames.contains(accountName); i++) {
+            accountName = account.name + " (" + i + ")";
         }
 
         // Write account name
@@ -446,8 +403,9 @@ public class SettingsImporter {
         }
 
         // If it's a new account generate and write a new "accountNumber"
+        int newAccountNumber = -1;
         if (!mergeImportedAccount) {
-            int newAccountNumber = Account.generateAccountNumber(prefs);
+            newAccountNumber = Account.findNewAccountNumber(accountNumbers);
             putString(editor, accountKeyPrefix + "accountNumber", Integer.toString(newAccountNumber));
         }
 
@@ -469,6 +427,11 @@ public class SettingsImporter {
 
         //TODO: sync folder settings with localstore?
 
+        accountNames.add(accountName);
+        if (newAccountNumber != -1) {
+            accountNumbers.add(newAccountNumber);
+        }
+
         AccountDescription imported = new AccountDescription(accountName, uuid);
         return new AccountDescriptionPair(original, imported, mergeImportedAccount);
     }
@@ -605,19 +568,6 @@ public class SettingsImporter {
         }
     }
 
-    private static boolean isAccountNameUsed(String name, List<Account> accounts) {
-        for (Account account : accounts) {
-            if (account == null) {
-                continue;
-            }
-
-            if (account.getDescription().equals(name)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static boolean isIdentityDescriptionUsed(String description, List<Identity> identities) {
         for (Identity identity : identities) {
             if (identity.getDescription().equals(description)) {
@@ -662,12 +612,23 @@ public class SettingsImporter {
         editor.putString(key, value);
     }
 
-    private static Imported parseSettings(InputStream inputStream, boolean globalSettings,
-            List<String> accountUuids, boolean overview)
+    /**
+     * Parse a settings file.
+     *
+     * <p>
+     * In overview mode only the names of the accounts are read. Otherwise the global settings (if
+     * requested) and the selected accounts are handed to {@code listener} as soon as they have
+     * been read and are not kept in the returned {@link Imported} instance. Its
+     * {@code accounts} member is then an empty map if the file contains an accounts element.
+     * </p>
+     */
+    static Imported parseSettings(InputStream inputStream, boolean globalSettings,
+            Set<String> accountUuids, boolean overview, ImportListener listener)
     throws SettingsImportExportException {
 
-        if (!overview && accountUuids == null) {
-            throw new IllegalArgumentException("Argument 'accountUuids' must not be null.");
+        if (!overview && (accountUuids == null || listener == null)) {
+            throw new IllegalArgumentException("Arguments 'accountUuids' and 'listener' must " +
+                    "not be null.");
         }
 
         try {
@@ -683,7 +644,8 @@ public class SettingsImporter {
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 if(eventType == XmlPullParser.START_TAG) {
                     if (SettingsExporter.ROOT_ELEMENT.equals(xpp.getName())) {
-                        imported = parseRoot(xpp, globalSettings, accountUuids, overview);
+                        imported = parseRoot(xpp, globalSettings, accountUuids, overview,
+                                listener);
                     } else {
                         Log.w(K9.LOG_TAG, "Unexpected start tag: " + xpp.getName());
                     }
@@ -722,7 +684,7 @@ public class SettingsImporter {
     }
 
     private static Imported parseRoot(XmlPullParser xpp, boolean globalSettings,
-            List<String> accountUuids, boolean overview)
+            Set<String> accountUuids, boolean overview, ImportListener listener)
     throws XmlPullParserException, IOException, SettingsImportExportException {
 
         Imported result = new Imported();
@@ -749,6 +711,10 @@ public class SettingsImporter {
                                 skipToEndTag(xpp, SettingsExporter.GLOBAL_ELEMENT);
                             } else {
                                 result.globalSettings = parseSettings(xpp, SettingsExporter.GLOBAL_ELEMENT);
+                                if (result.globalSettings != null) {
+                                    listener.onGlobalSettings(result.contentVersion,
+                                            result.globalSettings);
+                                }
                             }
                         } else {
                             skipToEndTag(xpp, SettingsExporter.GLOBAL_ELEMENT);
@@ -760,7 +726,8 @@ public class SettingsImporter {
                     }
                 } else if (SettingsExporter.ACCOUNTS_ELEMENT.equals(element)) {
                     if (result.accounts == null) {
-                        result.accounts = parseAccounts(xpp, accountUuids, overview);
+                        result.accounts = parseAccounts(xpp, result.contentVersion, accountUuids,
+                                overview, listener);
                     } else {
                         Log.w(K9.LOG_TAG, "More than one accounts element. Only using the first one!");
                     }
@@ -854,10 +821,12 @@ public class SettingsImporter {
     }
 
     private static Map<String, ImportedAccount> parseAccounts(XmlPullParser xpp,
-            List<String> accountUuids, boolean overview)
+            int contentVersion, Set<String> accountUuids, boolean overview,
+            ImportListener listener)
     throws XmlPullParserException, IOException {
 
         Map<String, ImportedAccount> accounts = null;
+        Set<String> parsedUuids = new HashSet<String>();
 
         int eventType = xpp.next();
         while (!(eventType == XmlPullParser.END_TAG &&
@@ -874,11 +843,15 @@ public class SettingsImporter {
 
                     if (account == null) {
                         // Do nothing - parseAccount() already logged a message
-                    } else if (!accounts.containsKey(account.uuid)) {
-                        accounts.put(account.uuid, account);
-                    } else {
+                    } else if (!parsedUuids.add(account.uuid)) {
                         Log.w(K9.LOG_TAG, "Duplicate account entries with UUID " + account.uuid +
                                 ". Ignoring!");
+                    } else if (overview) {
+                        accounts.put(account.uuid, account);
+                    } else if (accountUuids.contains(account.uuid)) {
+                        // Don't keep the account around. The next one may already be parsed into
+                        // the memory it used.
+                        listener.onAccount(contentVersion, account);
                     }
                 } else {
                     Log.w(K9.LOG_TAG, "Unexpected start tag: " + xpp.getName());
@@ -890,7 +863,7 @@ public class SettingsImporter {
         return accounts;
     }
 
-    private static ImportedAccount parseAccount(XmlPullParser xpp, List<String> accountUuids,
+    private static ImportedAccount parseAccount(XmlPullParser xpp, Set<String> accountUuids,
             boolean overview)
     throws XmlPullParserException, IOException {
 
@@ -1096,6 +1069,119 @@ public class SettingsImporter {
         return folder;
     }
 
+    /**
+     * Receives the global settings and the selected accounts while a settings file is parsed.
+     *
+     * @see SettingsImporter#parseSettings(InputStream, boolean, Set, boolean, ImportListener)
+     */
+    interface ImportListener {
+        void onGlobalSettings(int contentVersion, ImportedSettings settings);
+        void onAccount(int contentVersion, ImportedAccount account);
+    }
+
+    /**
+     * Writes global settings and accounts to the preference storage as they are parsed.
+     *
+     * <p>
+     * Every account, including its entry in the list of account UUIDs, is written with a single
+     * {@link Editor#commit()}, i.e. in one {@link Storage} transaction. The accounts are only
+     * reloaded once, after the whole file has been imported.
+     * </p>
+     */
+    private static class StorageImporter implements ImportListener {
+        private final Context mContext;
+        private final SharedPreferences mStorage;
+        private final boolean mOverwrite;
+        private final Set<String> mAccountNames = new HashSet<String>();
+        private final List<Integer> mAccountNumbers = new ArrayList<Integer>();
+
+        public boolean globalSettingsImported = false;
+        public final Set<String> parsedAccounts = new HashSet<String>();
+        public final List<AccountDescriptionPair> importedAccounts =
+                new ArrayList<AccountDescriptionPair>();
+        public final List<AccountDescription> errorneousAccounts =
+                new ArrayList<AccountDescription>();
+
+        StorageImporter(Context context, Preferences preferences, boolean overwrite) {
+            mContext = context;
+            mStorage = preferences.getPreferences();
+            mOverwrite = overwrite;
+
+            for (Account account : preferences.getAccounts()) {
+                if (account != null) {
+                    mAccountNames.add(account.getDescription());
+                    mAccountNumbers.add(account.getAccountNumber());
+                }
+            }
+        }
+
+        @Override
+        public void onGlobalSettings(int contentVersion, ImportedSettings settings) {
+            try {
+                SharedPreferences.Editor editor = mStorage.edit();
+                importGlobalSettings(mStorage, editor, contentVersion, settings);
+                if (editor.commit()) {
+                    if (K9.DEBUG) {
+                        Log.v(K9.LOG_TAG, "Committed global settings to the preference " +
+                                "storage.");
+                    }
+                    globalSettingsImported = true;
+                } else {
+                    if (K9.DEBUG) {
+                        Log.v(K9.LOG_TAG, "Failed to commit global settings to the " +
+                                "preference storage");
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Exception while importing global settings", e);
+            }
+        }
+
+        @Override
+        public void onAccount(int contentVersion, ImportedAccount account) {
+            parsedAccounts.add(account.uuid);
+            try {
+                SharedPreferences.Editor editor = mStorage.edit();
+
+                AccountDescriptionPair importResult = importAccount(mContext, editor,
+                        contentVersion, account, mOverwrite, mAccountNames, mAccountNumbers);
+
+                // Add UUID of the account we just imported to the list of account UUIDs
+                if (!importResult.overwritten) {
+                    String newUuid = importResult.imported.uuid;
+                    String oldAccountUuids = mStorage.getString("accountUuids", "");
+                    String newAccountUuids = (oldAccountUuids.length() > 0) ?
+                            oldAccountUuids + "," + newUuid : newUuid;
+
+                    putString(editor, "accountUuids", newAccountUuids);
+                }
+
+                if (editor.commit()) {
+                    if (K9.DEBUG) {
+                        Log.v(K9.LOG_TAG, "Committed settings for account \"" +
+                                importResult.imported.name + "\" to the settings database.");
+                    }
+                    importedAccounts.add(importResult);
+                } else {
+                    if (K9.DEBUG) {
+                        Log.w(K9.LOG_TAG, "Error while committing settings for account \"" +
+                                importResult.original.name + "\" to the settings database.");
+                    }
+                    errorneousAccounts.add(importResult.original);
+                }
+            } catch (InvalidSettingValueException e) {
+                if (K9.DEBUG) {
+                    Log.e(K9.LOG_TAG, "Encountered invalid setting while importing account \"" +
+                            account.name + "\"", e);
+                }
+                errorneousAccounts.add(new AccountDescription(account.name, account.uuid));
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Exception while importing account \"" + account.name + "\"", e);
+                errorneousAccounts.add(new AccountDescription(account.name, account.uuid));
+            }
+        }
+    }
+
     private static class ImportedServerSettings extends ServerSettings {
         private final ImportedServer mImportedServer;
 
@@ -1140,17 +1226,17 @@ public class SettingsImporter {
         }
     }
 
-    private static class Imported {
+    static class Imported {
         public int contentVersion;
         public ImportedSettings globalSettings;
         public Map<String, ImportedAccount> accounts;
     }
 
-    private static class ImportedSettings {
+    static class ImportedSettings {
         public Map<String, String> settings = new HashMap<String, String>();
     }
 
-    private static class ImportedAccount {
+    static class ImportedAccount {
         public String uuid;
         public String name;
         public ImportedServer incoming;
@@ -1160,7 +1246,7 @@ public class SettingsImporter {
         public List<ImportedFolder> folders;
     }
 
-    private static class ImportedServer {
+    static class ImportedServer {
         public String type;
         public String host;
         public String port;
@@ -1172,14 +1258,14 @@ public class SettingsImporter {
         public ImportedSettings extras;
     }
 
-    private static class ImportedIdentity {
+    static class ImportedIdentity {
         public String name;
         public String email;
         public String description;
         public ImportedSettings settings;
     }
 
-    private static class ImportedFolder {
+    static class ImportedFolder {
         public String name;
         public ImportedSettings settings;
     }
@@ -15,6 +15,9 @@ import com.fsck.k9.mail.filter.Base64;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,7 +29,15 @@ public class Storage implements SharedPreferences {
     private static ConcurrentMap<Context, Storage> storages =
         new ConcurrentHashMap<Context, Storage>();
 
-    private volatile ConcurrentMap<String, String> storage = new ConcurrentHashMap<String, String>();
+    /**
+     * Snapshot of all preferences.
+     *
+     * <p>
+     * The map is never modified. {@link #commit(boolean, Set, Map)} replaces it with a new
+     * snapshot, so readers always see either all or none of the changes of an {@link Editor}.
+     * </p>
+     */
+    private volatile Map<String, String> storage = Collections.emptyMap();
 
     private CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners =
         new CopyOnWriteArrayList<OnSharedPreferenceChangeListener>();
@@ -34,11 +45,10 @@ public class Storage implements SharedPreferences {
     private int DB_VERSION = 2;
     private String DB_NAME = "preferences_storage";
 
-    private ThreadLocal<ConcurrentMap<String, String>> workingStorage
-    = new ThreadLocal<ConcurrentMap<String, String>>();
-    private ThreadLocal<SQLiteDatabase> workingDB =
-        new ThreadLocal<SQLiteDatabase>();
-    private ThreadLocal<List<String>> workingChangedKeys = new ThreadLocal<List<String>>();
+    /**
+     * Serializes commits, so one {@link Editor} can't drop the changes of another.
+     */
+    private final Object commitLock = new Object();
 
 
     private Context context = null;
@@ -179,6 +189,7 @@ public class Storage implements SharedPreferences {
         try {
             mDb = openDB();
 
+            Map<String, String> loadedValues = new HashMap<String, String>();
             cursor = mDb.rawQuery("SELECT primkey, value FROM preferences_storage", null);
             while (cursor.moveToNext()) {
                 String key = cursor.getString(0);
@@ -186,8 +197,9 @@ public class Storage implements SharedPreferences {
                 if (K9.DEBUG) {
                     Log.d(K9.LOG_TAG, "Loading key '" + key + "', value = '" + value + "'");
                 }
-                storage.put(key, value);
+                loadedValues.put(key, value);
             }
+            storage = Collections.unmodifiableMap(loadedValues);
         } finally {
             Utility.closeQuietly(cursor);
             if (mDb != null) {
@@ -203,90 +215,105 @@ public class Storage implements SharedPreferences {
         loadValues();
     }
 
-    private void keyChange(String key) {
-        List<String> changedKeys = workingChangedKeys.get();
-        if (!changedKeys.contains(key)) {
-            changedKeys.add(key);
-        }
-    }
-
-    protected void put(String key, String value) {
-        ContentValues cv = generateCV(key, value);
-        workingDB.get().insert("preferences_storage", "primkey", cv);
-        liveUpdate(key, value);
-    }
-
-    protected void put(Map<String, String> insertables) {
-        String sql = "INSERT INTO preferences_storage (primkey, value) VALUES (?, ?)";
-        SQLiteStatement stmt = workingDB.get().compileStatement(sql);
-
-        for (Map.Entry<String, String> entry : insertables.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            stmt.bindString(1, key);
-            stmt.bindString(2, value);
-            stmt.execute();
-            stmt.clearBindings();
-            liveUpdate(key, value);
-        }
-        stmt.close();
-    }
-
-    private ContentValues generateCV(String key, String value) {
-        ContentValues cv = new ContentValues();
-        cv.put("primkey", key);
-        cv.put("value", value);
-        return cv;
-    }
-
-    private void liveUpdate(String key, String value) {
-        workingStorage.get().put(key, value);
-
-        keyChange(key);
-    }
+    /**
+     * Write the changes of an {@link Editor} in one database transaction and publish them as a
+     * new snapshot.
+     *
+     * <p>
+     * Only keys that actually change are written: removals of keys that don't exist and values
+     * equal to the stored ones are skipped. If nothing changes the database isn't opened at all.
+     * Values in {@code changes} win over removals of the same key.
+     * </p>
+     */
+    void commit(boolean removeAll, Set<String> removals, Map<String, String> changes) {
+        synchronized (commitLock) {
+            Map<String, String> oldStorage = storage;
+
+            Set<String> changedKeys = new LinkedHashSet<String>();
+            List<String> deletes = new ArrayList<String>();
+            if (removeAll) {
+                changedKeys.addAll(oldStorage.keySet());
+            } else {
+                for (String key : removals) {
+                    if (oldStorage.containsKey(key) && !changes.containsKey(key)) {
+                        deletes.add(key);
+                        changedKeys.add(key);
+                    }
+                }
+            }
 
-    protected void remove(String key) {
-        workingDB.get().delete("preferences_storage", "primkey = ?", new String[] { key });
-        workingStorage.get().remove(key);
+            Map<String, String> inserts = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : changes.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                if (removeAll || !value.equals(oldStorage.get(key))) {
+                    inserts.put(key, value);
+                    changedKeys.add(key);
+                }
+            }
 
-        keyChange(key);
-    }
+            if (!removeAll && changedKeys.isEmpty()) {
+                return;
+            }
 
-    protected void removeAll() {
-        for (String key : workingStorage.get().keySet()) {
-            keyChange(key);
-        }
-        workingDB.get().execSQL("DELETE FROM preferences_storage");
-        workingStorage.get().clear();
-    }
+            SQLiteDatabase mDb = openDB();
+            try {
+                mDb.beginTransaction();
+                try {
+                    if (removeAll) {
+                        mDb.execSQL("DELETE FROM preferences_storage");
+                    } else if (!deletes.isEmpty()) {
+                        SQLiteStatement delete = mDb.compileStatement(
+                                "DELETE FROM preferences_storage WHERE primkey = ?");
+                        try {
+                            for (String key : deletes) {
+                                delete.bindString(1, key);
+                                delete.execute();
+                            }
+                        } finally {
+                            delete.close();
+                        }
+                    }
 
-    protected void doInTransaction(Runnable dbWork) {
-        ConcurrentMap<String, String> newStorage = new ConcurrentHashMap<String, String>();
-        newStorage.putAll(storage);
-        workingStorage.set(newStorage);
+                    if (!inserts.isEmpty()) {
+                        // The primary key is declared with ON CONFLICT REPLACE
+                        SQLiteStatement insert = mDb.compileStatement(
+                                "INSERT INTO preferences_storage (primkey, value) VALUES (?, ?)");
+                        try {
+                            for (Map.Entry<String, String> entry : inserts.entrySet()) {
+                                insert.bindString(1, entry.getKey());
+                                insert.bindString(2, entry.getValue());
+                                insert.execute();
+                            }
+                        } finally {
+                            insert.close();
+                        }
+                    }
 
-        SQLiteDatabase mDb = openDB();
-        workingDB.set(mDb);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+            } finally {
+                mDb.close();
+            }
 
-        List<String> changedKeys = new ArrayList<String>();
-        workingChangedKeys.set(changedKeys);
+            Map<String, String> newStorage = (removeAll) ?
+                    new HashMap<String, String>(inserts) :
+                    new HashMap<String, String>(oldStorage);
+            if (!removeAll) {
+                for (String key : deletes) {
+                    newStorage.remove(key);
+                }
+                newStorage.putAll(inserts);
+            }
+            storage = Collections.unmodifiableMap(newStorage);
 
-        mDb.beginTransaction();
-        try {
-            dbWork.run();
-            mDb.setTransactionSuccessful();
-            storage = newStorage;
             for (String changedKey : changedKeys) {
                 for (OnSharedPreferenceChangeListener listener : listeners) {
                     listener.onSharedPreferenceChanged(this, changedKey);
                 }
             }
-        } finally {
-            workingDB.remove();
-            workingStorage.remove();
-            workingChangedKeys.remove();
-            mDb.endTransaction();
-            mDb.close();
         }
     }
 
@@ -15,6 +15,7 @@ import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeUtility;
+import com.fsck.k9.mailstore.AttachmentContentStore;
 import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.mailstore.LocalStore.AttachmentInfo;
 import com.fsck.k9.mailstore.StorageManager;
@@ -292,7 +293,17 @@ public class AttachmentProvider extends ContentProvider {
         File attachmentsDir = StorageManager.getInstance(getContext()).getAttachmentDirectory(dbName,
                 account.getLocalStorageProviderId());
 
-        File file = new File(attachmentsDir, id);
+        String contentHash = null;
+        try {
+            AttachmentInfo attachmentInfo = LocalStore.getInstance(account, getContext()).getAttachmentInfo(id);
+            if (attachmentInfo != null) {
+                contentHash = attachmentInfo.contentHash;
+            }
+        } catch (MessagingException e) {
+            Log.e(K9.LOG_TAG, "Unable to retrieve LocalStore for " + account, e);
+        }
+
+        File file = AttachmentContentStore.getFile(attachmentsDir, id, contentHash);
         if (!file.exists()) {
             throw new FileNotFoundException(file.getAbsolutePath());
         }
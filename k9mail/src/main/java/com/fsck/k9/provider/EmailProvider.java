@@ -8,14 +8,13 @@ import java.util.Map;
 import com.fsck.k9.Account;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.cache.EmailProviderCacheCursor;
-import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mailstore.LockableDatabase;
 import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
 import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
 import com.fsck.k9.mailstore.UnavailableStorageException;
 import com.fsck.k9.mailstore.LocalStore;
-import com.fsck.k9.search.SqlQueryBuilder;
+import com.fsck.k9.provider.MessageQueryBuilder.KeysetPage;
 
 import android.content.ContentProvider;
 import android.content.ContentResolver;
@@ -26,7 +25,6 @@ import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
-import android.text.TextUtils;
 
 /**
  * Content Provider used to display the message list etc.
@@ -47,6 +45,26 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter that limits the number of rows returned for the {@code messages} and
+     * {@code messages/threaded} URIs.
+     *
+     * <p>
+     * Paged queries always sort by date and then by descending message ID, the sort order passed
+     * to {@link #query(Uri, String[], String, String[], String)} has to match. The next page is
+     * requested by passing the date and ID of the last row of the previous page in
+     * {@link #QUERY_PARAMETER_PAGE_AFTER_DATE} and {@link #QUERY_PARAMETER_PAGE_AFTER_ID}. Unlike
+     * {@code OFFSET} this lets SQLite seek directly to the first row of the page.
+     * </p>
+     *
+     * @see #getPageUri(Uri, int, boolean)
+     * @see #getNextPageUri(Uri, int, boolean, long, long)
+     */
+    public static final String QUERY_PARAMETER_PAGE_SIZE = "page_size";
+    public static final String QUERY_PARAMETER_PAGE_AFTER_DATE = "page_after_date";
+    public static final String QUERY_PARAMETER_PAGE_AFTER_ID = "page_after_id";
+    public static final String QUERY_PARAMETER_PAGE_DATE_ASCENDING = "page_date_ascending";
+
 
     /*
      * Constants that are used for the URI matching.
@@ -60,54 +78,6 @@ public class EmailProvider extends ContentProvider {
     private static final int STATS = STATS_BASE;
 
 
-    private static final String MESSAGES_TABLE = "messages";
-
-    private static final Map<String, String> THREAD_AGGREGATION_FUNCS = new HashMap<String, String>();
-    static {
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.DATE, "MAX");
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.INTERNAL_DATE, "MAX");
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.ATTACHMENT_COUNT, "SUM");
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.READ, "MIN");
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.FLAGGED, "MAX");
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.ANSWERED, "MIN");
-        THREAD_AGGREGATION_FUNCS.put(MessageColumns.FORWARDED, "MIN");
-    }
-
-    private static final String[] FIXUP_MESSAGES_COLUMNS = {
-        MessageColumns.ID
-    };
-
-    private static final String[] FIXUP_AGGREGATED_MESSAGES_COLUMNS = {
-        MessageColumns.DATE,
-        MessageColumns.INTERNAL_DATE,
-        MessageColumns.ATTACHMENT_COUNT,
-        MessageColumns.READ,
-        MessageColumns.FLAGGED,
-        MessageColumns.ANSWERED,
-        MessageColumns.FORWARDED
-    };
-
-    private static final String FOLDERS_TABLE = "folders";
-
-    private static final String[] FOLDERS_COLUMNS = {
-        FolderColumns.ID,
-        FolderColumns.NAME,
-        FolderColumns.LAST_UPDATED,
-        FolderColumns.UNREAD_COUNT,
-        FolderColumns.VISIBLE_LIMIT,
-        FolderColumns.STATUS,
-        FolderColumns.PUSH_STATE,
-        FolderColumns.LAST_PUSHED,
-        FolderColumns.FLAGGED_COUNT,
-        FolderColumns.INTEGRATE,
-        FolderColumns.TOP_GROUP,
-        FolderColumns.POLL_CLASS,
-        FolderColumns.PUSH_CLASS,
-        FolderColumns.DISPLAY_CLASS
-    };
-
-    private static final String THREADS_TABLE = "threads";
-
     static {
         UriMatcher matcher = sUriMatcher;
 
@@ -149,14 +119,6 @@ public class EmailProvider extends ContentProvider {
         public static final String FORWARDED = "forwarded";
     }
 
-    private interface InternalMessageColumns extends MessageColumns {
-        public static final String DELETED = "deleted";
-        public static final String EMPTY = "empty";
-        public static final String TEXT_CONTENT = "text_content";
-        public static final String HTML_CONTENT = "html_content";
-        public static final String MIME_TYPE = "mime_type";
-    }
-
     public interface FolderColumns {
         public static final String ID = "id";
         public static final String NAME = "name";
@@ -186,11 +148,6 @@ public class EmailProvider extends ContentProvider {
         public static final String FLAGGED_COUNT = "flagged_count";
     }
 
-    private static final String[] STATS_DEFAULT_PROJECTION = {
-            StatsColumns.UNREAD_COUNT,
-            StatsColumns.FLAGGED_COUNT
-    };
-
 
     private Preferences mPreferences;
 
@@ -235,12 +192,14 @@ public class EmailProvider extends ContentProvider {
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
 
+                KeysetPage page = KeysetPage.fromUri(uri);
+
                 if (match == MESSAGES) {
                     cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs,
-                            sortOrder);
+                            sortOrder, page);
                 } else if (match == MESSAGES_THREADED) {
                     cursor = getThreadedMessages(accountUuid, dbProjection, selection,
-                            selectionArgs, sortOrder);
+                            selectionArgs, sortOrder, page);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -290,69 +249,45 @@ public class EmailProvider extends ContentProvider {
         throw new RuntimeException("not implemented yet");
     }
 
+    /**
+     * Build the URI to query the first page of the messages returned for {@code uri}.
+     */
+    public static Uri getPageUri(Uri uri, int pageSize, boolean dateAscending) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_PAGE_SIZE, Integer.toString(pageSize))
+                .appendQueryParameter(QUERY_PARAMETER_PAGE_DATE_ASCENDING, Boolean.toString(dateAscending))
+                .build();
+    }
+
+    /**
+     * Build the URI to query the page of messages following the row with the given date and ID.
+     */
+    public static Uri getNextPageUri(Uri uri, int pageSize, boolean dateAscending, long lastDate,
+            long lastId) {
+        return getPageUri(uri, pageSize, dateAscending).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_PAGE_AFTER_DATE, Long.toString(lastDate))
+                .appendQueryParameter(QUERY_PARAMETER_PAGE_AFTER_ID, Long.toString(lastId))
+                .build();
+    }
+
     protected Cursor getMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final KeysetPage page) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
 
+        final String query = MessageQueryBuilder.buildMessagesQuery(projection, selection,
+                sortOrder, page);
+        final String[] args = (page != null) ? page.appendArguments(selectionArgs) : selectionArgs;
+
         try {
             return database.execute(false, new DbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
-                    String where;
-                    if (TextUtils.isEmpty(selection)) {
-                        where = InternalMessageColumns.DELETED + "=0 AND (" +
-                                InternalMessageColumns.EMPTY + " IS NULL OR " +
-                                InternalMessageColumns.EMPTY + "!=1)";
-                    } else {
-                        where = "(" + selection + ") AND " +
-                                InternalMessageColumns.DELETED + "=0 AND (" +
-                                InternalMessageColumns.EMPTY + " IS NULL OR " +
-                                InternalMessageColumns.EMPTY + "!=1)";
-                    }
-
-                    final Cursor cursor;
-                    if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
-                        StringBuilder query = new StringBuilder();
-                        query.append("SELECT ");
-                        boolean first = true;
-                        for (String columnName : projection) {
-                            if (!first) {
-                                query.append(",");
-                            } else {
-                                first = false;
-                            }
-
-                            if (MessageColumns.ID.equals(columnName)) {
-                                query.append("m.");
-                                query.append(MessageColumns.ID);
-                                query.append(" AS ");
-                                query.append(MessageColumns.ID);
-                            } else {
-                                query.append(columnName);
-                            }
-                        }
-
-                        query.append(" FROM messages m " +
-                                "JOIN threads t ON (t.message_id = m.id) " +
-                                "LEFT JOIN folders f ON (m.folder_id = f.id) " +
-                                "WHERE ");
-                        query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
-                                "m.", where));
-                        query.append(" ORDER BY ");
-                        query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
-                                "m.", sortOrder));
-
-                        cursor = db.rawQuery(query.toString(), selectionArgs);
-                    } else {
-                        cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null,
-                                null, sortOrder);
-                    }
-
-                    return cursor;
+                    return db.rawQuery(query, args);
                 }
             });
         } catch (UnavailableStorageException e) {
@@ -363,68 +298,23 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final KeysetPage page) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
 
+        final String query = MessageQueryBuilder.buildThreadedMessagesQuery(projection, selection,
+                sortOrder, page);
+        final String[] args = (page != null) ? page.appendArguments(selectionArgs) : selectionArgs;
+
         try {
             return database.execute(false, new DbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
-                    StringBuilder query = new StringBuilder();
-
-                    query.append("SELECT ");
-                    boolean first = true;
-                    for (String columnName : projection) {
-                        if (!first) {
-                            query.append(",");
-                        } else {
-                            first = false;
-                        }
-
-                        final String aggregationFunc = THREAD_AGGREGATION_FUNCS.get(columnName);
-
-                        if (MessageColumns.ID.equals(columnName)) {
-                            query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
-                        } else if (aggregationFunc != null) {
-                            query.append("a.");
-                            query.append(columnName);
-                            query.append(" AS ");
-                            query.append(columnName);
-                        } else {
-                            query.append(columnName);
-                        }
-                    }
-
-                    query.append(" FROM (");
-
-                    createThreadedSubQuery(projection, selection, selectionArgs, query);
-
-                    query.append(") a ");
-
-                    query.append("LEFT JOIN " + THREADS_TABLE + " t " +
-                            "ON (t." + ThreadColumns.ROOT + " = a.thread_root) " +
-                            "LEFT JOIN " + MESSAGES_TABLE + " m " +
-                            "ON (m." + MessageColumns.ID + " = t." + ThreadColumns.MESSAGE_ID +
-                            ") ");
-
-                    if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
-                        query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
-                                "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
-                                ") ");
-                    }
-
-                    query.append("WHERE m." + MessageColumns.DATE + " = a." + MessageColumns.DATE);
-                    if (!TextUtils.isEmpty(sortOrder)) {
-                        query.append(" ORDER BY ");
-                        query.append(SqlQueryBuilder.addPrefixToSelection(
-                                FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
-                    }
-
-                    return db.rawQuery(query.toString(), selectionArgs);
+                    return db.rawQuery(query, args);
                 }
             });
         } catch (UnavailableStorageException e) {
@@ -434,104 +324,21 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
-    private void createThreadedSubQuery(String[] projection, String selection,
-            String[] selectionArgs, StringBuilder query) {
-
-        query.append("SELECT t." + ThreadColumns.ROOT + " AS thread_root");
-        for (String columnName : projection) {
-            String aggregationFunc = THREAD_AGGREGATION_FUNCS.get(columnName);
-
-            if (SpecialColumns.THREAD_COUNT.equals(columnName)) {
-                query.append(",COUNT(t." + ThreadColumns.ROOT + ") AS " +
-                        SpecialColumns.THREAD_COUNT);
-            } else if (aggregationFunc != null) {
-                query.append(",");
-                query.append(aggregationFunc);
-                query.append("(");
-                query.append(columnName);
-                query.append(") AS ");
-                query.append(columnName);
-            } else {
-                // Skip
-            }
-        }
-
-        query.append(
-                " FROM " + MESSAGES_TABLE + " m " +
-                "LEFT JOIN " + THREADS_TABLE + " t " +
-                "ON (t." + ThreadColumns.MESSAGE_ID + " = m." + MessageColumns.ID + ")");
-
-        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
-            query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
-                    "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
-                    ")");
-        }
-
-        query.append(" WHERE " +
-                "(" + InternalMessageColumns.DELETED + " = 0 AND " +
-                "(" + InternalMessageColumns.EMPTY + " IS NULL OR " +
-                InternalMessageColumns.EMPTY + " != 1))");
-
-
-        if (!TextUtils.isEmpty(selection)) {
-            query.append(" AND (");
-            query.append(selection);
-            query.append(")");
-        }
-
-        query.append(" GROUP BY t." + ThreadColumns.ROOT);
-    }
-
     protected Cursor getThread(String accountUuid, final String[] projection, final String threadId,
             final String sortOrder) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
 
+        final String query = MessageQueryBuilder.buildThreadQuery(projection, sortOrder);
+
         try {
             return database.execute(false, new DbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
-                    StringBuilder query = new StringBuilder();
-                    query.append("SELECT ");
-                    boolean first = true;
-                    for (String columnName : projection) {
-                        if (!first) {
-                            query.append(",");
-                        } else {
-                            first = false;
-                        }
-
-                        if (MessageColumns.ID.equals(columnName)) {
-                            query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
-                        } else {
-                            query.append(columnName);
-                        }
-                    }
-
-                    query.append(" FROM " + THREADS_TABLE + " t JOIN " + MESSAGES_TABLE + " m " +
-                            "ON (m." + MessageColumns.ID + " = t." + ThreadColumns.MESSAGE_ID +
-                            ") ");
-
-                    if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
-                        query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
-                                "ON (m." + MessageColumns.FOLDER_ID +  " = f." + FolderColumns.ID +
-                                ") ");
-                    }
-
-                    query.append("WHERE " +
-                            ThreadColumns.ROOT + " = ? AND " +
-                            InternalMessageColumns.DELETED + " = 0 AND (" +
-                            InternalMessageColumns.EMPTY + " IS NULL OR " +
-                            InternalMessageColumns.EMPTY + " != 1)");
-
-                    query.append(" ORDER BY ");
-                    query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
-                            "m.", sortOrder));
-
-                    return db.rawQuery(query.toString(), new String[] { threadId });
+                    return db.rawQuery(query, new String[] { threadId });
                 }
             });
         } catch (UnavailableStorageException e) {
@@ -548,46 +355,7 @@ public class EmailProvider extends ContentProvider {
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
 
-        // Use default projection if none was given
-        String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
-
-        // Create SQL query string
-        final StringBuilder sql = new StringBuilder();
-        sql.append("SELECT ");
-
-        // Append projection for the database query
-        // e.g. "SUM(read=0) AS unread_count, SUM(flagged) AS flagged_count"
-        boolean first = true;
-        for (String columnName : sourceProjection) {
-            if (!first) {
-                sql.append(',');
-            } else {
-                first = false;
-            }
-
-            if (StatsColumns.UNREAD_COUNT.equals(columnName)) {
-                sql.append("SUM(" + MessageColumns.READ + "=0) AS " + StatsColumns.UNREAD_COUNT);
-            } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
-                sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " + StatsColumns.FLAGGED_COUNT);
-            } else {
-                throw new IllegalArgumentException("Column name not allowed: " + columnName);
-            }
-        }
-
-        // Table selection
-        sql.append(" FROM messages");
-
-        if (containsAny(selection, FOLDERS_COLUMNS)) {
-            sql.append(" JOIN folders ON (folders.id = messages.folder_id)");
-        }
-
-        // WHERE clause
-        sql.append(" WHERE (deleted=0 AND (empty IS NULL OR empty!=1))");
-        if (!TextUtils.isEmpty(selection)) {
-            sql.append(" AND (");
-            sql.append(selection);
-            sql.append(")");
-        }
+        final String query = MessageQueryBuilder.buildAccountStatsQuery(columns, selection);
 
         // Query the database and return the result cursor
         try {
@@ -596,7 +364,7 @@ public class EmailProvider extends ContentProvider {
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
-                    return db.rawQuery(sql.toString(), selectionArgs);
+                    return db.rawQuery(query, selectionArgs);
                 }
             });
         }  catch (UnavailableStorageException e) {
@@ -826,18 +594,4 @@ public class EmailProvider extends ContentProvider {
             return super.isNull(realColumnIndex);
         }
     }
-
-    private static boolean containsAny(String haystack, String[] needles) {
-        if (haystack == null) {
-            return false;
-        }
-
-        for (String needle : needles) {
-            if (haystack.contains(needle)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
 }
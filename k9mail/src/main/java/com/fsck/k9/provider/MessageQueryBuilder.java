@@ -0,0 +1,593 @@
+package com.fsck.k9.provider;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.fsck.k9.helper.Utility;
+import com.fsck.k9.provider.EmailProvider.FolderColumns;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.SpecialColumns;
+import com.fsck.k9.provider.EmailProvider.StatsColumns;
+import com.fsck.k9.provider.EmailProvider.ThreadColumns;
+import com.fsck.k9.search.SqlQueryBuilder;
+
+
+/**
+ * Builds the SQL queries executed by {@link EmailProvider}.
+ *
+ * <p>
+ * This is kept separate from the content provider so the generated queries can be checked
+ * against a database without an Android runtime.
+ * </p>
+ */
+class MessageQueryBuilder {
+    static final String MESSAGES_TABLE = "messages";
+    static final String FOLDERS_TABLE = "folders";
+    static final String THREADS_TABLE = "threads";
+    static final String THREAD_SUMMARY_TABLE = "thread_summary";
+
+    private static final Map<String, String> THREAD_AGGREGATION_FUNCS = new HashMap<String, String>();
+    static {
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.DATE, "MAX");
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.INTERNAL_DATE, "MAX");
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.ATTACHMENT_COUNT, "SUM");
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.READ, "MIN");
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.FLAGGED, "MAX");
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.ANSWERED, "MIN");
+        THREAD_AGGREGATION_FUNCS.put(MessageColumns.FORWARDED, "MIN");
+    }
+
+    private static final String[] FIXUP_MESSAGES_COLUMNS = {
+        MessageColumns.ID
+    };
+
+    private static final String[] FIXUP_AGGREGATED_MESSAGES_COLUMNS = {
+        MessageColumns.DATE,
+        MessageColumns.INTERNAL_DATE,
+        MessageColumns.ATTACHMENT_COUNT,
+        MessageColumns.READ,
+        MessageColumns.FLAGGED,
+        MessageColumns.ANSWERED,
+        MessageColumns.FORWARDED
+    };
+
+    private static final String[] FOLDERS_COLUMNS = {
+        FolderColumns.ID,
+        FolderColumns.NAME,
+        FolderColumns.LAST_UPDATED,
+        FolderColumns.UNREAD_COUNT,
+        FolderColumns.VISIBLE_LIMIT,
+        FolderColumns.STATUS,
+        FolderColumns.PUSH_STATE,
+        FolderColumns.LAST_PUSHED,
+        FolderColumns.FLAGGED_COUNT,
+        FolderColumns.INTEGRATE,
+        FolderColumns.TOP_GROUP,
+        FolderColumns.POLL_CLASS,
+        FolderColumns.PUSH_CLASS,
+        FolderColumns.DISPLAY_CLASS
+    };
+
+    private static final String[] STATS_DEFAULT_PROJECTION = {
+            StatsColumns.UNREAD_COUNT,
+            StatsColumns.FLAGGED_COUNT
+    };
+
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+    private static final Pattern FOLDER_ID_PATTERN = Pattern.compile("\\b" + MessageColumns.FOLDER_ID + "\\b");
+
+    /**
+     * Identifiers that may appear in a selection that can be evaluated against the folders table.
+     *
+     * @see #isFolderSelection(String)
+     */
+    private static final Set<String> FOLDER_SELECTION_IDENTIFIERS = new HashSet<String>(Arrays.asList(
+        "and", "or", "not", "like", "is", "null",
+        MessageColumns.FOLDER_ID,
+        FolderColumns.INTEGRATE,
+        FolderColumns.TOP_GROUP,
+        FolderColumns.POLL_CLASS,
+        FolderColumns.PUSH_CLASS,
+        FolderColumns.DISPLAY_CLASS
+    ));
+
+    private interface InternalMessageColumns extends MessageColumns {
+        public static final String DELETED = "deleted";
+        public static final String EMPTY = "empty";
+    }
+
+    /**
+     * Columns of the {@code thread_summary} table. The table also contains columns with the names
+     * of the keys in {@link #THREAD_AGGREGATION_FUNCS} and {@link SpecialColumns#THREAD_COUNT}.
+     */
+    private interface ThreadSummaryColumns {
+        public static final String ROOT = "root";
+        public static final String FOLDER_ID = "folder_id";
+    }
+
+
+    /**
+     * Build the query for the {@code messages} URI.
+     *
+     * <p>
+     * If {@code page} has a position the keyset arguments have to be appended to the selection
+     * arguments using {@link KeysetPage#appendArguments(String[])}.
+     * </p>
+     */
+    static String buildMessagesQuery(String[] projection, String selection, String sortOrder,
+            KeysetPage page) {
+
+        String where;
+        if (TextUtils.isEmpty(selection)) {
+            where = InternalMessageColumns.DELETED + "=0 AND (" +
+                    InternalMessageColumns.EMPTY + " IS NULL OR " +
+                    InternalMessageColumns.EMPTY + "!=1)";
+        } else {
+            where = "(" + selection + ") AND " +
+                    InternalMessageColumns.DELETED + "=0 AND (" +
+                    InternalMessageColumns.EMPTY + " IS NULL OR " +
+                    InternalMessageColumns.EMPTY + "!=1)";
+        }
+
+        if (page != null && page.hasPosition()) {
+            where += " AND " + page.getCondition(MessageColumns.DATE, MessageColumns.ID);
+        }
+
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT ");
+        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
+            boolean first = true;
+            for (String columnName : projection) {
+                if (!first) {
+                    query.append(",");
+                } else {
+                    first = false;
+                }
+
+                if (MessageColumns.ID.equals(columnName)) {
+                    query.append("m.");
+                    query.append(MessageColumns.ID);
+                    query.append(" AS ");
+                    query.append(MessageColumns.ID);
+                } else {
+                    query.append(columnName);
+                }
+            }
+
+            query.append(" FROM messages m " +
+                    "JOIN threads t ON (t.message_id = m.id) " +
+                    "JOIN folders f ON (m.folder_id = f.id) " +
+                    "WHERE ");
+            query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
+                    "m.", where));
+            query.append(" ORDER BY ");
+            query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
+                    "m.", sortOrder));
+        } else {
+            query.append(Utility.combine(projection, ','));
+            query.append(" FROM " + MESSAGES_TABLE + " WHERE ");
+            query.append(where);
+            if (!TextUtils.isEmpty(sortOrder)) {
+                query.append(" ORDER BY ");
+                query.append(sortOrder);
+            }
+        }
+
+        if (page != null) {
+            query.append(" LIMIT ");
+            query.append(page.size);
+        }
+
+        return query.toString();
+    }
+
+    /**
+     * Build the query for the {@code messages/threaded} URI.
+     *
+     * @see #buildMessagesQuery(String[], String, String, KeysetPage)
+     */
+    static String buildThreadedMessagesQuery(String[] projection, String selection,
+            String sortOrder, KeysetPage page) {
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT ");
+        boolean first = true;
+        for (String columnName : projection) {
+            if (!first) {
+                query.append(",");
+            } else {
+                first = false;
+            }
+
+            final String aggregationFunc = THREAD_AGGREGATION_FUNCS.get(columnName);
+
+            if (MessageColumns.ID.equals(columnName)) {
+                query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
+            } else if (aggregationFunc != null) {
+                query.append("a.");
+                query.append(columnName);
+                query.append(" AS ");
+                query.append(columnName);
+            } else {
+                query.append(columnName);
+            }
+        }
+
+        query.append(" FROM (");
+
+        createThreadedSubQuery(projection, selection, query);
+
+        query.append(") a ");
+
+        query.append("LEFT JOIN " + THREADS_TABLE + " t " +
+                "ON (t." + ThreadColumns.ROOT + " = a.thread_root) " +
+                "LEFT JOIN " + MESSAGES_TABLE + " m " +
+                "ON (m." + MessageColumns.ID + " = t." + ThreadColumns.MESSAGE_ID +
+                ") ");
+
+        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
+            query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
+                    "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
+                    ") ");
+        }
+
+        query.append("WHERE m." + MessageColumns.DATE + " = a." + MessageColumns.DATE);
+
+        if (page != null && page.hasPosition()) {
+            query.append(" AND ");
+            query.append(page.getCondition("a." + MessageColumns.DATE,
+                    "m." + MessageColumns.ID));
+        }
+
+        if (!TextUtils.isEmpty(sortOrder)) {
+            query.append(" ORDER BY ");
+            query.append(SqlQueryBuilder.addPrefixToSelection(
+                    FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
+        }
+
+        if (page != null) {
+            query.append(" LIMIT ");
+            query.append(page.size);
+        }
+
+        return query.toString();
+    }
+
+    private static void createThreadedSubQuery(String[] projection, String selection,
+            StringBuilder query) {
+
+        if (isFolderSelection(selection)) {
+            createThreadSummarySubQuery(projection, selection, query);
+            return;
+        }
+
+        query.append("SELECT t." + ThreadColumns.ROOT + " AS thread_root");
+        for (String columnName : projection) {
+            String aggregationFunc = THREAD_AGGREGATION_FUNCS.get(columnName);
+
+            if (SpecialColumns.THREAD_COUNT.equals(columnName)) {
+                query.append(",COUNT(t." + ThreadColumns.ROOT + ") AS " +
+                        SpecialColumns.THREAD_COUNT);
+            } else if (aggregationFunc != null) {
+                query.append(",");
+                query.append(aggregationFunc);
+                query.append("(");
+                query.append(columnName);
+                query.append(") AS ");
+                query.append(columnName);
+            } else {
+                // Skip
+            }
+        }
+
+        query.append(
+                " FROM " + MESSAGES_TABLE + " m " +
+                "LEFT JOIN " + THREADS_TABLE + " t " +
+                "ON (t." + ThreadColumns.MESSAGE_ID + " = m." + MessageColumns.ID + ")");
+
+        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
+            query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
+                    "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID +
+                    ")");
+        }
+
+        query.append(" WHERE " +
+                "(" + InternalMessageColumns.DELETED + " = 0 AND " +
+                "(" + InternalMessageColumns.EMPTY + " IS NULL OR " +
+                InternalMessageColumns.EMPTY + " != 1))");
+
+
+        if (!TextUtils.isEmpty(selection)) {
+            query.append(" AND (");
+            query.append(selection);
+            query.append(")");
+        }
+
+        query.append(" GROUP BY t." + ThreadColumns.ROOT);
+    }
+
+    /**
+     * Select the aggregated thread values from the {@code thread_summary} table.
+     *
+     * <p>
+     * The table is maintained by triggers and contains the aggregates over all messages of a
+     * thread. All messages of a thread are located in the same folder. So as long as the
+     * selection only restricts the set of folders, this returns the same result as the
+     * aggregation done by {@link #createThreadedSubQuery(String[], String, StringBuilder)}.
+     * </p>
+     */
+    private static void createThreadSummarySubQuery(String[] projection, String selection,
+            StringBuilder query) {
+
+        query.append("SELECT s." + ThreadSummaryColumns.ROOT + " AS thread_root");
+        for (String columnName : projection) {
+            if (SpecialColumns.THREAD_COUNT.equals(columnName) ||
+                    THREAD_AGGREGATION_FUNCS.containsKey(columnName)) {
+                query.append(",s.");
+                query.append(columnName);
+                query.append(" AS ");
+                query.append(columnName);
+            }
+        }
+
+        query.append(" FROM " + THREAD_SUMMARY_TABLE + " s");
+
+        if (containsAny(selection, FOLDERS_COLUMNS)) {
+            query.append(" LEFT JOIN " + FOLDERS_TABLE + " f " +
+                    "ON (s." + ThreadSummaryColumns.FOLDER_ID + " = f." + FolderColumns.ID + ")");
+        }
+
+        if (!TextUtils.isEmpty(selection)) {
+            query.append(" WHERE (");
+            query.append(selection);
+            query.append(")");
+        }
+    }
+
+    /**
+     * Build the query for the {@code thread/#} URI. The only argument is the thread root.
+     */
+    static String buildThreadQuery(String[] projection, String sortOrder) {
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT ");
+        boolean first = true;
+        for (String columnName : projection) {
+            if (!first) {
+                query.append(",");
+            } else {
+                first = false;
+            }
+
+            if (MessageColumns.ID.equals(columnName)) {
+                query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
+            } else {
+                query.append(columnName);
+            }
+        }
+
+        query.append(" FROM " + THREADS_TABLE + " t JOIN " + MESSAGES_TABLE + " m " +
+                "ON (m." + MessageColumns.ID + " = t." + ThreadColumns.MESSAGE_ID +
+                ") ");
+
+        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
+            query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
+                    "ON (m." + MessageColumns.FOLDER_ID +  " = f." + FolderColumns.ID +
+                    ") ");
+        }
+
+        query.append("WHERE " +
+                ThreadColumns.ROOT + " = ? AND " +
+                InternalMessageColumns.DELETED + " = 0 AND (" +
+                InternalMessageColumns.EMPTY + " IS NULL OR " +
+                InternalMessageColumns.EMPTY + " != 1)");
+
+        query.append(" ORDER BY ");
+        query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
+                "m.", sortOrder));
+
+        return query.toString();
+    }
+
+    /**
+     * Build the query for the {@code stats} URI.
+     */
+    static String buildAccountStatsQuery(String[] columns, String selection) {
+        // Use default projection if none was given
+        String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
+
+        // Create SQL query string
+        final StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ");
+
+        // If the selection only restricts the set of folders we can sum up the per-folder counters
+        // instead of counting the messages.
+        boolean useFolderCounts = isFolderSelection(selection);
+
+        // Append projection for the database query
+        // e.g. "SUM(read=0) AS unread_count, SUM(flagged) AS flagged_count"
+        boolean first = true;
+        for (String columnName : sourceProjection) {
+            if (!first) {
+                sql.append(',');
+            } else {
+                first = false;
+            }
+
+            if (StatsColumns.UNREAD_COUNT.equals(columnName)) {
+                if (useFolderCounts) {
+                    sql.append("SUM(" + FolderColumns.UNREAD_COUNT + ") AS " + StatsColumns.UNREAD_COUNT);
+                } else {
+                    sql.append("SUM(" + MessageColumns.READ + "=0) AS " + StatsColumns.UNREAD_COUNT);
+                }
+            } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
+                if (useFolderCounts) {
+                    sql.append("SUM(" + FolderColumns.FLAGGED_COUNT + ") AS " + StatsColumns.FLAGGED_COUNT);
+                } else {
+                    sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " + StatsColumns.FLAGGED_COUNT);
+                }
+            } else {
+                throw new IllegalArgumentException("Column name not allowed: " + columnName);
+            }
+        }
+
+        if (useFolderCounts) {
+            sql.append(" FROM folders");
+
+            if (!TextUtils.isEmpty(selection)) {
+                sql.append(" WHERE (");
+                sql.append(FOLDER_ID_PATTERN.matcher(selection).replaceAll(FolderColumns.ID));
+                sql.append(")");
+            }
+        } else {
+            // Table selection
+            sql.append(" FROM messages");
+
+            if (containsAny(selection, FOLDERS_COLUMNS)) {
+                sql.append(" JOIN folders ON (folders.id = messages.folder_id)");
+            }
+
+            // WHERE clause
+            sql.append(" WHERE (deleted=0 AND (empty IS NULL OR empty!=1))");
+            if (!TextUtils.isEmpty(selection)) {
+                sql.append(" AND (");
+                sql.append(selection);
+                sql.append(")");
+            }
+        }
+
+        return sql.toString();
+    }
+
+    /**
+     * Check whether a selection only contains conditions on folders.
+     *
+     * @return {@code true} if every identifier in {@code selection} is either an SQL keyword,
+     *         {@link MessageColumns#FOLDER_ID}, or a column of the folders table that doesn't
+     *         also exist in the messages table.
+     */
+    static boolean isFolderSelection(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return true;
+        }
+
+        Matcher matcher = IDENTIFIER_PATTERN.matcher(selection);
+        while (matcher.find()) {
+            String identifier = matcher.group().toLowerCase(Locale.US);
+            if (!FOLDER_SELECTION_IDENTIFIERS.contains(identifier)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean containsAny(String haystack, String[] needles) {
+        if (haystack == null) {
+            return false;
+        }
+
+        for (String needle : needles) {
+            if (haystack.contains(needle)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The page of a keyset-paginated messages query.
+     *
+     * @see EmailProvider#QUERY_PARAMETER_PAGE_SIZE
+     */
+    static class KeysetPage {
+        final int size;
+        final boolean dateAscending;
+        final String afterDate;
+        final String afterId;
+
+        KeysetPage(int size, boolean dateAscending, String afterDate, String afterId) {
+            this.size = size;
+            this.dateAscending = dateAscending;
+            this.afterDate = afterDate;
+            this.afterId = afterId;
+        }
+
+        /**
+         * Read the page from the query parameters of {@code uri}.
+         *
+         * @return The requested page or {@code null} if the query isn't paginated.
+         */
+        static KeysetPage fromUri(Uri uri) {
+            String size = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_SIZE);
+            if (size == null) {
+                return null;
+            }
+
+            String afterDate = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_AFTER_DATE);
+            String afterId = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_AFTER_ID);
+            if ((afterDate == null) != (afterId == null)) {
+                throw new IllegalArgumentException("Incomplete page position: " + uri);
+            }
+
+            try {
+                return new KeysetPage(Integer.parseInt(size),
+                        Boolean.parseBoolean(uri.getQueryParameter(
+                                EmailProvider.QUERY_PARAMETER_PAGE_DATE_ASCENDING)),
+                        (afterDate != null) ? Long.toString(Long.parseLong(afterDate)) : null,
+                        (afterId != null) ? Long.toString(Long.parseLong(afterId)) : null);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page parameters: " + uri, e);
+            }
+        }
+
+        boolean hasPosition() {
+            return afterDate != null;
+        }
+
+        /**
+         * Condition selecting the rows that follow the last row of the previous page when sorting
+         * by {@code dateColumn} and then by descending {@code idColumn}.
+         *
+         * <p>
+         * The redundant bound on {@code dateColumn} lets SQLite start reading an index on the date
+         * column at the page position instead of filtering all rows before it.
+         * </p>
+         */
+        String getCondition(String dateColumn, String idColumn) {
+            return dateColumn + (dateAscending ? " >= ?" : " <= ?") + " AND (" +
+                    dateColumn + (dateAscending ? " > ?" : " < ?") + " OR " +
+                    idColumn + " < ?)";
+        }
+
+        /**
+         * Append the arguments of {@link #getCondition(String, String)} to the selection
+         * arguments. Returns {@code selectionArgs} if the page has no position.
+         */
+        String[] appendArguments(String[] selectionArgs) {
+            if (!hasPosition()) {
+                return selectionArgs;
+            }
+
+            int length = (selectionArgs != null) ? selectionArgs.length : 0;
+            String[] args = new String[length + 3];
+            if (selectionArgs != null) {
+                System.arraycopy(selectionArgs, 0, args, 0, length);
+            }
+            args[length] = afterDate;
+            args[length + 1] = afterDate;
+            args[length + 2] = afterId;
+            return args;
+        }
+    }
+}
@@ -37,6 +37,10 @@ public class BootReceiver extends CoreReceiver {
         } else if (Intent.ACTION_DEVICE_STORAGE_OK.equals(action)) {
             MailService.actionReset(context, tmpWakeLockId);
             tmpWakeLockId = null;
+        } else if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+            MaintenanceService.scheduleMaintenance(context);
+        } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+            MaintenanceService.cancelMaintenance(context);
         } else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
             MailService.connectivityChange(context, tmpWakeLockId);
             tmpWakeLockId = null;
@@ -197,8 +197,8 @@ public class DatabaseUpgradeService extends Service {
             sendProgressBroadcast(mAccountUuid, mProgress, mProgressEnd);
 
             try {
-                // Account.getLocalStore() is blocking and will upgrade the database if necessary
-                account.getLocalStore();
+                // LocalStore.open() is blocking and will upgrade the database if necessary
+                account.getLocalStore().open();
             } catch (UnavailableStorageException e) {
                 Log.e(K9.LOG_TAG, "Database unavailable");
             } catch (Exception e) {
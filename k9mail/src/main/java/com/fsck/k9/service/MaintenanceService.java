@@ -0,0 +1,200 @@
+package com.fsck.k9.service;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mailstore.LocalStore;
+
+/**
+ * Keeps the account databases compact and fast while the device is charging and not in use.
+ *
+ * <p>
+ * When the device is connected to power {@link BootReceiver} schedules a maintenance run a few
+ * minutes later. The run consists of short steps:
+ * <ul>
+ * <li>switch the database to {@code auto_vacuum=INCREMENTAL} (once)</li>
+ * <li>return free pages to the file system, {@link #PAGES_PER_STEP} pages at a time</li>
+ * <li>update the query planner statistics with {@code ANALYZE}</li>
+ * <li>rebuild the indexes one by one (at most once per {@link #REINDEX_INTERVAL})</li>
+ * <li>delete attachment files that are no longer referenced</li>
+ * </ul>
+ * Between the steps other database users, e.g. synchronization, get their turn. If the device
+ * is unplugged or the screen is turned on the run stops and is tried again later.
+ * </p>
+ */
+public class MaintenanceService extends CoreService {
+    private static final String ACTION_RUN_MAINTENANCE =
+            "com.fsck.k9.service.MaintenanceService.runMaintenance";
+
+    private static final String LAST_MAINTENANCE = "MaintenanceService.lastMaintenance";
+    private static final String LAST_REINDEX = "MaintenanceService.lastReindex";
+
+    private static final long MAINTENANCE_INTERVAL = 24 * 60 * 60 * 1000L;
+    private static final long REINDEX_INTERVAL = 7 * MAINTENANCE_INTERVAL;
+
+    /**
+     * Delay between connecting power (or an interrupted run) and the next attempt.
+     */
+    private static final long MAINTENANCE_DELAY = 15 * 60 * 1000L;
+
+    /**
+     * Maximum number of database pages to free in one step.
+     */
+    private static final int PAGES_PER_STEP = 256;
+
+
+    public static void scheduleMaintenance(Context context) {
+        BootReceiver.scheduleIntent(context, System.currentTimeMillis() + MAINTENANCE_DELAY,
+                createIntent(context));
+    }
+
+    public static void cancelMaintenance(Context context) {
+        BootReceiver.cancelIntent(context, createIntent(context));
+    }
+
+    private static Intent createIntent(Context context) {
+        Intent i = new Intent();
+        i.setClassName(context.getPackageName(), "com.fsck.k9.service.MaintenanceService");
+        i.setAction(ACTION_RUN_MAINTENANCE);
+        return i;
+    }
+
+    /**
+     * Returns {@code true} if the device is connected to power and the screen is off.
+     */
+    private static boolean isChargingAndIdle(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return isCharging(context) && !powerManager.isScreenOn();
+    }
+
+    private static boolean isCharging(Context context) {
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the current state right away
+        Intent batteryStatus = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return (batteryStatus != null &&
+                batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+    }
+
+
+    @Override
+    public int startService(Intent intent, int startId) {
+        if (!ACTION_RUN_MAINTENANCE.equals(intent.getAction())) {
+            return START_NOT_STICKY;
+        }
+
+        final SharedPreferences prefs = Preferences.getPreferences(this).getPreferences();
+        final long now = System.currentTimeMillis();
+        if (now - prefs.getLong(LAST_MAINTENANCE, 0) < MAINTENANCE_INTERVAL) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "MaintenanceService: maintenance not due yet");
+            return START_NOT_STICKY;
+        }
+
+        if (!isChargingAndIdle(this)) {
+            rescheduleIfCharging();
+            return START_NOT_STICKY;
+        }
+
+        execute(getApplication(), new Runnable() {
+            @Override
+            public void run() {
+                boolean reindex = (now - prefs.getLong(LAST_REINDEX, 0) >= REINDEX_INTERVAL);
+
+                if (runMaintenance(reindex)) {
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(LAST_MAINTENANCE, now);
+                    if (reindex) {
+                        editor.putLong(LAST_REINDEX, now);
+                    }
+                    editor.commit();
+                } else {
+                    rescheduleIfCharging();
+                }
+            }
+        }, K9.WAKE_LOCK_TIMEOUT, startId);
+
+        return START_NOT_STICKY;
+    }
+
+    private void rescheduleIfCharging() {
+        if (isCharging(this)) {
+            scheduleMaintenance(this);
+        }
+    }
+
+    /**
+     * @return {@code true} if all steps have been run. {@code false} if maintenance was
+     *         interrupted.
+     */
+    private boolean runMaintenance(boolean reindex) {
+        for (Account account : Preferences.getPreferences(this).getAvailableAccounts()) {
+            try {
+                if (!runMaintenance(account, reindex)) {
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "MaintenanceService: interrupted, device in use");
+                    return false;
+                }
+            } catch (MessagingException e) {
+                Log.e(K9.LOG_TAG, "Maintenance of account " + account.getDescription() +
+                        " failed", e);
+            }
+        }
+        return true;
+    }
+
+    private boolean runMaintenance(Account account, boolean reindex) throws MessagingException {
+        LocalStore localStore = account.getLocalStore();
+
+        if (!localStore.isIncrementalVacuumEnabled()) {
+            if (K9.DEBUG)
+                Log.i(K9.LOG_TAG, "Enabling incremental vacuum for " + account.getDescription());
+            localStore.enableIncrementalVacuum();
+        }
+
+        int freePages = Integer.MAX_VALUE;
+        while (true) {
+            if (!isChargingAndIdle(this)) {
+                return false;
+            }
+
+            int remaining = localStore.reclaimFreePages(PAGES_PER_STEP);
+            if (remaining == 0 || remaining >= freePages) {
+                break;
+            }
+            freePages = remaining;
+        }
+
+        if (!isChargingAndIdle(this)) {
+            return false;
+        }
+        localStore.analyze();
+
+        if (reindex) {
+            List<String> indexNames = localStore.getIndexNames();
+            for (String indexName : indexNames) {
+                if (!isChargingAndIdle(this)) {
+                    return false;
+                }
+                localStore.reindex(indexName);
+            }
+        }
+
+        if (!isChargingAndIdle(this)) {
+            return false;
+        }
+        localStore.purgeOrphanedAttachments();
+
+        return true;
+    }
+}
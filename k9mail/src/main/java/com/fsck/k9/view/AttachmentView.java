@@ -41,11 +41,11 @@ import com.fsck.k9.helper.SizeFormatter;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.filter.FileChannelCopier;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mailstore.LocalAttachmentBodyPart;
 import com.fsck.k9.provider.AttachmentProvider;
-import org.apache.commons.io.IOUtils;
 
 
 public class AttachmentView extends FrameLayout implements OnClickListener, OnLongClickListener {
@@ -252,7 +252,7 @@ public class AttachmentView extends FrameLayout implements OnClickListener, OnLo
         try {
             OutputStream out = new FileOutputStream(file);
             try {
-                IOUtils.copy(in, out);
+                FileChannelCopier.copy(in, out);
                 out.flush();
             } finally {
                 out.close();
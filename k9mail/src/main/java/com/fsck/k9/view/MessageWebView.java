@@ -12,6 +12,7 @@ import com.fsck.k9.K9;
 import com.fsck.k9.R;
 import com.fsck.k9.helper.HtmlConverter;
 import com.fsck.k9.helper.HtmlSanitizer;
+import com.fsck.k9.helper.SanitizedHtmlCache;
 
 
 public class MessageWebView extends RigidWebView {
@@ -115,6 +116,22 @@ public class MessageWebView extends RigidWebView {
      *      The message body to display.  Assumed to be MIME type text/html.
      */
     public void setText(String text) {
+        setText(text, 0, false);
+    }
+
+    /**
+     * Load the body of a stored message into a {@code MessageWebView}.
+     *
+     * @param text
+     *      The message body to display.  Assumed to be MIME type text/html.
+     * @param messageId
+     *      The database ID of the message. The sanitized HTML is cached by this ID. {@code 0} if
+     *      the text doesn't belong to a stored message.
+     * @param sanitized
+     *      {@code true} if {@code text} has already been sanitized with the current
+     *      {@link HtmlSanitizer#VERSION}. Only the header and footer are added then.
+     */
+    public void setText(String text, long messageId, boolean sanitized) {
      // Include a meta tag so the WebView will not use a fixed viewport width of 980 px
         String content = "<html><head><meta name=\"viewport\" content=\"width=device-width\"/>";
         if (K9.getK9MessageViewTheme() == K9.Theme.DARK)  {
@@ -126,7 +143,16 @@ public class MessageWebView extends RigidWebView {
         content += HtmlConverter.cssStylePre();
         content += "</head><body>" + text + "</body></html>";
 
-        String sanitizedContent = HtmlSanitizer.sanitize(content);
+        String sanitizedContent;
+        if (sanitized) {
+            // The header and footer are ours. The WebView merges the sanitized document's
+            // own HTML, HEAD and BODY elements into them.
+            sanitizedContent = content;
+        } else if (messageId != 0) {
+            sanitizedContent = SanitizedHtmlCache.getInstance().sanitize(messageId, content);
+        } else {
+            sanitizedContent = HtmlSanitizer.sanitize(content);
+        }
         loadDataWithBaseURL("http://", sanitizedContent, "text/html", "utf-8", null);
         resumeTimers();
     }
@@ -55,12 +55,12 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Multipart;
 import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.filter.FileChannelCopier;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mailstore.LocalAttachmentBodyPart;
 import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.provider.AttachmentProvider.AttachmentProviderColumns;
 
-import org.apache.commons.io.IOUtils;
 
 
 public class SingleMessageView extends LinearLayout implements OnClickListener,
@@ -107,6 +107,8 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
     private SavedState mSavedState;
     private ClipboardManager mClipboardManager;
     private String mText;
+    private long mTextMessageId;
+    private boolean mTextSanitized;
 
 
     public void initialize(Fragment fragment) {
@@ -393,7 +395,7 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
                 // Allow network access first...
                 setLoadPictures(true);
                 // ...then re-populate the WebView with the message text
-                loadBodyFromText(mText);
+                mMessageContentView.setText(mText, mTextMessageId, mTextSanitized);
                 break;
             }
         }
@@ -504,6 +506,8 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         resetView();
 
         String text = null;
+        long messageId = 0;
+        boolean sanitized = false;
         if (pgpData != null) {
             text = pgpData.getDecryptedData();
             if (text != null) {
@@ -512,11 +516,21 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         }
 
         if (text == null) {
+            // Decrypted text isn't cached, so only the stored message body gets an ID
             text = message.getTextForDisplay();
+            messageId = message.getId();
+
+            String sanitizedText = message.getSanitizedHtml(text);
+            if (sanitizedText != null) {
+                text = sanitizedText;
+                sanitized = true;
+            }
         }
 
         // Save the text so we can reset the WebView when the user clicks the "Show pictures" button
         mText = text;
+        mTextMessageId = messageId;
+        mTextSanitized = sanitized;
 
         mHasAttachments = message.hasAttachments();
 
@@ -567,7 +581,7 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
         }
 
         if (text != null) {
-            loadBodyFromText(text);
+            mMessageContentView.setText(text, mTextMessageId, mTextSanitized);
             mOpenPgpView.updateLayout(account, pgpData.getDecryptedData(),
                     pgpData.getSignatureResult(), message);
         } else {
@@ -839,7 +853,7 @@ public class SingleMessageView extends LinearLayout implements OnClickListener,
                     File file = FileHelper.createUniqueFile(directory, sanitized);
                     FileOutputStream out = new FileOutputStream(file);
                     try {
-                        IOUtils.copy(in, out);
+                        FileChannelCopier.copy(in, out);
                         out.flush();
                     } finally {
                         out.close();
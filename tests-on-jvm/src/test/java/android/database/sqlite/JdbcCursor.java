@@ -0,0 +1,263 @@
+package android.database.sqlite;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * A {@link Cursor} over the rows of a JDBC {@link ResultSet}, read into memory up front.
+ */
+class JdbcCursor implements Cursor {
+    private final String[] mColumnNames;
+    private final List<Object[]> mRows = new ArrayList<Object[]>();
+    private int mPosition = -1;
+    private boolean mClosed;
+
+
+    /**
+     * @param result
+     *         The rows of the cursor. {@code null} for a cursor without rows and columns.
+     */
+    JdbcCursor(ResultSet result) throws SQLException {
+        if (result == null) {
+            mColumnNames = new String[0];
+            return;
+        }
+
+        ResultSetMetaData metaData = result.getMetaData();
+        mColumnNames = new String[metaData.getColumnCount()];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mColumnNames[i] = metaData.getColumnLabel(i + 1);
+        }
+
+        while (result.next()) {
+            Object[] row = new Object[mColumnNames.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = result.getObject(i + 1);
+            }
+            mRows.add(row);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        mPosition = Math.max(-1, Math.min(position, mRows.size()));
+        return (mPosition >= 0 && mPosition < mRows.size());
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(mRows.size() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return (!mRows.isEmpty() && mPosition == 0);
+    }
+
+    @Override
+    public boolean isLast() {
+        return (!mRows.isEmpty() && mPosition == mRows.size() - 1);
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return (mRows.isEmpty() || mPosition == -1);
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return (mRows.isEmpty() || mPosition == mRows.size());
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return Arrays.asList(mColumnNames).indexOf(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index == -1) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return mColumnNames[columnIndex];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames.clone();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    private Object get(int columnIndex) {
+        return mRows.get(mPosition)[columnIndex];
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return (byte[]) get(columnIndex);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        Object value = get(columnIndex);
+        return (value == null) ? null : value.toString();
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        Object value = get(columnIndex);
+        return (value == null) ? 0 : ((Number) value).longValue();
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        Object value = get(columnIndex);
+        return (value == null) ? 0 : ((Number) value).doubleValue();
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        } else if (value instanceof Double || value instanceof Float) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof Number) {
+            return FIELD_TYPE_INTEGER;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return get(columnIndex) == null;
+    }
+
+    @Override
+    public void deactivate() {
+    }
+
+    @Override
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver cr, Uri uri) {
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return null;
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return null;
+    }
+}
@@ -0,0 +1,67 @@
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import android.database.Cursor;
+
+/**
+ * Runs the statements of the database code against a JDBC connection.
+ */
+public class SQLiteDatabase {
+    private final Connection mConnection;
+    private int mVersion;
+
+    public SQLiteDatabase(Connection connection) {
+        mConnection = connection;
+    }
+
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    public void execSQL(String sql) {
+        try {
+            Statement statement = mConnection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(sql, e);
+        }
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        statement.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+                // Statements like "PRAGMA incremental_vacuum" don't return a result set
+                if (!statement.execute()) {
+                    return new JdbcCursor(null);
+                }
+                return new JdbcCursor(statement.getResultSet());
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(sql, e);
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public void setVersion(int version) {
+        mVersion = version;
+    }
+}
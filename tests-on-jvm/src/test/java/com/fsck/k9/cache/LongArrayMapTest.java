@@ -0,0 +1,115 @@
+package com.fsck.k9.cache;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class LongArrayMapTest {
+    private static final LongArrayMap.Updater INCREMENT = new LongArrayMap.Updater() {
+        @Override
+        public long apply(long key, long oldValue) {
+            return oldValue + 1;
+        }
+    };
+
+    private static final LongArrayMap.Updater REMOVE = new LongArrayMap.Updater() {
+        @Override
+        public long apply(long key, long oldValue) {
+            return 0;
+        }
+    };
+
+
+    @Test
+    public void testGetMissingKey() {
+        assertEquals(0, LongArrayMap.EMPTY.get(42));
+    }
+
+    @Test
+    public void testUpdateCallsUpdaterOncePerKey() {
+        LongArrayMap map = LongArrayMap.EMPTY.update(new long[] { 3, 1, 3 }, INCREMENT);
+
+        assertEquals(2, map.size());
+        assertEquals(1, map.get(1));
+        assertEquals(1, map.get(3));
+    }
+
+    @Test
+    public void testUpdateMergesWithExistingEntries() {
+        LongArrayMap map = LongArrayMap.EMPTY.update(new long[] { 2, 4 }, INCREMENT);
+
+        map = map.update(new long[] { 4, 1, 5 }, INCREMENT);
+
+        assertEquals(4, map.size());
+        assertEquals(1, map.keyAt(0));
+        assertEquals(2, map.keyAt(1));
+        assertEquals(4, map.keyAt(2));
+        assertEquals(5, map.keyAt(3));
+        assertEquals(2, map.get(4));
+        assertEquals(1, map.get(2));
+    }
+
+    @Test
+    public void testUpdateDoesNotModifyOriginal() {
+        LongArrayMap original = LongArrayMap.EMPTY.update(new long[] { 1 }, INCREMENT);
+
+        original.update(new long[] { 1, 2 }, INCREMENT);
+
+        assertEquals(1, original.size());
+        assertEquals(1, original.get(1));
+    }
+
+    @Test
+    public void testZeroValueRemovesEntry() {
+        LongArrayMap map = LongArrayMap.EMPTY.update(new long[] { 1, 2 }, INCREMENT);
+
+        map = map.update(new long[] { 1 }, REMOVE);
+        assertEquals(1, map.size());
+        assertEquals(0, map.get(1));
+
+        map = map.update(new long[] { 2 }, REMOVE);
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testUpdateWithoutKeysReturnsSameMap() {
+        LongArrayMap map = LongArrayMap.EMPTY.update(new long[] { 1 }, INCREMENT);
+
+        assertSame(map, map.update(new long[0], INCREMENT));
+    }
+
+    @Test
+    public void testOfUsesLastValueOfDuplicateKey() {
+        LongArrayMap map = LongArrayMap.of(new long[] { 7, 3, 7 }, new long[] { 1, 2, 3 });
+
+        assertEquals(2, map.size());
+        assertEquals(2, map.get(3));
+        assertEquals(3, map.get(7));
+    }
+
+    @Test
+    public void testOfSortsLargeInput() {
+        int size = 1000;
+        long[] keys = new long[size * 2];
+        long[] values = new long[size * 2];
+        for (int i = 0; i < size; i++) {
+            long key = (i * 7919L) % size;
+            keys[i] = key;
+            values[i] = -1;
+            keys[size + i] = key;
+            values[size + i] = key + 1;
+        }
+
+        LongArrayMap map = LongArrayMap.of(keys, values);
+
+        assertEquals(size, map.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(i, map.keyAt(i));
+            assertEquals(i + 1, map.valueAt(i));
+        }
+    }
+}
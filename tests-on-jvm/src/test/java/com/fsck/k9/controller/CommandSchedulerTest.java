@@ -0,0 +1,182 @@
+package com.fsck.k9.controller;
+
+
+import java.util.List;
+
+import com.fsck.k9.controller.CommandScheduler.Command;
+import com.fsck.k9.controller.CommandScheduler.LaneStats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class CommandSchedulerTest {
+    private static final String ACCOUNT_1 = "account1";
+    private static final String ACCOUNT_2 = "account2";
+
+    private final CommandScheduler scheduler = new CommandScheduler();
+
+
+    @Test
+    public void testLaneRunsOneCommandAtATime() throws Exception {
+        Command first = put(ACCOUNT_1, false);
+        Command second = put(ACCOUNT_1, false);
+
+        assertSame(first, scheduler.take());
+        assertNull(tryTake());
+
+        scheduler.complete(first);
+        assertSame(second, scheduler.take());
+    }
+
+    @Test
+    public void testDifferentAccountsRunInParallel() throws Exception {
+        Command first = put(ACCOUNT_1, false);
+        Command second = put(ACCOUNT_2, false);
+
+        assertSame(first, scheduler.take());
+        assertSame(second, scheduler.take());
+    }
+
+    @Test
+    public void testLanesTakeTurns() throws Exception {
+        Command a1 = put(ACCOUNT_1, false);
+        Command a2 = put(ACCOUNT_1, false);
+        Command b1 = put(ACCOUNT_2, false);
+
+        assertSame(a1, scheduler.take());
+        scheduler.complete(a1);
+
+        assertSame(b1, scheduler.take());
+        scheduler.complete(b1);
+
+        assertSame(a2, scheduler.take());
+    }
+
+    @Test
+    public void testForegroundCommandsFirst() throws Exception {
+        Command background = put(ACCOUNT_1, false);
+        Command foreground = put(ACCOUNT_2, true);
+
+        assertSame(foreground, scheduler.take());
+        assertSame(background, scheduler.take());
+    }
+
+    @Test
+    public void testGlobalCommandWaitsForEarlierCommands() throws Exception {
+        Command account = put(ACCOUNT_1, false);
+        Command global = put(null, false);
+        Command later = put(ACCOUNT_2, false);
+
+        assertSame(account, scheduler.take());
+        // The global command has to wait for the running one, the later one for the global one
+        assertNull(tryTake());
+
+        scheduler.complete(account);
+        assertSame(global, scheduler.take());
+        assertNull(tryTake());
+
+        scheduler.complete(global);
+        assertSame(later, scheduler.take());
+    }
+
+    @Test
+    public void testDuplicateCommandIsDropped() throws Exception {
+        Command first = put(ACCOUNT_1, false, "sync:INBOX");
+        Command other = put(ACCOUNT_1, false, "sync:Sent");
+
+        assertFalse(scheduler.put(createCommand(ACCOUNT_1, false, "sync:INBOX")));
+
+        assertSame(first, scheduler.take());
+
+        // The first one is running, so another one is needed afterwards
+        Command again = put(ACCOUNT_1, false, "sync:INBOX");
+        scheduler.complete(first);
+
+        assertSame(other, scheduler.take());
+        scheduler.complete(other);
+        assertSame(again, scheduler.take());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        Command running = put(ACCOUNT_1, false);
+        put(ACCOUNT_1, false);
+        put(ACCOUNT_1, false);
+        assertSame(running, scheduler.take());
+
+        assertEquals(2, scheduler.cancel(ACCOUNT_1).size());
+        scheduler.complete(running);
+
+        assertFalse(scheduler.hasQueuedCommands());
+        assertFalse(scheduler.isBusy());
+    }
+
+    @Test
+    public void testLaneStats() throws Exception {
+        put(ACCOUNT_1, false, "key");
+        put(ACCOUNT_1, false);
+        scheduler.put(createCommand(ACCOUNT_1, false, "key"));
+        scheduler.complete(scheduler.take());
+
+        List<LaneStats> stats = scheduler.getLaneStats();
+        assertEquals(2, stats.size());
+        assertNull(stats.get(0).lane);
+
+        LaneStats lane = stats.get(1);
+        assertEquals(ACCOUNT_1, lane.lane);
+        assertEquals(1, lane.queueDepth);
+        assertEquals(1, lane.completedCount);
+        assertEquals(1, lane.droppedCount);
+        assertFalse(lane.running);
+        assertTrue(lane.maxWaitTime >= 0);
+    }
+
+
+    private Command put(String lane, boolean foreground) {
+        return put(lane, foreground, null);
+    }
+
+    private Command put(String lane, boolean foreground, String key) {
+        Command command = createCommand(lane, foreground, key);
+        assertTrue(scheduler.put(command));
+        return command;
+    }
+
+    private static Command createCommand(String lane, boolean foreground, String key) {
+        Command command = new Command();
+        command.description = "test";
+        command.lane = lane;
+        command.isForeground = foreground;
+        command.key = key;
+        return command;
+    }
+
+    /**
+     * Returns the next command if one can run right away, {@code null} otherwise.
+     */
+    private Command tryTake() throws InterruptedException {
+        final Command[] result = new Command[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = scheduler.take();
+                } catch (InterruptedException e) {
+                    // Nothing could run
+                }
+            }
+        };
+        thread.start();
+        thread.join(100);
+        thread.interrupt();
+        thread.join();
+
+        return result[0];
+    }
+}
@@ -0,0 +1,201 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fsck.k9.mailstore.LocalStore.PendingCommand;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class PendingCommandOptimizerTest {
+    private PendingCommandOptimizer optimizer;
+
+    @Before
+    public void setUp() {
+        optimizer = new PendingCommandOptimizer();
+    }
+
+    @Test
+    public void testUnrelatedCommandsAreUnchanged() {
+        PendingCommand setFlag = setFlag("INBOX", true, "SEEN", "1", "2");
+        PendingCommand move = move("INBOX", "Archive", "3");
+        PendingCommand expunge = expunge("INBOX");
+
+        List<PendingCommand> result = optimizer.optimize(list(setFlag, move, expunge));
+
+        assertEquals(list(setFlag, move, expunge), result);
+        assertFalse(optimizer.hasChanges());
+    }
+
+    @Test
+    public void testRepeatedTogglesKeepLastState() {
+        PendingCommand first = setFlag("INBOX", true, "SEEN", "1", "2");
+        PendingCommand second = setFlag("INBOX", false, "SEEN", "1");
+        PendingCommand third = setFlag("INBOX", true, "SEEN", "1");
+
+        List<PendingCommand> result = optimizer.optimize(list(first, second, third));
+
+        assertEquals(1, result.size());
+        assertSame(first, result.get(0));
+        assertArrayEquals(new String[] { "INBOX", "true", "SEEN", "1", "2" }, first.arguments);
+        assertEquals(list(second, third), optimizer.getObsoleteCommands());
+    }
+
+    @Test
+    public void testOneCommandPerFinalState() {
+        PendingCommand first = setFlag("INBOX", true, "SEEN", "1", "2", "3");
+        PendingCommand second = setFlag("INBOX", false, "SEEN", "2");
+        PendingCommand third = setFlag("INBOX", true, "SEEN", "4");
+
+        List<PendingCommand> result = optimizer.optimize(list(first, second, third));
+
+        assertEquals(2, result.size());
+        assertArrayEquals(new String[] { "INBOX", "true", "SEEN", "1", "3", "4" }, result.get(0).arguments);
+        assertArrayEquals(new String[] { "INBOX", "false", "SEEN", "2" }, result.get(1).arguments);
+        assertEquals(list(third), optimizer.getObsoleteCommands());
+    }
+
+    @Test
+    public void testFlagChangeOfDeletedMessageIsDropped() {
+        PendingCommand seen = setFlag("Trash", true, "SEEN", "1", "2");
+        PendingCommand deleted = setFlag("Trash", true, "DELETED", "1");
+
+        List<PendingCommand> result = optimizer.optimize(list(seen, deleted));
+
+        assertEquals(2, result.size());
+        assertArrayEquals(new String[] { "Trash", "true", "SEEN", "2" }, result.get(0).arguments);
+        assertArrayEquals(new String[] { "Trash", "true", "DELETED", "1" }, result.get(1).arguments);
+    }
+
+    @Test
+    public void testCommandWithLocalUidsOnlyIsDropped() {
+        PendingCommand command = setFlag("INBOX", true, "SEEN", "K9LOCAL:1");
+
+        List<PendingCommand> result = optimizer.optimize(list(command));
+
+        assertTrue(result.isEmpty());
+        assertEquals(list(command), optimizer.getObsoleteCommands());
+    }
+
+    @Test
+    public void testMarkAllAsReadSupersedesSeenChanges() {
+        PendingCommand seen = setFlag("INBOX", false, "SEEN", "1");
+        PendingCommand flagged = setFlag("INBOX", true, "FLAGGED", "1");
+        PendingCommand markAllAsRead = command(MessagingController.PENDING_COMMAND_MARK_ALL_AS_READ, "INBOX");
+
+        List<PendingCommand> result = optimizer.optimize(list(seen, flagged, markAllAsRead));
+
+        assertEquals(2, result.size());
+        assertArrayEquals(new String[] { "INBOX", "true", "FLAGGED", "1" }, result.get(0).arguments);
+        assertSame(markAllAsRead, result.get(1));
+    }
+
+    @Test
+    public void testAdjacentMovesAreBatched() {
+        PendingCommand first = move("INBOX", "Archive", "1", "2");
+        PendingCommand second = move("INBOX", "Archive", "3");
+
+        List<PendingCommand> result = optimizer.optimize(list(first, second));
+
+        assertEquals(list(first), result);
+        assertArrayEquals(new String[] { "INBOX", "Archive", "false", "false", "1", "2", "3" }, first.arguments);
+        assertEquals(list(second), optimizer.getObsoleteCommands());
+    }
+
+    @Test
+    public void testAdjacentMovesWithUidMapsAreBatched() {
+        PendingCommand first = moveWithNewUids("INBOX", "Archive", "1", "K9LOCAL:a");
+        PendingCommand second = moveWithNewUids("INBOX", "Archive", "2", "K9LOCAL:b");
+
+        List<PendingCommand> result = optimizer.optimize(list(first, second));
+
+        assertEquals(list(first), result);
+        assertArrayEquals(new String[] { "INBOX", "Archive", "false", "true", "1", "2", "K9LOCAL:a", "K9LOCAL:b" },
+                first.arguments);
+    }
+
+    @Test
+    public void testMovesBetweenDifferentFoldersAreKept() {
+        PendingCommand first = moveWithNewUids("INBOX", "Work", "1", "K9LOCAL:a");
+        PendingCommand second = move("Work", "Archive", "2");
+
+        List<PendingCommand> result = optimizer.optimize(list(first, second));
+
+        assertEquals(list(first, second), result);
+        assertFalse(optimizer.hasChanges());
+    }
+
+    @Test
+    public void testRepeatedDeleteAndExpungeExpungesOnce() {
+        PendingCommand firstDelete = setFlag("Trash", true, "DELETED", "1");
+        PendingCommand firstExpunge = expunge("Trash");
+        PendingCommand secondDelete = setFlag("Trash", true, "DELETED", "2");
+        PendingCommand secondExpunge = expunge("Trash");
+
+        List<PendingCommand> result = optimizer.optimize(list(firstDelete, firstExpunge, secondDelete, secondExpunge));
+
+        assertEquals(list(firstDelete, secondExpunge), result);
+        assertArrayEquals(new String[] { "Trash", "true", "DELETED", "1", "2" }, firstDelete.arguments);
+        assertEquals(list(firstExpunge, secondDelete), optimizer.getObsoleteCommands());
+    }
+
+    @Test
+    public void testUndeleteBetweenExpungesKeepsBoth() {
+        PendingCommand firstExpunge = expunge("Trash");
+        PendingCommand undelete = setFlag("Trash", false, "DELETED", "1");
+        PendingCommand secondExpunge = expunge("Trash");
+
+        List<PendingCommand> result = optimizer.optimize(list(firstExpunge, undelete, secondExpunge));
+
+        assertEquals(list(firstExpunge, undelete, secondExpunge), result);
+    }
+
+
+    private static List<PendingCommand> list(PendingCommand... commands) {
+        return new ArrayList<PendingCommand>(Arrays.asList(commands));
+    }
+
+    private static PendingCommand command(String name, String... arguments) {
+        PendingCommand command = new PendingCommand();
+        command.command = name;
+        command.arguments = arguments;
+        return command;
+    }
+
+    private static PendingCommand setFlag(String folder, boolean newState, String flag, String... uids) {
+        String[] arguments = new String[3 + uids.length];
+        arguments[0] = folder;
+        arguments[1] = Boolean.toString(newState);
+        arguments[2] = flag;
+        System.arraycopy(uids, 0, arguments, 3, uids.length);
+        return command(MessagingController.PENDING_COMMAND_SET_FLAG_BULK, arguments);
+    }
+
+    private static PendingCommand move(String srcFolder, String destFolder, String... uids) {
+        String[] arguments = new String[4 + uids.length];
+        arguments[0] = srcFolder;
+        arguments[1] = destFolder;
+        arguments[2] = "false";
+        arguments[3] = "false";
+        System.arraycopy(uids, 0, arguments, 4, uids.length);
+        return command(MessagingController.PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW, arguments);
+    }
+
+    private static PendingCommand moveWithNewUids(String srcFolder, String destFolder, String uid, String newUid) {
+        return command(MessagingController.PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW,
+                srcFolder, destFolder, "false", "true", uid, newUid);
+    }
+
+    private static PendingCommand expunge(String folder) {
+        return command(MessagingController.PENDING_COMMAND_EXPUNGE, folder);
+    }
+}
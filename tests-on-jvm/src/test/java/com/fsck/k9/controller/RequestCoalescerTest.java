@@ -0,0 +1,120 @@
+package com.fsck.k9.controller;
+
+
+import com.fsck.k9.controller.RequestCoalescer.Request;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class RequestCoalescerTest {
+    private static final String KEY = "account:INBOX:synchronizeMailbox";
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private final MessagingListener listener1 = new MessagingListener();
+    private final MessagingListener listener2 = new MessagingListener();
+    private final MessagingListener listener3 = new MessagingListener();
+
+
+    @Test
+    public void testRequestWhilePendingIsMerged() {
+        Request request = coalescer.request(KEY, listener1, false);
+        assertNotNull(request);
+
+        assertNull(coalescer.request(KEY, listener2, false));
+
+        assertEquals(2, request.getListeners().size());
+        assertTrue(request.getListeners().contains(listener1));
+        assertTrue(request.getListeners().contains(listener2));
+    }
+
+    @Test
+    public void testDifferentKeysAreNotMerged() {
+        assertNotNull(coalescer.request(KEY, null, false));
+        assertNotNull(coalescer.request("account:Sent:synchronizeMailbox", null, false));
+    }
+
+    @Test
+    public void testRequestWhileRunningSchedulesOneFollowUp() {
+        Request request = coalescer.request(KEY, listener1, false);
+        coalescer.started(request);
+
+        Request followUp = coalescer.request(KEY, listener2, false);
+        assertNotNull(followUp);
+        assertNotSame(request, followUp);
+        assertNull(coalescer.request(KEY, listener3, false));
+
+        assertEquals(1, request.getListeners().size());
+        assertEquals(2, followUp.getListeners().size());
+        assertTrue(followUp.getListeners().contains(listener3));
+
+        coalescer.finished(request);
+
+        // The follow-up hasn't started yet, so requests are merged into it
+        assertNull(coalescer.request(KEY, null, false));
+        coalescer.started(followUp);
+        coalescer.finished(followUp);
+
+        assertNotNull(coalescer.request(KEY, null, false));
+    }
+
+    @Test
+    public void testRequestAfterFinishedIsScheduled() {
+        Request request = coalescer.request(KEY, null, false);
+        coalescer.started(request);
+        coalescer.finished(request);
+
+        Request next = coalescer.request(KEY, null, false);
+        assertNotNull(next);
+        assertNotSame(request, next);
+    }
+
+    @Test
+    public void testMergedForcedRequest() {
+        Request request = coalescer.request(KEY, null, false);
+        assertFalse(request.isForced());
+
+        coalescer.request(KEY, listener1, true);
+        assertTrue(request.isForced());
+
+        coalescer.request(KEY, listener2, false);
+        assertTrue(request.isForced());
+    }
+
+    @Test
+    public void testRequestAfterCancelledIsScheduled() {
+        Request request = coalescer.request(KEY, listener1, false);
+        coalescer.cancelled(request);
+
+        Request next = coalescer.request(KEY, listener2, false);
+        assertNotNull(next);
+        assertNotSame(request, next);
+    }
+
+    @Test
+    public void testCancelledFollowUpIsScheduledAgain() {
+        Request request = coalescer.request(KEY, null, false);
+        coalescer.started(request);
+        Request followUp = coalescer.request(KEY, listener1, false);
+        coalescer.cancelled(followUp);
+
+        Request next = coalescer.request(KEY, listener2, false);
+        assertNotNull(next);
+        assertNotSame(followUp, next);
+
+        coalescer.finished(request);
+        assertNull(coalescer.request(KEY, null, false));
+    }
+
+    @Test
+    public void testNullListenerIsNotAdded() {
+        Request request = coalescer.request(KEY, null, false);
+        assertTrue(request.getListeners().isEmpty());
+    }
+}
@@ -0,0 +1,224 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class SyncPipelineTest {
+    private static final int CAPACITY = 4;
+    private static final int MAX_BATCH_SIZE = 3;
+
+
+    @Test
+    public void testWritesAllItemsInOrder() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        SyncPipeline<Integer> pipeline = createPipeline(writer);
+
+        pipeline.start();
+        for (int i = 0; i < 100; i++) {
+            pipeline.put(i);
+        }
+        pipeline.finish();
+
+        assertEquals(100, writer.items.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), writer.items.get(i));
+        }
+        assertTrue(writer.maxBatchSize <= MAX_BATCH_SIZE);
+    }
+
+    @Test
+    public void testFinishWithoutItems() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        SyncPipeline<Integer> pipeline = createPipeline(writer);
+
+        pipeline.start();
+        pipeline.finish();
+
+        assertEquals(0, writer.batchCount);
+    }
+
+    @Test
+    public void testItemsWaitingWhileWriterIsBusyAreBatched() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void write(List<Integer> batch) {
+                super.write(batch);
+                if (batchCount == 1) {
+                    writing.countDown();
+                    await(release);
+                }
+            }
+        };
+        SyncPipeline<Integer> pipeline = createPipeline(writer);
+
+        pipeline.start();
+        pipeline.put(0);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= MAX_BATCH_SIZE; i++) {
+            pipeline.put(i);
+        }
+        release.countDown();
+        pipeline.finish();
+
+        assertEquals(2, writer.batchCount);
+        assertEquals(MAX_BATCH_SIZE, writer.maxBatchSize);
+    }
+
+    @Test
+    public void testPutBlocksWhileQueueIsFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void write(List<Integer> batch) {
+                super.write(batch);
+                writing.countDown();
+                await(release);
+            }
+        };
+        final SyncPipeline<Integer> pipeline = createPipeline(writer);
+        pipeline.start();
+        pipeline.put(0);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= CAPACITY + 1; i++) {
+                    pipeline.put(i);
+                }
+                added.countDown();
+            }
+        };
+        producer.start();
+
+        assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        pipeline.finish();
+
+        assertEquals(CAPACITY + 2, writer.items.size());
+    }
+
+    @Test
+    public void testFinishReturnsWriterFailure() throws Exception {
+        final IllegalStateException failure = new IllegalStateException();
+        SyncPipeline<Integer> pipeline = createPipeline(new SyncPipeline.Writer<Integer>() {
+            @Override
+            public void write(List<Integer> batch) {
+                throw failure;
+            }
+        });
+
+        pipeline.start();
+        // Doesn't block after the writer failed
+        for (int i = 0; i < 3 * CAPACITY; i++) {
+            assertTrue(pipeline.put(i));
+        }
+
+        assertSame(failure, pipeline.finish());
+    }
+
+    @Test
+    public void testInterruptedPutAbortsPipeline() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void write(List<Integer> batch) {
+                super.write(batch);
+                writing.countDown();
+                await(release);
+            }
+        };
+        SyncPipeline<Integer> pipeline = createPipeline(writer);
+        pipeline.start();
+        assertTrue(pipeline.put(0));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= CAPACITY; i++) {
+            assertTrue(pipeline.put(i));
+        }
+
+        Thread.currentThread().interrupt();
+        assertFalse(pipeline.put(CAPACITY + 1));
+        assertTrue(Thread.interrupted());
+        assertFalse(pipeline.put(CAPACITY + 2));
+
+        Thread.currentThread().interrupt();
+        release.countDown();
+        assertNull(pipeline.finish());
+
+        // The messages queued before the interrupt are written before finish() returns
+        assertTrue(Thread.interrupted());
+        assertEquals(CAPACITY + 1, writer.items.size());
+    }
+
+    @Test
+    public void testFinishWaitsForWriterWhenInterrupted() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public void write(List<Integer> batch) {
+                writing.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.write(batch);
+            }
+        };
+        SyncPipeline<Integer> pipeline = createPipeline(writer);
+        pipeline.start();
+        pipeline.put(0);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        Thread.currentThread().interrupt();
+        assertNull(pipeline.finish());
+
+        assertTrue(Thread.interrupted());
+        assertEquals(1, writer.items.size());
+    }
+
+
+    private static SyncPipeline<Integer> createPipeline(SyncPipeline.Writer<Integer> writer) {
+        return new SyncPipeline<Integer>("test", CAPACITY, MAX_BATCH_SIZE, writer);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    static class RecordingWriter implements SyncPipeline.Writer<Integer> {
+        final List<Integer> items = new ArrayList<Integer>();
+        int batchCount;
+        int maxBatchSize;
+
+        @Override
+        public void write(List<Integer> batch) {
+            items.addAll(batch);
+            batchCount++;
+            maxBatchSize = Math.max(maxBatchSize, batch.size());
+        }
+    }
+}
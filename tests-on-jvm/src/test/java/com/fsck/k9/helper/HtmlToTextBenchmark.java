@@ -0,0 +1,125 @@
+package com.fsck.k9.helper;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Times the conversion of newsletter-style HTML to plain text.
+ *
+ * <p>
+ * Run with {@code gradle :tests-on-jvm:benchmarkHtmlToText}. Pass directories containing
+ * {@code .html} files (e.g. newsletters saved from a mailbox) with {@code -Pargs=<dir>} to use
+ * them as corpus. Without arguments generated newsletters of increasing size are used.
+ * </p>
+ */
+public class HtmlToTextBenchmark {
+    private static final int[] GENERATED_ARTICLE_COUNTS = { 10, 100, 1000 };
+    private static final int ITERATIONS = 20;
+
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<String>();
+        List<String> corpus = new ArrayList<String>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                readCorpus(new File(arg), names, corpus);
+            }
+        } else {
+            for (int articleCount : GENERATED_ARTICLE_COUNTS) {
+                names.add(articleCount + " articles");
+                corpus.add(createNewsletter(articleCount));
+            }
+        }
+
+        for (int i = 0; i < corpus.size(); i++) {
+            String html = corpus.get(i);
+
+            // Warm up
+            HtmlToTextConverter.convert(html);
+
+            long start = System.nanoTime();
+            int textLength = 0;
+            for (int j = 0; j < ITERATIONS; j++) {
+                textLength = HtmlToTextConverter.convert(html).length();
+            }
+            long time = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format("%s: %d KiB HTML -> %d KiB text, %.2f ms (%.1f MiB/s)",
+                    names.get(i), html.length() / 1024, textLength / 1024,
+                    time / 1e6, (html.length() / (1024.0 * 1024.0)) / (time / 1e9)));
+        }
+    }
+
+    private static void readCorpus(File file, List<String> names, List<String> corpus)
+            throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    readCorpus(child, names, corpus);
+                }
+            }
+        } else if (file.getName().endsWith(".html") || file.getName().endsWith(".htm")) {
+            names.add(file.getName());
+            corpus.add(readFile(file));
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, count);
+            }
+            return content.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Creates HTML that looks like a typical newsletter: a style sheet, nested layout tables with
+     * inline styles, images, links and entities.
+     */
+    private static String createNewsletter(int articleCount) {
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html><html><head><title>Newsletter</title><style type=\"text/css\">");
+        for (int i = 0; i < 50; i++) {
+            html.append(".c").append(i).append(" { font-family: Arial, sans-serif; color: #333; }\n");
+        }
+        html.append("</style></head><body><!--[if mso]><table><tr><td><![endif]-->");
+        html.append("<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\" border=\"0\">");
+
+        for (int i = 0; i < articleCount; i++) {
+            html.append("<tr><td style=\"padding: 10px 20px; font-size: 14px; line-height: 1.5;\">")
+                    .append("<table width=\"100%\"><tr><td class=\"c").append(i % 50).append("\">")
+                    .append("<a href=\"https://example.com/track?id=").append(i)
+                    .append("&amp;utm_source=newsletter\" style=\"color: #0066cc;\">")
+                    .append("<img src=\"https://example.com/img/").append(i)
+                    .append(".png\" width=\"560\" height=\"200\" alt=\"\"></a></td></tr>")
+                    .append("<tr><td><h2 style=\"margin: 0;\">Article ").append(i)
+                    .append(" &ndash; Something &amp; something else</h2>")
+                    .append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do ")
+                    .append("eiusmod tempor incididunt ut labore et dolore magna aliqua.&nbsp;")
+                    .append("Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris ")
+                    .append("nisi ut aliquip ex ea commodo consequat.</p>")
+                    .append("<p><a href=\"https://example.com/article/").append(i)
+                    .append("\">Read more &raquo;</a></p></td></tr></table></td></tr>\n");
+        }
+
+        html.append("</table><p style=\"font-size: 11px;\">&copy; Example &#8226; ")
+                .append("<a href=\"https://example.com/unsubscribe\">Unsubscribe</a></p>")
+                .append("</body></html>");
+        return html.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package com.fsck.k9.helper;
+
+
+import org.junit.Test;
+
+import static com.fsck.k9.helper.HtmlToTextConverter.convert;
+import static org.junit.Assert.assertEquals;
+
+
+public class HtmlToTextConverterTest {
+    @Test
+    public void testWhitespaceIsCollapsed() {
+        assertEquals("Hello world", convert("  Hello \r\n\t world  "));
+    }
+
+    @Test
+    public void testParagraphs() {
+        assertEquals("One\n\nTwo", convert("<p>One</p>\n<p>Two</p>"));
+        assertEquals("One\n\nTwo", convert("<div><div>One</div></div><div>Two</div>"));
+    }
+
+    @Test
+    public void testLineBreaks() {
+        assertEquals("One\nTwo\n\nThree", convert("One<br>Two<br/><BR>Three"));
+    }
+
+    @Test
+    public void testListItems() {
+        assertEquals("One\nTwo", convert("<ul><li>One</li><li>Two</li></ul>"));
+    }
+
+    @Test
+    public void testTableCells() {
+        assertEquals("a b\nc d", convert("<table><tr><td>a</td><td>b</td></tr>" +
+                "<tr><td>c</td><td>d</td></tr></table>"));
+    }
+
+    @Test
+    public void testHorizontalRule() {
+        assertEquals("a\n_____________________________________________\nb",
+                convert("a<hr>b"));
+    }
+
+    @Test
+    public void testIgnoredContent() {
+        assertEquals("Text", convert("<html><head><title>Title</title>" +
+                "<style>p { color: red; }</style></head>" +
+                "<body><!-- comment <p>x</p> --><script>if (a <b) {}</script>Text</body></html>"));
+    }
+
+    @Test
+    public void testDoctypeAndProcessingInstruction() {
+        assertEquals("Text", convert("<?xml version=\"1.0\"?><!DOCTYPE html>Text"));
+    }
+
+    @Test
+    public void testAttributesMayContainGreaterThan() {
+        assertEquals("link", convert("<a href=\"x\" title='a > b'>link</a>"));
+    }
+
+    @Test
+    public void testUnquotedAttributeWithApostrophe() {
+        assertEquals("text", convert("<font face=Arial'>text</font>"));
+    }
+
+    @Test
+    public void testEntities() {
+        assertEquals("<a & b> \"c\" © € —", convert(
+                "&lt;a &amp; b&gt; &quot;c&quot; &copy; &#8364; &#x2014;"));
+    }
+
+    @Test
+    public void testLatin1Entities() {
+        assertEquals("Gr\u00FC\u00DFe \u00E0 Andr\u00E9, \u00D6l \u00D7 2 \u00BD",
+                convert("Gr&uuml;&szlig;e &agrave; Andr&eacute;, &Ouml;l &times; 2 &frac12;"));
+    }
+
+    @Test
+    public void testEntityNamesAreCaseSensitive() {
+        assertEquals("\u00C9\u00E9 &EACUTE;", convert("&Eacute;&eacute; &EACUTE;"));
+    }
+
+    @Test
+    public void testSymbolEntities() {
+        assertEquals("\u03B1\u2264\u03A9 \u2192 \u2022\u00AD\u2030",
+                convert("&alpha;&le;&Omega; &rarr; &bull;&shy;&permil;"));
+    }
+
+    @Test
+    public void testNonBreakingSpacesAreNotCollapsed() {
+        assertEquals("a   b", convert("a&nbsp;&nbsp; b"));
+    }
+
+    @Test
+    public void testUnknownEntityIsKept() {
+        assertEquals("a &foo; b & c", convert("a &foo; b & c"));
+    }
+
+    @Test
+    public void testLessThanWithoutTag() {
+        assertEquals("1 < 2", convert("1 < 2"));
+    }
+
+    @Test
+    public void testImageIsReplacedBySpace() {
+        assertEquals("a b", convert("a<img src=\"x.png\">b"));
+    }
+
+    @Test
+    public void testPreformattedText() {
+        assertEquals("Text\n\n  a  b\n  c", convert("Text<pre>  a  b\r\n  c</pre>"));
+    }
+}
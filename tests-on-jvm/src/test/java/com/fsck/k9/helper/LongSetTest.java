@@ -0,0 +1,66 @@
+package com.fsck.k9.helper;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class LongSetTest {
+
+    @Test
+    public void testBuilderSortsAndRemovesDuplicates() {
+        LongSet set = new LongSet.Builder().add(5).add(1).add(5).add(3).add(1).build();
+
+        assertArrayEquals(new long[] { 1, 3, 5 }, set.toArray());
+    }
+
+    @Test
+    public void testBuilderGrows() {
+        LongSet.Builder builder = new LongSet.Builder(1);
+        for (int i = 20000; i > 0; i--) {
+            builder.add(i);
+        }
+
+        LongSet set = builder.build();
+
+        assertEquals(20000, set.size());
+        assertEquals(1, set.get(0));
+        assertEquals(20000, set.get(19999));
+    }
+
+    @Test
+    public void testEmptyBuilder() {
+        assertSame(LongSet.EMPTY, new LongSet.Builder().build());
+        assertTrue(LongSet.EMPTY.isEmpty());
+    }
+
+    @Test
+    public void testContains() {
+        LongSet set = LongSet.of(new long[] { 42, 7 });
+
+        assertTrue(set.contains(7));
+        assertTrue(set.contains(42));
+        assertFalse(set.contains(8));
+    }
+
+    @Test
+    public void testToArrayReturnsCopy() {
+        LongSet set = LongSet.of(1);
+
+        set.toArray()[0] = 2;
+
+        assertEquals(1, set.get(0));
+    }
+
+    @Test
+    public void testEquals() {
+        assertEquals(LongSet.of(new long[] { 2, 1 }), LongSet.of(new long[] { 1, 2, 2 }));
+        assertEquals(LongSet.of(new long[] { 2, 1 }).hashCode(),
+                LongSet.of(new long[] { 1, 2 }).hashCode());
+    }
+}
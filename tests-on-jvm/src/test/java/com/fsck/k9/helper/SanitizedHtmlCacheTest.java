@@ -0,0 +1,58 @@
+package com.fsck.k9.helper;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class SanitizedHtmlCacheTest {
+    @Test
+    public void testSanitizeCachesResult() {
+        SanitizedHtmlCache cache = new SanitizedHtmlCache(10000);
+        String html = "<p>Hello<meta http-equiv=\"refresh\" content=\"0\"></p>";
+
+        String sanitized = cache.sanitize(1, html);
+
+        assertEquals(HtmlSanitizer.sanitize(html), sanitized);
+        assertSame(sanitized, cache.sanitize(1, new String(html)));
+    }
+
+    @Test
+    public void testChangedHtmlIsNotReturned() {
+        SanitizedHtmlCache cache = new SanitizedHtmlCache(100);
+        cache.put(1, "<p>a</p>", "A");
+
+        assertNull(cache.get(1, "<p>b</p>"));
+        assertNull(cache.get(2, "<p>a</p>"));
+        assertEquals("A", cache.get(1, "<p>a</p>"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        // Each entry uses 10 characters
+        SanitizedHtmlCache cache = new SanitizedHtmlCache(30);
+        cache.put(1, "aaaaa", "AAAAA");
+        cache.put(2, "bbbbb", "BBBBB");
+        cache.put(3, "ccccc", "CCCCC");
+        cache.get(1, "aaaaa");
+
+        cache.put(4, "ddddd", "DDDDD");
+
+        assertEquals(3, cache.size());
+        assertEquals("AAAAA", cache.get(1, "aaaaa"));
+        assertNull(cache.get(2, "bbbbb"));
+    }
+
+    @Test
+    public void testTooLargeEntryRemovesOldEntry() {
+        SanitizedHtmlCache cache = new SanitizedHtmlCache(10);
+        cache.put(1, "aaaaa", "AAAAA");
+
+        cache.put(1, "aaaaaa", "AAAAAA");
+
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,147 @@
+package com.fsck.k9.helper;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Times the conversion of plain text messages to HTML.
+ *
+ * <p>
+ * Run with {@code gradle :tests-on-jvm:benchmarkTextToHtml}. Pass directories containing
+ * {@code .txt} files with {@code -Pargs=<dir>} to use them as corpus. Without arguments generated
+ * texts are used: mailing list digests, log output, and texts that used to be slow to linkify
+ * (long runs of dots, dashes and whitespace, deeply nested quotes).
+ * </p>
+ */
+public class TextToHtmlBenchmark {
+    private static final int TEXT_LENGTH = 1024 * 1024;
+    private static final int ITERATIONS = 10;
+
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<String>();
+        List<String> corpus = new ArrayList<String>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                readCorpus(new File(arg), names, corpus);
+            }
+        } else {
+            names.add("digest");
+            corpus.add(createDigest());
+            names.add("log");
+            corpus.add(createLog());
+            names.add("dots");
+            corpus.add(repeat("a.", TEXT_LENGTH));
+            names.add("dashes and whitespace");
+            corpus.add(repeat("- \t", TEXT_LENGTH));
+            names.add("nested quotes");
+            corpus.add(createNestedQuotes());
+        }
+
+        for (int i = 0; i < corpus.size(); i++) {
+            String text = corpus.get(i);
+
+            // Warm up
+            HtmlConverter.textToHtml(text);
+
+            long start = System.nanoTime();
+            int htmlLength = 0;
+            for (int j = 0; j < ITERATIONS; j++) {
+                htmlLength = HtmlConverter.textToHtml(text).length();
+            }
+            long time = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format("%s: %d KiB text -> %d KiB HTML, %.2f ms (%.1f MiB/s)",
+                    names.get(i), text.length() / 1024, htmlLength / 1024, time / 1e6,
+                    (text.length() / (1024.0 * 1024.0)) / (time / 1e9)));
+        }
+    }
+
+    private static void readCorpus(File file, List<String> names, List<String> corpus)
+            throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    readCorpus(child, names, corpus);
+                }
+            }
+        } else if (file.getName().endsWith(".txt")) {
+            names.add(file.getName());
+            corpus.add(readFile(file));
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, count);
+            }
+            return content.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String repeat(String pattern, int length) {
+        StringBuilder text = new StringBuilder(length + pattern.length());
+        while (text.length() < length) {
+            text.append(pattern);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Creates a mailing list digest: many messages with headers, quotes, links and separators.
+     */
+    private static String createDigest() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < TEXT_LENGTH; i++) {
+            text.append("------------------------------\r\n\r\n")
+                    .append("Message: ").append(i).append("\r\n")
+                    .append("Date: Mon, 6 Jul 2015 12:00:00 +0200\r\n")
+                    .append("From: Jane Doe <jane").append(i).append("@example.com>\r\n")
+                    .append("Subject: Re: [list] Question ").append(i).append("\r\n\r\n")
+                    .append("On Sunday, John wrote:\r\n")
+                    .append("> Did you read http://www.example.com/archive/").append(i)
+                    .append(".html?thread=1&sort=date ?\r\n")
+                    .append(">> Not yet.\r\n\r\n")
+                    .append("Yes, see also example.org/faq and ftp.example.net.\r\n")
+                    .append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n\r\n");
+        }
+        return text.toString();
+    }
+
+    private static String createLog() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < TEXT_LENGTH; i++) {
+            text.append("2015-07-06 12:00:").append(i % 60).append(".123 INFO  [pool-1-thread-")
+                    .append(i % 8).append("] com.example.server.RequestHandler - GET /api/v1/items/")
+                    .append(i).append(" from 192.168.1.").append(i % 255).append(" took ")
+                    .append(i % 100).append(" ms\n");
+        }
+        return text.toString();
+    }
+
+    private static String createNestedQuotes() {
+        StringBuilder text = new StringBuilder();
+        for (int depth = 0; text.length() < TEXT_LENGTH; depth = (depth + 1) % 50) {
+            for (int i = 0; i < depth; i++) {
+                text.append('>');
+            }
+            text.append(" quoted line\n");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.fsck.k9.helper;
+
+
+import org.junit.Test;
+
+import static com.fsck.k9.helper.TextToHtmlConverter.convert;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TextToHtmlConverterTest {
+    private static final String BLOCKQUOTE_1 = "<blockquote class=\"gmail_quote\" " +
+            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid #729fcf; padding-left: 1ex;\">";
+    private static final String BLOCKQUOTE_2 = "<blockquote class=\"gmail_quote\" " +
+            "style=\"margin: 0pt 0pt 1ex 0.8ex; border-left: 1px solid #ad7fa8; padding-left: 1ex;\">";
+
+
+    @Test
+    public void testEscaping() {
+        assertEquals("<pre class=\"k9mail\">a &lt;b&gt; &amp; c</pre>", convert("a <b> & c", false));
+    }
+
+    @Test
+    public void testNewlines() {
+        assertEquals("<pre class=\"k9mail\">one<br />two<br /><br />three</pre>",
+                convert("one\r\ntwo\n\r\nthree", false));
+    }
+
+    @Test
+    public void testQuotes() {
+        String text = "Bob wrote:\r\n" +
+                "> a canal\r\n" +
+                ">\r\n" +
+                "> >A man, a plan...\r\n" +
+                "> Too easy!\r\n" +
+                "\r\n" +
+                "Nice job :)\r\n" +
+                ">> Guess!";
+
+        assertEquals("<pre class=\"k9mail\">" +
+                "Bob wrote:<br />" +
+                BLOCKQUOTE_1 +
+                " a canal<br />" +
+                "<br />" +
+                BLOCKQUOTE_2 +
+                "A man, a plan...<br />" +
+                "</blockquote>" +
+                " Too easy!<br />" +
+                "</blockquote>" +
+                "<br />" +
+                "Nice job :)<br />" +
+                BLOCKQUOTE_1 +
+                BLOCKQUOTE_2 +
+                " Guess!" +
+                "</blockquote>" +
+                "</blockquote>" +
+                "</pre>", convert(text, false));
+    }
+
+    @Test
+    public void testNewlinesAtEndOfQuoteAreMovedOutside() {
+        assertEquals("<pre class=\"k9mail\">" + BLOCKQUOTE_1 + " quote</blockquote><br />" +
+                "<br />text</pre>", convert("> quote\n>\n>\ntext", false));
+    }
+
+    @Test
+    public void testPreserveSpacesAtStartOfLine() {
+        assertEquals("<pre class=\"k9mail\">   foo<br />  bar</pre>",
+                convert("   foo\n  bar", false));
+    }
+
+    @Test
+    public void testHorizontalRule() {
+        String line = "------------------------------";
+
+        assertEquals("<pre class=\"k9mail\">above<br /><hr /><br />below</pre>",
+                convert("above\n  " + line + "  \nbelow", false));
+        assertEquals("<pre class=\"k9mail\">a ----- b</pre>", convert("a ----- b", false));
+    }
+
+    @Test
+    public void testLinkify() {
+        assertEquals("<pre class=\"k9mail\">see <a href=\"http://www.example.com/a?b=1&amp;c=2\">" +
+                "http://www.example.com/a?b=1&amp;c=2</a> now</pre>",
+                convert("see http://www.example.com/a?b=1&c=2 now", false));
+        assertEquals("<pre class=\"k9mail\"><a href=\"http://example.com\">example.com</a></pre>",
+                convert("example.com", false));
+    }
+
+    @Test
+    public void testEmailAddressIsNotLinkified() {
+        assertEquals("<pre class=\"k9mail\">user@example.com</pre>",
+                convert("user@example.com", false));
+    }
+
+    @Test
+    public void testLinkifyBitcoinAndHttpUri() {
+        String text = "bitcoin:19W6QZkx8SYPG7BBCS7odmWGRxqRph5jFU http://example.com/";
+
+        assertEquals("<pre class=\"k9mail\">" +
+                "<a href=\"bitcoin:19W6QZkx8SYPG7BBCS7odmWGRxqRph5jFU\">" +
+                "bitcoin:19W6QZkx8SYPG7BBCS7odmWGRxqRph5jFU</a> " +
+                "<a href=\"http://example.com/\">http://example.com/</a></pre>", convert(text, false));
+    }
+
+    @Test
+    public void testBitcoinUriIsNotLinkifiedTwice() {
+        String result = convert("bitcoin:19W6QZkx8SYPG7BBCS7odmWGRxqRph5jFU?label=a.b", false);
+
+        assertEquals(1, countOccurrences(result, "<a "));
+    }
+
+    @Test
+    public void testLongRunIsNotLinkified() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i <= TextToHtmlConverter.MAX_LINK_CANDIDATE_DOTS; i++) {
+            text.append("a.");
+        }
+
+        String result = convert(text.toString(), false);
+
+        assertFalse(result.contains("<a "));
+        assertTrue(result.contains(text));
+    }
+
+    @Test
+    public void testEmoji() {
+        String text = "\uDBB8\uDC00 sun";
+
+        assertEquals("<pre class=\"k9mail\"><img src=\"file:///android_asset/emoticons/sun.gif\" " +
+                "alt=\"sun\" /> sun</pre>", convert(text, true));
+        assertEquals("<pre class=\"k9mail\">" + text + "</pre>", convert(text, false));
+    }
+
+    private static int countOccurrences(String text, String search) {
+        int count = 0;
+        for (int i = text.indexOf(search); i != -1; i = text.indexOf(search, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,86 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class Base64DecoderInputStreamTest {
+
+    @Test
+    public void testDecode() throws Exception {
+        assertEquals("ABC", decode("QUJD"));
+        assertEquals("AB", decode("QUI="));
+        assertEquals("A", decode("QQ=="));
+        assertEquals("", decode(""));
+    }
+
+    @Test
+    public void testCharactersOutsideAlphabetAreIgnored() throws Exception {
+        assertEquals("ABCABC", decode("QU JD\r\n!QUJD\r\n"));
+    }
+
+    @Test
+    public void testDecodingStopsAtPadding() throws Exception {
+        assertEquals("A", decode("QQ==QUJD"));
+    }
+
+    @Test
+    public void testIncompleteGroupIsDropped() throws Exception {
+        assertEquals("ABC", decode("QUJDQQ"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            byte[] data = new byte[random.nextInt(20000)];
+            random.nextBytes(data);
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            Base64EncoderOutputStream out = new Base64EncoderOutputStream(encoded);
+            out.write(data);
+            out.close();
+
+            InputStream in = new Base64DecoderInputStream(
+                    new ByteArrayInputStream(encoded.toByteArray()));
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            for (int b = in.read(); b != -1; b = in.read()) {
+                decoded.write(b);
+            }
+
+            assertArrayEquals(data, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    public void testCloseClosesWrappedStream() throws Exception {
+        final boolean[] closed = new boolean[1];
+        InputStream wrapped = new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        new Base64DecoderInputStream(wrapped).close();
+
+        assertTrue(closed[0]);
+    }
+
+    private static String decode(String encoded) throws IOException {
+        InputStream in = new Base64DecoderInputStream(
+                new ByteArrayInputStream(encoded.getBytes("US-ASCII")));
+        return new String(IOUtils.toByteArray(in), "US-ASCII");
+    }
+}
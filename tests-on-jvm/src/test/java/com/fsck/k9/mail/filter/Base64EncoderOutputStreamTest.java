@@ -0,0 +1,78 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class Base64EncoderOutputStreamTest {
+
+    @Test
+    public void testEncode() throws Exception {
+        assertEquals("\r\n", encode(""));
+        assertEquals("YQ==\r\n", encode("a"));
+        assertEquals("YWI=\r\n", encode("ab"));
+        assertEquals("YWJj\r\n", encode("abc"));
+    }
+
+    @Test
+    public void testLinesAre76CharactersLong() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 58; i++) {
+            text.append('a');
+        }
+
+        String result = encode(text.toString());
+
+        assertEquals("YWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFhYWFh\r\n" +
+                "YQ==\r\n", result);
+    }
+
+    @Test
+    public void testSameOutputAsBase64OutputStream() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            byte[] data = new byte[random.nextInt(20000)];
+            random.nextBytes(data);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            write(new Base64OutputStream(expected), data, random);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            write(new Base64EncoderOutputStream(actual), data, random);
+
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        }
+    }
+
+    private static String encode(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64EncoderOutputStream base64 = new Base64EncoderOutputStream(out);
+        base64.write(text.getBytes("US-ASCII"));
+        base64.close();
+        return out.toString("US-ASCII");
+    }
+
+    /**
+     * Write {@code data} in chunks of random size, some of them a byte at a time.
+     */
+    private static void write(OutputStream out, byte[] data, Random random) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            if (random.nextInt(4) == 0) {
+                out.write(data[offset++]);
+            } else {
+                int length = Math.min(data.length - offset, random.nextInt(5000));
+                out.write(data, offset, length);
+                offset += length;
+            }
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,172 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.james.mime4j.codec.Base64InputStream;
+import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
+import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
+
+
+/**
+ * Compares the Base64 and quoted-printable codecs with the implementations they replace.
+ *
+ * <p>
+ * Run with {@code gradle :tests-on-jvm:benchmarkCodecs}. Payload sizes in MiB can be passed
+ * with {@code -Pargs=1,10,50}. Base64 is timed with random binary data, quoted-printable with
+ * mostly ASCII text.
+ * </p>
+ */
+public class CodecBenchmark {
+    private static final int[] DEFAULT_SIZES_MIB = { 1, 10, 50 };
+    private static final int ITERATIONS = 5;
+
+
+    private interface Codec {
+        void run(byte[] input) throws IOException;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES_MIB;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int size : sizes) {
+            byte[] binary = createBinary(size * 1024 * 1024);
+            byte[] text = createText(size * 1024 * 1024);
+            ByteArrayOutputStream base64 = new ByteArrayOutputStream();
+            copy(binary, new Base64EncoderOutputStream(base64));
+            ByteArrayOutputStream quotedPrintable = new ByteArrayOutputStream();
+            copy(text, new QuotedPrintableEncoderOutputStream(quotedPrintable));
+
+            System.out.println(size + " MiB:");
+            compare("Base64 encode", binary, new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(input, new Base64OutputStream(new NullOutputStream()));
+                }
+            }, new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(input, new Base64EncoderOutputStream(new NullOutputStream()));
+                }
+            });
+            compare("Base64 decode", base64.toByteArray(), new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(new Base64InputStream(new ByteArrayInputStream(input), false));
+                }
+            }, new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(new Base64DecoderInputStream(new ByteArrayInputStream(input)));
+                }
+            });
+            compare("QP encode", text, new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(input, new QuotedPrintableOutputStream(new NullOutputStream(), false));
+                }
+            }, new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(input, new QuotedPrintableEncoderOutputStream(new NullOutputStream()));
+                }
+            });
+            compare("QP decode", quotedPrintable.toByteArray(), new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(new QuotedPrintableInputStream(new ByteArrayInputStream(input)));
+                }
+            }, new Codec() {
+                @Override
+                public void run(byte[] input) throws IOException {
+                    copy(new QuotedPrintableDecoderInputStream(new ByteArrayInputStream(input)));
+                }
+            });
+        }
+    }
+
+    private static void compare(String name, byte[] input, Codec old, Codec current)
+            throws IOException {
+        long oldTime = time(old, input);
+        long currentTime = time(current, input);
+        System.out.println(String.format("  %-14s old %8.1f ms, new %8.1f ms (%.1fx)", name,
+                oldTime / 1e6, currentTime / 1e6, (double) oldTime / currentTime));
+    }
+
+    private static long time(Codec codec, byte[] input) throws IOException {
+        // Warm up
+        codec.run(input);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.run(input);
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    /**
+     * Copy like {@code LocalFolder} and {@code BinaryTempFileBody} do.
+     */
+    private static void copy(byte[] input, OutputStream out) throws IOException {
+        IOUtils.copy(new ByteArrayInputStream(input), out);
+        out.close();
+    }
+
+    private static void copy(InputStream in) throws IOException {
+        IOUtils.copy(in, new NullOutputStream());
+        in.close();
+    }
+
+    private static byte[] createBinary(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Creates text with lines of varying length, some whitespace at the end of lines and a few
+     * non-ASCII characters.
+     */
+    private static byte[] createText(int size) {
+        Random random = new Random(1);
+        byte[] data = new byte[size];
+        int lineLength = 0;
+        for (int i = 0; i < size; i++) {
+            int n = random.nextInt(100);
+            if (lineLength > 20 && n < 2) {
+                data[i] = '\r';
+                if (i + 1 < size) {
+                    data[++i] = '\n';
+                }
+                lineLength = 0;
+                continue;
+            }
+
+            if (n < 15) {
+                data[i] = ' ';
+            } else if (n < 16) {
+                data[i] = (byte) (0xC0 + random.nextInt(64));
+            } else if (n < 17) {
+                data[i] = '=';
+            } else {
+                data[i] = (byte) ('a' + random.nextInt(26));
+            }
+            lineLength++;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,162 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class FileChannelCopierTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private byte[] data;
+    private File source;
+
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(data);
+        source = temporaryFolder.newFile("source");
+        FileUtils.writeByteArrayToFile(source, data);
+    }
+
+    @Test
+    public void testCopyFileToFile() throws IOException {
+        File target = temporaryFolder.newFile("target");
+
+        long count = copy(new FileInputStream(source), new FileOutputStream(target));
+
+        assertEquals(data.length, count);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(target));
+    }
+
+    @Test
+    public void testCopyStartsAtCurrentPositions() throws IOException {
+        File target = temporaryFolder.newFile("target");
+        FileUtils.writeByteArrayToFile(target, new byte[] { 1, 2, 3 });
+
+        FileInputStream in = new FileInputStream(source);
+        in.skip(100);
+        in.read();
+        FileOutputStream out = new FileOutputStream(target, true);
+        long count = copy(in, out);
+
+        byte[] expected = new byte[3 + data.length - 101];
+        expected[0] = 1;
+        expected[1] = 2;
+        expected[2] = 3;
+        System.arraycopy(data, 101, expected, 3, data.length - 101);
+        assertEquals(data.length - 101, count);
+        assertArrayEquals(expected, FileUtils.readFileToByteArray(target));
+    }
+
+    @Test
+    public void testSourceIsAtEndAfterCopy() throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(temporaryFolder.newFile("target"));
+        try {
+            FileChannelCopier.copy(in, out);
+
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    @Test
+    public void testCopyToStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long count = copy(new FileInputStream(source), out);
+
+        assertEquals(data.length, count);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testCopyFromStream() throws IOException {
+        File target = temporaryFolder.newFile("target");
+
+        long count = copy(new ByteArrayInputStream(data), new FileOutputStream(target));
+
+        assertEquals(data.length, count);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(target));
+    }
+
+    @Test
+    public void testCopyFromBoundedFileStream() throws IOException {
+        File target = temporaryFolder.newFile("target");
+
+        long count = copy(new BoundedFileInputStream(source, 100, 1000), new FileOutputStream(target));
+
+        byte[] expected = new byte[1000];
+        System.arraycopy(data, 100, expected, 0, 1000);
+        assertEquals(1000, count);
+        assertArrayEquals(expected, FileUtils.readFileToByteArray(target));
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            return FileChannelCopier.copy(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    /**
+     * Only returns a section of a file, like {@code AssetFileDescriptor.AutoCloseInputStream}.
+     */
+    static class BoundedFileInputStream extends FileInputStream {
+        private long mRemaining;
+
+        BoundedFileInputStream(File file, long offset, long length) throws IOException {
+            super(file);
+            skip(offset);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return (read(buffer, 0, 1) == -1) ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class QuotedPrintableDecoderInputStreamTest {
+    private static final String[] ENCODED_PIECES = {
+            "a", "Hello", "=41", "=e4", "=C3=A4", " ", "\t", "  ", "\r\n", "\n", "=\r\n",
+            "= \t\r\n", "=\n", "\u00E4", "=3D", "=20"
+    };
+
+
+    @Test
+    public void testDecode() throws Exception {
+        assertEquals("aAb", decode("a=41b"));
+        assertEquals("\u00E4\u00E4", decode("=e4=E4"));
+        assertEquals("a = b", decode("a = b"));
+    }
+
+    @Test
+    public void testLineBreaks() throws Exception {
+        assertEquals("a\r\nb\r\n\r\nc", decode("a\r\nb\n\nc"));
+    }
+
+    @Test
+    public void testSoftLineBreaks() throws Exception {
+        assertEquals("ab", decode("a=\r\nb"));
+        assertEquals("ab", decode("a=\nb"));
+        assertEquals("ab", decode("a= \t\r\nb"));
+        assertEquals("a", decode("a="));
+    }
+
+    @Test
+    public void testTrailingWhitespaceIsDropped() throws Exception {
+        assertEquals("a\r\nb", decode("a \t\r\nb"));
+        assertEquals("a  b", decode("a  b  "));
+    }
+
+    @Test
+    public void testInvalidEscapesAreKept() throws Exception {
+        assertEquals("a=4g", decode("a=4g"));
+        assertEquals("a=Z1", decode("a=Z1"));
+        assertEquals("a=  x", decode("a=  x"));
+        assertEquals("a=4", decode("a=4"));
+    }
+
+    /**
+     * The cases in which the output on malformed data differs from mime4j's.
+     */
+    @Test
+    public void testMalformedDataDecodedDifferentlyFromMime4j() throws Exception {
+        assertEquals("x=A", decode("x==41"));
+        assertEquals("=4A", decode("=4=41"));
+        assertEquals("url?a=1&b=2\r\nc", decode("url?a=1&b=2\r\nc"));
+        assertEquals("a=4\r\nb", decode("a=4\r\nb"));
+        assertEquals("a\r", decode("a\r"));
+        assertEquals("a \r", decode("a \r"));
+        assertEquals("a \rb", decode("a \rb"));
+        assertEquals("a=\r\r\nb", decode("a=\r\r\nb"));
+        assertEquals("a", decode("a="));
+    }
+
+    @Test
+    public void testSameOutputAsMime4j() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(20000);
+            while (text.length() < length) {
+                text.append(ENCODED_PIECES[random.nextInt(ENCODED_PIECES.length)]);
+            }
+            byte[] encoded = text.toString().getBytes("ISO-8859-1");
+
+            byte[] expected = IOUtils.toByteArray(
+                    new QuotedPrintableInputStream(new ByteArrayInputStream(encoded)));
+            byte[] actual = IOUtils.toByteArray(
+                    new QuotedPrintableDecoderInputStream(new ByteArrayInputStream(encoded)));
+
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    private static String decode(String encoded) throws IOException {
+        InputStream in = new QuotedPrintableDecoderInputStream(
+                new ByteArrayInputStream(encoded.getBytes("ISO-8859-1")));
+        return new String(IOUtils.toByteArray(in), "ISO-8859-1");
+    }
+}
@@ -0,0 +1,94 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class QuotedPrintableEncoderOutputStreamTest {
+    private static final String[] TEXT_PIECES = {
+            "a", "Hello", "=", " ", "\t", "  ", "\r\n", "\n", "\u00E4", "~", "\u007F", "\u0001",
+            "averylongwordthatdoesntfit"
+    };
+
+
+    @Test
+    public void testEncode() throws Exception {
+        assertEquals("Hello World", encode("Hello World"));
+        assertEquals("1 + 1 =3D 2", encode("1 + 1 = 2"));
+        assertEquals("=E4=F6=FC", encode("\u00E4\u00F6\u00FC"));
+    }
+
+    @Test
+    public void testWhitespaceBeforeLineBreakIsEncoded() throws Exception {
+        assertEquals("one=20\r\ntwo=09\r\nthree ", encode("one \r\ntwo\t\r\nthree "));
+    }
+
+    @Test
+    public void testLongLinesAreWrapped() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append('a');
+        }
+
+        String result = encode(text.toString());
+
+        assertEquals(text.substring(0, 75) + "=\r\n" + text.substring(75), result);
+    }
+
+    @Test
+    public void testLoneCarriageReturnIsKept() throws Exception {
+        assertEquals("a \rb", encode("a \rb"));
+        assertEquals("a\r\r\nb", encode("a\r\r\nb"));
+    }
+
+    @Test
+    public void testSameOutputAsMime4j() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(5000);
+            while (text.length() < length) {
+                text.append(TEXT_PIECES[random.nextInt(TEXT_PIECES.length)]);
+            }
+            byte[] data = text.toString().getBytes("ISO-8859-1");
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            write(new QuotedPrintableOutputStream(expected, false), data, random);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            write(new QuotedPrintableEncoderOutputStream(actual), data, random);
+
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        }
+    }
+
+    private static String encode(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QuotedPrintableEncoderOutputStream qp = new QuotedPrintableEncoderOutputStream(out);
+        qp.write(text.getBytes("ISO-8859-1"));
+        qp.close();
+        return out.toString("ISO-8859-1");
+    }
+
+    private static void write(OutputStream out, byte[] data, Random random) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            if (random.nextInt(4) == 0) {
+                out.write(data[offset++]);
+            } else {
+                int length = Math.min(data.length - offset, random.nextInt(500));
+                out.write(data, offset, length);
+                offset += length;
+            }
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,84 @@
+package com.fsck.k9.mail.internet;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.apache.james.mime4j.util.MimeUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class SpooledMessageTest {
+    @Before
+    public void setup() {
+        BinaryTempFileBody.setTempDirectory(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    @Test
+    public void testSmallMessageIsKeptInMemory() throws Exception {
+        MimeMessage message = createMessage("line 1\nline 2\n");
+
+        SpooledMessage spooledMessage = SpooledMessage.spool(message);
+        try {
+            assertTrue(spooledMessage.isInMemory());
+            assertSpoolMatchesMessage(message, spooledMessage);
+            assertTrue(toString(spooledMessage).endsWith("\r\n\r\nline 1\r\nline 2\r\n"));
+        } finally {
+            spooledMessage.close();
+        }
+    }
+
+    @Test
+    public void testLargeMessageIsWrittenToFile() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= SpooledMessage.MEMORY_THRESHOLD) {
+            text.append("The quick brown fox jumps over the lazy dog\n");
+        }
+        MimeMessage message = createMessage(text.toString());
+
+        SpooledMessage spooledMessage = SpooledMessage.spool(message);
+        try {
+            assertFalse(spooledMessage.isInMemory());
+            assertSpoolMatchesMessage(message, spooledMessage);
+        } finally {
+            spooledMessage.close();
+        }
+    }
+
+
+    private static MimeMessage createMessage(String text) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setSubject("Test");
+        TextBody body = new TextBody(text);
+        body.setEncoding(MimeUtil.ENC_8BIT);
+        message.setBody(body);
+        return message;
+    }
+
+    private static void assertSpoolMatchesMessage(MimeMessage message, SpooledMessage spooledMessage)
+            throws Exception {
+        byte[] spooled = toByteArray(spooledMessage);
+
+        assertEquals(message.calculateSize(), spooledMessage.getSize());
+        assertEquals(spooled.length, spooledMessage.getSize());
+
+        // Can be written more than once
+        assertArrayEquals(spooled, toByteArray(spooledMessage));
+    }
+
+    private static byte[] toByteArray(SpooledMessage spooledMessage) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spooledMessage.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static String toString(SpooledMessage spooledMessage) throws Exception {
+        return new String(toByteArray(spooledMessage), "UTF-8");
+    }
+}
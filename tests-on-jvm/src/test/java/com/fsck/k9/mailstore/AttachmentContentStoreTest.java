@@ -0,0 +1,183 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class AttachmentContentStoreTest {
+    private static final String HASH = "0123456789abcdef";
+    private static final String OTHER_HASH = "fedcba9876543210";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Connection connection;
+    private File attachmentDirectory;
+
+
+    @Before
+    public void setUp() throws Exception {
+        connection = TestDatabase.create();
+        TestDatabase.populate(connection, 1, 3);
+        attachmentDirectory = temporaryFolder.newFolder("attachments");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testAttachmentsWithSameContentShareReference() throws SQLException {
+        insertAttachment(1, 1, HASH);
+        insertAttachment(2, 2, HASH);
+        insertAttachment(3, 2, OTHER_HASH);
+
+        assertEquals(2, getRefCount(HASH));
+        assertEquals(1, getRefCount(OTHER_HASH));
+    }
+
+    @Test
+    public void testDeletingMessageReleasesReference() throws SQLException {
+        insertAttachment(1, 1, HASH);
+        insertAttachment(2, 2, HASH);
+
+        execute("DELETE FROM messages WHERE id = 1");
+
+        assertEquals(1, getRefCount(HASH));
+    }
+
+    @Test
+    public void testUpdatingContentHashMovesReference() throws SQLException {
+        insertAttachment(1, 1, HASH);
+
+        execute("UPDATE attachments SET content_hash = '" + OTHER_HASH + "' WHERE id = 1");
+
+        assertEquals(0, getRefCount(HASH));
+        assertEquals(1, getRefCount(OTHER_HASH));
+    }
+
+    @Test
+    public void testAttachmentWithoutContentHashIsNotCounted() throws SQLException {
+        execute("INSERT INTO attachments (id, message_id) VALUES (1, 1)");
+
+        assertEquals(0, count("SELECT COUNT(*) FROM attachment_content"));
+    }
+
+    @Test
+    public void testStoreKeepsExistingContent() throws IOException {
+        File first = createTempFile("content");
+        File second = createTempFile("content");
+
+        AttachmentContentStore.store(attachmentDirectory, first, HASH);
+        AttachmentContentStore.store(attachmentDirectory, second, HASH);
+
+        assertTrue(AttachmentContentStore.contains(attachmentDirectory, HASH));
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+        assertEquals(1, attachmentDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testDeleteUnreferencedContent() throws Exception {
+        insertAttachment(1, 1, HASH);
+        insertAttachment(2, 2, OTHER_HASH);
+        AttachmentContentStore.store(attachmentDirectory, createTempFile("a"), HASH);
+        AttachmentContentStore.store(attachmentDirectory, createTempFile("b"), OTHER_HASH);
+
+        execute("DELETE FROM messages WHERE id = 1");
+        SQLiteDatabase db = new SQLiteDatabase(connection);
+        List<String> contentHashes = AttachmentContentStore.deleteUnreferencedContent(db);
+
+        assertEquals(Collections.singletonList(HASH), contentHashes);
+        assertEquals(1, count("SELECT COUNT(*) FROM attachment_content"));
+        // The files are only deleted after the transaction has been committed
+        assertTrue(AttachmentContentStore.contains(attachmentDirectory, HASH));
+
+        AttachmentContentStore.deleteContentFiles(db, attachmentDirectory, contentHashes);
+
+        assertFalse(AttachmentContentStore.contains(attachmentDirectory, HASH));
+        assertTrue(AttachmentContentStore.contains(attachmentDirectory, OTHER_HASH));
+    }
+
+    @Test
+    public void testContentReferencedAgainIsKept() throws Exception {
+        insertAttachment(1, 1, HASH);
+        AttachmentContentStore.store(attachmentDirectory, createTempFile("a"), HASH);
+
+        execute("DELETE FROM messages WHERE id = 1");
+        SQLiteDatabase db = new SQLiteDatabase(connection);
+        List<String> contentHashes = AttachmentContentStore.deleteUnreferencedContent(db);
+        insertAttachment(2, 2, HASH);
+        AttachmentContentStore.deleteContentFiles(db, attachmentDirectory, contentHashes);
+
+        assertTrue(AttachmentContentStore.contains(attachmentDirectory, HASH));
+    }
+
+    @Test
+    public void testGetFileOfLegacyAttachment() {
+        assertEquals(new File(attachmentDirectory, "42"),
+                AttachmentContentStore.getFile(attachmentDirectory, "42", null));
+    }
+
+
+    private File createTempFile(String content) throws IOException {
+        File file = File.createTempFile("att", null, attachmentDirectory);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private void insertAttachment(long id, long messageId, String contentHash)
+            throws SQLException {
+        execute("INSERT INTO attachments (id, message_id, content_hash) VALUES (" + id + ", " +
+                messageId + ", '" + contentHash + "')");
+    }
+
+    private int getRefCount(String contentHash) throws SQLException {
+        return count("SELECT ref_count FROM attachment_content WHERE hash = '" + contentHash + "'");
+    }
+
+    private int count(String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery(sql);
+            return result.next() ? result.getInt(1) : 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.fsck.k9.mailstore;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class DisplayHtmlCacheTest {
+    @Test
+    public void testGetReturnsCachedHtml() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(100);
+        cache.put("text", "<p>text</p>");
+
+        assertEquals("<p>text</p>", cache.get(new String("text")));
+        assertNull(cache.get("other"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        // Each entry uses 10 characters
+        DisplayHtmlCache cache = new DisplayHtmlCache(30);
+        cache.put("aaaaa", "AAAAA");
+        cache.put("bbbbb", "BBBBB");
+        cache.put("ccccc", "CCCCC");
+        cache.get("aaaaa");
+
+        cache.put("ddddd", "DDDDD");
+
+        assertEquals(3, cache.size());
+        assertEquals("AAAAA", cache.get("aaaaa"));
+        assertNull(cache.get("bbbbb"));
+    }
+
+    @Test
+    public void testReplacingEntryUpdatesSize() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(20);
+        cache.put("aaaaa", "AAAAA");
+        cache.put("aaaaa", "AAAAA");
+        cache.put("bbbbb", "BBBBB");
+
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEntryLargerThanCacheIsNotStored() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(10);
+        cache.put("aaaaa", "AAAAAA");
+
+        assertEquals(0, cache.size());
+    }
+}
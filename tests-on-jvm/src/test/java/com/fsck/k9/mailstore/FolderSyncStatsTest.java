@@ -0,0 +1,87 @@
+package com.fsck.k9.mailstore;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class FolderSyncStatsTest {
+    private static final long INTERVAL = 15 * 60 * 1000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+
+    @Test
+    public void testBusyFolderUsesAccountInterval() {
+        FolderSyncStats stats = FolderSyncStats.EMPTY;
+        for (int i = 0; i < 10; i++) {
+            stats = stats.update(0, 0, 100, 1000, 1, true);
+        }
+
+        assertEquals(INTERVAL, stats.getPollInterval(INTERVAL));
+    }
+
+    @Test
+    public void testQuietFolderBacksOffExponentially() {
+        FolderSyncStats stats = FolderSyncStats.EMPTY;
+        for (int i = 0; i < FolderSyncStats.QUIET_SYNCS_BEFORE_BACKOFF - 1; i++) {
+            stats = quietSync(stats);
+        }
+        assertEquals(INTERVAL, stats.getPollInterval(INTERVAL));
+
+        stats = quietSync(stats);
+        assertEquals(2 * INTERVAL, stats.getPollInterval(INTERVAL));
+
+        stats = quietSync(stats);
+        assertEquals(4 * INTERVAL, stats.getPollInterval(INTERVAL));
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        FolderSyncStats stats = FolderSyncStats.EMPTY;
+        for (int i = 0; i < 100; i++) {
+            stats = quietSync(stats);
+        }
+
+        assertEquals(INTERVAL << FolderSyncStats.MAX_BACKOFF_SHIFT, stats.getPollInterval(INTERVAL));
+    }
+
+    @Test
+    public void testChangeResetsBackoff() {
+        FolderSyncStats stats = FolderSyncStats.EMPTY;
+        for (int i = 0; i < 10; i++) {
+            stats = quietSync(stats);
+        }
+
+        stats = stats.update(HOUR, 2 * HOUR, 100, 0, 0, true);
+
+        assertEquals(0, stats.getQuietSyncs());
+        assertEquals(2 * HOUR, stats.getLastChange());
+        assertEquals(INTERVAL, stats.getPollInterval(INTERVAL));
+    }
+
+    @Test
+    public void testNewMessageRate() {
+        FolderSyncStats stats = FolderSyncStats.EMPTY.update(HOUR, 2 * HOUR, 100, 0, 4, true);
+        assertEquals(4.0, stats.getNewMessageRate(), 0.001);
+
+        stats = stats.update(2 * HOUR, 3 * HOUR, 100, 0, 0, false);
+        assertEquals(3.0, stats.getNewMessageRate(), 0.001);
+    }
+
+    @Test
+    public void testDurationAndBytes() {
+        FolderSyncStats stats = FolderSyncStats.EMPTY.update(0, HOUR, 1000, 5000, 0, false);
+        stats = stats.update(HOUR, 2 * HOUR, 2000, 300, 0, false);
+
+        assertEquals(2, stats.getSyncCount());
+        assertEquals(2000, stats.getLastSyncDuration());
+        assertEquals(1250, stats.getAverageSyncDuration());
+        assertEquals(300, stats.getLastSyncBytes());
+    }
+
+
+    private static FolderSyncStats quietSync(FolderSyncStats stats) {
+        return stats.update(0, 0, 100, 0, 0, false);
+    }
+}
@@ -0,0 +1,141 @@
+package com.fsck.k9.mailstore;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class MessagePagerTest {
+    private static final int MESSAGE_COUNT = 250;
+    private static final String QUERY = "SELECT messages.id, date FROM messages WHERE (folder_id = ?)";
+    // Like LocalFolder.getMessages()
+    private static final String FOLDER_QUERY = "SELECT " + LocalStore.GET_MESSAGES_COLS +
+            "FROM messages " +
+            "LEFT JOIN threads ON (threads.message_id = messages.id) " +
+            "LEFT JOIN folders ON (folders.id = messages.folder_id) " +
+            "WHERE ((empty IS NULL OR empty != 1) AND deleted = 0 AND folder_id = ?)";
+
+    private Connection connection;
+    private SQLiteDatabase database;
+
+
+    @Before
+    public void setUp() throws Exception {
+        connection = TestDatabase.create();
+        TestDatabase.populate(connection, 1, MESSAGE_COUNT);
+        database = new SQLiteDatabase(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testMessagesAreReadNewestFirst() {
+        List<Long> ids = read();
+
+        assertEquals(MESSAGE_COUNT, ids.size());
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            assertEquals(MESSAGE_COUNT - i, (long) ids.get(i));
+        }
+    }
+
+    @Test
+    public void testDeletedMessagesPastFirstPageAreRead() throws SQLException {
+        // Like LocalMessage.delete()
+        execute("UPDATE messages SET deleted = 1, date = NULL WHERE id IN (3, 50, 120, 249)");
+
+        List<Long> ids = read();
+
+        assertEquals(MESSAGE_COUNT, ids.size());
+        assertEquals(250L, (long) ids.get(0));
+        assertEquals(248L, (long) ids.get(1));
+        assertEquals(249L, (long) ids.get(MESSAGE_COUNT - 4));
+        assertEquals(120L, (long) ids.get(MESSAGE_COUNT - 3));
+        assertEquals(50L, (long) ids.get(MESSAGE_COUNT - 2));
+        assertEquals(3L, (long) ids.get(MESSAGE_COUNT - 1));
+    }
+
+    @Test
+    public void testMessagesWithSameDateAreReadOnce() throws SQLException {
+        execute("UPDATE messages SET date = 1400000000000");
+
+        List<Long> ids = read();
+
+        assertEquals(MESSAGE_COUNT, ids.size());
+        assertEquals(MESSAGE_COUNT, (long) ids.get(0));
+        assertEquals(1L, (long) ids.get(MESSAGE_COUNT - 1));
+    }
+
+    @Test
+    public void testPagesAreReadFromIndexWithoutSorting() throws SQLException {
+        assertIndexOrderedPlan(MessagePager.getFirstPageQuery(FOLDER_QUERY), "1");
+        String plan = assertIndexOrderedPlan(MessagePager.getNextPageQuery(FOLDER_QUERY), "1",
+                "1400000600000", "1400000600000", "10");
+        assertIndexOrderedPlan(MessagePager.getUndatedQuery(FOLDER_QUERY), "1");
+
+        // The page starts where the previous one ended instead of at the newest message
+        assertTrue(plan, plan.contains("date<?"));
+    }
+
+    private String assertIndexOrderedPlan(String query, String... args) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + query);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                statement.setString(i + 1, args[i]);
+            }
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                plan.append(result.getString("detail")).append('\n');
+            }
+        } finally {
+            statement.close();
+        }
+
+        String message = query + "\n" + plan;
+        assertTrue(message, plan.toString().contains("SEARCH TABLE messages USING INDEX msg_folder_list"));
+        assertFalse(message, plan.toString().contains("TEMP B-TREE"));
+        return plan.toString();
+    }
+
+    private List<Long> read() {
+        final List<Long> ids = new ArrayList<Long>();
+        int count = new MessagePager(1, 0).read(database, QUERY, new String[] { "1" },
+                new MessagePager.RowCallback() {
+                    @Override
+                    public void onRow(Cursor cursor) {
+                        ids.add(cursor.getLong(0));
+                    }
+                });
+
+        assertEquals(ids.size(), count);
+        return ids;
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class StoreMaintenanceTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Connection connection;
+    private SQLiteDatabase db;
+
+
+    @Before
+    public void setUp() throws Exception {
+        File databaseFile = temporaryFolder.newFile("test.db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+        db = new SQLiteDatabase(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testEnableIncrementalVacuumOnNewDatabase() {
+        // Android creates this table when it opens the database
+        db.execSQL("CREATE TABLE android_metadata (locale TEXT)");
+        StoreSchemaDefinition.createDatabase(db);
+        assertFalse(StoreMaintenance.isIncrementalVacuumEnabled(db));
+
+        StoreMaintenance.enableIncrementalVacuum(db);
+
+        assertTrue(StoreMaintenance.isIncrementalVacuumEnabled(db));
+    }
+
+    @Test
+    public void testEnableIncrementalVacuumOnExistingDatabase() {
+        db.execSQL("CREATE TABLE test (value TEXT)");
+        assertFalse(StoreMaintenance.isIncrementalVacuumEnabled(db));
+
+        StoreMaintenance.enableIncrementalVacuum(db);
+
+        assertTrue(StoreMaintenance.isIncrementalVacuumEnabled(db));
+    }
+
+    @Test
+    public void testReclaimFreePages() throws SQLException {
+        StoreSchemaDefinition.createDatabase(db);
+        StoreMaintenance.enableIncrementalVacuum(db);
+        TestDatabase.populate(connection, 2, 3000);
+        execute("DELETE FROM messages");
+        int freePages = StoreMaintenance.getFreePageCount(db);
+        assertTrue(freePages > 0);
+
+        int remaining = StoreMaintenance.reclaimFreePages(db, 10);
+
+        assertTrue(remaining < freePages);
+        while (remaining > 0) {
+            int previous = remaining;
+            remaining = StoreMaintenance.reclaimFreePages(db, freePages);
+            assertTrue(remaining < previous);
+        }
+    }
+
+    @Test
+    public void testGetIndexNamesSkipsAutomaticIndexes() {
+        StoreSchemaDefinition.createDatabase(db);
+
+        List<String> indexNames = StoreMaintenance.getIndexNames(db);
+
+        assertTrue(indexNames.contains("msg_folder_list"));
+        for (String indexName : indexNames) {
+            assertFalse(indexName.startsWith("sqlite_autoindex"));
+        }
+    }
+
+    @Test
+    public void testAnalyzeAndReindex() {
+        StoreSchemaDefinition.createDatabase(db);
+
+        StoreMaintenance.analyze(db);
+        for (String indexName : StoreMaintenance.getIndexNames(db)) {
+            StoreMaintenance.reindex(db, indexName);
+        }
+
+        assertEquals(1, countRows("sqlite_master WHERE name = 'sqlite_stat1'"));
+    }
+
+    @Test
+    public void testDeleteOrphanedFiles() throws Exception {
+        StoreSchemaDefinition.createDatabase(db);
+        TestDatabase.populate(connection, 1, 3);
+        execute("INSERT INTO attachments (id, message_id) VALUES (1, 1)");
+        execute("INSERT INTO attachments (id, message_id, content_hash) VALUES (2, 1, 'abc')");
+
+        File directory = temporaryFolder.newFolder("attachments");
+        File legacy = createFile(directory, "1");
+        File orphanedLegacy = createFile(directory, "3");
+        File content = createFile(directory, "sha256-abc");
+        File orphanedContent = createFile(directory, "sha256-def");
+        File oldTemp = createFile(directory, "att123.tmp");
+        oldTemp.setLastModified(System.currentTimeMillis() - 2 * HOUR);
+        File newTemp = createFile(directory, "att456.tmp");
+
+        int deleted = AttachmentContentStore.deleteOrphanedFiles(db, directory, HOUR);
+
+        assertEquals(3, deleted);
+        assertTrue(legacy.exists());
+        assertTrue(content.exists());
+        assertTrue(newTemp.exists());
+        assertFalse(orphanedLegacy.exists());
+        assertFalse(orphanedContent.exists());
+        assertFalse(oldTemp.exists());
+    }
+
+
+    private File createFile(File directory, String name) throws Exception {
+        File file = new File(directory, name);
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private int countRows(String from) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + from, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.fsck.k9.mailstore;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Creates in-memory SQLite databases with the schema of {@link LocalStore}.
+ */
+public class TestDatabase {
+    private static final int THREAD_SIZE = 3;
+
+
+    public static Connection create() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        StoreSchemaDefinition.createDatabase(new SQLiteDatabase(connection));
+        return connection;
+    }
+
+    /**
+     * Insert {@code folderCount} folders and distribute {@code messageCount} messages over them.
+     * Every message is part of a thread of up to three messages. Every fourth message is
+     * unread, every tenth message is flagged.
+     */
+    public static void populate(Connection connection, int folderCount, int messageCount)
+            throws SQLException {
+        connection.setAutoCommit(false);
+
+        PreparedStatement folder = connection.prepareStatement("INSERT INTO folders " +
+                "(id, name, integrate, top_group, display_class) VALUES (?, ?, ?, 0, 'FIRST_CLASS')");
+        for (int i = 1; i <= folderCount; i++) {
+            folder.setInt(1, i);
+            folder.setString(2, "Folder " + i);
+            folder.setInt(3, (i == 1) ? 1 : 0);
+            folder.executeUpdate();
+        }
+        folder.close();
+
+        PreparedStatement message = connection.prepareStatement("INSERT INTO messages " +
+                "(id, folder_id, uid, subject, date, internal_date, sender_list, message_id, " +
+                "attachment_count, read, flagged, deleted, empty) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?, 0, 0)");
+        PreparedStatement thread = connection.prepareStatement("INSERT INTO threads " +
+                "(id, message_id, root, parent) VALUES (?, ?, ?, ?)");
+
+        long date = 1400000000000L;
+        for (int i = 1; i <= messageCount; i++) {
+            int folderId = ((i - 1) / THREAD_SIZE) % folderCount + 1;
+            int root = i - (i - 1) % THREAD_SIZE;
+
+            message.setInt(1, i);
+            message.setInt(2, folderId);
+            message.setString(3, Integer.toString(i));
+            message.setString(4, "Subject " + root);
+            message.setLong(5, date + i * 60000L);
+            message.setLong(6, date + i * 60000L);
+            message.setString(7, "sender" + (i % 100) + "@example.com");
+            message.setString(8, "<" + i + "@example.com>");
+            message.setInt(9, (i % 4 == 0) ? 0 : 1);
+            message.setInt(10, (i % 10 == 0) ? 1 : 0);
+            message.executeUpdate();
+
+            thread.setInt(1, i);
+            thread.setInt(2, i);
+            thread.setInt(3, root);
+            if (root == i) {
+                thread.setNull(4, java.sql.Types.INTEGER);
+            } else {
+                thread.setInt(4, i - 1);
+            }
+            thread.executeUpdate();
+        }
+        message.close();
+        thread.close();
+
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+}
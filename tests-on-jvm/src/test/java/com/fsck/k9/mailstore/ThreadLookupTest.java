@@ -0,0 +1,162 @@
+package com.fsck.k9.mailstore;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class ThreadLookupTest {
+    private static final long FOLDER_ID = 1;
+
+    private Connection connection;
+    private ThreadLookup threadLookup;
+
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = TestDatabase.create();
+        // Messages 1-3, 7-9, ... are in folder 1; 4-6, 10-12, ... are in folder 2
+        TestDatabase.populate(connection, 2, 1200);
+        threadLookup = new ThreadLookup(new SQLiteDatabase(connection), FOLDER_ID);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testGetPrefetchedMessage() {
+        threadLookup.prefetch(Arrays.asList("<2@example.com>", "<8@example.com>"));
+
+        ThreadInfo threadInfo = threadLookup.get("<2@example.com>", false);
+
+        assertEquals(2, threadInfo.threadId);
+        assertEquals(2, threadInfo.msgId);
+        assertEquals(1, threadInfo.rootId);
+        assertEquals(1, threadInfo.parentId);
+    }
+
+    @Test
+    public void testGetMessageThatWasNotPrefetched() {
+        ThreadInfo threadInfo = threadLookup.get("<9@example.com>", false);
+
+        assertEquals(9, threadInfo.msgId);
+        assertEquals(7, threadInfo.rootId);
+    }
+
+    @Test
+    public void testGetMessageOfOtherFolder() {
+        threadLookup.prefetch(Arrays.asList("<4@example.com>"));
+
+        assertNull(threadLookup.get("<4@example.com>", false));
+    }
+
+    @Test
+    public void testGetUnknownMessage() {
+        assertNull(threadLookup.get("<unknown@example.com>", false));
+        assertNull(threadLookup.get(null, false));
+    }
+
+    @Test
+    public void testPrefetchMoreIdsThanFitIntoOneQuery() {
+        List<String> messageIds = new ArrayList<String>();
+        for (int i = 1; i <= 1200; i++) {
+            messageIds.add("<" + i + "@example.com>");
+        }
+        threadLookup.prefetch(messageIds);
+
+        assertEquals(1, threadLookup.get("<1@example.com>", false).msgId);
+        assertEquals(1195, threadLookup.get("<1195@example.com>", false).msgId);
+        assertNull(threadLookup.get("<1198@example.com>", false));
+    }
+
+    @Test
+    public void testOnlyEmptyIgnoresRegularMessages() {
+        threadLookup.prefetch(Arrays.asList("<2@example.com>"));
+
+        assertNull(threadLookup.get("<2@example.com>", true));
+    }
+
+    @Test
+    public void testOnlyEmptyReturnsPlaceholder() throws SQLException {
+        execute("INSERT INTO messages (id, folder_id, message_id, empty) " +
+                "VALUES (5000, 1, '<placeholder@example.com>', 1)");
+        execute("INSERT INTO threads (id, message_id) VALUES (5000, 5000)");
+
+        threadLookup.prefetch(Arrays.asList("<placeholder@example.com>"));
+
+        ThreadInfo threadInfo = threadLookup.get("<placeholder@example.com>", true);
+        assertEquals(5000, threadInfo.msgId);
+        assertEquals(5000, threadInfo.rootId);
+        assertEquals(-1, threadInfo.parentId);
+    }
+
+    @Test
+    public void testAddMessage() {
+        threadLookup.prefetch(Arrays.asList("<new@example.com>"));
+        assertNull(threadLookup.get("<new@example.com>", false));
+
+        threadLookup.addMessage("<new@example.com>", 5001, 5002, 1, 3, true);
+
+        ThreadInfo threadInfo = threadLookup.get("<new@example.com>", true);
+        assertEquals(5001, threadInfo.threadId);
+        assertEquals(5002, threadInfo.msgId);
+        assertEquals(1, threadInfo.rootId);
+        assertEquals(3, threadInfo.parentId);
+        assertEquals(5002, threadLookup.get("<new@example.com>", false).msgId);
+    }
+
+    @Test
+    public void testAddMessageKeepsFirstMessage() {
+        threadLookup.prefetch(Arrays.asList("<2@example.com>"));
+
+        threadLookup.addMessage("<2@example.com>", 5001, 5002, 5001, -1, false);
+
+        assertEquals(2, threadLookup.get("<2@example.com>", false).msgId);
+    }
+
+    @Test
+    public void testInvalidate() throws SQLException {
+        threadLookup.prefetch(Arrays.asList("<2@example.com>"));
+        execute("UPDATE threads SET root = 100 WHERE root = 1");
+
+        threadLookup.invalidate("<2@example.com>");
+
+        assertEquals(100, threadLookup.get("<2@example.com>", false).rootId);
+    }
+
+    @Test
+    public void testClear() throws SQLException {
+        threadLookup.prefetch(Arrays.asList("<2@example.com>", "<3@example.com>"));
+        execute("UPDATE threads SET root = 100 WHERE root = 1");
+
+        threadLookup.clear();
+
+        assertEquals(100, threadLookup.get("<2@example.com>", false).rootId);
+        assertEquals(100, threadLookup.get("<3@example.com>", false).rootId);
+    }
+
+
+    private void execute(String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+}
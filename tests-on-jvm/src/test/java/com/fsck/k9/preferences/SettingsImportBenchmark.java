@@ -0,0 +1,222 @@
+package com.fsck.k9.preferences;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import com.fsck.k9.preferences.SettingsImporter.ImportListener;
+import com.fsck.k9.preferences.SettingsImporter.ImportedAccount;
+import com.fsck.k9.preferences.SettingsImporter.ImportedSettings;
+
+import static com.fsck.k9.preferences.SettingsExporter.*;
+
+
+/**
+ * Times parsing settings files with an increasing number of accounts and records how much heap
+ * is in use while the accounts are handed to the import listener one by one.
+ *
+ * <p>
+ * Only the parser is measured. The accounts are handed to a listener that counts them instead of
+ * the one committing them to the preference {@code Storage}, which needs an Android
+ * {@code Context}. So the numbers don't include validating the settings or the database writes.
+ * </p>
+ *
+ * <p>
+ * Run with {@code gradle :tests-on-jvm:benchmarkSettingsImport}. The heap in use should stay
+ * roughly the same no matter how many accounts the file contains.
+ * </p>
+ */
+public class SettingsImportBenchmark {
+    private static final int[] ACCOUNT_COUNTS = { 100, 500, 2000 };
+    private static final int SETTINGS_PER_ACCOUNT = 60;
+    private static final int IDENTITIES_PER_ACCOUNT = 3;
+    private static final int FOLDERS_PER_ACCOUNT = 20;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * Number of accounts between two heap measurements.
+     */
+    private static final int MEMORY_SAMPLE_INTERVAL = 50;
+
+
+    public static void main(String[] args) throws Exception {
+        for (int accountCount : ACCOUNT_COUNTS) {
+            File file = File.createTempFile("settings", ".k9s");
+            try {
+                Set<String> accountUuids = writeSettingsFile(file, accountCount);
+
+                System.out.println(String.format("%d accounts (%d KiB):", accountCount,
+                        file.length() / 1024));
+
+                // Warm up
+                parse(file, accountUuids, new CountingListener(0));
+
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    parse(file, accountUuids, new CountingListener(0));
+                }
+                double millis = (System.nanoTime() - start) / 1000000.0 / ITERATIONS;
+                System.out.println(String.format("  %-24s %10.3f ms", "parse (no commits)", millis));
+
+                CountingListener listener = new CountingListener(MEMORY_SAMPLE_INTERVAL);
+                parse(file, accountUuids, listener);
+                System.out.println(String.format("  %-24s %10d KiB", "max. heap in use",
+                        listener.maxUsedMemory / 1024));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void parse(File file, Set<String> accountUuids, CountingListener listener)
+            throws Exception {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            SettingsImporter.parseSettings(inputStream, true, accountUuids, false, listener);
+        } finally {
+            inputStream.close();
+        }
+
+        if (listener.accountCount != accountUuids.size()) {
+            throw new AssertionError("Expected " + accountUuids.size() + " accounts, got " +
+                    listener.accountCount);
+        }
+    }
+
+    private static Set<String> writeSettingsFile(File file, int accountCount) throws IOException {
+        Set<String> accountUuids = new HashSet<String>();
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+        try {
+            out.println("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+            out.println("<" + ROOT_ELEMENT + " " + VERSION_ATTRIBUTE + "=\"" + Settings.VERSION +
+                    "\" " + FILE_FORMAT_ATTRIBUTE + "=\"" + FILE_FORMAT_VERSION + "\">");
+
+            out.println("<" + GLOBAL_ELEMENT + ">");
+            for (int i = 0; i < SETTINGS_PER_ACCOUNT; i++) {
+                writeValue(out, "globalSetting" + i, "value" + i);
+            }
+            out.println("</" + GLOBAL_ELEMENT + ">");
+
+            out.println("<" + ACCOUNTS_ELEMENT + ">");
+            for (int i = 0; i < accountCount; i++) {
+                String uuid = UUID.nameUUIDFromBytes(("account" + i).getBytes("UTF-8"))
+                        .toString();
+                accountUuids.add(uuid);
+                writeAccount(out, uuid, i);
+            }
+            out.println("</" + ACCOUNTS_ELEMENT + ">");
+
+            out.println("</" + ROOT_ELEMENT + ">");
+        } finally {
+            out.close();
+        }
+
+        return accountUuids;
+    }
+
+    private static void writeAccount(PrintWriter out, String uuid, int index) {
+        out.println("<" + ACCOUNT_ELEMENT + " " + UUID_ATTRIBUTE + "=\"" + uuid + "\">");
+        writeElement(out, NAME_ELEMENT, "Account " + index);
+
+        writeServer(out, INCOMING_SERVER_ELEMENT, "IMAP", "imap.example.com", "993");
+        writeServer(out, OUTGOING_SERVER_ELEMENT, "SMTP", "smtp.example.com", "465");
+
+        out.println("<" + SETTINGS_ELEMENT + ">");
+        for (int i = 0; i < SETTINGS_PER_ACCOUNT; i++) {
+            writeValue(out, "accountSetting" + i, "value" + i);
+        }
+        out.println("</" + SETTINGS_ELEMENT + ">");
+
+        out.println("<" + IDENTITIES_ELEMENT + ">");
+        for (int i = 0; i < IDENTITIES_PER_ACCOUNT; i++) {
+            out.println("<" + IDENTITY_ELEMENT + ">");
+            writeElement(out, NAME_ELEMENT, "User " + index);
+            writeElement(out, EMAIL_ELEMENT, "user" + index + "." + i + "@example.com");
+            writeElement(out, DESCRIPTION_ELEMENT, "Identity " + i);
+            out.println("<" + SETTINGS_ELEMENT + ">");
+            writeValue(out, "signature", "Regards,\nUser " + index);
+            writeValue(out, "signatureUse", "true");
+            out.println("</" + SETTINGS_ELEMENT + ">");
+            out.println("</" + IDENTITY_ELEMENT + ">");
+        }
+        out.println("</" + IDENTITIES_ELEMENT + ">");
+
+        out.println("<" + FOLDERS_ELEMENT + ">");
+        for (int i = 0; i < FOLDERS_PER_ACCOUNT; i++) {
+            out.println("<" + FOLDER_ELEMENT + " " + NAME_ATTRIBUTE + "=\"Folder" + i + "\">");
+            writeValue(out, "displayMode", "FIRST_CLASS");
+            writeValue(out, "syncMode", "FIRST_CLASS");
+            writeValue(out, "pushMode", "NO_CLASS");
+            writeValue(out, "inTopGroup", "false");
+            writeValue(out, "integrate", "false");
+            out.println("</" + FOLDER_ELEMENT + ">");
+        }
+        out.println("</" + FOLDERS_ELEMENT + ">");
+
+        out.println("</" + ACCOUNT_ELEMENT + ">");
+    }
+
+    private static void writeServer(PrintWriter out, String element, String type, String host,
+            String port) {
+        out.println("<" + element + " " + TYPE_ATTRIBUTE + "=\"" + type + "\">");
+        writeElement(out, HOST_ELEMENT, host);
+        writeElement(out, PORT_ELEMENT, port);
+        writeElement(out, CONNECTION_SECURITY_ELEMENT, "SSL_TLS_REQUIRED");
+        writeElement(out, AUTHENTICATION_TYPE_ELEMENT, "PLAIN");
+        writeElement(out, USERNAME_ELEMENT, "user");
+        out.println("</" + element + ">");
+    }
+
+    private static void writeElement(PrintWriter out, String element, String text) {
+        out.println("<" + element + ">" + text + "</" + element + ">");
+    }
+
+    private static void writeValue(PrintWriter out, String key, String value) {
+        out.println("<" + VALUE_ELEMENT + " " + KEY_ATTRIBUTE + "=\"" + key + "\">" + value +
+                "</" + VALUE_ELEMENT + ">");
+    }
+
+
+    static class CountingListener implements ImportListener {
+        private final int mSampleInterval;
+
+        int accountCount;
+        long maxUsedMemory;
+
+        /**
+         * @param sampleInterval
+         *         Measure the heap in use after this many accounts. {@code 0} to not measure it.
+         */
+        CountingListener(int sampleInterval) {
+            mSampleInterval = sampleInterval;
+        }
+
+        @Override
+        public void onGlobalSettings(int contentVersion, ImportedSettings settings) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onAccount(int contentVersion, ImportedAccount account) {
+            accountCount++;
+            if (mSampleInterval > 0 && accountCount % mSampleInterval == 0) {
+                Runtime runtime = Runtime.getRuntime();
+                System.gc();
+                maxUsedMemory = Math.max(maxUsedMemory,
+                        runtime.totalMemory() - runtime.freeMemory());
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.fsck.k9.provider;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fsck.k9.mailstore.TestDatabase;
+import com.fsck.k9.provider.EmailProvider.StatsColumns;
+import com.fsck.k9.search.SearchSpecification.Attribute;
+import com.fsck.k9.search.SearchSpecification.Searchfield;
+
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.FIRST_PAGE;
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.FOLDER_SELECTION;
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.MESSAGE_LIST_PROJECTION;
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.NEXT_PAGE;
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.SORT_ORDER;
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.THREADED_MESSAGE_LIST_PROJECTION;
+import static com.fsck.k9.provider.EmailProviderQueryPlanTest.buildWhereClause;
+
+
+/**
+ * Times the queries checked by {@link EmailProviderQueryPlanTest} against databases of
+ * increasing size.
+ *
+ * <p>
+ * Run with {@code gradle :tests-on-jvm:benchmarkQueries}. This is not a unit test because
+ * populating the largest database takes a while.
+ * </p>
+ */
+public class EmailProviderQueryBenchmark {
+    private static final int[] MESSAGE_COUNTS = { 10000, 100000, 500000 };
+    private static final int FOLDER_COUNT = 20;
+    private static final int ITERATIONS = 20;
+
+
+    public static void main(String[] args) throws SQLException {
+        String unread = FOLDER_SELECTION + " AND (" +
+                buildWhereClause(Searchfield.READ, "1", Attribute.NOT_EQUALS) + ")";
+        String unifiedInbox = buildWhereClause(Searchfield.INTEGRATE, "1", Attribute.EQUALS);
+        String flagged = buildWhereClause(Searchfield.FLAGGED, "1", Attribute.EQUALS);
+
+        Map<String, Query> queries = new LinkedHashMap<String, Query>();
+        queries.put("folder list", new Query(MessageQueryBuilder.buildMessagesQuery(
+                MESSAGE_LIST_PROJECTION, FOLDER_SELECTION, SORT_ORDER, FIRST_PAGE), "2"));
+        queries.put("folder list, next page", new Query(MessageQueryBuilder.buildMessagesQuery(
+                MESSAGE_LIST_PROJECTION, FOLDER_SELECTION, SORT_ORDER, NEXT_PAGE),
+                NEXT_PAGE.appendArguments(new String[] { "2" })));
+        queries.put("threaded folder list", new Query(
+                MessageQueryBuilder.buildThreadedMessagesQuery(THREADED_MESSAGE_LIST_PROJECTION,
+                        FOLDER_SELECTION, SORT_ORDER, FIRST_PAGE), "2"));
+        queries.put("unified inbox list", new Query(MessageQueryBuilder.buildMessagesQuery(
+                MESSAGE_LIST_PROJECTION, unifiedInbox, SORT_ORDER, FIRST_PAGE), "1"));
+        queries.put("unread list", new Query(MessageQueryBuilder.buildMessagesQuery(
+                MESSAGE_LIST_PROJECTION, unread, SORT_ORDER, FIRST_PAGE), "2", "1"));
+        queries.put("thread", new Query(
+                MessageQueryBuilder.buildThreadQuery(MESSAGE_LIST_PROJECTION, SORT_ORDER), "4"));
+        queries.put("folder stats", new Query(
+                MessageQueryBuilder.buildAccountStatsQuery(null, FOLDER_SELECTION), "2"));
+        queries.put("unread stats", new Query(MessageQueryBuilder.buildAccountStatsQuery(
+                new String[] { StatsColumns.UNREAD_COUNT }, unread), "2", "1"));
+        queries.put("flagged stats", new Query(
+                MessageQueryBuilder.buildAccountStatsQuery(null, flagged), "1"));
+
+        for (int messageCount : MESSAGE_COUNTS) {
+            Connection connection = TestDatabase.create();
+            try {
+                TestDatabase.populate(connection, FOLDER_COUNT, messageCount);
+
+                System.out.println(messageCount + " messages:");
+                for (Entry<String, Query> entry : queries.entrySet()) {
+                    double millis = entry.getValue().time(connection, ITERATIONS);
+                    System.out.println(String.format("  %-24s %8.3f ms", entry.getKey(), millis));
+                }
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+
+    private static class Query {
+        private final String mSql;
+        private final String[] mArgs;
+
+        Query(String sql, String... args) {
+            mSql = sql;
+            mArgs = args;
+        }
+
+        /**
+         * Returns the average time in milliseconds it takes to run the query and read all rows.
+         */
+        double time(Connection connection, int iterations) throws SQLException {
+            PreparedStatement statement = connection.prepareStatement(mSql);
+            try {
+                for (int i = 0; i < mArgs.length; i++) {
+                    statement.setString(i + 1, mArgs[i]);
+                }
+
+                // Warm up the page cache
+                readAll(statement);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    readAll(statement);
+                }
+
+                return (System.nanoTime() - start) / 1000000.0 / iterations;
+            } finally {
+                statement.close();
+            }
+        }
+
+        private static void readAll(PreparedStatement statement) throws SQLException {
+            ResultSet result = statement.executeQuery();
+            try {
+                int columns = result.getMetaData().getColumnCount();
+                while (result.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        result.getString(i);
+                    }
+                }
+            } finally {
+                result.close();
+            }
+        }
+    }
+}
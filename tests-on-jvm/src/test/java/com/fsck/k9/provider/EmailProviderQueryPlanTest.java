@@ -0,0 +1,277 @@
+package com.fsck.k9.provider;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fsck.k9.mailstore.TestDatabase;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.SpecialColumns;
+import com.fsck.k9.provider.EmailProvider.StatsColumns;
+import com.fsck.k9.provider.EmailProvider.ThreadColumns;
+import com.fsck.k9.provider.MessageQueryBuilder.KeysetPage;
+import com.fsck.k9.search.LocalSearch;
+import com.fsck.k9.search.SearchSpecification.Attribute;
+import com.fsck.k9.search.SearchSpecification.SearchCondition;
+import com.fsck.k9.search.SearchSpecification.Searchfield;
+import com.fsck.k9.search.SqlQueryBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+
+/**
+ * Checks that the queries built for {@link EmailProvider} can be answered using indexes.
+ */
+public class EmailProviderQueryPlanTest {
+    /**
+     * The columns the message list queries, minus {@link SpecialColumns#ACCOUNT_UUID} which is
+     * handled by the content provider.
+     */
+    static final String[] MESSAGE_LIST_PROJECTION = {
+        MessageColumns.ID,
+        MessageColumns.UID,
+        MessageColumns.INTERNAL_DATE,
+        MessageColumns.SUBJECT,
+        MessageColumns.DATE,
+        MessageColumns.SENDER_LIST,
+        MessageColumns.TO_LIST,
+        MessageColumns.CC_LIST,
+        MessageColumns.READ,
+        MessageColumns.FLAGGED,
+        MessageColumns.ANSWERED,
+        MessageColumns.FORWARDED,
+        MessageColumns.ATTACHMENT_COUNT,
+        MessageColumns.FOLDER_ID,
+        MessageColumns.PREVIEW,
+        ThreadColumns.ROOT,
+        SpecialColumns.FOLDER_NAME
+    };
+
+    static final String[] THREADED_MESSAGE_LIST_PROJECTION = {
+        MessageColumns.ID,
+        MessageColumns.UID,
+        MessageColumns.INTERNAL_DATE,
+        MessageColumns.SUBJECT,
+        MessageColumns.DATE,
+        MessageColumns.SENDER_LIST,
+        MessageColumns.TO_LIST,
+        MessageColumns.CC_LIST,
+        MessageColumns.READ,
+        MessageColumns.FLAGGED,
+        MessageColumns.ANSWERED,
+        MessageColumns.FORWARDED,
+        MessageColumns.ATTACHMENT_COUNT,
+        MessageColumns.FOLDER_ID,
+        MessageColumns.PREVIEW,
+        ThreadColumns.ROOT,
+        SpecialColumns.FOLDER_NAME,
+        SpecialColumns.THREAD_COUNT
+    };
+
+    static final String SORT_ORDER = MessageColumns.DATE + " DESC, " + MessageColumns.ID + " DESC";
+
+    static final String FOLDER_SELECTION = MessageColumns.FOLDER_ID + " = ?";
+
+    static final KeysetPage FIRST_PAGE = new KeysetPage(100, false, null, null);
+    static final KeysetPage NEXT_PAGE = new KeysetPage(100, false, "1400000000000", "1000");
+
+    /**
+     * Tables that grow with the number of messages. Other tables, like {@code folders}, may be
+     * scanned.
+     */
+    private static final Pattern FULL_SCAN_PATTERN = Pattern.compile(
+            "^SCAN (?:TABLE )?(messages|threads|thread_summary|headers|attachments)\\b");
+
+    private static final Pattern TEMP_B_TREE_PATTERN = Pattern.compile("USE TEMP B-TREE FOR ORDER BY");
+
+
+    private static Connection connection;
+
+
+    @BeforeClass
+    public static void createDatabase() throws SQLException {
+        connection = TestDatabase.create();
+        TestDatabase.populate(connection, 10, 3000);
+    }
+
+    @AfterClass
+    public static void closeDatabase() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testFolderMessageList() throws SQLException {
+        String query = MessageQueryBuilder.buildMessagesQuery(MESSAGE_LIST_PROJECTION,
+                FOLDER_SELECTION, SORT_ORDER, FIRST_PAGE);
+
+        assertIndexedAndSorted(query, "2");
+    }
+
+    @Test
+    public void testFolderMessageListNextPage() throws SQLException {
+        String query = MessageQueryBuilder.buildMessagesQuery(MESSAGE_LIST_PROJECTION,
+                FOLDER_SELECTION, SORT_ORDER, NEXT_PAGE);
+
+        assertIndexedAndSorted(query, NEXT_PAGE.appendArguments(new String[] { "2" }));
+    }
+
+    @Test
+    public void testThreadedFolderMessageList() throws SQLException {
+        String query = MessageQueryBuilder.buildThreadedMessagesQuery(
+                THREADED_MESSAGE_LIST_PROJECTION, FOLDER_SELECTION, SORT_ORDER, FIRST_PAGE);
+
+        assertIndexedAndSorted(query, "2");
+    }
+
+    @Test
+    public void testThreadedFolderMessageListNextPage() throws SQLException {
+        String query = MessageQueryBuilder.buildThreadedMessagesQuery(
+                THREADED_MESSAGE_LIST_PROJECTION, FOLDER_SELECTION, SORT_ORDER, NEXT_PAGE);
+
+        assertIndexedAndSorted(query, NEXT_PAGE.appendArguments(new String[] { "2" }));
+    }
+
+    @Test
+    public void testUnifiedInboxMessageList() throws SQLException {
+        String selection = buildWhereClause(Searchfield.INTEGRATE, "1", Attribute.EQUALS);
+        String query = MessageQueryBuilder.buildMessagesQuery(MESSAGE_LIST_PROJECTION,
+                selection, SORT_ORDER, FIRST_PAGE);
+
+        assertIndexed(query, "1");
+    }
+
+    @Test
+    public void testThread() throws SQLException {
+        String query = MessageQueryBuilder.buildThreadQuery(MESSAGE_LIST_PROJECTION, SORT_ORDER);
+
+        assertIndexed(query, "4");
+    }
+
+    @Test
+    public void testUnreadMessageListInFolder() throws SQLException {
+        String selection = FOLDER_SELECTION + " AND (" +
+                buildWhereClause(Searchfield.READ, "1", Attribute.NOT_EQUALS) + ")";
+        String query = MessageQueryBuilder.buildMessagesQuery(MESSAGE_LIST_PROJECTION,
+                selection, SORT_ORDER, FIRST_PAGE);
+
+        assertIndexed(query, "2", "1");
+    }
+
+    @Test
+    public void testThreadedUnreadMessageListInFolder() throws SQLException {
+        String selection = FOLDER_SELECTION + " AND (" +
+                buildWhereClause(Searchfield.READ, "1", Attribute.NOT_EQUALS) + ")";
+        String query = MessageQueryBuilder.buildThreadedMessagesQuery(
+                THREADED_MESSAGE_LIST_PROJECTION, selection, SORT_ORDER, FIRST_PAGE);
+
+        assertIndexed(query, "2", "1");
+    }
+
+    @Test
+    public void testTextSearchInFolder() throws SQLException {
+        LocalSearch search = new LocalSearch();
+        search.or(new SearchCondition(Searchfield.SENDER, Attribute.CONTAINS, "example"));
+        search.or(new SearchCondition(Searchfield.SUBJECT, Attribute.CONTAINS, "example"));
+        List<String> args = new ArrayList<String>();
+        args.add("2");
+        StringBuilder selection = new StringBuilder(FOLDER_SELECTION + " AND (");
+        SqlQueryBuilder.buildWhereClause(null, search.getConditions(), selection, args);
+        selection.append(")");
+
+        String query = MessageQueryBuilder.buildMessagesQuery(MESSAGE_LIST_PROJECTION,
+                selection.toString(), SORT_ORDER, FIRST_PAGE);
+
+        assertIndexed(query, args.toArray(new String[0]));
+    }
+
+    @Test
+    public void testFolderStats() throws SQLException {
+        String query = MessageQueryBuilder.buildAccountStatsQuery(null, FOLDER_SELECTION);
+
+        assertIndexed(query, "2");
+    }
+
+    @Test
+    public void testUnifiedInboxStats() throws SQLException {
+        String selection = buildWhereClause(Searchfield.INTEGRATE, "1", Attribute.EQUALS);
+        String query = MessageQueryBuilder.buildAccountStatsQuery(null, selection);
+
+        assertIndexed(query, "1");
+    }
+
+    @Test
+    public void testUnreadStatsInFolder() throws SQLException {
+        String selection = FOLDER_SELECTION + " AND (" +
+                buildWhereClause(Searchfield.READ, "1", Attribute.NOT_EQUALS) + ")";
+        String query = MessageQueryBuilder.buildAccountStatsQuery(
+                new String[] { StatsColumns.UNREAD_COUNT }, selection);
+
+        assertIndexed(query, "2", "1");
+    }
+
+    @Test
+    public void testFlaggedStats() throws SQLException {
+        String selection = buildWhereClause(Searchfield.FLAGGED, "1", Attribute.EQUALS);
+        String query = MessageQueryBuilder.buildAccountStatsQuery(null, selection);
+
+        assertIndexed(query, "1");
+    }
+
+
+    static String buildWhereClause(Searchfield field, String value, Attribute attribute) {
+        LocalSearch search = new LocalSearch();
+        search.and(field, value, attribute);
+        StringBuilder selection = new StringBuilder();
+        SqlQueryBuilder.buildWhereClause(null, search.getConditions(), selection,
+                new ArrayList<String>());
+        return selection.toString();
+    }
+
+    private static void assertIndexed(String query, String... args) throws SQLException {
+        List<String> plan = explainQueryPlan(query, args);
+        for (String step : plan) {
+            Matcher matcher = FULL_SCAN_PATTERN.matcher(step);
+            if (matcher.find()) {
+                fail("Full scan of " + matcher.group(1) + " in " + plan + " for query: " + query);
+            }
+        }
+    }
+
+    private static void assertIndexedAndSorted(String query, String... args) throws SQLException {
+        assertIndexed(query, args);
+
+        List<String> plan = explainQueryPlan(query, args);
+        for (String step : plan) {
+            if (TEMP_B_TREE_PATTERN.matcher(step).find()) {
+                fail("Sorting all matching rows in " + plan + " for query: " + query);
+            }
+        }
+    }
+
+    private static List<String> explainQueryPlan(String query, String... args) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + query);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                statement.setString(i + 1, args[i]);
+            }
+
+            List<String> plan = new ArrayList<String>();
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                plan.add(result.getString("detail"));
+            }
+            return plan;
+        } finally {
+            statement.close();
+        }
+    }
+}